@@ -0,0 +1,135 @@
+package com.project.benchmarks;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares two JMH result files written with "-rf json", a baseline and the run after a
+ * change, and prints the change in score and in bytes allocated per operation for every
+ * benchmark in both. Allocations are only in the files when the runs used "-prof gc".
+ * Exits with status 1 if any benchmark got slower, or allocates more, by more than the
+ * threshold, so that it can gate a build.
+ *
+ * Usage: CompareResults baseline.json current.json [thresholdPercent, default 10]
+ */
+public class CompareResults {
+
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults <baseline.json> <current.json> [thresholdPercent]");
+            System.exit(2);
+        }
+        Map<String, JsonObject> baseline = load(Path.of(args[0]));
+        Map<String, JsonObject> current = load(Path.of(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s %12s %12s %9s%n",
+                "Benchmark", "Baseline", "Current", "Change", "B/op before", "B/op after", "Change");
+        for (Map.Entry<String, JsonObject> entry : current.entrySet()) {
+            JsonObject before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-70s %14s %14.3f%n", entry.getKey(), "new", score(entry.getValue()));
+                continue;
+            }
+            JsonObject after = entry.getValue();
+            double scoreChange = change(score(before), score(after));
+            // A higher score is worse for times, better for throughput
+            boolean higherIsBetter = "thrpt".equals(after.get("mode").getAsString());
+            double slowdown = higherIsBetter ? -scoreChange : scoreChange;
+            Double allocationBefore = allocation(before);
+            Double allocationAfter = allocation(after);
+            double allocationChange = allocationBefore != null && allocationAfter != null
+                    ? change(allocationBefore, allocationAfter) : 0;
+
+            boolean regressed = slowdown > threshold || allocationChange > threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%% %12s %12s %+8.1f%%%s%n",
+                    entry.getKey(), score(before), score(after), scoreChange,
+                    format(allocationBefore), format(allocationAfter), allocationChange,
+                    regressed ? "  REGRESSION" : "");
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name)) {
+                System.out.printf("%-70s %14s%n", name, "missing");
+            }
+        }
+
+        System.out.println();
+        System.out.println(regressions == 0
+                ? "No regressions over " + threshold + "%"
+                : regressions + " regression(s) over " + threshold + "%");
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    /**
+     * Reads a result file.
+     * @return The results keyed by benchmark name and parameters, in file order.
+     */
+    private static Map<String, JsonObject> load(Path file) throws IOException {
+        Map<String, JsonObject> results = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            JsonArray runs = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                results.put(key(run), run);
+            }
+        }
+        return results;
+    }
+
+    private static String key(JsonObject run) {
+        String benchmark = run.get("benchmark").getAsString();
+        String name = benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1);
+        if (!run.has("params")) {
+            return name;
+        }
+        Map<String, String> params = new TreeMap<>();
+        for (Map.Entry<String, JsonElement> param : run.getAsJsonObject("params").entrySet()) {
+            params.put(param.getKey(), param.getValue().getAsString());
+        }
+        return name + params;
+    }
+
+    private static double score(JsonObject run) {
+        return run.getAsJsonObject("primaryMetric").get("score").getAsDouble();
+    }
+
+    /**
+     * Gets the bytes allocated per operation, which older JMH versions name with a leading dot.
+     * @return The bytes, or null if the run was not profiled.
+     */
+    private static Double allocation(JsonObject run) {
+        if (!run.has("secondaryMetrics")) {
+            return null;
+        }
+        for (Map.Entry<String, JsonElement> metric : run.getAsJsonObject("secondaryMetrics").entrySet()) {
+            if (metric.getKey().endsWith(ALLOCATION)) {
+                return metric.getValue().getAsJsonObject().get("score").getAsDouble();
+            }
+        }
+        return null;
+    }
+
+    private static double change(double before, double after) {
+        return before == 0 ? (after == 0 ? 0 : 100) : (after - before) / before * 100;
+    }
+
+    private static String format(Double bytes) {
+        return bytes == null ? "-" : String.format("%.1f", bytes);
+    }
+}
@@ -0,0 +1,72 @@
+package com.project.crdt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the documents the CRDT benchmarks run against. Text is typed at the end, the way
+ * most of a real document is written, and the characters are kept so that replicas can be
+ * rebuilt from them quickly without generating positions again.
+ */
+final class BenchmarkDocuments {
+
+    static final long SEED = 42;
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz      \n";
+
+    private BenchmarkDocuments() {
+    }
+
+    /**
+     * Types random text at the end of a document.
+     * @param document The document.
+     * @param length The number of characters to type.
+     * @param random The source of the text.
+     * @return The characters typed, in document order.
+     */
+    static List<CRDTCharacter> type(CRDTDocument document, int length, Random random) {
+        List<CRDTCharacter> typed = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            typed.add(document.localInsert(document.length(), randomChar(random)));
+        }
+        return typed;
+    }
+
+    /**
+     * Creates a replica of a document from its characters.
+     * @param siteId The replica's site.
+     * @param characters The characters of the document.
+     * @return The replica.
+     */
+    static CRDTDocument replicaOf(String siteId, List<CRDTCharacter> characters) {
+        CRDTDocument replica = new CRDTDocument(siteId);
+        for (CRDTCharacter character : characters) {
+            replica.remoteInsert(character);
+        }
+        return replica;
+    }
+
+    static char randomChar(Random random) {
+        return ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+    }
+
+    /**
+     * Draws indexes into a document whose length changes by a fixed step with every edit.
+     * @param count The number of indexes.
+     * @param initialLength The length before the first edit.
+     * @param step The change in length per edit: 1 for inserts, -1 for deletes.
+     * @param random The source of the indexes.
+     * @return The indexes, each valid at its turn.
+     */
+    static int[] randomIndexes(int count, int initialLength, int step, Random random) {
+        int[] indexes = new int[count];
+        int length = initialLength;
+        for (int i = 0; i < count; i++) {
+            // An insert may go at the very end, a delete must hit a character
+            indexes[i] = random.nextInt(step > 0 ? length + 1 : length);
+            length += step;
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,202 @@
+package com.project.crdt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Edits to a {@link CRDTDocument} of 1 K to 1 M characters, local and remote.
+ * Each invocation makes a burst of {@link #BURST} edits to a document rebuilt before every
+ * iteration, so the document stays close to its nominal size however fast the edits are;
+ * scores are per edit.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class CRDTEditBenchmark {
+
+    static final int BURST = 500;
+
+    /**
+     * A document edited locally, with the text, indexes and cursor of the next burst.
+     */
+    @State(Scope.Thread)
+    public static class LocalEdits {
+
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int size;
+
+        private Random random;
+        private List<CRDTCharacter> text;
+
+        CRDTDocument document;
+        char[] typed;
+        int[] insertIndexes;
+        int cursor;
+
+        @Setup(Level.Trial)
+        public void createText() {
+            random = new Random(BenchmarkDocuments.SEED);
+            text = BenchmarkDocuments.type(new CRDTDocument("author"), size, random);
+        }
+
+        @Setup(Level.Iteration)
+        public void resetDocument() {
+            document = BenchmarkDocuments.replicaOf("editor", text);
+            typed = new char[BURST];
+            for (int i = 0; i < BURST; i++) {
+                typed[i] = BenchmarkDocuments.randomChar(random);
+            }
+            insertIndexes = BenchmarkDocuments.randomIndexes(BURST, size, 1, random);
+            cursor = random.nextInt(size - BURST + 1);
+        }
+    }
+
+    /**
+     * A replica with another site's inserts and deletes to apply.
+     */
+    @State(Scope.Thread)
+    public static class RemoteEdits {
+
+        @Param({"1000", "10000", "100000", "1000000"})
+        public int size;
+
+        private List<CRDTCharacter> text;
+
+        CRDTDocument replica;
+        CRDTCharacter[] inserts;
+        Position[] deletes;
+
+        @Setup(Level.Trial)
+        public void createEdits() {
+            Random random = new Random(BenchmarkDocuments.SEED);
+            CRDTDocument author = new CRDTDocument("author");
+            text = BenchmarkDocuments.type(author, size, random);
+
+            // Deletes of distinct characters, so that every one finds its character
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            deletes = new Position[BURST];
+            for (int i = 0; i < BURST; i++) {
+                int pick = i + random.nextInt(size - i);
+                int swap = order[i];
+                order[i] = order[pick];
+                order[pick] = swap;
+                deletes[i] = text.get(order[i]).getPosition();
+            }
+
+            // Inserts made by the author after the replica last synced
+            inserts = new CRDTCharacter[BURST];
+            int[] indexes = BenchmarkDocuments.randomIndexes(BURST, size, 1, random);
+            for (int i = 0; i < BURST; i++) {
+                inserts[i] = author.localInsert(indexes[i], BenchmarkDocuments.randomChar(random));
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void resetReplica() {
+            replica = BenchmarkDocuments.replicaOf("replica", text);
+        }
+    }
+
+    /**
+     * Typing at the end of the document, as when writing it.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public CRDTDocument sequentialTypingAtEnd(LocalEdits edits) {
+        CRDTDocument document = edits.document;
+        for (int i = 0; i < BURST; i++) {
+            document.localInsert(document.length(), edits.typed[i]);
+        }
+        return document;
+    }
+
+    /**
+     * Typing at a cursor in the middle of the document, each character after the last.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public CRDTDocument sequentialTypingInMiddle(LocalEdits edits) {
+        CRDTDocument document = edits.document;
+        for (int i = 0; i < BURST; i++) {
+            document.localInsert(edits.cursor + i, edits.typed[i]);
+        }
+        return document;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public CRDTDocument randomInsertion(LocalEdits edits) {
+        CRDTDocument document = edits.document;
+        for (int i = 0; i < BURST; i++) {
+            document.localInsert(edits.insertIndexes[i], edits.typed[i]);
+        }
+        return document;
+    }
+
+    /**
+     * Typing at the start of the document. The document halves the first position for each
+     * of these until it reaches 0 and counts down from there, so every insert adds a character.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public CRDTDocument frontInsertion(LocalEdits edits) {
+        CRDTDocument document = edits.document;
+        for (int i = 0; i < BURST; i++) {
+            document.localInsert(0, edits.typed[i]);
+        }
+        return document;
+    }
+
+    /**
+     * Deleting a range one character at a time from the same index, as holding Delete does.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public CRDTDocument bulkDelete(LocalEdits edits) {
+        CRDTDocument document = edits.document;
+        for (int i = 0; i < BURST; i++) {
+            document.localDelete(edits.cursor);
+        }
+        return document;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public CRDTDocument remoteInsert(RemoteEdits edits) {
+        CRDTDocument replica = edits.replica;
+        for (int i = 0; i < BURST; i++) {
+            replica.remoteInsert(edits.inserts[i]);
+        }
+        return replica;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public CRDTDocument remoteDelete(RemoteEdits edits) {
+        CRDTDocument replica = edits.replica;
+        for (int i = 0; i < BURST; i++) {
+            replica.remoteDelete(edits.deletes[i]);
+        }
+        return replica;
+    }
+}
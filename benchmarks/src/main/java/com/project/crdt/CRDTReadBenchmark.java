@@ -0,0 +1,61 @@
+package com.project.crdt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls on a {@link CRDTDocument} of 1 K to 1 M characters that leave its text as it is:
+ * rendering the text, and choosing the position for an insert without making it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+@State(Scope.Thread)
+public class CRDTReadBenchmark {
+
+    private static final int INDEXES = 1024;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int size;
+
+    private CRDTDocument document;
+    private int[] indexes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createDocument() {
+        Random random = new Random(BenchmarkDocuments.SEED);
+        document = new CRDTDocument("author");
+        BenchmarkDocuments.type(document, size, random);
+        indexes = new int[INDEXES];
+        for (int i = 0; i < INDEXES; i++) {
+            indexes[i] = random.nextInt(size + 1);
+        }
+    }
+
+    @Benchmark
+    public String getText() {
+        return document.getText();
+    }
+
+    @Benchmark
+    public Position generatePositionBetween() {
+        int index = indexes[next++ & (INDEXES - 1)];
+        return document.generatePositionBetween(index);
+    }
+}
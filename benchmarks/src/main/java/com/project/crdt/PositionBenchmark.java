@@ -0,0 +1,73 @@
+package com.project.crdt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Position#compareTo}, which the document's sorted set calls O(log n) times for every
+ * insert and delete. Positions are compared with a neighbour that shares all but their last
+ * identifier, the common case in the set; depth is the number of identifiers, which grows by
+ * one for every character typed in the middle of a run.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PositionBenchmark {
+
+    private static final int PAIRS = 1024;
+
+    @Param({"1", "4", "16", "64", "256"})
+    public int depth;
+
+    private Position[] left;
+    private Position[] right;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createPositions() {
+        Random random = new Random(BenchmarkDocuments.SEED);
+        left = new Position[PAIRS];
+        right = new Position[PAIRS];
+        for (int i = 0; i < PAIRS; i++) {
+            List<Identifier> prefix = new ArrayList<>(depth);
+            for (int level = 0; level < depth - 1; level++) {
+                prefix.add(new Identifier(random.nextInt(65536), "site-" + random.nextInt(4)));
+            }
+            int last = random.nextInt(65535);
+            List<Identifier> a = new ArrayList<>(prefix);
+            a.add(new Identifier(last, "site-1"));
+            // Equal identifiers, as separate objects like those of two characters in the set
+            List<Identifier> b = new ArrayList<>(depth);
+            for (Identifier identifier : prefix) {
+                b.add(new Identifier(identifier.getPosition(), identifier.getSiteId()));
+            }
+            b.add(new Identifier(last + 1, "site-1"));
+            left[i] = new Position(a);
+            right[i] = new Position(b);
+        }
+    }
+
+    @Benchmark
+    public int compareTo() {
+        int i = next++ & (PAIRS - 1);
+        return left[i].compareTo(right[i]);
+    }
+}
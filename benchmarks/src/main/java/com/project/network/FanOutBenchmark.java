@@ -0,0 +1,158 @@
+package com.project.network;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One session member's messages going through {@link CollaborativeEditorServer#onMessage},
+ * from parsing to the frames handed to every other member, for sessions of 2 to 500 members.
+ * Members are {@link StubConnection}s, and the server is never started: session tasks run
+ * inline (SESSION_THREADS=0) on the benchmark thread, so the time per message is the CPU the
+ * server spends on it, and rate limits are off so that nothing is shed.
+ * Besides the time, every benchmark counts the messages it sent and the frames and distinct
+ * serializations they fanned out to; run with "-prof gc" for allocations per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 1, jvmArgsAppend = {
+        "-DSESSION_THREADS=0", "-DMETRICS_PORT=0", "-DLOG_LEVEL=WARN",
+        "-DRATE_EDIT_USER=0", "-DRATE_EDIT_SESSION=0", "-DRATE_CURSOR_USER=0", "-DRATE_CURSOR_SESSION=0"})
+public class FanOutBenchmark {
+
+    private static final String SESSION_CODE = "bench1";
+    private static final String POSITION = "{\"identifiers\":[{\"position\":32768,\"siteId\":\"member0\"}]}";
+
+    /**
+     * A server with one session of members, and the state of the member sending.
+     * Frames the server sends go to the counters of the benchmark being measured.
+     */
+    @State(Scope.Thread)
+    public static class Session implements StubConnection.Sink {
+
+        @Param({"2", "10", "50", "100", "500"})
+        public int members;
+
+        CollaborativeEditorServer server;
+        StubConnection sender;
+        Sends sends;
+        long clientSeq;
+        int cursor;
+        boolean renamed;
+
+        /**
+         * Joins every member to one session. User IDs have no dashes, so that the members are
+         * listed in the session's presence.
+         */
+        @Setup(Level.Trial)
+        public void createSession() {
+            server = new CollaborativeEditorServer(0);
+            for (int i = 0; i < members; i++) {
+                StubConnection conn = new StubConnection(i, this);
+                server.onOpen(conn, null);
+                server.onMessage(conn, "{\"type\":\"register\",\"userId\":\"member" + i + "\",\"username\":\"Member " + i + "\"}");
+                server.onMessage(conn, "{\"type\":\"join_session\",\"userId\":\"member" + i + "\",\"code\":\"" + SESSION_CODE
+                        + "\",\"asEditor\":true,\"username\":\"Member " + i + "\"}");
+                if (i == 0) {
+                    sender = conn;
+                }
+            }
+        }
+
+        @Override
+        public void sent(String text) {
+            // Nothing is counted while setting up
+            if (sends != null) {
+                sends.sent(text);
+            }
+        }
+    }
+
+    /**
+     * What the server sent while measuring. The counts are totals over all iterations;
+     * divide frames and serializations by messages for the numbers per message.
+     * Injected into the benchmark methods only, since JMH allows the counters of a method
+     * to come from nowhere else.
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Sends {
+        public long messages;
+        public long frames;
+        public long serializations;
+
+        private String lastText;
+
+        void sent(String text) {
+            frames++;
+            // The same instance for every recipient means the message was serialized once
+            if (text != lastText) {
+                serializations++;
+                lastText = text;
+            }
+        }
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            messages = 0;
+            frames = 0;
+            serializations = 0;
+            lastText = null;
+        }
+    }
+
+    @Benchmark
+    public void insert(Session session, Sends sends) {
+        session.sends = sends;
+        session.server.onMessage(session.sender, "{\"type\":\"insert\",\"userId\":\"member0\",\"character\":{\"value\":\"a\",\"position\":"
+                + POSITION + ",\"authorId\":\"member0\",\"timestamp\":1700000000000},\"clientSeq\":" + (++session.clientSeq) + "}");
+        sends.messages++;
+    }
+
+    @Benchmark
+    public void delete(Session session, Sends sends) {
+        session.sends = sends;
+        session.server.onMessage(session.sender, "{\"type\":\"delete\",\"userId\":\"member0\",\"position\":" + POSITION
+                + ",\"clientSeq\":" + (++session.clientSeq) + "}");
+        sends.messages++;
+    }
+
+    /**
+     * A cursor move and the presence tick that sends it on. A tick normally carries every
+     * move of its 40 ms, so this is the most a move can cost.
+     */
+    @Benchmark
+    public void cursorMove(Session session, Sends sends) {
+        session.sends = sends;
+        session.cursor = (session.cursor + 1) & 1023;
+        session.server.onMessage(session.sender, "{\"type\":\"cursor_move\",\"userId\":\"member0\",\"position\":" + session.cursor + "}");
+        session.server.flushPresenceTick();
+        sends.messages++;
+    }
+
+    /**
+     * A presence update with a new username, which is announced to the other members.
+     */
+    @Benchmark
+    public void presenceRename(Session session, Sends sends) {
+        session.sends = sends;
+        session.renamed = !session.renamed;
+        session.server.onMessage(session.sender, "{\"type\":\"presence\",\"userId\":\"member0\",\"username\":\""
+                + (session.renamed ? "Renamed" : "Member 0") + "\",\"timestamp\":1700000000000}");
+        sends.messages++;
+    }
+}
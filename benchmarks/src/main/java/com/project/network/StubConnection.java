@@ -0,0 +1,169 @@
+package com.project.network;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * A connection with no socket behind it, for driving the server in benchmarks.
+ * Text sent to it goes to a {@link Sink} shared by all the connections of a benchmark, and
+ * is then dropped; it never has buffered data, so the server always sends directly.
+ */
+class StubConnection implements WebSocket {
+
+    private final InetSocketAddress address;
+    private final Sink sink;
+    private Object attachment;
+    private boolean open = true;
+
+    StubConnection(int id, Sink sink) {
+        this.address = InetSocketAddress.createUnresolved("member-" + id, 1024 + id);
+        this.sink = sink;
+    }
+
+    /**
+     * Receives what the server sends.
+     */
+    interface Sink {
+        /**
+         * Called for every text frame sent to any connection of the benchmark.
+         * @param text The frame, the same instance for every recipient of a message
+         *             that was serialized once.
+         */
+        void sent(String text);
+    }
+
+    @Override
+    public void send(String text) {
+        sink.sent(text);
+    }
+
+    @Override
+    public void send(ByteBuffer bytes) {
+        // The server only sends text
+    }
+
+    @Override
+    public void send(byte[] bytes) {
+    }
+
+    @Override
+    public void sendFrame(Framedata framedata) {
+    }
+
+    @Override
+    public void sendFrame(Collection<Framedata> frames) {
+    }
+
+    @Override
+    public void sendPing() {
+    }
+
+    @Override
+    public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean fin) {
+    }
+
+    @Override
+    public void close(int code, String message) {
+        open = false;
+    }
+
+    @Override
+    public void close(int code) {
+        open = false;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public void closeConnection(int code, String message) {
+        open = false;
+    }
+
+    @Override
+    public boolean hasBufferedData() {
+        return false;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteSocketAddress() {
+        return address;
+    }
+
+    @Override
+    public InetSocketAddress getLocalSocketAddress() {
+        return null;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public boolean isClosing() {
+        return false;
+    }
+
+    @Override
+    public boolean isFlushAndClose() {
+        return false;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !open;
+    }
+
+    @Override
+    public Draft getDraft() {
+        return null;
+    }
+
+    @Override
+    public ReadyState getReadyState() {
+        return open ? ReadyState.OPEN : ReadyState.CLOSED;
+    }
+
+    @Override
+    public String getResourceDescriptor() {
+        return "/";
+    }
+
+    @Override
+    public <T> void setAttachment(T attachment) {
+        this.attachment = attachment;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getAttachment() {
+        return (T) attachment;
+    }
+
+    @Override
+    public boolean hasSSLSupport() {
+        return false;
+    }
+
+    @Override
+    public SSLSession getSSLSession() {
+        throw new IllegalArgumentException("Not an SSL connection");
+    }
+
+    @Override
+    public IProtocol getProtocol() {
+        return null;
+    }
+}
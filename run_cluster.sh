@@ -0,0 +1,38 @@
+#!/bin/bash
+
+# Starts a local cluster of collaborative editor servers for testing.
+# Usage: ./run_cluster.sh [nodes] [first-port] [first-metrics-port]
+# Node i listens on first-port + i - 1 and serves metrics on first-metrics-port + i - 1;
+# logs go to logs/node<i>.log.
+
+NODES=${1:-3}
+BASE_PORT=${2:-8887}
+BASE_METRICS_PORT=${3:-9464}
+
+echo "Building the server..."
+mvn -q compile || exit 1
+CLASSPATH="target/classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout)"
+
+# Every node gets the same node list; only its own ID differs
+CLUSTER_NODES=""
+for ((i = 1; i <= NODES; i++)); do
+    CLUSTER_NODES+="${CLUSTER_NODES:+,}node$i=localhost:$((BASE_PORT + i - 1))"
+done
+export CLUSTER_NODES
+
+mkdir -p logs
+PIDS=()
+for ((i = 1; i <= NODES; i++)); do
+    PORT=$((BASE_PORT + i - 1)) METRICS_PORT=$((BASE_METRICS_PORT + i - 1)) CLUSTER_NODE_ID=node$i \
+        java -cp "$CLASSPATH" com.project.network.CollaborativeEditorServer > "logs/node$i.log" 2>&1 &
+    PIDS+=($!)
+    echo "Started node$i on port $((BASE_PORT + i - 1)), metrics on $((BASE_METRICS_PORT + i - 1)) (pid $!)"
+done
+
+trap 'echo "Stopping cluster..."; kill "${PIDS[@]}" 2>/dev/null' EXIT INT TERM
+
+echo
+echo "Cluster: $CLUSTER_NODES"
+echo "Benchmark: java -cp \"$CLASSPATH\" com.project.network.ClusterBenchmark \"$CLUSTER_NODES\""
+echo "Press Ctrl+C to stop."
+wait
@@ -1,5 +1,7 @@
 package com.project.crdt;
 
+import com.project.util.Log;
+
 import java.util.*;
 
 /**
@@ -7,6 +9,8 @@ import java.util.*;
  * It uses a tree-based CRDT algorithm to handle concurrent edits.
  */
 public class CRDTDocument {
+    private static final Log log = Log.get(CRDTDocument.class);
+    
     // The site identifier for this instance
     private final String siteId;
     
@@ -16,6 +20,12 @@ public class CRDTDocument {
     // Counter for generating new position identifiers
     private int counter;
     
+    // Incremented on every change to the text
+    private long version = 0;
+    
+    // Windowed hash of the text, kept up to date on every change
+    private long contentHash = ContentHash.EMPTY;
+    
     // History for undo/redo operations
     private final Deque<Operation> history;
     private final Deque<Operation> redoStack;
@@ -40,17 +50,20 @@ public class CRDTDocument {
      * @return The CRDT character that was inserted.
      */
     public CRDTCharacter localInsert(int index, char c) {
+        CRDTEvents.Insert event = new CRDTEvents.Insert();
+        event.begin();
         Position position = generatePositionBetween(index);
         
         CRDTCharacter character = new CRDTCharacter(
                 c, position, siteId, System.currentTimeMillis());
         
-        characters.add(character);
+        addCharacter(character);
         
         // Add to history
         Operation insertOperation = new Operation(OperationType.INSERT, character);
         addToHistory(insertOperation);
         
+        commitInsert(event, character, false);
         return character;
     }
     
@@ -60,14 +73,22 @@ public class CRDTDocument {
      * @return The CRDT character that was deleted, or null if deletion was not possible.
      */
     public CRDTCharacter localDelete(int index) {
+        CRDTEvents.Delete event = new CRDTEvents.Delete();
+        event.begin();
+        CRDTCharacter deleted = deleteAt(index);
+        commitDelete(event, deleted != null, false);
+        return deleted;
+    }
+    
+    private CRDTCharacter deleteAt(int index) {
         // Safety checks
         if (characters.isEmpty()) {
-            System.err.println("Cannot delete from empty document");
+            log.warn("Cannot delete from empty document");
             return null;
         }
         
         if (index < 0 || index >= characters.size()) {
-            System.err.println("Delete attempted with invalid index: " + index + 
+            log.warn("Delete attempted with invalid index: " + index + 
                             " (document size: " + characters.size() + ")");
             return null;
         }
@@ -76,7 +97,7 @@ public class CRDTDocument {
             CRDTCharacter character = getCharacterAtIndex(index);
             
             if (character != null) {
-                characters.remove(character);
+                removeCharacter(character);
                 
                 // Add to history
                 Operation deleteOperation = new Operation(OperationType.DELETE, character);
@@ -84,7 +105,7 @@ public class CRDTDocument {
                 
                 return character;
             } else {
-                System.err.println("Character at index " + index + " is null, cannot delete");
+                log.warn("Character at index " + index + " is null, cannot delete");
                 
                 // Try a different approach if the normal lookup fails
                 // This is a fallback recovery mechanism
@@ -94,13 +115,13 @@ public class CRDTDocument {
                     for (CRDTCharacter c : characters) {
                         if (i == index) {
                             // Found the character, now remove it
-                            characters.remove(c);
+                            removeCharacter(c);
                             
                             // Add to history
                             Operation deleteOperation = new Operation(OperationType.DELETE, c);
                             addToHistory(deleteOperation);
                             
-                            System.out.println("Successfully deleted character using fallback method");
+                            log.info("Successfully deleted character using fallback method");
                             return c;
                         }
                         i++;
@@ -108,8 +129,7 @@ public class CRDTDocument {
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error during deletion: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error during deletion: " + e.getMessage(), e);
             
             // Additional recovery attempt if there was an exception
             try {
@@ -119,19 +139,19 @@ public class CRDTDocument {
                     if (index < charArray.length) {
                         CRDTCharacter charToDelete = charArray[index];
                         if (charToDelete != null) {
-                            characters.remove(charToDelete);
+                            removeCharacter(charToDelete);
                             
                             // Add to history
                             Operation deleteOperation = new Operation(OperationType.DELETE, charToDelete);
                             addToHistory(deleteOperation);
                             
-                            System.out.println("Successfully deleted character using array recovery method");
+                            log.info("Successfully deleted character using array recovery method");
                             return charToDelete;
                         }
                     }
                 }
             } catch (Exception ex) {
-                System.err.println("Recovery attempt also failed: " + ex.getMessage());
+                log.error("Recovery attempt also failed: " + ex.getMessage());
             }
         }
         
@@ -143,7 +163,10 @@ public class CRDTDocument {
      * @param character The character to insert.
      */
     public void remoteInsert(CRDTCharacter character) {
-        characters.add(character);
+        CRDTEvents.Insert event = new CRDTEvents.Insert();
+        event.begin();
+        addCharacter(character);
+        commitInsert(event, character, true);
     }
     
     /**
@@ -151,6 +174,8 @@ public class CRDTDocument {
      * @param position The position of the character to delete.
      */
     public void remoteDelete(Position position) {
+        CRDTEvents.Delete event = new CRDTEvents.Delete();
+        event.begin();
         CRDTCharacter toRemove = null;
         
         for (CRDTCharacter character : characters) {
@@ -161,8 +186,75 @@ public class CRDTDocument {
         }
         
         if (toRemove != null) {
-            characters.remove(toRemove);
+            removeCharacter(toRemove);
+        }
+        commitDelete(event, toRemove != null, true);
+    }
+    
+    private void commitInsert(CRDTEvents.Insert event, CRDTCharacter character, boolean remote) {
+        if (event.shouldCommit()) {
+            event.remote = remote;
+            event.documentLength = characters.size();
+            event.positionDepth = character.getPosition().getIdentifiers().size();
+            event.commit();
+        }
+    }
+    
+    private void commitDelete(CRDTEvents.Delete event, boolean found, boolean remote) {
+        if (event.shouldCommit()) {
+            event.remote = remote;
+            event.documentLength = characters.size();
+            event.found = found;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Adds a character to the text, updating the version and hash.
+     */
+    private void addCharacter(CRDTCharacter character) {
+        if (!characters.add(character)) {
+            return;
+        }
+        version++;
+        updateContentHash(character, true);
+    }
+    
+    /**
+     * Removes a character from the text, updating the version and hash.
+     */
+    private void removeCharacter(CRDTCharacter character) {
+        if (!characters.remove(character)) {
+            return;
+        }
+        version++;
+        updateContentHash(character, false);
+    }
+    
+    /**
+     * Updates the content hash for one character having been added or removed. Only the
+     * windows around it change, so only the characters up to a window away on either
+     * side are read.
+     */
+    private void updateContentHash(CRDTCharacter character, boolean added) {
+        char[] before = new char[ContentHash.WINDOW - 1];
+        int beforeStart = before.length;
+        Iterator<CRDTCharacter> back = characters.headSet(character, false).descendingIterator();
+        while (beforeStart > 0 && back.hasNext()) {
+            before[--beforeStart] = back.next().getValue();
+        }
+        StringBuilder after = new StringBuilder(ContentHash.WINDOW - 1);
+        Iterator<CRDTCharacter> ahead = characters.tailSet(character, false).iterator();
+        while (after.length() < ContentHash.WINDOW - 1 && ahead.hasNext()) {
+            after.append(ahead.next().getValue());
         }
+        
+        String prefix = new String(before, beforeStart, before.length - beforeStart);
+        String without = prefix + after;
+        String with = prefix + character.getValue() + after;
+        contentHash = added
+                ? ContentHash.replace(contentHash, without, with, prefix.length(), after.length())
+                : ContentHash.replace(contentHash, with, without, prefix.length(), after.length());
     }
     
     /**
@@ -188,10 +280,11 @@ public class CRDTDocument {
     
     /**
      * Generates a position between two existing positions.
+     * Package-private so that the benchmarks can measure it on its own.
      * @param index The index to insert at.
      * @return A new position.
      */
-    private Position generatePositionBetween(int index) {
+    Position generatePositionBetween(int index) {
         if (characters.isEmpty()) {
             // If the document is empty, create a position in the middle
             List<Identifier> identifiers = new ArrayList<>();
@@ -211,9 +304,9 @@ public class CRDTDocument {
                 // If there's room before the first position
                 newIdentifiers.add(new Identifier(firstPos / 2, siteId));
             } else {
-                // If the first position is already at 0, add a new level
-                newIdentifiers.add(new Identifier(0, siteId));
-                newIdentifiers.add(new Identifier(32768, siteId));
+                // Once the halving reaches 0, step below it; anything starting with the first
+                // position itself, at any depth, would sort after it or repeat it
+                newIdentifiers.add(new Identifier(firstPos - 1, siteId));
             }
             
             return new Position(newIdentifiers);
@@ -263,13 +356,54 @@ public class CRDTDocument {
      * @return The text.
      */
     public String getText() {
+        CRDTEvents.GetText event = new CRDTEvents.GetText();
+        event.begin();
         StringBuilder sb = new StringBuilder();
         for (CRDTCharacter character : characters) {
             sb.append(character.getValue());
         }
+        if (event.shouldCommit()) {
+            event.length = sb.length();
+            event.commit();
+        }
         return sb.toString();
     }
     
+    /**
+     * Gets the number of characters in the document.
+     * @return The text length.
+     */
+    public int length() {
+        return characters.size();
+    }
+    
+    /**
+     * Gets the document version, which changes every time the text changes.
+     * @return The version.
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    /**
+     * Gets the hash of the text (see {@link ContentHash}). It is updated as characters are
+     * added and removed, wherever they are, from the characters around them.
+     * @return The content hash.
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+    
+    /**
+     * Checks in constant time whether the document holds the given text.
+     * @param length The length of the text.
+     * @param hash The {@link ContentHash} of the text.
+     * @return true if the lengths and hashes match.
+     */
+    public boolean hasContent(int length, long hash) {
+        return characters.size() == length && getContentHash() == hash;
+    }
+    
     /**
      * Adds an operation to the history.
      * @param operation The operation to add.
@@ -296,10 +430,10 @@ public class CRDTDocument {
         
         if (lastOperation.getType() == OperationType.INSERT) {
             // Undo an insert by removing the character
-            characters.remove(lastOperation.getCharacter());
+            removeCharacter(lastOperation.getCharacter());
         } else {
             // Undo a delete by adding the character back
-            characters.add(lastOperation.getCharacter());
+            addCharacter(lastOperation.getCharacter());
         }
         
         return true;
@@ -319,10 +453,10 @@ public class CRDTDocument {
         
         if (lastUndoneOperation.getType() == OperationType.INSERT) {
             // Redo an insert by adding the character back
-            characters.add(lastUndoneOperation.getCharacter());
+            addCharacter(lastUndoneOperation.getCharacter());
         } else {
             // Redo a delete by removing the character
-            characters.remove(lastUndoneOperation.getCharacter());
+            removeCharacter(lastUndoneOperation.getCharacter());
         }
         
         return true;
@@ -0,0 +1,62 @@
+package com.project.crdt;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder events for the document's hot paths. They cost nothing unless a
+ * recording with them enabled is running; by default only calls taking 1 ms or more
+ * are recorded, which is where a slow document shows up.
+ */
+final class CRDTEvents {
+
+    private CRDTEvents() {
+    }
+
+    @Name("com.project.crdt.Insert")
+    @Label("CRDT Insert")
+    @Category({"Collaborative Editor", "CRDT"})
+    @Description("A character inserted into a CRDT document")
+    @Threshold("1 ms")
+    static final class Insert extends Event {
+        @Label("Remote")
+        boolean remote;
+
+        @Label("Document Length")
+        int documentLength;
+
+        @Label("Position Depth")
+        @Description("Identifiers in the inserted character's position")
+        int positionDepth;
+    }
+
+    @Name("com.project.crdt.Delete")
+    @Label("CRDT Delete")
+    @Category({"Collaborative Editor", "CRDT"})
+    @Description("A character deleted from a CRDT document")
+    @Threshold("1 ms")
+    static final class Delete extends Event {
+        @Label("Remote")
+        boolean remote;
+
+        @Label("Document Length")
+        int documentLength;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("com.project.crdt.GetText")
+    @Label("CRDT Get Text")
+    @Category({"Collaborative Editor", "CRDT"})
+    @Description("The text of a CRDT document built from its characters")
+    @Threshold("1 ms")
+    static final class GetText extends Event {
+        @Label("Length")
+        int length;
+    }
+}
@@ -0,0 +1,125 @@
+package com.project.crdt;
+
+/**
+ * Windowed hash of document text.
+ * Every position of a text has a window: the WINDOW characters ending there, or fewer at
+ * the start of the text. The hash of a text is the sum, modulo 2^64, of a mixed polynomial
+ * hash of each window. No term is weighted by where in the text it sits, so an edit
+ * anywhere only changes the terms of the windows that overlap it, and the hash of the
+ * edited text follows from the old one and the edited region alone, in time independent
+ * of the text's length. Texts that only differ by moving runs of text whose surroundings
+ * repeat for longer than a window hash alike; otherwise two texts are treated as equal
+ * when their lengths and hashes match.
+ */
+public final class ContentHash {
+
+    /** Hash of the empty text. */
+    public static final long EMPTY = 0;
+
+    /** Number of characters in a window. */
+    static final int WINDOW = 32;
+
+    private static final long BASE = 0x100000001B3L;
+    private static final long BASE_TO_WINDOW = power(BASE, WINDOW);
+
+    private ContentHash() {
+    }
+
+    /**
+     * Hashes a whole text.
+     * @param text The text.
+     * @return The hash.
+     */
+    public static long of(CharSequence text) {
+        return windows(text, 0, text.length());
+    }
+
+    /**
+     * Works out the hash of a text from the hash of an earlier version of it.
+     * @param hash The hash of the old text.
+     * @param oldText The old text.
+     * @param newText The new text.
+     * @param prefix How many leading characters the texts have in common; fewer than all
+     *               of them is fine, it only means more windows are hashed again.
+     * @param suffix How many trailing characters the texts have in common, not overlapping
+     *               the prefix in either text.
+     * @return The hash of the new text.
+     */
+    public static long replace(long hash, CharSequence oldText, CharSequence newText, int prefix, int suffix) {
+        // Windows ending in the prefix, or starting in the suffix, are the same in both texts
+        int oldEnd = Math.min(oldText.length(), oldText.length() - suffix + WINDOW - 1);
+        int newEnd = Math.min(newText.length(), newText.length() - suffix + WINDOW - 1);
+        return hash - windows(oldText, prefix, oldEnd) + windows(newText, prefix, newEnd);
+    }
+
+    /**
+     * Works out the hash of a text from the hash of an earlier version of it, finding their
+     * unchanged ends by comparing them. Comparing characters costs less than hashing them,
+     * so this is cheaper than {@link #of} for a whole new text that mostly matches the old one.
+     * @param hash The hash of the old text.
+     * @param oldText The old text.
+     * @param newText The new text.
+     * @return The hash of the new text.
+     */
+    public static long replace(long hash, CharSequence oldText, CharSequence newText) {
+        int oldLength = oldText.length();
+        int newLength = newText.length();
+        int maxCommon = Math.min(oldLength, newLength);
+        int prefix = 0;
+        while (prefix < maxCommon && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < maxCommon - prefix
+                && oldText.charAt(oldLength - 1 - suffix) == newText.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+        return replace(hash, oldText, newText, prefix, suffix);
+    }
+
+    /**
+     * Sums the terms of the windows ending at positions from (inclusive) to to (exclusive).
+     */
+    private static long windows(CharSequence text, int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        int first = Math.max(0, from - WINDOW + 1);
+        long window = 0;
+        for (int i = first; i < from; i++) {
+            window = window * BASE + text.charAt(i) + 1;
+        }
+
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            window = window * BASE + text.charAt(i) + 1;
+            if (i - first == WINDOW) {
+                window -= (text.charAt(first) + 1) * BASE_TO_WINDOW;
+                first++;
+            }
+            sum += mix(window);
+        }
+        return sum;
+    }
+
+    /**
+     * Spreads the bits of a window hash (the MurmurHash3 finalizer), so that the sum of
+     * the terms does not cancel out the way a sum of plain polynomial hashes would.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long power(long base, int exponent) {
+        long result = 1;
+        for (int i = 0; i < exponent; i++) {
+            result *= base;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,317 @@
+package com.project.crdt;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * Merkle tree over the text of a document, used to find where two copies differ.
+ * The text is cut into blocks at positions chosen by its content (a gear hash of the
+ * characters before each position), so an edit only changes the blocks around it and
+ * equal stretches of text give equal blocks on both sides, even when they sit at
+ * different offsets. Blocks are grouped into parent nodes the same way, by the hashes
+ * of the nodes below, up to a single root. Two copies have the same text exactly when
+ * their roots match (up to hash collisions), and any subtree one side has is found in
+ * the other by its hash.
+ * The tree is updated incrementally: blocks before and after the edited region are kept
+ * and only the region in between is cut and hashed again.
+ */
+public class MerkleTree {
+
+    // Blocks end where the top BLOCK_BITS bits of the gear hash are zero, giving blocks of
+    // roughly MIN_BLOCK + 2^BLOCK_BITS characters
+    private static final int BLOCK_BITS = 9;
+    private static final int MIN_BLOCK = 128;
+    private static final int MAX_BLOCK = 4096;
+
+    // Parent nodes end after a child whose mixed hash has its low FANOUT_BITS bits zero
+    private static final int FANOUT_BITS = 4;
+    private static final int MAX_FANOUT = 64;
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x5EED_CAFEL);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private String text = "";
+    private List<Node> blocks = new ArrayList<>();
+    private Node root = Node.EMPTY;
+    private Map<Long, Node> nodesByHash = Collections.emptyMap();
+
+    /**
+     * Updates the tree for a new version of the text.
+     * @param newText The whole new text.
+     */
+    public void update(String newText) {
+        String oldText = text;
+        if (newText.equals(oldText)) {
+            return;
+        }
+
+        int oldLength = oldText.length();
+        int newLength = newText.length();
+        int prefix = 0;
+        int maxCommon = Math.min(oldLength, newLength);
+        while (prefix < maxCommon && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < maxCommon - prefix
+                && oldText.charAt(oldLength - 1 - suffix) == newText.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+        update(newText, prefix, suffix);
+    }
+
+    /**
+     * Updates the tree for a new version of the text whose unchanged ends are already known,
+     * such as the result of a patch, without comparing the two texts.
+     * @param newText The whole new text.
+     * @param prefix How many leading characters the new text shares with the old one. Fewer
+     *               than all of them is fine, it only means more of the text is hashed again.
+     * @param suffix How many trailing characters the texts share, not overlapping the prefix.
+     * @throws IllegalArgumentException If the ends overlap in either text.
+     */
+    public void update(String newText, int prefix, int suffix) {
+        int oldLength = text.length();
+        int newLength = newText.length();
+        if (prefix < 0 || suffix < 0 || prefix + suffix > Math.min(oldLength, newLength)) {
+            throw new IllegalArgumentException("Unchanged ends " + prefix + " and " + suffix +
+                                               " do not fit texts of " + oldLength + " and " + newLength + " characters");
+        }
+        if (prefix == oldLength && oldLength == newLength) {
+            text = newText;
+            return;
+        }
+
+        List<Node> updated = new ArrayList<>(blocks.size() + 4);
+
+        // Blocks that end inside the common prefix are cut the same way in the new text.
+        // The last block of the text ends because the text does, not at a cut, so it is redone.
+        int pos = 0;
+        int next = 0;
+        while (next < blocks.size()) {
+            int end = pos + blocks.get(next).length;
+            if (end > prefix || end >= oldLength) {
+                break;
+            }
+            updated.add(blocks.get(next));
+            pos = end;
+            next++;
+        }
+
+        // Cut the new text from there until a cut lands on one of the old cuts inside the
+        // common suffix; from that point on both texts are cut alike
+        int delta = newLength - oldLength;
+        int oldEnd = pos;
+        int start = pos;
+        while (start < newLength) {
+            int end = nextCut(newText, start);
+            updated.add(block(newText, start, end));
+            start = end;
+
+            if (end < newLength && end >= newLength - suffix) {
+                int oldCut = end - delta;
+                while (next < blocks.size() && oldEnd < oldCut) {
+                    oldEnd += blocks.get(next).length;
+                    next++;
+                }
+                if (oldEnd == oldCut && oldCut < oldLength) {
+                    updated.addAll(blocks.subList(next, blocks.size()));
+                    break;
+                }
+            }
+        }
+
+        text = newText;
+        blocks = updated;
+        rebuild();
+    }
+
+    /**
+     * Gets the root hash, which is 0 for an empty text.
+     * @return The root hash.
+     */
+    public long getRootHash() {
+        return root.hash;
+    }
+
+    /**
+     * Gets the root node.
+     * @return The root.
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * Gets the length of the text the tree was last updated with.
+     * @return The length in characters.
+     */
+    public int getLength() {
+        return text.length();
+    }
+
+    /**
+     * Gets the number of blocks the text is cut into.
+     * @return The block count.
+     */
+    public int getBlockCount() {
+        return blocks.size();
+    }
+
+    /**
+     * Finds a node of this tree by its hash.
+     * @param hash The node hash.
+     * @return The node, or null if this tree has no node with that hash.
+     */
+    public Node getNode(long hash) {
+        return nodesByHash.get(hash);
+    }
+
+    /**
+     * Gets the text a node covers.
+     * @param node A node of this tree.
+     * @return The text.
+     */
+    public String getText(Node node) {
+        return text.substring(node.offset, node.offset + node.length);
+    }
+
+    /**
+     * Finds where the block starting at the given position ends.
+     */
+    private static int nextCut(String text, int start) {
+        int limit = Math.min(text.length(), start + MAX_BLOCK);
+        long gear = 0;
+        for (int i = start; i < limit; i++) {
+            char c = text.charAt(i);
+            gear = (gear << 1) + GEAR[(c ^ (c >>> 8)) & 0xFF];
+            if (i + 1 - start >= MIN_BLOCK && (gear >>> (64 - BLOCK_BITS)) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Makes a block node, hashing its characters with a polynomial hash.
+     */
+    private static Node block(String text, int start, int end) {
+        long hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = hash * 0x100000001B3L + text.charAt(i) + 1;
+        }
+        return new Node(hash, end - start, null);
+    }
+
+    /**
+     * Rebuilds the levels above the blocks and the hash index.
+     */
+    private void rebuild() {
+        Map<Long, Node> index = new HashMap<>();
+        if (blocks.isEmpty()) {
+            root = Node.EMPTY;
+            nodesByHash = index;
+            return;
+        }
+
+        // Kept blocks may have moved, so offsets are set here
+        int offset = 0;
+        for (Node block : blocks) {
+            block.offset = offset;
+            offset += block.length;
+            index.put(block.hash, block);
+        }
+
+        List<Node> level = blocks;
+        while (level.size() > 1) {
+            List<Node> parents = new ArrayList<>(level.size() / 4 + 1);
+            int groupStart = 0;
+            for (int i = 0; i < level.size(); i++) {
+                int size = i + 1 - groupStart;
+                boolean cut = size >= MAX_FANOUT || (size >= 2 && (mix(level.get(i).hash) & ((1 << FANOUT_BITS) - 1)) == 0);
+                if (cut || i == level.size() - 1) {
+                    Node parent = parent(level.subList(groupStart, i + 1));
+                    parents.add(parent);
+                    index.putIfAbsent(parent.hash, parent);
+                    groupStart = i + 1;
+                }
+            }
+            level = parents;
+        }
+        root = level.get(0);
+        nodesByHash = index;
+    }
+
+    private static Node parent(List<Node> children) {
+        long hash = 0x6A09E667F3BCC909L;
+        int length = 0;
+        for (Node child : children) {
+            hash = mix(hash ^ child.hash) + child.length;
+            length += child.length;
+        }
+        Node parent = new Node(mix(hash), length, new ArrayList<>(children));
+        parent.offset = children.get(0).offset;
+        return parent;
+    }
+
+    /**
+     * Spreads the bits of a hash (the MurmurHash3 finalizer).
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A node of the tree: a block of text, or a run of nodes of the level below.
+     */
+    public static final class Node {
+        private static final Node EMPTY = new Node(0, 0, null);
+
+        private final long hash;
+        private final int length;
+        private final List<Node> children;
+        private int offset;
+
+        private Node(long hash, int length, List<Node> children) {
+            this.hash = hash;
+            this.length = length;
+            this.children = children;
+        }
+
+        public long getHash() {
+            return hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Checks whether the node is a block of text.
+         */
+        public boolean isBlock() {
+            return children == null;
+        }
+
+        /**
+         * Gets the nodes below this one, or an empty list for a block.
+         */
+        public List<Node> getChildren() {
+            return children == null ? Collections.emptyList() : children;
+        }
+    }
+}
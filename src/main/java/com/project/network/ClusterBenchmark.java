@@ -0,0 +1,373 @@
+package com.project.network;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load test for a server cluster started with run_cluster.sh.
+ * Opens a number of sessions, connects each session's clients to different nodes
+ * (so most of them go through a relay), has every client type at a fixed rate and
+ * reports how many edits were delivered and how long delivery took.
+ *
+ * Usage: ClusterBenchmark nodes [sessions] [clientsPerSession] [seconds] [editsPerSecond]
+ * where nodes uses the CLUSTER_NODES format, e.g. "node1=localhost:8887,node2=localhost:8888".
+ *
+ * With "sweep" and a list of cluster sizes in place of the nodes, e.g. "sweep 1,2,4", it
+ * starts a local cluster of each size itself, from this JVM's classpath on ports from
+ * BENCH_BASE_PORT (default 9700, each size on the ports after the last) and with in-memory
+ * storage unless MONGODB_URI is set, runs the same load against it, and reports the sizes
+ * side by side; the table is also written to cluster-sweep.csv. Every node of a local
+ * cluster shares the machine's cores, so the sweep shows the relay and link overhead as
+ * the share of relayed clients grows, not how far more machines would scale.
+ */
+public class ClusterBenchmark {
+
+    private static final Gson gson = new Gson();
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder received = new LongAdder();
+    private final AtomicInteger joinFailures = new AtomicInteger();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Long> latenciesMicros = new ConcurrentLinkedQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        String nodeList = args.length > 0 ? args[0] : ServerConfig.get("CLUSTER_NODES");
+        if (nodeList == null) {
+            System.err.println("Usage: ClusterBenchmark nodes|sweep [sizes] [sessions] [clientsPerSession] [seconds] [editsPerSecond]");
+            System.exit(1);
+        }
+        boolean sweep = nodeList.equals("sweep");
+        int first = sweep ? 2 : 1;
+        int sessions = args.length > first ? Integer.parseInt(args[first]) : 50;
+        int clientsPerSession = args.length > first + 1 ? Integer.parseInt(args[first + 1]) : 4;
+        int seconds = args.length > first + 2 ? Integer.parseInt(args[first + 2]) : 20;
+        int editsPerSecond = args.length > first + 3 ? Integer.parseInt(args[first + 3]) : 10;
+
+        if (sweep) {
+            String sizes = args.length > 1 ? args[1] : "1,2,4";
+            sweep(sizes, sessions, clientsPerSession, seconds, editsPerSecond);
+        } else {
+            new ClusterBenchmark().run(ClusterRing.parseNodes(nodeList), sessions, clientsPerSession, seconds, editsPerSecond);
+        }
+    }
+
+    /**
+     * Runs the benchmark against local clusters of each size in turn.
+     */
+    private static void sweep(String sizes, int sessions, int clientsPerSession, int seconds, int editsPerSecond) throws Exception {
+        int basePort = ServerConfig.getInt("BENCH_BASE_PORT", 9700);
+        List<String> rows = new ArrayList<>();
+        rows.add("nodes,sent_per_s,delivered_per_s,delivered_pct,p50_ms,p99_ms,max_ms,per_node_delivered_per_s");
+        for (String size : sizes.split(",")) {
+            int nodeCount = Integer.parseInt(size.trim());
+            StringBuilder nodeList = new StringBuilder();
+            for (int i = 1; i <= nodeCount; i++) {
+                nodeList.append(i > 1 ? "," : "").append("node").append(i).append("=localhost:").append(basePort + i - 1);
+            }
+
+            List<Process> nodes = new ArrayList<>();
+            try {
+                for (int i = 1; i <= nodeCount; i++) {
+                    nodes.add(startNode(nodeList.toString(), "node" + i, basePort + i - 1));
+                }
+                for (int i = 0; i < nodeCount; i++) {
+                    awaitPort(basePort + i);
+                }
+                System.out.println();
+                Result result = new ClusterBenchmark().run(ClusterRing.parseNodes(nodeList.toString()), sessions,
+                                                           clientsPerSession, seconds, editsPerSecond);
+                if (result != null) {
+                    rows.add(String.format(Locale.ROOT, "%d,%.0f,%.0f,%.1f,%.2f,%.2f,%.2f,%.0f", nodeCount, result.sentPerSecond,
+                                           result.deliveredPerSecond, result.deliveredPercent, result.p50Millis,
+                                           result.p99Millis, result.maxMillis, result.deliveredPerSecond / nodeCount));
+                }
+            } finally {
+                for (Process node : nodes) {
+                    node.destroy();
+                }
+                for (Process node : nodes) {
+                    node.waitFor(10, TimeUnit.SECONDS);
+                }
+            }
+            // The next cluster gets ports of its own, as these may not be free again yet
+            basePort += nodeCount;
+        }
+
+        System.out.println();
+        System.out.println("Sweep: " + sessions + " sessions x " + clientsPerSession + " clients, " +
+                           editsPerSecond + " edits/s per client for " + seconds + " s");
+        for (String row : rows) {
+            System.out.println(row);
+        }
+        Files.write(Path.of("cluster-sweep.csv"), rows);
+    }
+
+    private static Process startNode(String nodeList, String nodeId, int port) throws Exception {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                                                    CollaborativeEditorServer.class.getName());
+        builder.environment().put("CLUSTER_NODES", nodeList);
+        builder.environment().put("CLUSTER_NODE_ID", nodeId);
+        builder.environment().put("PORT", String.valueOf(port));
+        builder.environment().put("METRICS_PORT", "0");
+        if (System.getenv("MONGODB_URI") == null) {
+            // No database to reach: fail over to in-memory storage at once instead of
+            // waiting out the driver's server selection
+            builder.environment().put("MONGODB_URI", "mongodb://localhost:1/?serverSelectionTimeoutMS=500&connectTimeoutMS=500");
+        }
+        Files.createDirectories(Path.of("logs"));
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(Path.of("logs", "sweep-" + nodeId + ".log").toFile());
+        return builder.start();
+    }
+
+    private static void awaitPort(int port) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw new IOException("Node on port " + port + " did not start", e);
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+
+    private Result run(Map<String, URI> nodes, int sessions, int clientsPerSession, int seconds, int editsPerSecond) throws Exception {
+        List<String> nodeIds = new ArrayList<>(nodes.keySet());
+        ClusterRing ring = new ClusterRing(nodeIds.get(0), nodes, ServerConfig.getInt("CLUSTER_VIRTUAL_NODES", 160));
+
+        System.out.println("Cluster: " + nodes);
+        System.out.println(sessions + " sessions x " + clientsPerSession + " clients, " +
+                           editsPerSecond + " edits/s per client for " + seconds + " s");
+
+        // Where the ring places the sessions
+        Map<String, Integer> owned = new TreeMap<>();
+        for (int s = 0; s < sessions; s++) {
+            owned.merge(ring.ownerOf(sessionCode(s)), 1, Integer::sum);
+        }
+        System.out.println("Sessions per node: " + owned);
+
+        // Connect and join; client c of session s connects to node (s + c) mod N
+        List<BenchClient> clients = new ArrayList<>();
+        CountDownLatch joined = new CountDownLatch(sessions * clientsPerSession);
+        long connectStart = System.nanoTime();
+        for (int s = 0; s < sessions; s++) {
+            for (int c = 0; c < clientsPerSession; c++) {
+                URI node = nodes.get(nodeIds.get((s + c) % nodeIds.size()));
+                BenchClient client = new BenchClient(node, "b" + s + "u" + c, sessionCode(s), joined);
+                if (client.connectBlocking(10, TimeUnit.SECONDS)) {
+                    clients.add(client);
+                } else {
+                    connectFailures.incrementAndGet();
+                    joined.countDown();
+                }
+            }
+        }
+        if (!joined.await(60, TimeUnit.SECONDS)) {
+            System.err.println("Timed out waiting for joins (" + joined.getCount() + " outstanding)");
+        }
+        System.out.printf("Connected %d clients in %.1f s (%d connect failures, %d join failures)%n",
+                          clients.size(), (System.nanoTime() - connectStart) / 1e9, connectFailures.get(), joinFailures.get());
+        if (clients.isEmpty()) {
+            return null;
+        }
+
+        // Type at a fixed rate from a small pool of threads
+        ScheduledExecutorService typists = Executors.newScheduledThreadPool(4);
+        long periodMicros = 1_000_000L / Math.max(1, editsPerSecond);
+        for (int i = 0; i < clients.size(); i++) {
+            BenchClient client = clients.get(i);
+            typists.scheduleAtFixedRate(client::typeOne, (i * 997L) % periodMicros, periodMicros, TimeUnit.MICROSECONDS);
+        }
+
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        typists.shutdownNow();
+        long elapsedNanos = System.nanoTime() - start;
+
+        // Let in-flight edits arrive
+        Thread.sleep(2000);
+        for (BenchClient client : clients) {
+            client.close();
+        }
+
+        return report(clientsPerSession, elapsedNanos);
+    }
+
+    private Result report(int clientsPerSession, long elapsedNanos) {
+        long sentCount = sent.sum();
+        long expected = sentCount * (clientsPerSession - 1);
+        long receivedCount = received.sum();
+        double elapsedSeconds = elapsedNanos / 1e9;
+
+        long[] latencies = new long[latenciesMicros.size()];
+        int i = 0;
+        for (Long latency : latenciesMicros) {
+            if (i < latencies.length) {
+                latencies[i++] = latency;
+            }
+        }
+        Arrays.sort(latencies, 0, i);
+
+        Result result = new Result();
+        result.sentPerSecond = sentCount / elapsedSeconds;
+        result.deliveredPerSecond = receivedCount / elapsedSeconds;
+        result.deliveredPercent = expected > 0 ? 100.0 * receivedCount / expected : 0.0;
+        if (i > 0) {
+            result.p50Millis = latencies[i / 2] / 1000.0;
+            result.p99Millis = latencies[Math.min(i - 1, (int) (i * 0.99))] / 1000.0;
+            result.maxMillis = latencies[i - 1] / 1000.0;
+        }
+
+        System.out.println("==================================================");
+        System.out.printf("Edits sent:       %d (%.0f/s)%n", sentCount, sentCount / elapsedSeconds);
+        System.out.printf("Edits delivered:  %d of %d expected (%.1f%%), %.0f/s%n",
+                          receivedCount, expected, expected > 0 ? 100.0 * receivedCount / expected : 0.0,
+                          receivedCount / elapsedSeconds);
+        if (i > 0) {
+            System.out.printf("Delivery latency: p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                              result.p50Millis, result.p99Millis, result.maxMillis);
+        }
+        System.out.println("==================================================");
+        return result;
+    }
+
+    /**
+     * What one run measured.
+     */
+    private static class Result {
+        private double sentPerSecond;
+        private double deliveredPerSecond;
+        private double deliveredPercent;
+        private double p50Millis;
+        private double p99Millis;
+        private double maxMillis;
+    }
+
+    private static String sessionCode(int session) {
+        return "bench" + session;
+    }
+
+    /**
+     * One simulated editor: joins its session, types on request and timestamps what it receives.
+     */
+    private class BenchClient extends WebSocketClient {
+        private final String userId;
+        private final String sessionCode;
+        private final CountDownLatch joined;
+        private volatile boolean inSession = false;
+        private int counter = 0;
+
+        BenchClient(URI node, String userId, String sessionCode, CountDownLatch joined) {
+            super(node);
+            this.userId = userId;
+            this.sessionCode = sessionCode;
+            this.joined = joined;
+            setTcpNoDelay(true);
+        }
+
+        @Override
+        public void onOpen(ServerHandshake handshakedata) {
+            JsonObject register = new JsonObject();
+            register.addProperty("type", "register");
+            register.addProperty("userId", userId);
+            register.addProperty("username", userId);
+            send(gson.toJson(register));
+
+            JsonObject join = new JsonObject();
+            join.addProperty("type", "join_session");
+            join.addProperty("code", sessionCode);
+            join.addProperty("asEditor", true);
+            send(gson.toJson(join));
+        }
+
+        @Override
+        public void onMessage(String message) {
+            JsonObject json = gson.fromJson(message, JsonObject.class);
+            String type = json.get("type").getAsString();
+            if (type.equals("insert")) {
+                received.increment();
+                if (json.has("sentAt")) {
+                    latenciesMicros.add((System.nanoTime() - json.get("sentAt").getAsLong()) / 1000);
+                }
+            } else if (type.equals("join_session_ack")) {
+                inSession = true;
+                joined.countDown();
+            } else if (type.equals("error") && !inSession) {
+                joinFailures.incrementAndGet();
+                joined.countDown();
+            }
+        }
+
+        /**
+         * Sends one insert stamped with the local send time.
+         */
+        void typeOne() {
+            if (!inSession || !isOpen()) {
+                return;
+            }
+            JsonObject identifier = new JsonObject();
+            identifier.addProperty("position", ++counter);
+            identifier.addProperty("siteId", userId);
+            JsonObject position = new JsonObject();
+            JsonArray identifiers = new JsonArray();
+            identifiers.add(identifier);
+            position.add("identifiers", identifiers);
+
+            JsonObject character = new JsonObject();
+            character.addProperty("value", "x");
+            character.add("position", position);
+            character.addProperty("authorId", userId);
+            character.addProperty("timestamp", System.currentTimeMillis());
+
+            JsonObject insert = new JsonObject();
+            insert.addProperty("type", "insert");
+            insert.addProperty("userId", userId);
+            insert.add("character", character);
+            insert.addProperty("sentAt", System.nanoTime());
+            send(gson.toJson(insert));
+            sent.increment();
+        }
+
+        @Override
+        public void onClose(int code, String reason, boolean remote) {
+            if (remote && code != 1000) {
+                System.err.println("Client " + userId + " disconnected: " + code + " " + reason);
+            }
+        }
+
+        @Override
+        public void onError(Exception ex) {
+            if (isOpen()) {
+                System.err.println("Client " + userId + " error: " + ex.getMessage());
+            }
+        }
+    }
+}
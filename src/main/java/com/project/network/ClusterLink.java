@@ -0,0 +1,202 @@
+package com.project.network;
+
+import com.project.util.Log;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One connection from this node to another cluster node, shared by every client this node
+ * relays to it. Each relayed client is a numbered channel on the link, so a node holds one
+ * socket per peer however many of its clients are in sessions owned elsewhere.
+ *
+ * Frames are text in both directions: "M<channel>:<message>" carries a client message
+ * upstream or a message for the client downstream, unchanged; "C<channel>" tells the owner
+ * the client left, and "C<channel>:<code>:<reason>" tells this node the owner closed the
+ * client's connection.
+ */
+public class ClusterLink {
+
+    private static final Log log = Log.get(ClusterLink.class);
+
+    /** Path the link connects to, which tells the owner the connection is a link rather than a client. */
+    public static final String PATH = "/cluster-link";
+
+    private final String nodeId;
+    private final ServerMetrics metrics;
+    private final WebSocketClient socket;
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final Map<Integer, ClusterRelay> channels = new ConcurrentHashMap<>();
+
+    // Frames sent before the link opened, in order
+    private final ArrayDeque<String> pending = new ArrayDeque<>();
+    private boolean open = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Starts connecting to a node.
+     * @param nodeId The node's ID.
+     * @param address The node's WebSocket address.
+     * @param metrics The server metrics.
+     */
+    public ClusterLink(String nodeId, URI address, ServerMetrics metrics) {
+        this.nodeId = nodeId;
+        this.metrics = metrics;
+        this.socket = new WebSocketClient(address.resolve(PATH)) {
+            @Override
+            public void onOpen(ServerHandshake handshakedata) {
+                log.info("Cluster link to node " + nodeId + " open");
+                flushPending();
+            }
+
+            @Override
+            public void onMessage(String frame) {
+                receive(frame);
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+                closed = true;
+                synchronized (pending) {
+                    pending.clear();
+                }
+                log.info("Cluster link to node " + nodeId + " closed (" + reason + "), disconnecting " +
+                                   channels.size() + " relayed clients");
+                for (ClusterRelay relay : channels.values()) {
+                    relay.ownerClosed(ClusterRelay.CLOSE_OWNER_UNAVAILABLE, "Session owner unavailable, reconnect");
+                }
+                channels.clear();
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                log.error("Cluster link error to node " + nodeId + ": " + ex.getMessage());
+            }
+        };
+        socket.setTcpNoDelay(true);
+        socket.connect();
+        metrics.increment("cluster.links_opened");
+    }
+
+    /**
+     * Gets the node this link connects to.
+     * @return The node's ID.
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Checks whether the link has gone away, in which case a new one is needed.
+     * @return true once the link has closed or failed to connect.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Opens a channel for a relayed client.
+     * @return The channel's number.
+     */
+    int openChannel(ClusterRelay relay) {
+        int channel = nextChannel.incrementAndGet();
+        channels.put(channel, relay);
+        if (closed) {
+            // Lost the race with the link closing
+            channels.remove(channel);
+            relay.ownerClosed(ClusterRelay.CLOSE_OWNER_UNAVAILABLE, "Session owner unavailable, reconnect");
+        }
+        return channel;
+    }
+
+    /**
+     * Sends a client message on its channel.
+     */
+    void forward(int channel, String message) {
+        send("M" + channel + ":" + message);
+        metrics.increment("cluster.relayed_upstream");
+    }
+
+    /**
+     * Closes a channel, telling the owner its client left.
+     */
+    void closeChannel(int channel) {
+        if (channels.remove(channel) != null) {
+            send("C" + channel);
+        }
+    }
+
+    /**
+     * Closes the link and every channel on it.
+     */
+    public void close() {
+        socket.close();
+    }
+
+    private void receive(String frame) {
+        int colon = frame.indexOf(':');
+        int channel;
+        try {
+            channel = Integer.parseInt(colon < 0 ? frame.substring(1) : frame.substring(1, colon));
+        } catch (NumberFormatException e) {
+            log.warn("Malformed frame on cluster link to node " + nodeId);
+            return;
+        }
+
+        if (frame.charAt(0) == 'M') {
+            ClusterRelay relay = channels.get(channel);
+            if (relay != null) {
+                relay.deliver(frame.substring(colon + 1));
+                metrics.increment("cluster.relayed_downstream");
+            }
+        } else if (frame.charAt(0) == 'C') {
+            ClusterRelay relay = channels.remove(channel);
+            if (relay != null) {
+                int code = ClusterRelay.CLOSE_OWNER_UNAVAILABLE;
+                String reason = "";
+                if (colon >= 0) {
+                    int reasonStart = frame.indexOf(':', colon + 1);
+                    try {
+                        code = Integer.parseInt(reasonStart < 0 ? frame.substring(colon + 1) : frame.substring(colon + 1, reasonStart));
+                    } catch (NumberFormatException e) {
+                        // Keep the default code
+                    }
+                    reason = reasonStart < 0 ? "" : frame.substring(reasonStart + 1);
+                }
+                relay.ownerClosed(code, reason);
+            }
+        }
+    }
+
+    private void flushPending() {
+        synchronized (pending) {
+            while (!pending.isEmpty()) {
+                sendNow(pending.poll());
+            }
+            open = true;
+        }
+    }
+
+    private void send(String frame) {
+        synchronized (pending) {
+            if (!open) {
+                pending.add(frame);
+                return;
+            }
+        }
+        sendNow(frame);
+    }
+
+    private void sendNow(String frame) {
+        try {
+            socket.send(frame);
+        } catch (Exception e) {
+            log.error("Error sending on cluster link to node " + nodeId + ": " + e.getMessage());
+        }
+    }
+}
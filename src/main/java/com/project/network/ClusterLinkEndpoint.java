@@ -0,0 +1,252 @@
+package com.project.network;
+
+import com.project.util.Log;
+import org.java_websocket.WebSocket;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.enums.Opcode;
+import org.java_websocket.enums.ReadyState;
+import org.java_websocket.framing.CloseFrame;
+import org.java_websocket.framing.Framedata;
+import org.java_websocket.protocols.IProtocol;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The owner's end of a {@link ClusterLink} from another node. Every channel on the link
+ * becomes a {@link RelayedConnection} that the server handles like any client connection:
+ * it is opened on the channel's first message, gets the channel's messages, and is closed
+ * when the other node says its client left or the link goes away.
+ */
+class ClusterLinkEndpoint {
+
+    private static final Log log = Log.get(ClusterLinkEndpoint.class);
+
+    private final CollaborativeEditorServer server;
+    private final WebSocket link;
+    private final Map<Integer, RelayedConnection> channels = new ConcurrentHashMap<>();
+
+    ClusterLinkEndpoint(CollaborativeEditorServer server, WebSocket link) {
+        this.server = server;
+        this.link = link;
+    }
+
+    /**
+     * Handles a frame from the link. Called by the thread reading the link, so a channel's
+     * messages are handled in the order they were relayed.
+     */
+    void receive(String frame) {
+        int colon = frame.indexOf(':');
+        int channel;
+        try {
+            channel = Integer.parseInt(colon < 0 ? frame.substring(1) : frame.substring(1, colon));
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            log.warn("Malformed frame on cluster link from " + link.getRemoteSocketAddress());
+            return;
+        }
+
+        if (frame.charAt(0) == 'M') {
+            RelayedConnection conn = channels.get(channel);
+            if (conn == null) {
+                conn = new RelayedConnection(this, channel);
+                channels.put(channel, conn);
+                server.onOpen(conn, null);
+            }
+            server.onMessage(conn, frame.substring(colon + 1));
+        } else if (frame.charAt(0) == 'C') {
+            RelayedConnection conn = channels.remove(channel);
+            if (conn != null) {
+                conn.open = false;
+                server.onClose(conn, CloseFrame.NORMAL, "Relayed client left", true);
+            }
+        }
+    }
+
+    /**
+     * Closes every channel after the link itself closed.
+     */
+    void closeAll() {
+        for (RelayedConnection conn : new ArrayList<>(channels.values())) {
+            if (channels.remove(conn.channel) != null) {
+                conn.open = false;
+                server.onClose(conn, CloseFrame.GOING_AWAY, "Cluster link closed", true);
+            }
+        }
+    }
+
+    private void send(int channel, String text) {
+        link.send("M" + channel + ":" + text);
+    }
+
+    private void close(RelayedConnection conn, int code, String reason) {
+        if (channels.remove(conn.channel) == null) {
+            return;
+        }
+        conn.open = false;
+        if (link.isOpen()) {
+            link.send("C" + conn.channel + ":" + code + ":" + (reason != null ? reason : ""));
+        }
+        server.onClose(conn, code, reason, false);
+    }
+
+    /**
+     * A client connected to another node, as seen by the node that owns its session.
+     * What the server sends it goes down the link on the client's channel. It shares the
+     * link's socket, so it reports the link's buffered data as its own, and its heartbeat
+     * is answered as long as the link is up: the node the client is connected to watches
+     * the client itself.
+     */
+    static final class RelayedConnection implements WebSocket {
+
+        private final ClusterLinkEndpoint endpoint;
+        private final int channel;
+        private volatile boolean open = true;
+        private Object attachment;
+
+        private RelayedConnection(ClusterLinkEndpoint endpoint, int channel) {
+            this.endpoint = endpoint;
+            this.channel = channel;
+        }
+
+        @Override
+        public void send(String text) {
+            if (open) {
+                endpoint.send(channel, text);
+            }
+        }
+
+        @Override
+        public void send(ByteBuffer bytes) {
+            // The server only sends text
+        }
+
+        @Override
+        public void send(byte[] bytes) {
+        }
+
+        @Override
+        public void sendFrame(Framedata framedata) {
+        }
+
+        @Override
+        public void sendFrame(Collection<Framedata> frames) {
+        }
+
+        @Override
+        public void sendPing() {
+            if (isOpen()) {
+                endpoint.server.onWebsocketPong(this, null);
+            }
+        }
+
+        @Override
+        public void sendFragmentedFrame(Opcode op, ByteBuffer buffer, boolean fin) {
+        }
+
+        @Override
+        public void close(int code, String message) {
+            endpoint.close(this, code, message);
+        }
+
+        @Override
+        public void close(int code) {
+            endpoint.close(this, code, "");
+        }
+
+        @Override
+        public void close() {
+            endpoint.close(this, CloseFrame.NORMAL, "");
+        }
+
+        @Override
+        public void closeConnection(int code, String message) {
+            endpoint.close(this, code, message);
+        }
+
+        @Override
+        public boolean hasBufferedData() {
+            return endpoint.link.hasBufferedData();
+        }
+
+        @Override
+        public InetSocketAddress getRemoteSocketAddress() {
+            return endpoint.link.getRemoteSocketAddress();
+        }
+
+        @Override
+        public InetSocketAddress getLocalSocketAddress() {
+            return endpoint.link.getLocalSocketAddress();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && endpoint.link.isOpen();
+        }
+
+        @Override
+        public boolean isClosing() {
+            return false;
+        }
+
+        @Override
+        public boolean isFlushAndClose() {
+            return false;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return !isOpen();
+        }
+
+        @Override
+        public Draft getDraft() {
+            return endpoint.link.getDraft();
+        }
+
+        @Override
+        public ReadyState getReadyState() {
+            return isOpen() ? ReadyState.OPEN : ReadyState.CLOSED;
+        }
+
+        @Override
+        public String getResourceDescriptor() {
+            return "/";
+        }
+
+        @Override
+        public <T> void setAttachment(T attachment) {
+            this.attachment = attachment;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T getAttachment() {
+            return (T) attachment;
+        }
+
+        @Override
+        public boolean hasSSLSupport() {
+            return false;
+        }
+
+        @Override
+        public SSLSession getSSLSession() {
+            throw new IllegalArgumentException("Not an SSL connection");
+        }
+
+        @Override
+        public IProtocol getProtocol() {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "relayed#" + channel + "@" + endpoint.link.getRemoteSocketAddress();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.project.network;
+
+import com.project.util.Log;
+import org.java_websocket.WebSocket;
+
+/**
+ * Proxies one client connection to the cluster node that owns its session.
+ * The relay is a channel on this node's {@link ClusterLink} to the owner: it replays the
+ * client's registration, and from then on forwards the client's messages upstream and the
+ * owner's messages back through the client's outbound queue, unchanged.
+ */
+public class ClusterRelay {
+
+    private static final Log log = Log.get(ClusterRelay.class);
+
+    /** Close code telling the client its session's node went away and it should reconnect. */
+    public static final int CLOSE_OWNER_UNAVAILABLE = 4001;
+
+    private final ClusterLink link;
+    private final WebSocket client;
+    private final OutboundQueue clientQueue;
+    private final int channel;
+    private volatile boolean closing = false;
+
+    /**
+     * Starts relaying a client to a session owner.
+     * @param link The link to the owner.
+     * @param client The client connection being proxied.
+     * @param clientQueue The client's outbound queue, used for messages from the owner.
+     * @param metrics The server metrics.
+     */
+    public ClusterRelay(ClusterLink link, WebSocket client, OutboundQueue clientQueue, ServerMetrics metrics) {
+        this.link = link;
+        this.client = client;
+        this.clientQueue = clientQueue;
+        this.channel = link.openChannel(this);
+        metrics.increment("cluster.relays_opened");
+    }
+
+    /**
+     * Gets the node this relay forwards to.
+     * @return The owner's node ID.
+     */
+    public String getOwnerId() {
+        return link.getNodeId();
+    }
+
+    /**
+     * Forwards a client message to the session owner, queued until the link is connected.
+     * @param message The raw message from the client.
+     */
+    public void forward(String message) {
+        if (!closing) {
+            link.forward(channel, message);
+        }
+    }
+
+    /**
+     * Closes the channel without disconnecting the client.
+     * The owner sees the relayed user disconnect and removes them from the session.
+     */
+    public void close() {
+        closing = true;
+        link.closeChannel(channel);
+    }
+
+    /**
+     * Passes a message from the owner to the client.
+     */
+    void deliver(String message) {
+        clientQueue.send(message);
+    }
+
+    /**
+     * Disconnects the client after the owner closed its side, or the link went away;
+     * the client reconnects and is routed again.
+     */
+    void ownerClosed(int code, String reason) {
+        if (!closing && client.isOpen()) {
+            log.info("Relay to node " + link.getNodeId() + " closed (" + reason + "), disconnecting client " +
+                               client.getRemoteSocketAddress());
+            client.close(code, reason.isEmpty() ? "Session owner unavailable, reconnect" : reason);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.project.network;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring that assigns session codes to cluster nodes.
+ * Each node is placed on the ring many times (virtual nodes) so sessions spread
+ * evenly, and adding or removing a node only moves the sessions it owns.
+ */
+public class ClusterRing {
+
+    private static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private final String selfId;
+    private final Map<String, URI> nodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Creates a ring.
+     * @param selfId The ID of the node this process runs as.
+     * @param nodes The WebSocket address of every node, keyed by node ID.
+     * @param virtualNodes The number of ring positions per node.
+     */
+    public ClusterRing(String selfId, Map<String, URI> nodes, int virtualNodes) {
+        if (!nodes.containsKey(selfId)) {
+            throw new IllegalArgumentException("Node " + selfId + " is not in the cluster: " + nodes.keySet());
+        }
+        this.selfId = selfId;
+        this.nodes = Collections.unmodifiableMap(new LinkedHashMap<>(nodes));
+        for (String nodeId : nodes.keySet()) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+    }
+
+    /**
+     * Builds the ring from CLUSTER_NODES and CLUSTER_NODE_ID.
+     * CLUSTER_NODES lists the nodes as "id=host:port" separated by commas, e.g.
+     * "a=localhost:8887,b=localhost:8888".
+     * @return The ring, or null if the server is not running in cluster mode.
+     */
+    public static ClusterRing fromConfig() {
+        String nodeList = ServerConfig.get("CLUSTER_NODES");
+        String selfId = ServerConfig.get("CLUSTER_NODE_ID");
+        if (nodeList == null || selfId == null) {
+            return null;
+        }
+        return new ClusterRing(selfId, parseNodes(nodeList),
+                ServerConfig.getInt("CLUSTER_VIRTUAL_NODES", DEFAULT_VIRTUAL_NODES));
+    }
+
+    /**
+     * Parses a node list in the CLUSTER_NODES format.
+     * @param nodeList Nodes as "id=host:port" separated by commas.
+     * @return The WebSocket address of each node, keyed by node ID, in list order.
+     */
+    public static Map<String, URI> parseNodes(String nodeList) {
+        Map<String, URI> nodes = new LinkedHashMap<>();
+        for (String entry : nodeList.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int eq = entry.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Invalid cluster node '" + entry + "', expected id=host:port");
+            }
+            String address = entry.substring(eq + 1).trim();
+            if (!address.contains("://")) {
+                address = "ws://" + address;
+            }
+            nodes.put(entry.substring(0, eq).trim(), URI.create(address));
+        }
+        return nodes;
+    }
+
+    /**
+     * Gets the node that owns a session.
+     * @param sessionCode The editor or viewer code of the session.
+     * @return The owner's node ID.
+     */
+    public String ownerOf(String sessionCode) {
+        SortedMap<Long, String> tail = ring.tailMap(hash(sessionCode));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Checks whether this node owns a session.
+     * @param sessionCode The editor or viewer code of the session.
+     * @return true if the session is hosted by this process.
+     */
+    public boolean isLocal(String sessionCode) {
+        return selfId.equals(ownerOf(sessionCode));
+    }
+
+    /**
+     * Gets the WebSocket address of a node.
+     * @param nodeId The node ID.
+     * @return The node's address.
+     */
+    public URI getAddress(String nodeId) {
+        return nodes.get(nodeId);
+    }
+
+    /**
+     * Gets the ID of the node this process runs as.
+     * @return The local node ID.
+     */
+    public String getSelfId() {
+        return selfId;
+    }
+
+    /**
+     * Gets every node in the cluster.
+     * @return The node addresses keyed by node ID.
+     */
+    public Map<String, URI> getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Hashes a key onto the ring using the first eight bytes of its MD5 digest.
+     */
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
@@ -2,26 +2,47 @@ package com.project.network;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.project.crdt.CRDTCharacter;
+import com.project.crdt.ContentHash;
+import com.project.crdt.MerkleTree;
 import com.project.crdt.Position;
+import com.project.util.Log;
 import org.java_websocket.WebSocket;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ClientHandshake;
 import org.java_websocket.server.WebSocketServer;
 
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class CollaborativeEditorServer extends WebSocketServer {
+    private static final Log log = Log.get(CollaborativeEditorServer.class);
     
     private static final int DEFAULT_PORT = 8887;
+    
+    // Default presence tick: 25 Hz
+    private static final int DEFAULT_PRESENCE_TICK_MS = 40;
     private final Gson gson = new Gson();
     
     // Map of connection to user ID
@@ -30,27 +51,182 @@ public class CollaborativeEditorServer extends WebSocketServer {
     // Map of active sessions by code
     private final Map<String, EditorSession> sessionsByCode = new ConcurrentHashMap<>();
     
-    // Map of user ID to session
-    private final Map<String, EditorSession> userSessions = new ConcurrentHashMap<>();
-    
     // Map of user ID to connection
     private final Map<String, WebSocket> userConnections = new ConcurrentHashMap<>();
     
-    // Map of user ID to cursor position
-    private final Map<String, Integer> userCursorPositions = new ConcurrentHashMap<>();
-    
     // Map of user ID to username
     private final Map<String, String> userMap = new ConcurrentHashMap<>();
     
     // Map of user ID to username
     private final Map<String, String> usernames = new ConcurrentHashMap<>();
     
+    // Counters for how the server is being used (catch-up paths, etc.)
+    private final ServerMetrics metrics = new ServerMetrics();
+    
+    // Fans session messages out to members, here and in any server processes sharing the bus
+    private final SessionBus sessionBus = SessionBus.fromConfig(metrics);
+    
+    // Per-connection outbound queues that absorb backpressure from slow clients
+    private final Map<WebSocket, OutboundQueue> outboundQueues = new ConcurrentHashMap<>();
+    
+    // Broadcasts the latest cursor of every user once per tick instead of on every move
+    private final long presenceTickMs = getPresenceTickMsFromConfig();
+    private ScheduledExecutorService presenceTicker;
+    
+    // How long a session new to this process waits for another process sharing the bus to
+    // say it already holds the session, before it is created here
+    private final long busSyncTimeoutMs = ServerConfig.getInt("SESSION_BUS_SYNC_MS", 250);
+    
+    // Shared pool that runs session tasks; each session's tasks run one at a time
+    private final ExecutorService sessionWorkerPool;
+    private final Executor sessionWorkers;
+    
+    // Writes session documents to the database in the background, one write per document per flush
+    private final DocumentPersister persister = new DocumentPersister(metrics);
+    
+    // Connections holding rate-limited messages to be released once their buckets refill
+    private final Set<WebSocket> deferringConnections = ConcurrentHashMap.newKeySet();
+    
+    // Heartbeats and idle timeouts for every connection, on a timer wheel
+    private final ConnectionLifecycle lifecycle = new ConnectionLifecycle(metrics);
+    
+    // Assigns sessions to nodes when running as part of a cluster (null when standalone)
+    private final ClusterRing clusterRing = ClusterRing.fromConfig();
+    
+    // Names this process on the session bus. Where two copies of a session numbered
+    // different operations alike, the copy whose process sorts first keeps its numbering
+    private final String busOrigin = clusterRing != null ? clusterRing.getSelfId() : UUID.randomUUID().toString();
+    
+    // Links to the other cluster nodes, one per node, shared by every client relayed to it
+    private final Map<String, ClusterLink> clusterLinks = new ConcurrentHashMap<>();
+    
+    // Per-hop latencies of traced edits, as far as they reach the server
+    private final LatencyTrace latencyTrace = new LatencyTrace();
+    
+    // Serves the metrics over HTTP for scraping (null when METRICS_PORT is 0)
+    private final MetricsEndpoint metricsEndpoint = MetricsEndpoint.fromConfig(this);
+    
+    // Records every message clients send, for replay (null unless TRACE_FILE is set)
+    private final TraceRecorder traceRecorder = TraceRecorder.fromConfig(metrics);
+    
     public CollaborativeEditorServer() {
-        super(new InetSocketAddress(getPortFromEnv()));
+        this(getPortFromEnv());
     }
     
     public CollaborativeEditorServer(int port) {
         super(new InetSocketAddress(port));
+        
+        // Liveness is tracked by the lifecycle manager instead of the library's scan of every connection
+        setConnectionLostTimeout(0);
+        
+        // Channels that tell each connection's outbound queue how much of its data went out
+        setWebSocketFactory(OutboundQueue.countingFactory(CollaborativeEditorServer::queueOf));
+        
+        int threads = ServerConfig.getInt("SESSION_THREADS", Runtime.getRuntime().availableProcessors());
+        if (threads > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            sessionWorkerPool = Executors.newFixedThreadPool(threads, r -> {
+                Thread thread = new Thread(r, "session-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            sessionWorkers = sessionWorkerPool;
+        } else {
+            // Run session tasks on the WebSocket thread that received the message
+            sessionWorkerPool = null;
+            sessionWorkers = Runnable::run;
+        }
+        log.info("Session workers: " + (threads > 0 ? threads + " threads" : "inline"));
+        if (clusterRing != null) {
+            log.info("Cluster node " + clusterRing.getSelfId() + " of " + clusterRing.getNodes().keySet());
+        }
+    }
+    
+    /**
+     * Gets the server's usage counters.
+     * @return The server metrics.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    /**
+     * Gets the latencies of traced edits on their way to the server (uplink) and through it (server).
+     * @return The trace, whose histograms are keyed by hop name.
+     */
+    public LatencyTrace getLatencyTrace() {
+        return latencyTrace;
+    }
+    
+    /**
+     * Gets the outbound queue statistics of every open connection.
+     * @return Statistics keyed by user ID (or remote address for unregistered connections).
+     */
+    public Map<String, Map<String, Long>> getOutboundQueueStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<>();
+        for (Map.Entry<WebSocket, OutboundQueue> entry : outboundQueues.entrySet()) {
+            String userId = connectionToUserId.get(entry.getKey());
+            String key = userId != null ? userId : String.valueOf(entry.getKey().getRemoteSocketAddress());
+            stats.put(key, entry.getValue().getStats());
+        }
+        return stats;
+    }
+    
+    /**
+     * Gets the load shedding counters: messages of each class that were over their rate
+     * limit and dropped, rejected, or coalesced into a later one.
+     * @return The counters keyed by name, e.g. "shed.cursor.coalesced".
+     */
+    public Map<String, Long> getSheddingStats() {
+        Map<String, Long> stats = new HashMap<>();
+        for (Map.Entry<String, Long> entry : metrics.snapshot().entrySet()) {
+            if (entry.getKey().startsWith("shed.")) {
+                stats.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return stats;
+    }
+    
+    /**
+     * Gets the write-behind persistence statistics.
+     * @return The dirty document count, persistence lag and flush latencies.
+     */
+    public Map<String, Long> getPersistenceStats() {
+        return persister.getStats();
+    }
+    
+    /**
+     * Gets the size of every open session.
+     * @return The member count and document length, keyed by session ID. Session codes
+     *         let anyone join, so they are not used here.
+     */
+    public Map<String, Map<String, Long>> getSessionStats() {
+        Map<String, Map<String, Long>> stats = new HashMap<>();
+        for (EditorSession session : sessionsByCode.values()) {
+            // Sessions are registered under both codes
+            String id = String.valueOf(session.getId());
+            if (stats.containsKey(id)) {
+                continue;
+            }
+            Map<String, Long> sessionStats = new HashMap<>();
+            sessionStats.put("users", (long) session.getMemberCount());
+            sessionStats.put("documentLength", (long) session.getDocumentLength());
+            stats.put(id, sessionStats);
+        }
+        return stats;
+    }
+    
+    /**
+     * Gets the presence tick interval from PRESENCE_TICK_MS, or from PRESENCE_TICK_HZ
+     * if only a rate is given.
+     */
+    private static long getPresenceTickMsFromConfig() {
+        int tickMs = ServerConfig.getInt("PRESENCE_TICK_MS", -1);
+        if (tickMs <= 0) {
+            int tickHz = ServerConfig.getInt("PRESENCE_TICK_HZ", -1);
+            tickMs = tickHz > 0 ? Math.max(1, 1000 / tickHz) : DEFAULT_PRESENCE_TICK_MS;
+        }
+        return tickMs;
     }
     
     /**
@@ -61,151 +237,633 @@ public class CollaborativeEditorServer extends WebSocketServer {
             String portEnv = System.getenv("PORT");
             if (portEnv != null && !portEnv.isEmpty()) {
                 int port = Integer.parseInt(portEnv);
-                System.out.println("Using PORT from environment: " + port);
+                log.info("Using PORT from environment: " + port);
                 return port;
             }
         } catch (NumberFormatException e) {
-            System.err.println("Invalid PORT environment variable. Using default: " + DEFAULT_PORT);
+            log.warn("Invalid PORT environment variable. Using default: " + DEFAULT_PORT);
         }
         return DEFAULT_PORT;
     }
     
     @Override
     public void onOpen(WebSocket conn, ClientHandshake handshake) {
-        System.out.println("New connection from " + conn.getRemoteSocketAddress());
+        log.info("New connection from " + conn.getRemoteSocketAddress());
+        OutboundQueue queue = new OutboundQueue(conn, metrics);
+        ConnectionState state = new ConnectionState(queue, lifecycle.register(conn));
+        if (clusterRing != null && handshake != null && ClusterLink.PATH.equals(handshake.getResourceDescriptor())) {
+            // Another node relaying its clients to sessions owned here
+            log.info("Cluster link from " + conn.getRemoteSocketAddress());
+            state.link = new ClusterLinkEndpoint(this, conn);
+        }
+        conn.setAttachment(state);
+        outboundQueues.put(conn, queue);
     }
     
     @Override
     public void onClose(WebSocket conn, int code, String reason, boolean remote) {
         String userId = connectionToUserId.get(conn);
-        System.out.println("Connection closed for user " + userId);
+        log.info("Connection closed for user " + userId);
+        
+        OutboundQueue queue = outboundQueues.remove(conn);
+        if (queue != null) {
+            queue.clear();
+        }
+        
+        ConnectionState state = conn.getAttachment();
+        EditorSession session = state != null ? state.session : null;
+        if (state != null) {
+            state.session = null;
+            state.lifecycle.remove();
+            stopRelay(state);
+            if (state.link != null) {
+                state.link.closeAll();
+            }
+        }
         
         if (userId != null) {
-            // Remove user from their session
-            EditorSession session = userSessions.get(userId);
+            // Remove user from their session, after anything they sent before closing
             if (session != null) {
-                session.removeUser(userId);
-                
-                // Log the users that remain in the session
-                System.out.println("Users remaining in session: " + session.getAllUsers());
-                
-                if (session.isEmpty()) {
-                    // Remove the session if it's empty
-                    sessionsByCode.remove(session.getEditorCode());
-                    sessionsByCode.remove(session.getViewerCode());
-                    System.out.println("Session removed as it's now empty");
-                } else {
-                    // Notify other users that this user has left
-                    broadcastPresenceUpdate(session);
+                session.execute(() -> {
+                    long cleanupStart = System.nanoTime();
+                    removeMember(session, userId, conn);
+                    metrics.recordLatency("connection.cleanup.seconds", System.nanoTime() - cleanupStart);
                     
-                    // Also remove this user's cursor from others' view
-                    userCursorPositions.remove(userId);
-                    
-                    // Broadcast cursor removal
-                    JsonObject cursorRemoveMsg = new JsonObject();
-                    cursorRemoveMsg.addProperty("type", "cursor_remove");
-                    cursorRemoveMsg.addProperty("userId", userId);
-                    
-                    for (String otherUserId : session.getAllUsers()) {
-                        WebSocket otherConn = userConnections.get(otherUserId);
-                        if (otherConn != null && otherConn.isOpen()) {
-                            otherConn.send(gson.toJson(cursorRemoveMsg));
-                        }
-                    }
-                }
-                userSessions.remove(userId);
+                    // Log the users that remain in the session
+                    log.info("Users remaining in session: " + session.getAllUsers());
+                });
             }
             
-            // Remove user from mappings
-            userConnections.remove(userId);
+            // Remove user from mappings, unless they have already reconnected
             connectionToUserId.remove(conn);
-            usernames.remove(userId);
-            userCursorPositions.remove(userId);
-            
-            // Run a full cleanup to catch any orphaned sessions or users
-            cleanupInactiveConnections();
+            if (userConnections.remove(userId, conn)) {
+                usernames.remove(userId);
+            }
         }
     }
     
     @Override
     public void onMessage(WebSocket conn, String message) {
+        long receivedAt = LatencyTrace.nowMicros();
+        ConnectionState connState = conn.getAttachment();
+        if (connState != null) {
+            connState.lifecycle.messageReceived();
+            if (connState.link != null) {
+                connState.link.receive(message);
+                return;
+            }
+        }
+        
         try {
             JsonObject jsonMessage = gson.fromJson(message, JsonObject.class);
             String type = jsonMessage.get("type").getAsString();
             
+            // Over the client's own rate limit; shed before doing any more work on it
+            RateLimiter.MessageClass messageClass = RateLimiter.MessageClass.of(type);
+            if (messageClass != null && connState != null && !connState.limits.tryAcquire(messageClass)) {
+                shed(conn, connState, connState.limits, messageClass, type, jsonMessage);
+                return;
+            }
+            
+            // Answered here, so that the times in the answer are as close to the wire as we can get
+            if ("clock_sync".equals(type)) {
+                answerClockSync(conn, jsonMessage, receivedAt);
+                return;
+            }
+            if (jsonMessage.has(LatencyTrace.ORIGIN_AT)) {
+                jsonMessage.addProperty(LatencyTrace.RECEIVED_AT, receivedAt);
+            }
+            
+            // In a cluster, messages for sessions owned by another node are passed through to it
+            if (clusterRing != null && relayToOwner(conn, type, jsonMessage, message)) {
+                return;
+            }
+            
+            if (connState == null) {
+                handleMessage(conn, type, jsonMessage, null);
+                return;
+            }
+            
+            // The ticker may be releasing this connection's held messages; ours go after them
+            synchronized (connState) {
+                releaseDeferred(conn, connState, type);
+                
+                // Session messages run on the session's executor; the rest run here
+                EditorSession session = routeMessage(conn, type, jsonMessage);
+                if (traceRecorder != null) {
+                    recordTrace(conn, type, jsonMessage, message, session, receivedAt);
+                }
+                if (session == null) {
+                    handleMessage(conn, type, jsonMessage, null);
+                } else if (messageClass != null && !session.getLimits().tryAcquire(messageClass)) {
+                    shed(conn, connState, session.getLimits(), messageClass, type, jsonMessage);
+                } else {
+                    session.execute(() -> handleMessage(conn, type, jsonMessage, session));
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error processing message: " + e.getMessage(), e);
+            sendError(conn, "Error processing message: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Records a message in the trace, under the session it was routed to. A register
+     * message is recorded under the user it registers.
+     */
+    private void recordTrace(WebSocket conn, String type, JsonObject message, String rawMessage,
+                             EditorSession session, long receivedAt) {
+        String userId = connectionToUserId.get(conn);
+        if ("register".equals(type) && message.has("userId")) {
+            userId = message.get("userId").getAsString();
+        }
+        traceRecorder.record(receivedAt, session != null ? session.getId() : -1, userId, rawMessage);
+    }
+    
+    /**
+     * Answers a client's clock_sync request with the times we received and answered it,
+     * from which the client works out the offset of its clock from ours.
+     */
+    private void answerClockSync(WebSocket conn, JsonObject request, long receivedAt) {
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "clock_sync");
+        response.add("t0", request.get("t0"));
+        response.addProperty("t1", receivedAt);
+        response.addProperty("t2", LatencyTrace.nowMicros());
+        send(conn, gson.toJson(response));
+    }
+    
+    /**
+     * Deals with a message over a rate limit. Cursor moves and full document updates are
+     * held, replacing any held message of the same type, since only the latest one matters;
+     * it is handled once the limits allow or before the client's next other message.
+     * A patch is rejected, so the client sends the full content instead, which can be held.
+     * Anything else is dropped and the client is told to slow down.
+     * Called on the connection's thread.
+     */
+    private void shed(WebSocket conn, ConnectionState state, RateLimiter limits,
+                      RateLimiter.MessageClass messageClass, String type, JsonObject message) {
+        String counter = "shed." + messageClass.getName();
+        boolean coalescible = type.equals("cursor_move") || type.equals("presence")
+                || type.equals("document_update") || type.equals("instant_document_update");
+        
+        if (coalescible && state.relay == null) {
+            synchronized (state) {
+                if (state.deferred.put(type, message) != null) {
+                    metrics.increment(counter + ".coalesced");
+                }
+            }
+            deferringConnections.add(conn);
+            metrics.increment(counter + ".deferred");
+            return;
+        }
+        
+        if (type.equals("document_patch")) {
+            metrics.increment(counter + ".rejected");
+            JsonObject rejected = new JsonObject();
+            rejected.addProperty("type", "document_patch_rejected");
+            rejected.add("baseVersion", message.get("baseVersion"));
+            rejected.addProperty("version", -1);
+            rejected.addProperty("reason", "rate_limited");
+            send(conn, gson.toJson(rejected));
+        } else {
+            metrics.increment(counter + ".dropped");
+        }
+        
+        // One slow_down per wait, not one per dropped message
+        long now = System.currentTimeMillis();
+        long retryAfterMs = limits.getRetryAfterMs(messageClass);
+        int index = messageClass.ordinal();
+        if (now >= state.slowDownUntil[index]) {
+            state.slowDownUntil[index] = now + Math.max(retryAfterMs, 100);
+            metrics.increment("shed.slow_down_sent");
+            JsonObject slowDown = new JsonObject();
+            slowDown.addProperty("type", "slow_down");
+            slowDown.addProperty("class", messageClass.getName());
+            slowDown.addProperty("retryAfterMs", retryAfterMs);
+            slowDown.addProperty("rate", limits.getRate(messageClass));
+            send(conn, gson.toJson(slowDown));
+        }
+    }
+    
+    /**
+     * Handles a connection's held messages ahead of a newer message, so they are not
+     * overtaken by it. A held message of the same type as the newer one is superseded
+     * by it and dropped. Called on the connection's thread holding the state's lock.
+     */
+    private void releaseDeferred(WebSocket conn, ConnectionState state, String nextType) {
+        if (state.deferred.isEmpty()) {
+            return;
+        }
+        EditorSession session = state.session;
+        for (Map.Entry<String, JsonObject> entry : state.deferred.entrySet()) {
+            String type = entry.getKey();
+            if (type.equals(nextType)) {
+                metrics.increment("shed." + RateLimiter.MessageClass.of(type).getName() + ".coalesced");
+            } else if (session != null) {
+                JsonObject message = entry.getValue();
+                session.execute(() -> handleMessage(conn, type, message, session));
+            }
+        }
+        state.deferred.clear();
+    }
+    
+    /**
+     * Handles held messages whose connection and session buckets have refilled.
+     * Runs on the presence ticker.
+     */
+    private void releaseDeferredOnTick() {
+        for (WebSocket conn : deferringConnections) {
+            ConnectionState state = conn.getAttachment();
+            if (state == null || !conn.isOpen()) {
+                deferringConnections.remove(conn);
+                continue;
+            }
+            synchronized (state) {
+                EditorSession session = state.session;
+                state.deferred.entrySet().removeIf(entry -> {
+                    String type = entry.getKey();
+                    RateLimiter.MessageClass messageClass = RateLimiter.MessageClass.of(type);
+                    if (session == null) {
+                        return true;
+                    }
+                    if (!state.limits.tryAcquire(messageClass) || !session.getLimits().tryAcquire(messageClass)) {
+                        return false;
+                    }
+                    JsonObject message = entry.getValue();
+                    session.execute(() -> handleMessage(conn, type, message, session));
+                    return true;
+                });
+                if (state.deferred.isEmpty()) {
+                    deferringConnections.remove(conn);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Picks the session whose executor must handle a message, and moves the connection to it
+     * when the message creates, joins or leaves a session. Doing this here, on the thread that
+     * receives the connection's messages, keeps each client's messages in order.
+     * @return The session, or null if the message does not belong to a session.
+     */
+    private EditorSession routeMessage(WebSocket conn, String type, JsonObject message) {
+        ConnectionState state = conn.getAttachment();
+        if (state == null) {
+            return null;
+        }
+        
+        String userId = connectionToUserId.get(conn);
+        switch (type) {
+            case "register":
+                return null;
+            case "create_session": {
+                if (userId == null) {
+                    return null;
+                }
+                EditorSession session = newSession();
+                moveConnection(conn, state, userId, session);
+                return session;
+            }
+            case "join_session": {
+                String sessionCode = getSessionCode(message);
+                if (userId == null || sessionCode == null) {
+                    return null;
+                }
+                EditorSession session = sessionsByCode.computeIfAbsent(sessionCode,
+                        code -> new EditorSession(code, code, new SessionExecutor(sessionWorkers)));
+                moveConnection(conn, state, userId, session);
+                return session;
+            }
+            case "leave_session": {
+                EditorSession session = state.session;
+                state.session = null;
+                return session;
+            }
+            default:
+                return state.session;
+        }
+    }
+    
+    /**
+     * Relays a message to the node that owns the connection's session, opening a relay
+     * when the client joins a session owned elsewhere and closing it when it comes back.
+     * @return true if the message was relayed and must not be handled here.
+     */
+    private boolean relayToOwner(WebSocket conn, String type, JsonObject message, String rawMessage) {
+        ConnectionState state = conn.getAttachment();
+        if (state == null) {
+            return false;
+        }
+        
+        switch (type) {
+            case "register":
+                // Kept so it can be replayed to whichever node the client is relayed to
+                state.registerMessage = rawMessage;
+                break;
+            case "create_session":
+                // New sessions are always created on the node the client is connected to
+                stopRelay(state);
+                return false;
+            case "join_session": {
+                String sessionCode = getSessionCode(message);
+                if (sessionCode == null) {
+                    break;
+                }
+                String ownerId = clusterRing.ownerOf(sessionCode);
+                if (ownerId.equals(clusterRing.getSelfId())) {
+                    stopRelay(state);
+                    return false;
+                }
+                if (state.relay == null || !state.relay.getOwnerId().equals(ownerId)) {
+                    stopRelay(state);
+                    String userId = connectionToUserId.get(conn);
+                    if (userId != null) {
+                        moveConnection(conn, state, userId, null);
+                    }
+                    
+                    log.info("Relaying " + conn.getRemoteSocketAddress() + " to node " + ownerId + " for session " + sessionCode);
+                    state.relay = new ClusterRelay(linkTo(ownerId), conn, state.queue, metrics);
+                    if (state.registerMessage != null) {
+                        state.relay.forward(state.registerMessage);
+                    }
+                }
+                break;
+            }
+            default:
+                break;
+        }
+        
+        ClusterRelay relay = state.relay;
+        if (relay == null) {
+            return false;
+        }
+        relay.forward(rawMessage);
+        return true;
+    }
+    
+    /**
+     * Gets the link to a node, opening a new one if there is none or the last one closed.
+     */
+    private ClusterLink linkTo(String nodeId) {
+        return clusterLinks.compute(nodeId, (id, link) ->
+            link != null && !link.isClosed() ? link : new ClusterLink(id, clusterRing.getAddress(id), metrics));
+    }
+    
+    /**
+     * Closes a connection's relay, if it has one.
+     */
+    private static void stopRelay(ConnectionState state) {
+        ClusterRelay relay = state.relay;
+        if (relay != null) {
+            state.relay = null;
+            relay.close();
+        }
+    }
+    
+    /**
+     * Points a connection at a new session and removes the user from the one it was in.
+     */
+    private void moveConnection(WebSocket conn, ConnectionState state, String userId, EditorSession session) {
+        EditorSession previous = state.session;
+        state.session = session;
+        if (previous != null && previous != session) {
+            log.info("User " + userId + " is leaving previous session to join new one");
+            previous.execute(() -> removeMember(previous, userId, conn));
+        }
+    }
+    
+    /**
+     * Runs a message on the current thread. Session messages are passed the session
+     * whose executor is running them, or null if the connection is not in one.
+     */
+    private void handleMessage(WebSocket conn, String type, JsonObject jsonMessage, EditorSession session) {
+        NetworkEvents.MessageDispatch event = new NetworkEvents.MessageDispatch();
+        event.begin();
+        long startNanos = System.nanoTime();
+        boolean known = true;
+        try {
             switch (type) {
                 case "register":
                     handleRegister(conn, jsonMessage);
                     break;
                 case "create_session":
-                    handleCreateSession(conn, jsonMessage);
+                    handleCreateSession(conn, jsonMessage, session);
                     break;
                 case "join_session":
-                    handleJoinSession(conn, jsonMessage);
+                    handleJoinSession(conn, jsonMessage, session);
                     break;
                 case "leave_session":
-                    handleLeaveSession(conn, jsonMessage);
+                    handleLeaveSession(conn, jsonMessage, session);
                     break;
                 case "insert":
-                    handleInsert(conn, jsonMessage);
+                    handleInsert(conn, jsonMessage, session);
                     break;
                 case "delete":
-                    handleDelete(conn, jsonMessage);
+                    handleDelete(conn, jsonMessage, session);
                     break;
                 case "cursor_move":
-                    handleCursorMove(conn, jsonMessage);
+                    handleCursorMove(conn, jsonMessage, session);
                     break;
                 case "document_update":
-                    handleDocumentUpdate(conn, jsonMessage);
+                    handleDocumentUpdate(conn, jsonMessage, session);
+                    break;
+                case "save_document":
+                    handleSaveDocument(conn, jsonMessage, session);
                     break;
                 case "instant_document_update":
-                    handleInstantDocumentUpdate(conn, jsonMessage);
+                    handleInstantDocumentUpdate(conn, jsonMessage, session);
+                    break;
+                case "document_patch":
+                    handleDocumentPatch(conn, jsonMessage, session);
                     break;
                 case "undo":
-                    handleUndo(conn, jsonMessage);
+                    handleUndo(conn, jsonMessage, session);
                     break;
                 case "redo":
-                    handleRedo(conn, jsonMessage);
+                    handleRedo(conn, jsonMessage, session);
                     break;
                 case "sync_confirmation":
-                    handleSyncConfirmation(conn, jsonMessage);
+                    handleSyncConfirmation(conn, jsonMessage, session);
                     break;
                 case "request_resync":
-                    handleResyncRequest(conn, jsonMessage);
+                    handleResyncRequest(conn, jsonMessage, session);
+                    break;
+                case "merkle_root":
+                    handleMerkleRoot(conn, jsonMessage, session);
+                    break;
+                case "merkle_request":
+                    handleMerkleRequest(conn, jsonMessage, session);
                     break;
                 case "update_username":
                 case "username_update":
-                    handleUpdateUsername(conn, jsonMessage);
+                    handleUpdateUsername(conn, jsonMessage, session);
                     break;
                 case "presence":
-                    handlePresenceUpdate(conn, jsonMessage);
+                    handlePresenceUpdate(conn, jsonMessage, session);
                     break;
                 case "request_presence":
-                    handleRequestPresence(conn, jsonMessage);
+                    handleRequestPresence(conn, jsonMessage, session);
                     break;
                 default:
+                    known = false;
                     sendError(conn, "Unknown message type: " + type);
             }
         } catch (Exception e) {
-            System.err.println("Error processing message: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing message: " + e.getMessage(), e);
             sendError(conn, "Error processing message: " + e.getMessage());
+        } finally {
+            // Unknown types share one label so clients cannot create metrics at will
+            String label = known ? type : "unknown";
+            metrics.increment(ServerMetrics.labeled("messages.received", "type", label));
+            metrics.recordLatency(ServerMetrics.labeled("message.handling.seconds", "type", label), System.nanoTime() - startNanos);
+            if (event.shouldCommit()) {
+                event.type = label;
+                event.inSession = session != null;
+                event.commit();
+            }
+        }
+    }
+    
+    @Override
+    public void onWebsocketPong(WebSocket conn, Framedata f) {
+        ConnectionState state = conn.getAttachment();
+        if (state != null) {
+            state.lifecycle.pongReceived();
         }
     }
     
     @Override
     public void onError(WebSocket conn, Exception ex) {
         if (conn != null) {
-            System.err.println("Error occurred on connection " + conn.getRemoteSocketAddress() + ":" + ex.getMessage());
+            log.error("Error occurred on connection " + conn.getRemoteSocketAddress() + ":" + ex.getMessage(), ex);
         } else {
-            System.err.println("Server error occurred: " + ex.getMessage());
+            log.error("Server error occurred: " + ex.getMessage(), ex);
         }
-        ex.printStackTrace();
     }
     
     @Override
     public void onStart() {
-        System.out.println("WebSocket server started on port " + getPort());
+        log.info("WebSocket server started on port " + getPort());
+        
+        presenceTicker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "presence-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        presenceTicker.scheduleAtFixedRate(this::flushPresenceTick, presenceTickMs, presenceTickMs, TimeUnit.MILLISECONDS);
+        log.info("Presence tick every " + presenceTickMs + " ms");
+        
+        lifecycle.start();
+        
+        if (metricsEndpoint != null) {
+            metricsEndpoint.start();
+        }
+    }
+    
+    @Override
+    public void stop(int timeout, String closeMessage) throws InterruptedException {
+        if (presenceTicker != null) {
+            presenceTicker.shutdownNow();
+        }
+        lifecycle.stop();
+        for (ClusterLink link : clusterLinks.values()) {
+            link.close();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        super.stop(timeout, closeMessage);
+        sessionBus.close();
+        if (sessionWorkerPool != null) {
+            sessionWorkerPool.shutdown();
+            sessionWorkerPool.awaitTermination(Math.max(timeout, 1000), TimeUnit.MILLISECONDS);
+        }
+        
+        // Everything the sessions recorded is now in the persister
+        persister.flushAll();
+        
+        if (traceRecorder != null) {
+            traceRecorder.close();
+        }
+    }
+    
+    /**
+     * Asks every session that had cursor moves since the last tick to send one aggregated cursor frame.
+     * Package-private so that the benchmarks can tick without starting the server.
+     */
+    void flushPresenceTick() {
+        try {
+            // Sessions are registered under both codes, so visit each one once
+            Map<EditorSession, Boolean> visited = new IdentityHashMap<>();
+            for (EditorSession session : sessionsByCode.values()) {
+                if (visited.put(session, Boolean.TRUE) != null) {
+                    continue;
+                }
+                if (session.hasPendingCursors()) {
+                    session.execute(() -> flushCursors(session));
+                }
+                if (session.hasPendingAcks()) {
+                    session.execute(() -> flushAcks(session));
+                }
+            }
+            
+            // Give backed-up connections a chance to flush what they are holding
+            for (OutboundQueue queue : outboundQueues.values()) {
+                queue.drain();
+            }
+            
+            // Let rate-limited messages through as their buckets refill
+            if (!deferringConnections.isEmpty()) {
+                releaseDeferredOnTick();
+            }
+        } catch (Exception e) {
+            log.error("Error during presence tick: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Acknowledges to each member the last of its operations applied since the last tick.
+     * Runs on the session's executor.
+     */
+    private void flushAcks(EditorSession session) {
+        for (Map.Entry<String, Long> entry : session.drainPendingAcks().entrySet()) {
+            WebSocket conn = session.getConnections().get(entry.getKey());
+            if (conn != null) {
+                send(conn, "{\"type\":\"op_ack\",\"clientSeq\":" + entry.getValue() + "}");
+            }
+        }
+    }
+    
+    /**
+     * Sends the cursors that moved since the last tick to every member of a session.
+     * Runs on the session's executor.
+     */
+    private void flushCursors(EditorSession session) {
+        Map<String, Integer> cursors = session.drainPendingCursors();
+        if (cursors.isEmpty()) {
+            return;
+        }
+        
+        JsonObject cursorsObj = new JsonObject();
+        for (Map.Entry<String, Integer> entry : cursors.entrySet()) {
+            cursorsObj.addProperty(entry.getKey(), entry.getValue());
+        }
+        
+        JsonObject frame = new JsonObject();
+        frame.addProperty("type", "cursor_batch");
+        frame.add("cursors", cursorsObj);
+        
+        // Every member gets the same frame; clients ignore their own cursor
+        String frameJson = gson.toJson(frame);
+        for (WebSocket conn : session.getConnections().values()) {
+            OutboundQueue queue = queueOf(conn);
+            if (queue != null) {
+                queue.sendCursors(frameJson, cursors);
+            }
+        }
+        metrics.increment("presence.frames");
+        metrics.add("presence.cursors", cursors.size());
     }
     
     private void handleRegister(WebSocket conn, JsonObject message) {
@@ -214,18 +872,18 @@ public class CollaborativeEditorServer extends WebSocketServer {
         // First check for existing connections with this user ID and clean them up
         WebSocket existingConn = userConnections.get(userId);
         if (existingConn != null && existingConn != conn && existingConn.isOpen()) {
-            System.out.println("Found existing connection for user " + userId + ", closing it");
+            log.info("Found existing connection for user " + userId + ", closing it");
             try {
                 // Send disconnect message to the existing connection
                 JsonObject disconnectMsg = new JsonObject();
                 disconnectMsg.addProperty("type", "force_disconnect");
                 disconnectMsg.addProperty("reason", "New connection established");
-                existingConn.send(gson.toJson(disconnectMsg));
+                send(existingConn, gson.toJson(disconnectMsg));
                 
                 // Close the existing connection
                 existingConn.close();
             } catch (Exception e) {
-                System.err.println("Error closing existing connection: " + e.getMessage());
+                log.error("Error closing existing connection: " + e.getMessage());
             }
         }
         
@@ -243,41 +901,29 @@ public class CollaborativeEditorServer extends WebSocketServer {
         JsonObject response = new JsonObject();
         response.addProperty("type", "register_ack");
         response.addProperty("userId", userId);
-        conn.send(gson.toJson(response));
+        send(conn, gson.toJson(response));
     }
     
-    private void handleCreateSession(WebSocket conn, JsonObject message) {
+    private void handleCreateSession(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
-        if (userId == null) {
+        if (userId == null || session == null) {
             sendError(conn, "Not registered");
             return;
         }
         
-        // Generate unique codes for editor and viewer
-        String editorCode = UUID.randomUUID().toString().substring(0, 6);
-        String viewerCode = UUID.randomUUID().toString().substring(0, 6);
-        
-        // Make sure the codes are different
-        while (editorCode.equals(viewerCode)) {
-            viewerCode = UUID.randomUUID().toString().substring(0, 6);
-        }
+        String editorCode = session.getEditorCode();
+        String viewerCode = session.getViewerCode();
         
         // Store document title in the response only
         String documentTitle = message.has("title") ? message.get("title").getAsString() : "Untitled Document";
         
-        // Create a new session
-        EditorSession session = new EditorSession(editorCode, viewerCode);
-        
-        // Add the session to our maps
-        sessionsByCode.put(editorCode, session);
-        sessionsByCode.put(viewerCode, session);
-        
         // Add the creator as an editor
-        session.addEditor(userId);
-        userSessions.put(userId, session);
+        session.addEditor(userId, conn);
+        subscribeToBus(session);
+        adoptDocumentId(session, message);
         
-        System.out.println("Created session with codes - Editor: " + editorCode + ", Viewer: " + viewerCode);
+        log.info("Created session with codes - Editor: " + editorCode + ", Viewer: " + viewerCode);
         
         // Send acknowledgement to client with session details
         JsonObject response = new JsonObject();
@@ -287,89 +933,126 @@ public class CollaborativeEditorServer extends WebSocketServer {
         response.addProperty("userId", userId);
         response.addProperty("documentTitle", documentTitle);
         
-        conn.send(gson.toJson(response));
+        send(conn, gson.toJson(response));
         
-        // Broadcast presence update
-        broadcastPresenceUpdate(session);
+        // The creator is the only member, so a snapshot is all they need
+        session.getPresence().add(userId, displayName(userId), true);
+        send(conn, gson.toJson(session.getPresence().snapshot()));
     }
     
     /**
-     * Handles a request from a client to join a session.
+     * Creates a session with fresh editor and viewer codes and registers it under both.
      */
-    private void handleJoinSession(WebSocket conn, JsonObject message) {
-        String userId = connectionToUserId.get(conn);
-        if (userId == null) {
-            sendError(conn, "Not registered");
-            return;
+    private EditorSession newSession() {
+        while (true) {
+            // Generate unique codes for editor and viewer
+            String editorCode = UUID.randomUUID().toString().substring(0, 6);
+            String viewerCode = UUID.randomUUID().toString().substring(0, 6);
+            
+            // Make sure the codes are different and not already in use
+            if (editorCode.equals(viewerCode) || sessionsByCode.containsKey(editorCode) || sessionsByCode.containsKey(viewerCode)) {
+                continue;
+            }
+            
+            // In a cluster, both codes must lead back to this node
+            if (clusterRing != null && (!clusterRing.isLocal(editorCode) || !clusterRing.isLocal(viewerCode))) {
+                continue;
+            }
+            
+            EditorSession session = new EditorSession(editorCode, viewerCode, new SessionExecutor(sessionWorkers));
+            if (sessionsByCode.putIfAbsent(editorCode, session) != null) {
+                continue;
+            }
+            if (sessionsByCode.putIfAbsent(viewerCode, session) != null) {
+                sessionsByCode.remove(editorCode, session);
+                continue;
+            }
+            return session;
         }
-        
-        // Get the session code from the request
-        String sessionCode;
+    }
+    
+    /**
+     * Gets the session code from a join request.
+     * @return The code, or null if the request has none.
+     */
+    private static String getSessionCode(JsonObject message) {
         if (message.has("code")) {
-            sessionCode = message.get("code").getAsString();
+            return message.get("code").getAsString();
         } else if (message.has("sessionId")) {
-            sessionCode = message.get("sessionId").getAsString();
-        } else {
+            return message.get("sessionId").getAsString();
+        }
+        return null;
+    }
+    
+    /**
+     * Handles a request from a client to join a session.
+     * Runs on the executor of the session being joined; the connection has already
+     * been moved off its previous session.
+     */
+    private void handleJoinSession(WebSocket conn, JsonObject message, EditorSession session) {
+        String userId = connectionToUserId.get(conn);
+        if (userId == null) {
+            sendError(conn, "Not registered");
+            return;
+        }
+        
+        // Get the session code from the request
+        String sessionCode = getSessionCode(message);
+        if (sessionCode == null || session == null) {
             sendError(conn, "Missing session identifier");
             return;
         }
         
+        // The session emptied and closed before this join reached it; join its successor
+        if (session.isClosed()) {
+            EditorSession successor = sessionsByCode.computeIfAbsent(sessionCode,
+                    code -> new EditorSession(code, code, new SessionExecutor(sessionWorkers)));
+            ConnectionState state = conn.getAttachment();
+            if (state != null && state.session == session) {
+                state.session = successor;
+            }
+            successor.execute(() -> handleMessage(conn, "join_session", message, successor));
+            return;
+        }
+        
+        adoptDocumentId(session, message);
+        
         // Get the requested role
         boolean requestingEditorRole = message.has("asEditor") && message.get("asEditor").getAsBoolean();
         
-        System.out.println("=== JOIN SESSION REQUEST ===");
-        System.out.println("User: " + userId);
-        System.out.println("Code: " + sessionCode);
-        System.out.println("Requesting role: " + (requestingEditorRole ? "EDITOR" : "VIEWER"));
+        // Last operation sequence number the client has seen (present when rejoining)
+        long lastSeq = message.has("lastSeq") ? message.get("lastSeq").getAsLong() : -1;
         
-        // Check if user is already in a session and remove them from it
-        EditorSession currentSession = userSessions.get(userId);
-        if (currentSession != null && 
-            !currentSession.getEditorCode().equals(sessionCode) && 
-            !currentSession.getViewerCode().equals(sessionCode)) {
-            
-            System.out.println("User is leaving previous session to join new one");
-            currentSession.removeUser(userId);
-            
-            // If the session is now empty, remove it
-            if (currentSession.isEmpty()) {
-                sessionsByCode.remove(currentSession.getEditorCode());
-                sessionsByCode.remove(currentSession.getViewerCode());
-                System.out.println("Previous session removed as it's now empty");
-            } else {
-                // Notify remaining users about the departure
-                broadcastPresenceUpdate(currentSession);
-            }
-        }
+        // Resume token from an earlier join, telling us which of the client's operations we have
+        String resumeToken = message.has("resumeToken") ? message.get("resumeToken").getAsString() : null;
         
-        // Get the session associated with the code
-        EditorSession session = sessionsByCode.get(sessionCode);
+        // Client sequence number of the first operation the client will send after joining
+        long firstClientSeq = message.has("firstClientSeq") ? message.get("firstClientSeq").getAsLong() : -1;
         
-        // If session doesn't exist, create a new one
-        if (session == null) {
-            System.out.println("Session not found, creating new session with code: " + sessionCode);
-            
-            // For backwards compatibility, use the same code for editor and viewer
-            String editorCode = sessionCode;
-            String viewerCode = sessionCode;
-            
-            // Create a new session with the provided code
-            session = new EditorSession(editorCode, viewerCode);
-            
-            // Register the session with both codes for lookup
-            sessionsByCode.put(editorCode, session);
-            
-            // If the codes are different, register with both
-            if (!editorCode.equals(viewerCode)) {
-                sessionsByCode.put(viewerCode, session);
+        log.info("=== JOIN SESSION REQUEST ===");
+        log.info("User: " + userId);
+        log.info("Code: " + sessionCode);
+        log.info("Requesting role: " + (requestingEditorRole ? "EDITOR" : "VIEWER"));
+        
+        // Another process sharing the bus may already hold the session; joins wait for its answer
+        if (session.isSyncing() || (session.isNew() && !session.isSynced() && sessionBus.isShared())) {
+            session.deferJoin(conn, message);
+            if (!session.isSyncing()) {
+                requestBusSync(session, sessionCode);
             }
+            return;
+        }
+        
+        // If nobody has joined yet, this request created the session
+        if (session.isNew()) {
+            log.info("Session not found, created new session with code: " + sessionCode);
             
             // Add the user as an editor since they're creating it
-            session.addEditor(userId);
-            userSessions.put(userId, session);
+            session.addEditor(userId, conn);
+            subscribeToBus(session);
             
             // Send success response
-            sendJoinResponse(conn, userId, session, true);
+            sendJoinResponse(conn, userId, session, true, -1, session.resume(userId, resumeToken, firstClientSeq));
             return;
         }
         
@@ -381,51 +1064,43 @@ public class CollaborativeEditorServer extends WebSocketServer {
             if (sessionCode.equals(session.getEditorCode())) {
                 // Using editor code, grant editor role
                 assignedEditorRole = true;
-                session.addEditor(userId);
-                System.out.println("Granted EDITOR role (requested + using editor code)");
+                session.addEditor(userId, conn);
+                log.info("Granted EDITOR role (requested + using editor code)");
             } else {
                 // Using viewer code but requested editor role - deny
                 sendError(conn, "Cannot join as editor using viewer code");
-                System.out.println("Denied EDITOR role (using viewer code)");
+                log.info("Denied EDITOR role (using viewer code)");
                 return;
             }
         } else {
             // Viewer role requested - always grant
             assignedEditorRole = false;
-            session.addViewer(userId);
-            System.out.println("Granted VIEWER role (as requested)");
+            session.addViewer(userId, conn);
+            log.info("Granted VIEWER role (as requested)");
         }
         
-        // Associate the user with the session
-        userSessions.put(userId, session);
-        
         // Get username if provided
         if (message.has("username") && !message.get("username").isJsonNull()) {
             String providedUsername = message.get("username").getAsString();
             if (providedUsername != null && !providedUsername.isEmpty()) {
                 usernames.put(userId, providedUsername);
-                System.out.println("User joining with username: " + providedUsername);
+                log.info("User joining with username: " + providedUsername);
             }
         }
         
         // Send success response
-        sendJoinResponse(conn, userId, session, assignedEditorRole);
+        sendJoinResponse(conn, userId, session, assignedEditorRole, lastSeq, session.resume(userId, resumeToken, firstClientSeq));
     }
     
     /**
-     * Sends a successful join response to the client
+     * Sends a successful join response to the client.
+     * A client that presents the last sequence number it saw gets only the operations it
+     * missed; otherwise it gets the document snapshot plus the operations logged after it.
+     * The response carries the client's resume token and the last of its operations we
+     * applied, so that after a reconnect it resends only the ones that never arrived.
      */
-    private void sendJoinResponse(WebSocket conn, String userId, EditorSession session, boolean isEditor) {
-        // Create a proper usernames object with full usernames
-        JsonObject usernamesObject = new JsonObject();
-        for (String user : session.getAllUsers()) {
-            if (usernames.containsKey(user)) {
-                usernamesObject.addProperty(user, usernames.get(user));
-            } else {
-                usernamesObject.addProperty(user, "User-" + user.substring(0, 4));
-            }
-        }
-        
+    private void sendJoinResponse(WebSocket conn, String userId, EditorSession session, boolean isEditor,
+                                  long lastSeq, ResumeState resume) {
         // Send response with all needed info
         JsonObject response = new JsonObject();
         response.addProperty("type", "join_session_ack");
@@ -433,316 +1108,570 @@ public class CollaborativeEditorServer extends WebSocketServer {
         response.addProperty("asEditor", isEditor);
         response.addProperty("editorCode", session.getEditorCode());
         response.addProperty("viewerCode", session.getViewerCode());
-        response.addProperty("documentContent", session.getDocumentContent());
-        response.add("usernames", usernamesObject);
         
-        conn.send(gson.toJson(response));
-        System.out.println("Sent join confirmation to user " + userId + " as " + (isEditor ? "EDITOR" : "VIEWER"));
-        
-        // Broadcast presence update to all users in the session
-        broadcastPresenceUpdate(session);
+        // Decide whether the client can catch up from the operation log alone
+        OperationLog operationLog = session.getOperationLog();
+        String catchUpMode;
+        long catchUpFrom;
+        if (lastSeq >= 0 && operationLog.covers(lastSeq)) {
+            catchUpMode = "tail";
+            catchUpFrom = lastSeq;
+        } else {
+            catchUpMode = lastSeq >= 0 ? "snapshot" : "initial";
+            catchUpFrom = session.getSnapshotSeq();
+            response.addProperty("documentContent", session.getDocumentContent());
+            response.addProperty("snapshotSeq", catchUpFrom);
+            addContentVersion(response, session);
+        }
+        response.addProperty("catchUp", catchUpMode);
+        response.addProperty("latestSeq", operationLog.getLatestSeq());
+        response.addProperty("resumeToken", resume.token);
+        response.addProperty("resumed", resume.resumed);
+        response.addProperty("appliedClientSeq", resume.appliedClientSeq);
+        metrics.increment(resume.resumed ? "resume.resumed" : "resume.new");
+        
+        // The joiner gets the full presence snapshot; everyone else only gets the delta
+        SessionPresence presence = session.getPresence();
+        JsonObject delta = presence.add(userId, displayName(userId), isEditor);
+        JsonObject snapshot = presence.snapshot();
+        response.add("usernames", snapshot.get("users"));
+        response.addProperty("presenceVersion", presence.getVersion());
+        
+        sendDocument(conn, response, "documentContent");
+        log.info("Sent join confirmation to user " + userId + " as " + (isEditor ? "EDITOR" : "VIEWER"));
+        
+        if (delta != null) {
+            broadcastPresence(session, delta, userId);
+        }
+        
+        sendCatchUp(conn, userId, session, catchUpMode, catchUpFrom);
     }
     
     /**
-     * Sends a direct presence update to a specific user
+     * Sends the logged operations after the given sequence number to a client
+     * and records which catch-up path was taken.
      */
-    private void sendPresenceToUser(String targetUserId, EditorSession session) {
-        if (session == null || targetUserId == null) {
+    private void sendCatchUp(WebSocket conn, String userId, EditorSession session, String mode, long fromSeq) {
+        List<String> operations = mode.equals("tail")
+                ? session.getOperationLog().getSince(fromSeq)
+                : session.getOperationsAfterSnapshot();
+        
+        metrics.increment("catchup." + mode);
+        metrics.add("catchup.operations", operations.size());
+        log.info("Catch-up for user " + userId + " via " + mode + " (" + operations.size() + " ops)"
+                + " - totals: tail=" + metrics.get("catchup.tail")
+                + ", snapshot=" + metrics.get("catchup.snapshot")
+                + ", initial=" + metrics.get("catchup.initial"));
+        
+        if (operations.isEmpty()) {
             return;
         }
         
-        try {
-            WebSocket conn = userConnections.get(targetUserId);
-            if (conn == null || !conn.isOpen()) {
-                return;
+        // The operations are already serialized, so splice them into the message as-is
+        StringBuilder catchUpMsg = new StringBuilder();
+        catchUpMsg.append("{\"type\":\"catch_up\",\"mode\":\"").append(mode)
+                  .append("\",\"fromSeq\":").append(fromSeq)
+                  .append(",\"ops\":[");
+        for (int i = 0; i < operations.size(); i++) {
+            if (i > 0) {
+                catchUpMsg.append(',');
             }
-            
-            // Create a filtered map of valid users in the session
-            Map<String, String> userMap = new HashMap<>();
-            
-            for (String userId : session.getAllUsers()) {
-                // Skip disconnected users
-                WebSocket userConn = userConnections.get(userId);
-                if (userConn == null || !userConn.isOpen()) {
-                    continue;
-                }
-                
-                // Skip UUID-format users
-                if (userId.contains("-") || userId.length() > 24) {
-                    continue;
-                }
-                
-                // Get username
-                String username = usernames.get(userId);
-                if (username == null || username.isEmpty()) {
-                    continue;
-                }
-                
-                userMap.put(userId, username);
-            }
-            
-            // Create presence message
-            JsonObject message = new JsonObject();
-            message.addProperty("type", "presence");
-            message.addProperty("highPriority", true);
-            message.add("users", gson.toJsonTree(userMap));
-            
-            // Send to the target user
-            conn.send(gson.toJson(message));
-            System.out.println("Sent direct presence update to user " + targetUserId);
-        } catch (Exception e) {
-            System.err.println("Error sending direct presence update: " + e.getMessage());
+            catchUpMsg.append(operations.get(i));
         }
+        catchUpMsg.append("]}");
+        
+        send(conn, catchUpMsg.toString());
     }
     
     /**
-     * Sends a high-priority presence update to all users in a session, 
-     * notifying them about a newly joined user.
+     * Gets the name shown for a user in presence lists.
      */
-    private void sendHighPriorityPresenceUpdate(EditorSession session, String newUserId) {
-        if (session == null || newUserId == null) {
+    private String displayName(String userId) {
+        String username = usernames.get(userId);
+        if (username == null || username.isEmpty()) {
+            username = "User-" + userId.substring(0, Math.min(6, userId.length()));
+        }
+        return username;
+    }
+    
+    /**
+     * Adds or updates a user's presence entry and sends the delta to the other members.
+     */
+    private void announcePresence(EditorSession session, String userId) {
+        JsonObject delta = session.getPresence().rename(userId, displayName(userId), session.isEditor(userId));
+        if (delta != null) {
+            broadcastPresence(session, delta, userId);
+        }
+    }
+    
+    /**
+     * Removes a user's presence entry and sends the delta to the remaining members.
+     */
+    private void retractPresence(EditorSession session, String userId) {
+        JsonObject delta = session.getPresence().remove(userId);
+        if (delta != null) {
+            broadcastPresence(session, delta, userId);
+        }
+    }
+    
+    /**
+     * Removes a user from a session, closing the session if it is now empty.
+     * Runs on the session's executor.
+     * @param conn The connection the user is leaving from. The user is kept if they have
+     *             since rejoined this session on another connection.
+     */
+    private void removeMember(EditorSession session, String userId, WebSocket conn) {
+        WebSocket memberConn = session.getConnections().get(userId);
+        if (memberConn == null || (conn != null && memberConn != conn)) {
             return;
         }
         
-        try {
-            // Get the username of the new user
-            String newUsername = usernames.get(newUserId);
-            if (newUsername == null || newUsername.isEmpty()) {
-                // Use a default name if not set
-                newUsername = "User-" + newUserId.substring(0, Math.min(6, newUserId.length()));
+        session.removeUser(userId);
+        
+        // Notify remaining users about the departure, including those on other processes
+        retractPresence(session, userId);
+        
+        if (session.isEmpty()) {
+            closeSession(session);
+            log.info("Session removed as it's now empty");
+            return;
+        }
+        
+        // Broadcast cursor removal to other users in the session
+        JsonObject cursorRemoveMsg = new JsonObject();
+        cursorRemoveMsg.addProperty("type", "cursor_remove");
+        cursorRemoveMsg.addProperty("userId", userId);
+        
+        broadcastToSession(session, gson.toJson(cursorRemoveMsg), userId);
+    }
+    
+    /**
+     * Unregisters an empty session's codes so that new joins get a fresh session.
+     * Runs on the session's executor.
+     */
+    private void closeSession(EditorSession session) {
+        session.close();
+        sessionsByCode.remove(session.getEditorCode(), session);
+        sessionsByCode.remove(session.getViewerCode(), session);
+        
+        SessionBus.Subscriber subscriber = session.getBusSubscriber();
+        if (subscriber != null) {
+            for (String code : session.getCodes()) {
+                sessionBus.unsubscribe(code, subscriber);
             }
-            
-            System.out.println("Sending high-priority notification about user: " + newUsername + " (" + newUserId + ")");
-            
-            // First send a dedicated user_joined message
-            JsonObject joinMessage = new JsonObject();
-            joinMessage.addProperty("type", "user_joined");
-            joinMessage.addProperty("userId", newUserId);
-            joinMessage.addProperty("username", newUsername);
-            
-            // Create a map of userIds to usernames
-            JsonObject newUserObj = new JsonObject();
-            newUserObj.addProperty(newUserId, newUsername);
-            joinMessage.add("users", newUserObj);
-            
-            // Then also send a full presence update with all users
-            JsonObject presenceMessage = new JsonObject();
-            presenceMessage.addProperty("type", "presence");
-            presenceMessage.addProperty("highPriority", true);
-            
-            // Create a full user map for all users in the session
-            JsonObject fullUserObj = new JsonObject();
-            for (String userId : session.getAllUsers()) {
-                String username = usernames.get(userId);
-                if (username == null || username.isEmpty()) {
-                    // Use a default name if not set
-                    username = "User-" + userId.substring(0, Math.min(6, userId.length()));
+        }
+    }
+    
+    /**
+     * Subscribes a session to its codes on the session bus once its first member has joined.
+     * Messages published by this process are delivered on the publishing session's executor;
+     * messages from other processes are handed to the session's executor.
+     */
+    private void subscribeToBus(EditorSession session) {
+        SessionBus.Subscriber subscriber = session.getBusSubscriber();
+        if (subscriber == null) {
+            subscriber = new SessionBus.Subscriber() {
+                @Override
+                public void deliver(String message, String excludeUserId) {
+                    deliverToMembers(session, message, excludeUserId);
                 }
-                fullUserObj.addProperty(userId, username);
-            }
-            
-            presenceMessage.add("users", fullUserObj);
-            
-            // Send both messages to all users in the session except the new user
-            for (String userId : session.getAllUsers()) {
-                WebSocket conn = userConnections.get(userId);
-                if (conn != null && conn.isOpen()) {
-                    // First send the dedicated join notification
-                    conn.send(gson.toJson(joinMessage));
-                    
-                    // Then send the full presence update
-                    conn.send(gson.toJson(presenceMessage));
-                    
-                    System.out.println("Sent notification to user: " + userId);
+                
+                @Override
+                public void deliverRemote(List<String> messages) {
+                    session.execute(() -> {
+                        if (session.isClosed()) {
+                            return;
+                        }
+                        for (String message : messages) {
+                            applyRemote(session, message);
+                        }
+                    });
                 }
-            }
-        } catch (Exception e) {
-            System.err.println("Error sending high-priority presence update: " + e.getMessage());
-            e.printStackTrace();
+            };
+            session.setBusSubscriber(subscriber);
+        }
+        // Also picks up codes the session learned since it first subscribed
+        for (String code : session.getCodes()) {
+            sessionBus.subscribe(code, subscriber);
+        }
+    }
+    
+    /**
+     * Applies a message published by another process to this process's copy of the session,
+     * then passes it on to the members here. Sequenced operations are logged here too, and
+     * content and presence changes are made here, so that members joining or catching up on
+     * this process see the same session as members elsewhere. Runs on the session's executor.
+     */
+    private void applyRemote(EditorSession session, String messageJson) {
+        JsonObject message;
+        try {
+            message = gson.fromJson(messageJson, JsonObject.class);
+        } catch (RuntimeException e) {
+            log.warn("Malformed message on the session bus: " + e.getMessage());
+            return;
         }
+        String type = message.has("type") ? message.get("type").getAsString() : "";
+        switch (type) {
+            case "bus_sync_request":
+                answerBusSync(session);
+                break;
+            case "bus_sync_state":
+                adoptBusSync(session, message);
+                break;
+            case "bus_presence":
+                applyRemotePresence(session, message);
+                break;
+            case "insert":
+            case "delete":
+                applyRemoteOperation(session, message, messageJson);
+                break;
+            case "document_sync":
+                applyRemoteContent(session, message);
+                break;
+            case "document_patch":
+                applyRemotePatch(session, message);
+                break;
+            default:
+                deliverToMembers(session, messageJson, null);
+                break;
+        }
+        metrics.increment("bus.applied");
     }
     
     /**
-     * Broadcasts the list of usernames to all clients in a session.
-     * @param session The session to broadcast to.
+     * Logs an operation another process's copy of the session sequenced under the number
+     * it was given there, and passes it on to the members here. When the numbers disagree,
+     * because operations were missed or two copies numbered different operations alike,
+     * the copy on the process that sorts first keeps its numbering: if that is this copy
+     * the operation is logged after its own, and otherwise the operation is passed on
+     * without being logged and this copy takes the other's numbering. Runs on the
+     * session's executor.
      */
-    private void broadcastUsernames(EditorSession session) {
-        if (session == null || session.isEmpty()) {
+    private void applyRemoteOperation(EditorSession session, JsonObject message, String messageJson) {
+        OperationLog operationLog = session.getOperationLog();
+        long seq = message.has("seq") ? message.get("seq").getAsLong() : 0;
+        long latestSeq = operationLog.getLatestSeq();
+        if (session.isSyncing()) {
+            // The numbering comes with the state that was asked for
+            deliverToMembers(session, messageJson, null);
+            return;
+        }
+        if (session.isStale()) {
+            // Logged once the numbering has arrived, unless it comes with it
+            session.holdUnlogged(message);
+            deliverToMembers(session, messageJson, null);
+            return;
+        }
+        if (seq == 0 || seq == latestSeq + 1) {
+            deliverToMembers(session, operationLog.append(message), null);
             return;
         }
         
-        try {
-            // Create a map of all userIDs to usernames in this session
-            JsonObject message = new JsonObject();
-            message.addProperty("type", "usernames");
-            
-            JsonObject usernamesObj = new JsonObject();
-            
-            // Add all users in the session with active connections
-            for (String userId : session.getAllUsers()) {
-                // Skip users without active connections
-                WebSocket conn = userConnections.get(userId);
-                if (conn == null || !conn.isOpen()) {
-                    continue;
-                }
-                
-                String username = usernames.get(userId);
-                if (username == null || username.isEmpty()) {
-                    // Use a default name if no username is set
-                    username = "User-" + userId.substring(0, Math.min(6, userId.length()));
-                }
-                
-                // Format username nicely if needed
-                if (username.startsWith("User-") && username.length() > 5) {
-                    username = "User " + username.substring(5);
+        String userId = message.has("userId") ? message.get("userId").getAsString() : null;
+        long clientSeq = message.has("clientSeq") ? message.get("clientSeq").getAsLong() : 0;
+        if (operationLog.contains(userId, clientSeq)) {
+            // Already logged, as part of a state this copy took from another
+            deliverToMembers(session, messageJson, null);
+            return;
+        }
+        
+        String origin = message.has("origin") ? message.get("origin").getAsString() : "";
+        if (origin.compareTo(busOrigin) < 0) {
+            metrics.increment(seq > latestSeq + 1 ? "bus.seq_gap" : "bus.seq_clash");
+            deliverToMembers(session, messageJson, null);
+            resyncFromBus(session);
+            session.holdUnlogged(message);
+            return;
+        }
+        // The other copy takes this copy's numbering, under which this operation comes next
+        metrics.increment(seq > latestSeq + 1 ? "bus.seq_gap" : "bus.seq_clash");
+        deliverToMembers(session, operationLog.append(message), null);
+    }
+    
+    /**
+     * Marks a session's copy stale and asks the other processes' copies for their state.
+     * Every other copy may be stale as well, and none answers; then once the wait for an
+     * answer is over this copy carries on with what it has.
+     */
+    private void resyncFromBus(EditorSession session) {
+        session.setStale(true);
+        requestBusSync(session, session.getEditorCode());
+        int staleCount = session.getStaleCount();
+        ScheduledExecutorService ticker = presenceTicker;
+        if (ticker != null) {
+            ticker.schedule(() -> session.execute(() -> {
+                if (session.isStale() && session.getStaleCount() == staleCount) {
+                    session.setStale(false);
+                    logUnlogged(session);
+                    metrics.increment("bus.sync_unanswered");
                 }
-                
-                usernamesObj.addProperty(userId, username);
-                System.out.println("Adding user to broadcast: " + userId + " -> " + username);
+            }), busSyncTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Logs the operations passed on while the session was stale that are not logged yet.
+     */
+    private static void logUnlogged(EditorSession session) {
+        for (JsonObject operation : session.takeUnlogged()) {
+            logIfMissing(session.getOperationLog(), operation);
+        }
+    }
+    
+    private static void logIfMissing(OperationLog operationLog, JsonObject operation) {
+        String userId = operation.has("userId") ? operation.get("userId").getAsString() : null;
+        long clientSeq = operation.has("clientSeq") ? operation.get("clientSeq").getAsLong() : 0;
+        if (!operationLog.contains(userId, clientSeq)) {
+            operationLog.append(operation);
+        }
+    }
+    
+    /**
+     * Takes on content another process's copy of the session received as a whole.
+     */
+    private void applyRemoteContent(EditorSession session, JsonObject message) {
+        String content = message.get("content").getAsString();
+        long hash = session.hashOf(content);
+        if (!session.hasContent(content.length(), hash)) {
+            session.setDocumentContent(content, hash, remoteCoveredSeq(session, message),
+                                       coveredUserOf(message), coveredClientSeqOf(message));
+        }
+        addContentVersion(message, session);
+        deliverToMembers(session, gson.toJson(message), null);
+    }
+    
+    /**
+     * Applies a patch another process's copy of the session applied, if this copy holds the
+     * content it was made against; otherwise this copy has missed a change and fetches the
+     * content again.
+     */
+    private void applyRemotePatch(EditorSession session, JsonObject message) {
+        long baseHash = message.has("baseHash") ? message.get("baseHash").getAsLong() : 0;
+        long hash = message.get("hash").getAsLong();
+        String base = session.getDocumentContent();
+        String content = null;
+        int[] unchanged = null;
+        if (session.getContentHash() == baseHash) {
+            try {
+                JsonArray patch = message.getAsJsonArray("patch");
+                content = TextPatch.apply(base, patch);
+                unchanged = TextPatch.unchangedEnds(patch, base.length());
+            } catch (RuntimeException e) {
+                log.warn("Malformed document patch on the session bus: " + e.getMessage());
             }
-            
-            message.add("usernames", usernamesObj);
-            
-            // Only broadcast if we have valid users
-            if (usernamesObj.size() > 0) {
-                // Broadcast to all valid users in the session
-                String messageJson = gson.toJson(message);
-                for (String userId : session.getAllUsers()) {
-                    WebSocket conn = userConnections.get(userId);
-                    if (conn != null && conn.isOpen()) {
-                        conn.send(messageJson);
-                    }
-                }
-                
-                System.out.println("Broadcasted " + usernamesObj.size() + " usernames to session");
+        }
+        if (content == null || ContentHash.replace(baseHash, base, content, unchanged[0], unchanged[1]) != hash) {
+            metrics.increment("bus.patch_stale");
+            if (!session.isStale()) {
+                resyncFromBus(session);
+            }
+            return;
+        }
+        
+        // Renumbered for this copy, whose members hold its content versions
+        message.addProperty("baseVersion", session.getContentVersion());
+        session.patchDocumentContent(content, unchanged, hash, remoteCoveredSeq(session, message),
+                                     coveredUserOf(message), coveredClientSeqOf(message));
+        addContentVersion(message, session);
+        deliverToMembers(session, gson.toJson(message), null);
+    }
+    
+    /**
+     * Gets the last operation in this copy's log that content from another copy includes:
+     * the other copy says how many of its latest operations the content does not include,
+     * and those arrived here before the content did.
+     */
+    private static long remoteCoveredSeq(EditorSession session, JsonObject message) {
+        long latestSeq = session.getOperationLog().getLatestSeq();
+        long opsAfter = message.has("opsAfter") ? message.get("opsAfter").getAsLong() : 0;
+        return Math.max(0, latestSeq - opsAfter);
+    }
+    
+    /**
+     * Gets the user whose edits logged after it content from another copy holds, if any.
+     */
+    private static String coveredUserOf(JsonObject message) {
+        return message.has("coveredUserId") ? message.get("coveredUserId").getAsString() : null;
+    }
+    
+    /**
+     * Gets the last client sequence number of that user's edits the content holds.
+     */
+    private static long coveredClientSeqOf(JsonObject message) {
+        return message.has("coveredClientSeq") ? message.get("coveredClientSeq").getAsLong() : 0;
+    }
+    
+    /**
+     * Lists or removes a member of another process's copy of the session in this copy's
+     * presence, and tells the members here.
+     */
+    private void applyRemotePresence(EditorSession session, JsonObject message) {
+        String userId = message.get("userId").getAsString();
+        JsonObject delta;
+        if ("removed".equals(message.get("change").getAsString())) {
+            // Still a member here, as when they left one process's copy for this one's
+            delta = session.hasUser(userId) ? null : session.getPresence().remove(userId);
+        } else {
+            delta = session.getPresence().add(userId, message.get("username").getAsString(),
+                                              "editor".equals(message.get("role").getAsString()));
+        }
+        if (delta != null) {
+            deliverPresence(session, delta, null);
+        }
+    }
+    
+    /**
+     * Asks the other processes sharing the bus for the session held under a code: its codes,
+     * content, recent operations and members. Joins wait until an answer arrives or the sync
+     * timeout passes; a copy whose content fell behind keeps serving its members meanwhile.
+     * Runs on the session's executor.
+     */
+    private void requestBusSync(EditorSession session, String code) {
+        subscribeToBus(session);
+        if (session.isNew()) {
+            session.setSyncing(true);
+            ScheduledExecutorService ticker = presenceTicker;
+            if (ticker != null) {
+                ticker.schedule(() -> session.execute(() -> finishBusSync(session)), busSyncTimeoutMs, TimeUnit.MILLISECONDS);
             } else {
-                System.out.println("No valid users to broadcast usernames for");
+                session.execute(() -> finishBusSync(session));
             }
-        } catch (Exception e) {
-            System.err.println("Error broadcasting usernames: " + e.getMessage());
-            e.printStackTrace();
         }
+        JsonObject request = new JsonObject();
+        request.addProperty("type", "bus_sync_request");
+        request.addProperty("code", code);
+        sessionBus.publishRemote(List.of(code), gson.toJson(request));
+        metrics.increment("bus.sync_requests");
     }
-
+    
     /**
-     * Updates the list of active users in a session.
-     * This is more aggressively filtered to remove phantom users.
+     * Answers another process's request for this session's state, unless this copy is
+     * waiting for the same.
      */
-    private void broadcastPresenceUpdate(EditorSession session) {
-        if (session == null || session.isEmpty()) {
+    private void answerBusSync(EditorSession session) {
+        if (session.isSyncing() || session.isNew() || session.isStale()) {
             return;
         }
-        
-        JsonObject message = new JsonObject();
-        message.addProperty("type", "presence");
-        
-        // First run a cleanup to ensure we don't have phantom users
-        cleanupInactiveConnections();
-        
-        // Create a map of user IDs to usernames
-        Map<String, String> userMap = new HashMap<>();
-        
-        // Filter out inactive or suspicious users
-        Set<String> validUsers = new HashSet<>();
-        for (String userId : session.getAllUsers()) {
-            // Skip users without active connections
-            WebSocket conn = userConnections.get(userId);
-            if (conn == null || !conn.isOpen()) {
-                System.out.println("Skipping inactive user: " + userId);
-                continue;
-            }
-            
-            // Skip UUID-format users (containing hyphens)
-            if (userId.contains("-")) {
-                System.out.println("Skipping UUID-format user: " + userId);
-                continue;
-            }
-            
-            // Skip excessively long user IDs (MongoDB IDs are 24 chars)
-            if (userId.length() > 24) {
-                System.out.println("Skipping overly long user ID: " + userId);
-                continue;
-            }
-            
-            // Get username
-            String username = usernames.get(userId);
-            
-            // Filter out users with invalid usernames
-            if (username == null || username.isEmpty()) {
-                System.out.println("Skipping user with empty username: " + userId);
-                continue;
-            }
-            
-            // Skip users with UUID-like usernames
-            if (username.contains("-") && username.length() > 20) {
-                System.out.println("Skipping user with UUID-like username: " + username);
-                continue;
+        OperationLog operationLog = session.getOperationLog();
+        long snapshotSeq = session.getSnapshotSeq();
+        JsonArray ops = new JsonArray();
+        for (String op : operationLog.getSince(snapshotSeq)) {
+            ops.add(JsonParser.parseString(op));
+        }
+        
+        JsonObject state = new JsonObject();
+        state.addProperty("type", "bus_sync_state");
+        state.addProperty("editorCode", session.getEditorCode());
+        state.addProperty("viewerCode", session.getViewerCode());
+        state.addProperty("content", session.getDocumentContent());
+        state.addProperty("snapshotSeq", snapshotSeq);
+        state.add("ops", ops);
+        addSnapshotSender(state, session);
+        if (session.getDocumentId() != null) {
+            state.addProperty("documentId", session.getDocumentId());
+        }
+        state.add("presence", session.getPresence().snapshot());
+        sessionBus.publishRemote(session.getCodes(), gson.toJson(state));
+    }
+    
+    /**
+     * Takes on the state another process's copy of the session sent, if this copy asked for it.
+     * A new copy takes everything, including the session's codes, so that it shares the
+     * session with every copy whichever code it was joined by; a copy that fell behind only
+     * takes the content.
+     */
+    private void adoptBusSync(EditorSession session, JsonObject state) {
+        String content = state.get("content").getAsString();
+        long hash = session.hashOf(content);
+        
+        if (session.isStale() && !session.isSyncing()) {
+            // Numbered as the copy that answered numbers operations, from its snapshot on.
+            // Operations logged here that it had not logged yet when it answered come after
+            // its own, as they will there
+            session.setStale(false);
+            OperationLog operationLog = session.getOperationLog();
+            long snapshotSeq = state.get("snapshotSeq").getAsLong();
+            List<String> logged = operationLog.getSince(snapshotSeq);
+            operationLog.restartAt(snapshotSeq);
+            session.setDocumentContent(content, hash, snapshotSeq,
+                                       coveredUserOf(state), coveredClientSeqOf(state));
+            for (JsonElement op : state.getAsJsonArray("ops")) {
+                operationLog.append(op.getAsJsonObject());
             }
-            
-            // This user passed all filters
-            validUsers.add(userId);
-            
-            // Use a friendly format for the username
-            if (username == null || username.isEmpty()) {
-                username = "User " + userId.substring(0, Math.min(6, userId.length()));
+            for (String op : logged) {
+                logIfMissing(operationLog, JsonParser.parseString(op).getAsJsonObject());
             }
-            
-            userMap.put(userId, username);
+            logUnlogged(session);
+            JsonObject sync = new JsonObject();
+            sync.addProperty("type", "document_sync");
+            sync.addProperty("content", content);
+            addContentVersion(sync, session);
+            deliverToMembers(session, gson.toJson(sync), null);
+            metrics.increment("bus.resynced");
+            return;
+        }
+        if (!session.isSyncing()) {
+            return;
         }
         
-        System.out.println("Broadcasting presence update for session " + session.getEditorCode() + 
-                           " with " + validUsers.size() + " valid users");
-        
-        // Add the user map to the message
-        message.add("users", gson.toJsonTree(userMap));
+        // Register under both of the session's codes, here and on the bus
+        String editorCode = state.get("editorCode").getAsString();
+        String viewerCode = state.get("viewerCode").getAsString();
+        session.setCodes(editorCode, viewerCode);
+        for (String code : session.getCodes()) {
+            sessionsByCode.putIfAbsent(code, session);
+        }
+        subscribeToBus(session);
         
-        // Also include the specific role information
-        JsonArray editorsArray = new JsonArray();
-        for (String editor : session.getEditors()) {
-            // Only include editors who passed our filtering
-            if (validUsers.contains(editor)) {
-                editorsArray.add(editor);
-            }
+        // Same numbering as the copy that answered, from its snapshot on
+        OperationLog operationLog = session.getOperationLog();
+        operationLog.skipTo(state.get("snapshotSeq").getAsLong());
+        session.setDocumentContent(content, hash, operationLog.getLatestSeq(),
+                                   coveredUserOf(state), coveredClientSeqOf(state));
+        for (JsonElement op : state.getAsJsonArray("ops")) {
+            operationLog.append(op.getAsJsonObject());
         }
-        message.add("editors", editorsArray);
+        adoptDocumentId(session, state);
         
-        JsonArray viewersArray = new JsonArray();
-        for (String viewer : session.getViewers()) {
-            // Only include viewers who passed our filtering
-            if (validUsers.contains(viewer)) {
-                viewersArray.add(viewer);
-            }
+        JsonObject presence = state.getAsJsonObject("presence");
+        Set<String> editors = new HashSet<>();
+        for (JsonElement editor : presence.getAsJsonArray("editors")) {
+            editors.add(editor.getAsString());
+        }
+        for (Map.Entry<String, JsonElement> user : presence.getAsJsonObject("users").entrySet()) {
+            session.getPresence().add(user.getKey(), user.getValue().getAsString(), editors.contains(user.getKey()));
         }
-        message.add("viewers", viewersArray);
         
-        // Send to all filtered users in the session
-        for (String userId : validUsers) {
-            WebSocket conn = userConnections.get(userId);
-            if (conn != null && conn.isOpen()) {
-                try {
-                    conn.send(gson.toJson(message));
-                } catch (Exception e) {
-                    System.err.println("Error sending presence update to " + userId + ": " + e.getMessage());
-                }
+        session.markJoined();
+        metrics.increment("bus.synced");
+        finishBusSync(session);
+    }
+    
+    /**
+     * Ends a new copy's wait for the session's state, with or without an answer, and handles
+     * the joins that waited for it.
+     */
+    private void finishBusSync(EditorSession session) {
+        if (!session.isSyncing()) {
+            return;
+        }
+        session.setSyncing(false);
+        for (PendingJoin join : session.drainDeferredJoins()) {
+            ConnectionState state = join.conn.getAttachment();
+            if (join.conn.isOpen() && state != null && state.session == session) {
+                handleJoinSession(join.conn, join.message, session);
             }
         }
-        
-        // Update user lists in the session object to match what we just sent
-        session.syncUserLists(validUsers);
-        
-        // Log the current users for debugging
-        System.out.println("Session " + session.getEditorCode() + " has users: " + userMap);
     }
     
-    private void handleInsert(WebSocket conn, JsonObject message) {
+    private void handleInsert(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         if (userId == null) {
             sendError(conn, "Not registered");
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             sendError(conn, "Not in a session");
             return;
         }
@@ -753,19 +1682,24 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        // Forward the insert operation to all users in the session
-        broadcastToSession(session, message, userId);
+        if (!acceptClientSeq(session, userId, message)) {
+            return;
+        }
+        
+        // Sequence the insert and forward it to all users in the session
+        traceFanout(message);
+        addBusOrigin(session, message);
+        broadcastToSession(session, session.getOperationLog().append(message), userId);
     }
     
-    private void handleDelete(WebSocket conn, JsonObject message) {
+    private void handleDelete(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         if (userId == null) {
             sendError(conn, "Not registered");
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             sendError(conn, "Not in a session");
             return;
         }
@@ -776,15 +1710,83 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        // Forward the delete operation to all users in the session
-        broadcastToSession(session, message, userId);
+        if (!acceptClientSeq(session, userId, message)) {
+            return;
+        }
+        
+        // Sequence the delete and forward it to all users in the session
+        traceFanout(message);
+        addBusOrigin(session, message);
+        broadcastToSession(session, session.getOperationLog().append(message), userId);
+    }
+    
+    /**
+     * Names this process in an operation shared with other processes' copies of the session,
+     * which log it under the number it is given here.
+     */
+    private void addBusOrigin(EditorSession session, JsonObject message) {
+        if (session.getBusSubscriber() != null && sessionBus.isShared()) {
+            message.addProperty("origin", busOrigin);
+        }
+    }
+    
+    /**
+     * Stamps a traced edit with the time it is fanned out, and records its hops so far.
+     * Runs on the session's executor.
+     */
+    private void traceFanout(JsonObject message) {
+        if (!message.has(LatencyTrace.RECEIVED_AT)) {
+            return;
+        }
+        long fanoutAt = LatencyTrace.nowMicros();
+        long receivedAt = message.get(LatencyTrace.RECEIVED_AT).getAsLong();
+        message.addProperty(LatencyTrace.FANOUT_AT, fanoutAt);
+        if (message.has(LatencyTrace.SENT_AT)) {
+            latencyTrace.record(LatencyTrace.HOP_UPLINK, receivedAt - message.get(LatencyTrace.SENT_AT).getAsLong());
+        }
+        latencyTrace.record(LatencyTrace.HOP_SERVER, fanoutAt - receivedAt);
+    }
+    
+    /**
+     * Checks an operation's client sequence number against the last one applied for the
+     * sender. An operation resent after a reconnect that we already applied is dropped.
+     * Once the client has told us where its numbering starts, operations are applied only
+     * in order: one that follows a gap, left by an earlier one being shed, is dropped as
+     * well, so that the acknowledgement never covers the missing one. The client sends
+     * everything unacknowledged again after the slow_down that came with the shedding.
+     * Either way the last one applied is acknowledged with the next presence tick.
+     * Runs on the session's executor.
+     * @return true if the operation is new and should be applied.
+     */
+    private boolean acceptClientSeq(EditorSession session, String userId, JsonObject message) {
+        if (!message.has("clientSeq")) {
+            return true;
+        }
+        long clientSeq = message.get("clientSeq").getAsLong();
+        ResumeState resume = session.getResumeState(userId);
+        if (resume == null) {
+            return true;
+        }
+        if (clientSeq <= resume.appliedClientSeq) {
+            metrics.increment("resume.duplicates");
+            session.putPendingAck(userId, resume.appliedClientSeq);
+            return false;
+        }
+        if (resume.inOrder && clientSeq > resume.appliedClientSeq + 1) {
+            metrics.increment("resume.out_of_order");
+            session.putPendingAck(userId, resume.appliedClientSeq);
+            return false;
+        }
+        resume.appliedClientSeq = clientSeq;
+        session.putPendingAck(userId, clientSeq);
+        return true;
     }
     
     /**
      * Handles cursor movement from a client.
-     * Optimized for high-frequency cursor updates.
+     * Only the latest position per user is kept; the presence tick broadcasts it.
      */
-    private void handleCursorMove(WebSocket conn, JsonObject message) {
+    private void handleCursorMove(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         int position = message.get("position").getAsInt();
         
@@ -793,49 +1795,76 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             sendError(conn, "Not in a session");
             return;
         }
         
-        // Store the cursor position
-        Integer oldPosition = userCursorPositions.put(userId, position);
+        // Store the cursor position; later moves in the same tick overwrite earlier ones
+        session.putPendingCursor(userId, position);
+    }
+    
+    private void handleDocumentUpdate(WebSocket conn, JsonObject message, EditorSession session) {
+        String userId = connectionToUserId.get(conn);
+        if (userId == null) {
+            sendError(conn, "Not registered");
+            return;
+        }
         
-        // If position hasn't changed significantly (within 5 characters), don't broadcast
-        // This reduces network traffic for minor cursor movements
-        if (oldPosition != null && Math.abs(oldPosition - position) < 5) {
+        if (session == null || !session.hasUser(userId)) {
+            sendError(conn, "Not in a session");
             return;
         }
         
-        // Forward the cursor move to all users in the session except the sender
-        // We'll optimize to reduce network traffic
-        Set<String> targetUsers = session.getAllUsers();
-        if (targetUsers.size() > 1) { // Only broadcast if there are other users
-            for (String otherUserId : targetUsers) {
-            if (!otherUserId.equals(userId)) {
-                WebSocket otherConn = userConnections.get(otherUserId);
-                if (otherConn != null && otherConn.isOpen()) {
-                        try {
-                    otherConn.send(gson.toJson(message));
-                        } catch (Exception e) {
-                            System.err.println("Error sending cursor update to " + otherUserId + ": " + e.getMessage());
-                        }
-                    }
-                }
-            }
+        // Only editors can update document content
+        if (!session.isEditor(userId)) {
+            sendError(conn, "Not authorized to edit");
+            return;
+        }
+        
+        // Update document content in session
+        String content = message.get("content").getAsString();
+        long hash = contentHashOf(message, content, session);
+        
+        // Check if content has changed
+        if (session.hasContent(content.length(), hash)) {
+            log.debug("Document update ignored - content unchanged");
+            sendDocumentAck(conn, session);
+            return;
         }
+        
+        session.updateDocument(content, hash, coveredSeqOf(message, session), userId, lastClientSeqOf(message));
+        log.debugSampled("document_update", () -> "Document updated by user " + userId + " (" + content.length() + " characters)");
+        adoptDocumentId(session, message);
+        persist(session);
+        sendDocumentAck(conn, session);
+        
+        // Broadcast to all users in the session except sender
+        JsonObject broadcastMsg = new JsonObject();
+        broadcastMsg.addProperty("type", "document_sync");
+        broadcastMsg.addProperty("content", content);
+        broadcastMsg.addProperty("senderId", userId);
+        addContentVersion(broadcastMsg, session);
+        addCoverage(broadcastMsg, session);
+        
+        broadcastToSession(session, broadcastMsg, userId);
     }
     
-    private void handleDocumentUpdate(WebSocket conn, JsonObject message) {
+    /**
+     * Handles a document update sent as a patch against a content version the client
+     * had acknowledged. The patch is applied to the session's content and relayed as is,
+     * so a small edit to a large document stays small on the wire in both directions.
+     * If the session has moved past the patch's base version, the client is told to send
+     * the full content instead.
+     */
+    private void handleDocumentPatch(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         if (userId == null) {
             sendError(conn, "Not registered");
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             sendError(conn, "Not in a session");
             return;
         }
@@ -846,55 +1875,360 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        // Update document content in session
-        String content = message.get("content").getAsString();
+        long baseVersion = message.get("baseVersion").getAsLong();
+        JsonArray patch = message.getAsJsonArray("patch");
+        long hash = message.get("hash").getAsLong();
         
-        // Check if content has changed
-        String currentContent = session.getDocument();
-        if (content.equals(currentContent)) {
-            System.out.println("Document update ignored - content unchanged");
+        String base = session.getDocumentContent();
+        String content = null;
+        int[] unchanged = null;
+        if (baseVersion == session.getContentVersion()) {
+            try {
+                content = TextPatch.apply(base, patch);
+                unchanged = TextPatch.unchangedEnds(patch, base.length());
+            } catch (RuntimeException e) {
+                log.warn("Malformed document patch from user " + userId + ": " + e.getMessage());
+            }
+        }
+        
+        // The base moved on, or the result is not what the client has; fall back to full content.
+        // Only the patched region is hashed, from the hash of the base
+        if (content == null
+                || ContentHash.replace(session.getContentHash(), base, content, unchanged[0], unchanged[1]) != hash) {
+            metrics.increment("patch.rejected");
+            JsonObject rejected = new JsonObject();
+            rejected.addProperty("type", "document_patch_rejected");
+            rejected.addProperty("baseVersion", baseVersion);
+            rejected.addProperty("version", session.getContentVersion());
+            send(conn, gson.toJson(rejected));
+            return;
+        }
+        
+        if (session.hasContent(content.length(), hash)) {
+            sendDocumentAck(conn, session);
+            return;
+        }
+        
+        long baseHash = session.getContentHash();
+        session.patchDocumentContent(content, unchanged, hash, coveredSeqOf(message, session), userId, lastClientSeqOf(message));
+        metrics.increment("patch.applied");
+        adoptDocumentId(session, message);
+        persist(session);
+        sendDocumentAck(conn, session);
+        
+        // Relay the patch; members holding the base version apply it, the rest ask for a resync
+        JsonObject relayMsg = new JsonObject();
+        relayMsg.addProperty("type", "document_patch");
+        relayMsg.addProperty("baseVersion", baseVersion);
+        relayMsg.add("patch", patch);
+        relayMsg.addProperty("senderId", userId);
+        relayMsg.addProperty("baseHash", baseHash);
+        addContentVersion(relayMsg, session);
+        addCoverage(relayMsg, session);
+        if (message.has("highPriority") && message.get("highPriority").getAsBoolean()) {
+            relayMsg.addProperty("highPriority", true);
+            relayMsg.addProperty("timestamp", System.currentTimeMillis());
+        }
+        if (message.has("operation")) {
+            relayMsg.add("operation", message.get("operation"));
+        }
+        
+        broadcastToSession(session, relayMsg, userId);
+    }
+    
+    /**
+     * Tells the sender of a document update which content version now holds its content,
+     * which it uses as the base of its next patch.
+     */
+    private void sendDocumentAck(WebSocket conn, EditorSession session) {
+        JsonObject ack = new JsonObject();
+        ack.addProperty("type", "document_ack");
+        addContentVersion(ack, session);
+        send(conn, gson.toJson(ack));
+    }
+    
+    /**
+     * Gets the last logged operation the content of a document update includes: the last one
+     * its sender had seen when it sent the content. Operations logged after that may still have
+     * been on their way to the sender, so are not in the content.
+     * @return The sequence number, or the latest one for clients that do not report it.
+     */
+    private static long coveredSeqOf(JsonObject message, EditorSession session) {
+        long latestSeq = session.getOperationLog().getLatestSeq();
+        if (message.has("lastSeq") && !message.get("lastSeq").isJsonNull()) {
+            return Math.min(latestSeq, message.get("lastSeq").getAsLong());
+        }
+        return latestSeq;
+    }
+    
+    /**
+     * Gets the client sequence number of the sender's last edit the content of a document
+     * update includes. The sender's edits up to it are in the content even when they are
+     * logged after {@link #coveredSeqOf}, having still been on their way.
+     * @return The client sequence number, or 0 for clients that do not report it.
+     */
+    private static long lastClientSeqOf(JsonObject message) {
+        if (message.has("lastClientSeq") && !message.get("lastClientSeq").isJsonNull()) {
+            return message.get("lastClientSeq").getAsLong();
+        }
+        return 0;
+    }
+    
+    /**
+     * Gets the {@link ContentHash} of the content in a document update. The hash is computed
+     * here rather than taken from the client: it is stored with the session and checked by
+     * every other member, so a client that reports a wrong one would otherwise make them all
+     * resync. A reported hash that does not match is counted.
+     */
+    private long contentHashOf(JsonObject message, String content, EditorSession session) {
+        long hash = session.hashOf(content);
+        if (message.has("hash") && !message.get("hash").isJsonNull() && message.get("hash").getAsLong() != hash) {
+            metrics.increment("patch.hash_mismatch");
+            log.debug("Document update reported a hash that does not match its content");
+        }
+        return hash;
+    }
+    
+    /**
+     * Adds the session's content version and hash to a message carrying the document content,
+     * so clients can skip content they already have.
+     */
+    private static void addContentVersion(JsonObject message, EditorSession session) {
+        message.addProperty("version", session.getContentVersion());
+        message.addProperty("hash", session.getContentHash());
+    }
+    
+    /**
+     * Adds how many of the latest logged operations the session's content does not include,
+     * which another process's copy of the session needs to log the content at the right place.
+     */
+    private static void addCoverage(JsonObject message, EditorSession session) {
+        message.addProperty("opsAfter", session.getOperationLog().getLatestSeq() - session.getSnapshotSeq());
+        addSnapshotSender(message, session);
+    }
+    
+    /**
+     * Adds the user whose edits logged after the session's snapshot it already holds, and
+     * up to which of their client sequence numbers, if any.
+     */
+    private static void addSnapshotSender(JsonObject message, EditorSession session) {
+        if (session.getSnapshotUserId() != null) {
+            message.addProperty("coveredUserId", session.getSnapshotUserId());
+            message.addProperty("coveredClientSeq", session.getSnapshotClientSeq());
+        }
+    }
+    
+    /**
+     * Links a session to the stored document named in a client message, if it has none yet.
+     */
+    private static void adoptDocumentId(EditorSession session, JsonObject message) {
+        if (session.getDocumentId() == null && message.has("documentId") && !message.get("documentId").isJsonNull()) {
+            session.setDocumentId(message.get("documentId").getAsString());
+        }
+    }
+    
+    /**
+     * Queues the session's current content to be written to its stored document.
+     */
+    private void persist(EditorSession session) {
+        String documentId = session.getDocumentId();
+        if (documentId != null) {
+            persister.markDirty(documentId, session.getDocumentContent(), session.getEditorCode(), session.getViewerCode());
+        }
+    }
+    
+    /**
+     * Handles an editor's request to save the session's document. The content, as of this
+     * request, is written with the session's next flush and the editor is told the outcome
+     * once the write is done: saved, or why not.
+     */
+    private void handleSaveDocument(WebSocket conn, JsonObject message, EditorSession session) {
+        String userId = connectionToUserId.get(conn);
+        long requestId = message.has("requestId") ? message.get("requestId").getAsLong() : 0;
+        if (userId == null || session == null || !session.hasUser(userId)) {
+            sendSaveResult(conn, requestId, false, "Not in a session");
+            return;
+        }
+        if (!session.isEditor(userId)) {
+            sendSaveResult(conn, requestId, false, "Only editors can save the document");
+            return;
+        }
+        
+        adoptDocumentId(session, message);
+        String documentId = session.getDocumentId();
+        if (documentId == null) {
+            sendSaveResult(conn, requestId, false, "The session has no stored document");
+            return;
+        }
+        persister.markDirty(documentId, session.getDocumentContent(), session.getEditorCode(), session.getViewerCode(),
+                saved -> sendSaveResult(conn, requestId, saved, saved ? null : "The database write failed"));
+    }
+    
+    private void sendSaveResult(WebSocket conn, long requestId, boolean saved, String reason) {
+        JsonObject result = new JsonObject();
+        result.addProperty("type", "save_result");
+        result.addProperty("requestId", requestId);
+        result.addProperty("saved", saved);
+        if (reason != null) {
+            result.addProperty("reason", reason);
+        }
+        send(conn, gson.toJson(result));
+        metrics.increment(saved ? "save.confirmed" : "save.failed");
+    }
+    
+    private void broadcastToSession(EditorSession session, JsonObject message, String excludeUserId) {
+        broadcastToSession(session, gson.toJson(message), excludeUserId);
+    }
+    
+    private void broadcastToSession(EditorSession session, String messageJson, String excludeUserId) {
+        if (session.getBusSubscriber() == null) {
+            // Not on the bus until its first member joins
+            deliverToMembers(session, messageJson, excludeUserId);
+            return;
+        }
+        sessionBus.publish(session.getCodes(), messageJson, excludeUserId);
+    }
+    
+    /**
+     * Sends a message to this process's members of a session. Runs on the session's executor.
+     */
+    private void deliverToMembers(EditorSession session, String messageJson, String excludeUserId) {
+        NetworkEvents.FanOut event = new NetworkEvents.FanOut();
+        event.begin();
+        long startNanos = System.nanoTime();
+        int recipients = 0;
+        SnapshotStream stream = largeDocumentSync(messageJson);
+        for (Map.Entry<String, WebSocket> member : session.getConnections().entrySet()) {
+            if (excludeUserId == null || !member.getKey().equals(excludeUserId)) {
+                WebSocket conn = member.getValue();
+                if (!conn.isOpen()) {
+                    continue;
+                }
+                if (stream != null) {
+                    sendStream(conn, stream.frames());
+                } else {
+                    send(conn, messageJson);
+                }
+                recipients++;
+            }
+        }
+        metrics.observe("fanout.recipients", recipients, ServerMetrics.SIZE_BUCKETS);
+        metrics.recordLatency("fanout.seconds", System.nanoTime() - startNanos);
+        if (event.shouldCommit()) {
+            event.recipients = recipients;
+            event.messageSize = messageJson.length();
+            event.streamed = stream != null;
+            event.commit();
+        }
+    }
+    
+    /**
+     * Splits a broadcast document sync into a snapshot stream if its content is too large
+     * to send as one message. The bus carries the message whole; it is split here, once,
+     * for all of this process's members.
+     * @return The stream, or null if the message is to be sent as it is.
+     */
+    private SnapshotStream largeDocumentSync(String messageJson) {
+        if (!SnapshotStream.needsStreaming(messageJson) || !messageJson.startsWith("{\"type\":\"document_sync\"")) {
+            return null;
+        }
+        JsonObject message = gson.fromJson(messageJson, JsonObject.class);
+        if (!message.has("content") || !SnapshotStream.needsStreaming(message.get("content").getAsString())) {
+            return null;
+        }
+        String content = message.remove("content").getAsString();
+        metrics.increment("snapshot.streams");
+        return new SnapshotStream(message, "content", content);
+    }
+    
+    /**
+     * Sends a message carrying document content in the given field, streaming the content
+     * in chunks if it is too large to send as one message.
+     */
+    private void sendDocument(WebSocket conn, JsonObject message, String field) {
+        if (!message.has(field) || !SnapshotStream.needsStreaming(message.get(field).getAsString())) {
+            send(conn, gson.toJson(message));
+            return;
+        }
+        String content = message.remove(field).getAsString();
+        metrics.increment("snapshot.streams");
+        sendStream(conn, new SnapshotStream(message, field, content).frames());
+    }
+    
+    private void sendStream(WebSocket conn, Iterator<String> frames) {
+        OutboundQueue queue = queueOf(conn);
+        if (queue != null) {
+            queue.sendStream(frames);
             return;
         }
+        while (frames.hasNext() && conn.isOpen()) {
+            conn.send(frames.next());
+        }
+    }
+    
+    /**
+     * Sends a presence delta to every session member except one, in this process and in
+     * the others sharing the session bus.
+     */
+    private void broadcastPresence(EditorSession session, JsonObject delta, String excludeUserId) {
+        deliverPresence(session, delta, excludeUserId);
         
-        session.updateDocument(content);
-        System.out.println("Document updated by user " + userId + " (" + content.length() + " characters)");
-        
-        // Broadcast to all users in the session except sender
-        JsonObject broadcastMsg = new JsonObject();
-        broadcastMsg.addProperty("type", "document_sync");
-        broadcastMsg.addProperty("content", content);
-        broadcastMsg.addProperty("senderId", userId);
-        
-        for (String user : session.getUsers()) {
-            if (!user.equals(userId)) {  // Skip the sender
-                WebSocket userConn = userConnections.get(user);
-                if (userConn != null && userConn.isOpen()) {
-                    try {
-                        userConn.send(gson.toJson(broadcastMsg));
-                    } catch (Exception e) {
-                        System.err.println("Error sending document update to user " + user + ": " + e.getMessage());
+        // Other processes' copies of the session list the user too
+        if (session.getBusSubscriber() != null && sessionBus.isShared()) {
+            JsonObject shared = delta.deepCopy();
+            shared.addProperty("type", "bus_presence");
+            sessionBus.publishRemote(session.getCodes(), gson.toJson(shared));
+        }
+    }
+    
+    /**
+     * Sends a presence delta to this process's members of a session, letting backed-up
+     * connections replace queued deltas with a single fresh snapshot.
+     */
+    private void deliverPresence(EditorSession session, JsonObject delta, String excludeUserId) {
+        String deltaJson = gson.toJson(delta);
+        Supplier<String> snapshotSupplier = () -> gson.toJson(session.getPresence().snapshot());
+        for (Map.Entry<String, WebSocket> member : session.getConnections().entrySet()) {
+            if (!member.getKey().equals(excludeUserId)) {
+                WebSocket conn = member.getValue();
+                if (conn.isOpen()) {
+                    OutboundQueue queue = queueOf(conn);
+                    if (queue != null) {
+                        queue.sendPresence(deltaJson, snapshotSupplier);
+                    } else {
+                        conn.send(deltaJson);
                     }
                 }
             }
         }
+        metrics.increment("presence.deltas");
     }
     
-    private void broadcastToSession(EditorSession session, JsonObject message, String excludeUserId) {
-        for (String userId : session.getAllUsers()) {
-            if (!userId.equals(excludeUserId)) {
-                WebSocket conn = userConnections.get(userId);
-                if (conn != null && conn.isOpen()) {
-                    conn.send(gson.toJson(message));
-                }
-            }
+    /**
+     * Sends a message to a connection through its outbound queue.
+     */
+    private void send(WebSocket conn, String json) {
+        OutboundQueue queue = queueOf(conn);
+        if (queue != null) {
+            queue.send(json);
+        } else if (conn.isOpen()) {
+            conn.send(json);
         }
     }
     
+    /**
+     * Gets a connection's outbound queue from its attached state.
+     */
+    private static OutboundQueue queueOf(WebSocket conn) {
+        ConnectionState state = conn.getAttachment();
+        return state != null ? state.queue : null;
+    }
+    
     private void sendError(WebSocket conn, String errorMessage) {
         JsonObject message = new JsonObject();
         message.addProperty("type", "error");
         message.addProperty("message", errorMessage);
-        conn.send(gson.toJson(message));
+        send(conn, gson.toJson(message));
     }
     
     private String generateUniqueCode(String prefix) {
@@ -912,7 +2246,7 @@ public class CollaborativeEditorServer extends WebSocketServer {
     /**
      * Handles a sync confirmation message from a client.
      */
-    private void handleSyncConfirmation(WebSocket conn, JsonObject message) {
+    private void handleSyncConfirmation(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         if (userId == null) {
             sendError(conn, "Not registered");
@@ -920,40 +2254,159 @@ public class CollaborativeEditorServer extends WebSocketServer {
         }
         
         int receivedLength = message.get("receivedLength").getAsInt();
-        System.out.println("User " + userId + " confirmed document sync with " + receivedLength + " characters");
+        log.debugSampled("sync_confirmation", () -> "User " + userId + " confirmed document sync with " + receivedLength + " characters");
         
         // Check if the user is in a session
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
-            System.out.println("Warning: Sync confirmation from user not in a session: " + userId);
+        if (session == null || !session.hasUser(userId)) {
+            log.warn("Sync confirmation from user not in a session: " + userId);
             return;
         }
         
         // Check if the document length matches what we have
         String docContent = session.getDocument();
         if (docContent != null && docContent.length() != receivedLength) {
-            System.out.println("Document length mismatch: server=" + docContent.length() + ", client=" + receivedLength);
-            
-            // Send a new document sync to correct the mismatch
-            JsonObject syncMessage = new JsonObject();
-            syncMessage.addProperty("type", "document_sync");
-            syncMessage.addProperty("content", docContent);
-            syncMessage.addProperty("highPriority", true);  // Mark as high priority
+            log.info("Document length mismatch: server=" + docContent.length() + ", client=" + receivedLength);
             
-            try {
-                conn.send(gson.toJson(syncMessage));
-                System.out.println("Sent corrective document sync to user " + userId);
-            } catch (Exception e) {
-                System.err.println("Error sending corrective sync: " + e.getMessage());
+            // Have the client compare Merkle trees with us, which repairs only what differs
+            JsonObject checkMessage = new JsonObject();
+            checkMessage.addProperty("type", "merkle_check");
+            send(conn, gson.toJson(checkMessage));
+        }
+    }
+    
+    /**
+     * Handles a client's Merkle root hash, the start of an anti-entropy exchange.
+     * The comparison only means something when the client holds the current content
+     * version and its text is at the seq our tree was built at, the snapshot seq, so that
+     * both copies should be the same text; operations logged since do not matter as long
+     * as the client has not applied them yet. Otherwise the client is told to try again
+     * later. If the roots differ, the client gets the top of our tree to start descending from.
+     */
+    private void handleMerkleRoot(WebSocket conn, JsonObject message, EditorSession session) {
+        String userId = connectionToUserId.get(conn);
+        if (userId == null) {
+            sendError(conn, "Not registered");
+            return;
+        }
+        
+        if (session == null || !session.hasUser(userId)) {
+            sendError(conn, "Not in a session");
+            return;
+        }
+        
+        metrics.increment("antientropy.checks");
+        long version = message.get("version").getAsLong();
+        String status = null;
+        if (version != session.getContentVersion()) {
+            status = "stale";
+        } else if (message.get("lastSeq").getAsLong() != session.getSnapshotSeq()) {
+            status = "busy";
+        } else if (message.get("root").getAsLong() == session.getMerkleTree().getRootHash()) {
+            status = "match";
+        }
+        
+        if (status != null) {
+            metrics.increment("antientropy." + status);
+            JsonObject statusMsg = new JsonObject();
+            statusMsg.addProperty("type", "merkle_status");
+            statusMsg.addProperty("status", status);
+            statusMsg.addProperty("version", session.getContentVersion());
+            send(conn, gson.toJson(statusMsg));
+            return;
+        }
+        
+        metrics.increment("antientropy.mismatch");
+        log.info("Document of user " + userId + " differs from version " + version + ", comparing trees");
+        MerkleTree.Node root = session.getMerkleTree().getRoot();
+        List<Long> rootOnly = Collections.singletonList(root.getHash());
+        sendMerkleNodes(conn, session, root.isBlock() ? Collections.emptyList() : rootOnly,
+                        root.isBlock() ? rootOnly : Collections.emptyList());
+    }
+    
+    /**
+     * Handles a client descending into the parts of our Merkle tree it does not have.
+     */
+    private void handleMerkleRequest(WebSocket conn, JsonObject message, EditorSession session) {
+        String userId = connectionToUserId.get(conn);
+        if (userId == null || session == null || !session.hasUser(userId)) {
+            return;
+        }
+        
+        if (message.get("version").getAsLong() != session.getContentVersion()) {
+            // The content changed under the exchange; the client starts over later
+            metrics.increment("antientropy.stale");
+            JsonObject statusMsg = new JsonObject();
+            statusMsg.addProperty("type", "merkle_status");
+            statusMsg.addProperty("status", "stale");
+            statusMsg.addProperty("version", session.getContentVersion());
+            send(conn, gson.toJson(statusMsg));
+            return;
+        }
+        
+        List<Long> expand = new ArrayList<>();
+        for (JsonElement hash : message.getAsJsonArray("expand")) {
+            expand.add(hash.getAsLong());
+        }
+        List<Long> fetch = new ArrayList<>();
+        for (JsonElement hash : message.getAsJsonArray("fetch")) {
+            fetch.add(hash.getAsLong());
+        }
+        sendMerkleNodes(conn, session, expand, fetch);
+    }
+    
+    /**
+     * Sends the children of the requested nodes of the session's Merkle tree, each as
+     * {hash, length, 1 if a block}, and the text of the requested blocks.
+     */
+    private void sendMerkleNodes(WebSocket conn, EditorSession session, List<Long> expand, List<Long> fetch) {
+        MerkleTree tree = session.getMerkleTree();
+        
+        JsonObject nodes = new JsonObject();
+        for (long hash : expand) {
+            MerkleTree.Node node = tree.getNode(hash);
+            if (node == null || node.isBlock()) {
+                continue;
+            }
+            JsonArray children = new JsonArray();
+            for (MerkleTree.Node child : node.getChildren()) {
+                JsonArray entry = new JsonArray();
+                entry.add(child.getHash());
+                entry.add(child.getLength());
+                entry.add(child.isBlock() ? 1 : 0);
+                children.add(entry);
+            }
+            nodes.add(Long.toString(hash), children);
+        }
+        
+        JsonObject blocks = new JsonObject();
+        long blockChars = 0;
+        for (long hash : fetch) {
+            MerkleTree.Node node = tree.getNode(hash);
+            if (node != null && node.isBlock()) {
+                String text = tree.getText(node);
+                blocks.addProperty(Long.toString(hash), text);
+                blockChars += text.length();
             }
         }
+        metrics.add("antientropy.nodes_sent", nodes.size());
+        metrics.add("antientropy.block_chars_sent", blockChars);
+        
+        JsonObject response = new JsonObject();
+        response.addProperty("type", "merkle_nodes");
+        response.addProperty("root", tree.getRootHash());
+        response.addProperty("rootBlock", tree.getRoot().isBlock());
+        addContentVersion(response, session);
+        response.addProperty("length", tree.getLength());
+        response.add("nodes", nodes);
+        response.add("blocks", blocks);
+        send(conn, gson.toJson(response));
     }
     
     /**
      * Handles a specialized instant document update.
      * This provides faster synchronization than regular document updates.
      */
-    private void handleInstantDocumentUpdate(WebSocket conn, JsonObject message) {
+    private void handleInstantDocumentUpdate(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
         if (userId == null) {
@@ -961,8 +2414,7 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             sendError(conn, "Not in a session");
             return;
         }
@@ -975,16 +2427,20 @@ public class CollaborativeEditorServer extends WebSocketServer {
         
         // Immediately update the session's document content
         String content = message.get("content").getAsString();
+        long hash = contentHashOf(message, content, session);
         
         // Add a uniqueness check to prevent duplicate updates
-        String currentContent = session.getDocument();
-        if (content.equals(currentContent)) {
-            System.out.println("Ignoring duplicate document update with same content");
+        if (session.hasContent(content.length(), hash)) {
+            log.debug("Ignoring duplicate document update with same content");
+            sendDocumentAck(conn, session);
             return;
         }
         
-        session.setDocumentContent(content);
-        System.out.println("Instant document update from user " + userId + " (" + content.length() + " chars)");
+        session.setDocumentContent(content, hash, coveredSeqOf(message, session), userId, lastClientSeqOf(message));
+        log.debugSampled("instant_document_update", () -> "Instant document update from user " + userId + " (" + content.length() + " chars)");
+        adoptDocumentId(session, message);
+        persist(session);
+        sendDocumentAck(conn, session);
         
         // Forward to all other users in session with high priority
         JsonObject forwardMsg = new JsonObject();
@@ -992,6 +2448,8 @@ public class CollaborativeEditorServer extends WebSocketServer {
         forwardMsg.addProperty("content", content);
         forwardMsg.addProperty("highPriority", true);
         forwardMsg.addProperty("timestamp", System.currentTimeMillis()); // Add timestamp for deduplication
+        addContentVersion(forwardMsg, session);
+        addCoverage(forwardMsg, session);
         
         // Get the operation type (undo/redo)
         String operation = message.has("operation") ? message.get("operation").getAsString() : "";
@@ -1000,20 +2458,13 @@ public class CollaborativeEditorServer extends WebSocketServer {
         }
         
         // Send to all other users in session
-        for (String otherUserId : session.getAllUsers()) {
-            if (!otherUserId.equals(userId)) {
-                WebSocket otherConn = userConnections.get(otherUserId);
-                if (otherConn != null && otherConn.isOpen()) {
-                    otherConn.send(gson.toJson(forwardMsg));
-                }
-            }
-        }
+        broadcastToSession(session, forwardMsg, userId);
     }
     
     /**
      * Handles an undo operation.
      */
-    private void handleUndo(WebSocket conn, JsonObject message) {
+    private void handleUndo(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
         if (userId == null) {
@@ -1021,29 +2472,25 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             sendError(conn, "Not in a session");
             return;
         }
         
+        if (!acceptClientSeq(session, userId, message)) {
+            return;
+        }
+        
         // Forward to all other users in session
         message.addProperty("forwardedByServer", true);
         
-        for (String otherUserId : session.getAllUsers()) {
-            if (!otherUserId.equals(userId)) {
-                WebSocket otherConn = userConnections.get(otherUserId);
-                if (otherConn != null && otherConn.isOpen()) {
-                    otherConn.send(gson.toJson(message));
-                }
-            }
-        }
+        broadcastToSession(session, message, userId);
     }
     
     /**
      * Handles a redo operation.
      */
-    private void handleRedo(WebSocket conn, JsonObject message) {
+    private void handleRedo(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
         if (userId == null) {
@@ -1051,29 +2498,25 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             sendError(conn, "Not in a session");
             return;
         }
         
+        if (!acceptClientSeq(session, userId, message)) {
+            return;
+        }
+        
         // Forward to all other users in session
         message.addProperty("forwardedByServer", true);
         
-        for (String otherUserId : session.getAllUsers()) {
-            if (!otherUserId.equals(userId)) {
-                WebSocket otherConn = userConnections.get(otherUserId);
-                if (otherConn != null && otherConn.isOpen()) {
-                    otherConn.send(gson.toJson(message));
-                }
-            }
-        }
+        broadcastToSession(session, message, userId);
     }
     
     /**
      * Handles a document resync request.
      */
-    private void handleResyncRequest(WebSocket conn, JsonObject message) {
+    private void handleResyncRequest(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
         if (userId == null) {
@@ -1081,37 +2524,49 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             sendError(conn, "Not in a session");
             return;
         }
         
-        System.out.println("Document resync requested by user " + userId);
+        log.info("Document resync requested by user " + userId);
+        
+        // If the client still has a covered position in the log, the missing tail is enough,
+        // unless its copy has diverged, when only the full content repairs it
+        long lastSeq = message.has("lastSeq") ? message.get("lastSeq").getAsLong() : -1;
+        boolean full = message.has("full") && message.get("full").getAsBoolean();
+        if (!full && lastSeq >= 0 && session.getOperationLog().covers(lastSeq)) {
+            sendCatchUp(conn, userId, session, "tail", lastSeq);
+            return;
+        }
         
         // Send the current document content
         String docContent = session.getDocument();
         if (docContent != null) {
+            long snapshotSeq = session.getSnapshotSeq();
             JsonObject syncMessage = new JsonObject();
             syncMessage.addProperty("type", "document_sync");
             syncMessage.addProperty("content", docContent);
             syncMessage.addProperty("highPriority", true);
+            syncMessage.addProperty("snapshotSeq", snapshotSeq);
+            addContentVersion(syncMessage, session);
             
             try {
-                conn.send(gson.toJson(syncMessage));
-                System.out.println("Sent document resync to user " + userId + " (" + docContent.length() + " chars)");
+                sendDocument(conn, syncMessage, "content");
+                log.info("Sent document resync to user " + userId + " (" + docContent.length() + " chars)");
+                sendCatchUp(conn, userId, session, lastSeq >= 0 ? "snapshot" : "initial", snapshotSeq);
             } catch (Exception e) {
-                System.err.println("Error sending document resync: " + e.getMessage());
+                log.error("Error sending document resync: " + e.getMessage());
             }
         } else {
-            System.out.println("No document content available for resync");
+            log.info("No document content available for resync");
         }
     }
     
     /**
      * Handles a username update message.
      */
-    private void handleUpdateUsername(WebSocket conn, JsonObject message) {
+    private void handleUpdateUsername(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
         if (userId == null) {
@@ -1132,7 +2587,7 @@ public class CollaborativeEditorServer extends WebSocketServer {
                 username = message.get("username").getAsString();
             }
         } catch (Exception e) {
-            System.err.println("Error parsing username: " + e.getMessage());
+            log.error("Error parsing username: " + e.getMessage());
             username = null;
         }
         
@@ -1143,13 +2598,11 @@ public class CollaborativeEditorServer extends WebSocketServer {
         
         // Update the username
         usernames.put(userId, username);
-        System.out.println("Updated username for user " + userId + " to: " + username);
+        log.info("Updated username for user " + userId + " to: " + username);
         
-        // Get the user's session and broadcast the update to all session members
-        EditorSession session = userSessions.get(userId);
-        if (session != null) {
-            broadcastPresenceUpdate(session);
-            broadcastUsernames(session);
+        // Send the rename to all members of the user's session
+        if (session != null && session.hasUser(userId)) {
+            announcePresence(session, userId);
         }
         
         // Send confirmation back to the client
@@ -1157,13 +2610,13 @@ public class CollaborativeEditorServer extends WebSocketServer {
         response.addProperty("type", "username_update_ack");
         response.addProperty("status", "success");
         response.addProperty("username", username);
-        conn.send(gson.toJson(response));
+        send(conn, gson.toJson(response));
     }
     
     /**
      * Handles a presence update from a client
      */
-    private void handlePresenceUpdate(WebSocket conn, JsonObject message) {
+    private void handlePresenceUpdate(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
         if (userId == null) {
@@ -1177,8 +2630,11 @@ public class CollaborativeEditorServer extends WebSocketServer {
         // Update username if provided
         if (message.has("username") && !message.get("username").isJsonNull()) {
             String username = message.get("username").getAsString();
-            if (username != null && !username.isEmpty()) {
-                usernames.put(userId, username);
+            if (username != null && !username.isEmpty() && !username.equals(usernames.put(userId, username))) {
+                // The name changed, so let the session know
+                if (session != null && session.hasUser(userId)) {
+                    announcePresence(session, userId);
+                }
             }
         }
     }
@@ -1186,7 +2642,7 @@ public class CollaborativeEditorServer extends WebSocketServer {
     /**
      * Handles a request from a client to leave their current session
      */
-    private void handleLeaveSession(WebSocket conn, JsonObject message) {
+    private void handleLeaveSession(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
         if (userId == null) {
@@ -1194,175 +2650,195 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return;
         }
         
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        if (session == null || !session.hasUser(userId)) {
             // User is not in a session, nothing to do
             return;
         }
         
-        System.out.println("User " + userId + " is leaving session: " + session.getEditorCode());
-        
-        // Remove user from the session
-        session.removeUser(userId);
-        
-        // Remove session from user's sessions
-        userSessions.remove(userId);
+        log.info("User " + userId + " is leaving session: " + session.getEditorCode());
         
         // Send acknowledgment
         JsonObject response = new JsonObject();
         response.addProperty("type", "leave_session_ack");
         response.addProperty("status", "success");
-        conn.send(gson.toJson(response));
+        send(conn, gson.toJson(response));
         
-        // If session is now empty, remove it
-        if (session.isEmpty()) {
-            sessionsByCode.remove(session.getEditorCode());
-            sessionsByCode.remove(session.getViewerCode());
-            System.out.println("Session removed as it's now empty");
-        } else {
-            // Notify remaining users about the departure
-            broadcastPresenceUpdate(session);
-            broadcastUsernames(session);
-        }
+        // Remove user from the session and tell the remaining users
+        removeMember(session, userId, conn);
+    }
+    
+    /**
+     * State attached to each connection: its outbound queue, its liveness entry and the
+     * session its messages go to.
+     */
+    private static class ConnectionState {
+        private final OutboundQueue queue;
+        private final ConnectionLifecycle.Entry lifecycle;
         
-        // Clean up any cursor position
-        userCursorPositions.remove(userId);
+        // Only changed by the thread that reads this connection's messages
+        private volatile EditorSession session;
         
-        // Broadcast cursor removal to other users in the session
-        JsonObject cursorRemoveMsg = new JsonObject();
-        cursorRemoveMsg.addProperty("type", "cursor_remove");
-        cursorRemoveMsg.addProperty("userId", userId);
-            
-            for (String otherUserId : session.getAllUsers()) {
-                    WebSocket otherConn = userConnections.get(otherUserId);
-                    if (otherConn != null && otherConn.isOpen()) {
-                otherConn.send(gson.toJson(cursorRemoveMsg));
-            }
+        // Cluster mode: the client's register message, and the relay to its session's owner
+        private volatile String registerMessage;
+        private volatile ClusterRelay relay;
+        
+        // Cluster mode: set when the connection is another node's link rather than a client
+        private volatile ClusterLinkEndpoint link;
+        
+        // Rate limits of this user, the latest held message of each type that was over them,
+        // and until when no further slow_down is sent per message class. Held messages are
+        // guarded by this object's lock.
+        private final RateLimiter limits = RateLimiter.forUser();
+        private final Map<String, JsonObject> deferred = new LinkedHashMap<>();
+        private final long[] slowDownUntil = new long[RateLimiter.MessageClass.values().length];
+        
+        ConnectionState(OutboundQueue queue, ConnectionLifecycle.Entry lifecycle) {
+            this.queue = queue;
+            this.lifecycle = lifecycle;
         }
     }
     
     /**
-     * Performs cleanup of inactive connections and sessions
+     * A join request held while its session waits for its state from another process.
      */
-    private void cleanupInactiveConnections() {
-        try {
-            // Check all connections to see if they're still open
-            Set<String> inactiveUsers = new HashSet<>();
-            
-            // First identify disconnected users
-            for (Map.Entry<String, WebSocket> entry : userConnections.entrySet()) {
-                String userId = entry.getKey();
-                WebSocket conn = entry.getValue();
-                
-                if (conn == null || !conn.isOpen()) {
-                    inactiveUsers.add(userId);
-                    System.out.println("Detected inactive connection for user: " + userId);
-                }
-            }
-            
-            // Also check for orphaned users in sessions with no active connections
-            for (String userId : userSessions.keySet()) {
-                if (!userConnections.containsKey(userId) || !userConnections.get(userId).isOpen()) {
-                    inactiveUsers.add(userId);
-                    System.out.println("Detected orphaned user in session: " + userId);
-                }
-            }
-            
-            // Remove inactive users
-            for (String userId : inactiveUsers) {
-                System.out.println("Cleaning up inactive user: " + userId);
-                
-                // Remove from their session
-                EditorSession session = userSessions.get(userId);
-                if (session != null) {
-                    session.removeUser(userId);
-                    
-                    if (session.isEmpty()) {
-                        sessionsByCode.remove(session.getEditorCode());
-                        sessionsByCode.remove(session.getViewerCode());
-                        System.out.println("Removed empty session during cleanup");
-                    } else {
-                        // Broadcast updated presence and usernames to remaining users
-                        broadcastPresenceUpdate(session);
-                        broadcastUsernames(session);
-                    }
-                }
-                
-                // Remove from all mappings
-                userSessions.remove(userId);
-                userConnections.remove(userId);
-                userCursorPositions.remove(userId);
-                usernames.remove(userId);
-                
-                // Remove from connectionToUserId (find the connection for this userId)
-                for (Map.Entry<WebSocket, String> entry : new HashMap<>(connectionToUserId).entrySet()) {
-                    if (userId.equals(entry.getValue())) {
-                        connectionToUserId.remove(entry.getKey());
-                    }
-                }
-            }
-            
-            if (!inactiveUsers.isEmpty()) {
-                System.out.println("Cleaned up " + inactiveUsers.size() + " inactive users");
-                
-                // Debug - list remaining users
-                System.out.println("Remaining active users: " + userConnections.keySet());
-            }
-            
-            // Check for orphaned sessions with no users
-            List<String> orphanedSessions = new ArrayList<>();
-            for (Map.Entry<String, EditorSession> entry : sessionsByCode.entrySet()) {
-                if (entry.getValue().isEmpty()) {
-                    orphanedSessions.add(entry.getKey());
-                }
-            }
-            
-            // Remove orphaned sessions
-            for (String sessionCode : orphanedSessions) {
-                sessionsByCode.remove(sessionCode);
-                System.out.println("Removed orphaned session: " + sessionCode);
-            }
-            
-        } catch (Exception e) {
-            System.err.println("Error during connection cleanup: " + e.getMessage());
+    private static class PendingJoin {
+        private final WebSocket conn;
+        private final JsonObject message;
+        
+        PendingJoin(WebSocket conn, JsonObject message) {
+            this.conn = conn;
+            this.message = message;
         }
     }
     
     /**
-     * Tests if a user is still connected by sending a ping message.
-     * @param userId The user ID to test
-     * @return true if the user is connected, false otherwise
+     * What the server knows about one client's operations: its resume token, the last
+     * client sequence number applied, and whether the client said where its numbering
+     * starts, so that operations can be held to their order. Guarded by the session's executor.
      */
-    private boolean isUserConnected(String userId) {
-        WebSocket conn = userConnections.get(userId);
-        if (conn == null || !conn.isOpen()) {
-            return false;
-        }
+    private static class ResumeState {
+        private final String token = UUID.randomUUID().toString();
+        private final String userId;
+        private long appliedClientSeq = 0;
+        private boolean inOrder = false;
+        private boolean resumed = false;
         
-        try {
-            // Try to send a ping
-            conn.sendPing();
-            return true;
-        } catch (Exception e) {
-            System.err.println("Error pinging user " + userId + ": " + e.getMessage());
-            return false;
+        ResumeState(String userId) {
+            this.userId = userId;
         }
     }
     
     /**
-     * Class representing an editing session
+     * Class representing an editing session.
+     * Its state is owned by its executor: apart from the codes, the operation log and
+     * the presence snapshot, it must only be touched from tasks run by {@link #execute}.
      */
     private static class EditorSession {
-        private Set<String> editors = new HashSet<>();
-        private Set<String> viewers = new HashSet<>();
-        private String editorCode;
-        private String viewerCode;
+        private static final int MAX_RESUME_STATES = 256;
+        private static final AtomicInteger nextId = new AtomicInteger();
+        
+        // Identifies the session in logs and metrics without giving away its codes
+        private final int id = nextId.incrementAndGet();
+        private final Set<String> editors = new HashSet<>();
+        private final Set<String> viewers = new HashSet<>();
+        private volatile String editorCode;
+        private volatile String viewerCode;
+        private volatile List<String> codes;
+        private final SessionExecutor executor;
         private String documentContent = "";
-        private long lastActivityTime = System.currentTimeMillis();
         
-        public EditorSession(String editorCode, String viewerCode) {
+        // Sizes for monitoring, readable from any thread
+        private volatile int memberCount = 0;
+        private volatile int documentLength = 0;
+        
+        // Incremented on every content change, with the hash of the current content
+        private long contentVersion = 0;
+        private long contentHash = ContentHash.EMPTY;
+        
+        // Rate limits of the session as a whole
+        private final RateLimiter limits = RateLimiter.forSession();
+        
+        // Merkle tree of the content, kept up to date as the content changes
+        private final MerkleTree merkleTree = new MerkleTree();
+        
+        // Connection of each member, so broadcasts don't need the server's global maps
+        private final Map<String, WebSocket> connections = new HashMap<>();
+        
+        // Set once the first member joins, and once the session empties and is unregistered
+        private boolean joined = false;
+        private volatile boolean closed = false;
+        
+        // Recent sequenced operations, and the sequence number the document content reflects
+        private final OperationLog operationLog = new OperationLog();
+        private volatile long snapshotSeq = 0;
+        
+        // The member whose edits logged after snapshotSeq the content already holds, up to
+        // which of their client sequence numbers; null if none
+        private volatile String snapshotUserId;
+        private volatile long snapshotClientSeq;
+        
+        // Versioned list of users shown to the session
+        private final SessionPresence presence = new SessionPresence();
+        
+        // The stored document this session edits, once a client has named it
+        private String documentId;
+        
+        // Receives the session's messages from the session bus, once the first member has joined
+        private SessionBus.Subscriber busSubscriber;
+        
+        // A copy new to this process waiting for another process's copy to send the session's
+        // state, with the joins held meanwhile; and whether it has already waited once. A copy
+        // that missed a content change is stale until the content arrives again, and passes
+        // other copies' operations on without logging them meanwhile.
+        private boolean syncing = false;
+        private boolean synced = false;
+        private boolean stale = false;
+        private int staleCount = 0;
+        private final List<PendingJoin> deferredJoins = new ArrayList<>();
+        private final List<JsonObject> unloggedOperations = new ArrayList<>();
+        
+        // Latest cursor per user since the last presence tick
+        private final Map<String, Integer> pendingCursors = new HashMap<>();
+        private volatile boolean cursorsPending = false;
+        
+        // Resume state of each client that has joined, by resume token and by current member;
+        // kept after a member leaves so that it can resume, up to MAX_RESUME_STATES
+        private final Map<String, ResumeState> resumeStates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ResumeState> eldest) {
+                return size() > MAX_RESUME_STATES;
+            }
+        };
+        private final Map<String, ResumeState> memberResumeStates = new HashMap<>();
+        
+        // Last applied client sequence number per member since the last presence tick
+        private final Map<String, Long> pendingAcks = new HashMap<>();
+        private volatile boolean acksPending = false;
+        
+        public EditorSession(String editorCode, String viewerCode, SessionExecutor executor) {
+            setCodes(editorCode, viewerCode);
+            this.executor = executor;
+        }
+        
+        /**
+         * Sets the session's codes, as when a copy created from one code learns both from
+         * another process.
+         */
+        public void setCodes(String editorCode, String viewerCode) {
             this.editorCode = editorCode;
             this.viewerCode = viewerCode;
+            this.codes = editorCode.equals(viewerCode) ? List.of(editorCode) : List.of(editorCode, viewerCode);
+        }
+        
+        /**
+         * Runs a task on this session's executor, after every task submitted before it.
+         */
+        public void execute(Runnable task) {
+            executor.execute(task);
+        }
+        
+        public int getId() {
+            return id;
         }
         
         public String getEditorCode() {
@@ -1373,27 +2849,51 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return viewerCode;
         }
         
-        public void addEditor(String userId) {
-            editors.add(userId);
-            updateActivity();
+        /**
+         * Gets the distinct codes the session is registered under.
+         */
+        public List<String> getCodes() {
+            return codes;
         }
         
-        public void addViewer(String userId) {
-            viewers.add(userId);
-            updateActivity();
+        public String getDocumentId() {
+            return documentId;
+        }
+        
+        public void setDocumentId(String documentId) {
+            this.documentId = documentId;
+        }
+        
+        public SessionBus.Subscriber getBusSubscriber() {
+            return busSubscriber;
         }
         
-        public void addUser(String userId) {
-            // By default, add as editor for simplicity in our updated model
+        public void setBusSubscriber(SessionBus.Subscriber busSubscriber) {
+            this.busSubscriber = busSubscriber;
+        }
+        
+        public void addEditor(String userId, WebSocket conn) {
             editors.add(userId);
-            updateActivity();
-            System.out.println("Added user " + userId + " as editor");
+            connections.put(userId, conn);
+            memberCount = connections.size();
+            joined = true;
+        }
+        
+        public void addViewer(String userId, WebSocket conn) {
+            viewers.add(userId);
+            connections.put(userId, conn);
+            memberCount = connections.size();
+            joined = true;
         }
         
         public boolean isEditor(String userId) {
             return editors.contains(userId);
         }
         
+        public boolean hasUser(String userId) {
+            return editors.contains(userId) || viewers.contains(userId);
+        }
+        
         public Set<String> getEditors() {
             return editors;
         }
@@ -1408,9 +2908,59 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return allUsers;
         }
         
-        public void setDocumentContent(String content) {
+        public Map<String, WebSocket> getConnections() {
+            return connections;
+        }
+        
+        /**
+         * Replaces the document content.
+         * @param coveredSeq The last logged operation the content includes. A rejoining client
+         *                   is sent the content and the operations after this one.
+         */
+        public void setDocumentContent(String content, long hash, long coveredSeq) {
+            setDocumentContent(content, hash, coveredSeq, null, 0);
+        }
+        
+        /**
+         * Replaces the document content with content sent by a member.
+         * @param coveredSeq The last logged operation the content includes.
+         * @param userId The member the content came from, or null if not known.
+         * @param clientSeq The member's last client sequence number the content includes:
+         *                  their operations logged after coveredSeq up to this one are not
+         *                  sent again with the content.
+         */
+        public void setDocumentContent(String content, long hash, long coveredSeq, String userId, long clientSeq) {
+            merkleTree.update(content);
+            replaceContent(content, hash, coveredSeq, userId, clientSeq);
+        }
+        
+        /**
+         * Replaces the document content with the result of applying a patch to it. Only the
+         * part of the Merkle tree the patch touches is cut and hashed again.
+         * @param unchanged The unchanged ends of the content, from {@link TextPatch#unchangedEnds}.
+         */
+        public void patchDocumentContent(String content, int[] unchanged, long hash, long coveredSeq,
+                                         String userId, long clientSeq) {
+            merkleTree.update(content, unchanged[0], unchanged[1]);
+            replaceContent(content, hash, coveredSeq, userId, clientSeq);
+        }
+        
+        private void replaceContent(String content, long hash, long coveredSeq, String userId, long clientSeq) {
             this.documentContent = content;
-            updateActivity();
+            this.documentLength = content.length();
+            this.contentHash = hash;
+            this.contentVersion++;
+            this.snapshotSeq = coveredSeq;
+            this.snapshotUserId = clientSeq > 0 ? userId : null;
+            this.snapshotClientSeq = clientSeq;
+        }
+        
+        public int getMemberCount() {
+            return memberCount;
+        }
+        
+        public int getDocumentLength() {
+            return documentLength;
         }
         
         public String getDocumentContent() {
@@ -1421,113 +2971,294 @@ public class CollaborativeEditorServer extends WebSocketServer {
             return documentContent;
         }
         
-        public void updateDocument(String content) {
-            this.documentContent = content;
-            updateActivity();
+        public void updateDocument(String content, long hash, long coveredSeq, String userId, long clientSeq) {
+            setDocumentContent(content, hash, coveredSeq, userId, clientSeq);
+        }
+        
+        /**
+         * Gets the {@link ContentHash} of content that is to replace the current content,
+         * hashing only the part of it that differs.
+         */
+        public long hashOf(String content) {
+            return ContentHash.replace(contentHash, documentContent, content);
+        }
+        
+        /**
+         * Checks whether the session holds content with the given length and {@link ContentHash}.
+         */
+        public boolean hasContent(int length, long hash) {
+            return documentContent.length() == length && contentHash == hash;
         }
         
-        public Set<String> getUsers() {
-            Set<String> users = new HashSet<>(editors);
-            users.addAll(viewers);
-            return users;
+        public long getContentVersion() {
+            return contentVersion;
+        }
+        
+        public long getContentHash() {
+            return contentHash;
+        }
+        
+        public RateLimiter getLimits() {
+            return limits;
+        }
+        
+        /**
+         * Gets the Merkle tree of the current content, which was built at the snapshot seq.
+         * Only called on the session's executor.
+         */
+        public MerkleTree getMerkleTree() {
+            return merkleTree;
+        }
+        
+        public SessionPresence getPresence() {
+            return presence;
+        }
+        
+        public OperationLog getOperationLog() {
+            return operationLog;
+        }
+        
+        public long getSnapshotSeq() {
+            return snapshotSeq;
+        }
+        
+        public String getSnapshotUserId() {
+            return snapshotUserId;
+        }
+        
+        public long getSnapshotClientSeq() {
+            return snapshotClientSeq;
+        }
+        
+        /**
+         * Gets the logged operations a member sent the content has to apply: those after
+         * the snapshot, less the ones of its sender that it already holds.
+         */
+        public List<String> getOperationsAfterSnapshot() {
+            return operationLog.getSince(snapshotSeq, snapshotUserId, snapshotClientSeq);
         }
         
         public void removeUser(String userId) {
             editors.remove(userId);
             viewers.remove(userId);
-            updateActivity();
+            connections.remove(userId);
+            memberCount = connections.size();
+            pendingCursors.remove(userId);
+            pendingAcks.remove(userId);
+            memberResumeStates.remove(userId);
+        }
+        
+        /**
+         * Picks up the resume state a joining client presents, or starts a new one if the
+         * token is missing, unknown or belongs to another user.
+         * @param userId The joining user.
+         * @param token The client's resume token, or null.
+         * @param firstClientSeq The client sequence number of the first operation the client
+         *        will send, or -1 if it did not say. Operations before it that we never
+         *        applied were given up by the client.
+         * @return The state, marked as resumed if it was picked up.
+         */
+        public ResumeState resume(String userId, String token, long firstClientSeq) {
+            ResumeState state = token == null ? null : resumeStates.get(token);
+            if (state != null && state.userId.equals(userId)) {
+                state.resumed = true;
+            } else {
+                state = new ResumeState(userId);
+                resumeStates.put(state.token, state);
+            }
+            if (firstClientSeq > 0) {
+                state.appliedClientSeq = Math.max(state.appliedClientSeq, firstClientSeq - 1);
+                state.inOrder = true;
+            }
+            memberResumeStates.put(userId, state);
+            return state;
+        }
+        
+        public ResumeState getResumeState(String userId) {
+            return memberResumeStates.get(userId);
+        }
+        
+        public void putPendingAck(String userId, long clientSeq) {
+            pendingAcks.put(userId, clientSeq);
+            acksPending = true;
+        }
+        
+        /**
+         * Checks, from any thread, whether operations were applied since the last tick.
+         */
+        public boolean hasPendingAcks() {
+            return acksPending;
+        }
+        
+        /**
+         * Takes the acknowledgements accumulated since the last tick.
+         */
+        public Map<String, Long> drainPendingAcks() {
+            acksPending = false;
+            if (pendingAcks.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<String, Long> drained = new HashMap<>(pendingAcks);
+            pendingAcks.clear();
+            return drained;
+        }
+        
+        public void putPendingCursor(String userId, int position) {
+            pendingCursors.put(userId, position);
+            cursorsPending = true;
+        }
+        
+        /**
+         * Checks, from any thread, whether cursors have moved since the last tick.
+         */
+        public boolean hasPendingCursors() {
+            return cursorsPending;
+        }
+        
+        /**
+         * Takes the cursors accumulated since the last tick and starts a new batch.
+         */
+        public Map<String, Integer> drainPendingCursors() {
+            cursorsPending = false;
+            if (pendingCursors.isEmpty()) {
+                return Collections.emptyMap();
+            }
+            Map<String, Integer> drained = new HashMap<>(pendingCursors);
+            pendingCursors.clear();
+            return drained;
         }
         
         public boolean isEmpty() {
             return editors.isEmpty() && viewers.isEmpty();
         }
         
-        public void syncUserLists(Set<String> filteredUsers) {
-            // Update editor list - only keep users who are both in the filtered list and were editors
-            Set<String> newEditors = new HashSet<>();
-            for (String userId : filteredUsers) {
-                if (editors.contains(userId)) {
-                    newEditors.add(userId);
-                }
+        /**
+         * Checks whether nobody has joined this session yet.
+         */
+        public boolean isNew() {
+            return !joined;
+        }
+        
+        /**
+         * Marks the session as existing already, as when its state came from another process.
+         */
+        public void markJoined() {
+            joined = true;
+        }
+        
+        public boolean isSyncing() {
+            return syncing;
+        }
+        
+        public void setSyncing(boolean syncing) {
+            this.syncing = syncing;
+            if (syncing) {
+                synced = true;
             }
-            editors = newEditors;
-            
-            // Update viewer list - only keep users who are both in the filtered list and were viewers
-            Set<String> newViewers = new HashSet<>();
-            for (String userId : filteredUsers) {
-                if (viewers.contains(userId)) {
-                    newViewers.add(userId);
-                }
+        }
+        
+        /**
+         * Checks whether the session has already asked other processes for its state.
+         */
+        public boolean isSynced() {
+            return synced;
+        }
+        
+        public boolean isStale() {
+            return stale;
+        }
+        
+        public void setStale(boolean stale) {
+            if (stale && !this.stale) {
+                staleCount++;
             }
-            viewers = newViewers;
-            
-            updateActivity();
+            this.stale = stale;
+        }
+        
+        /**
+         * Gets how many times the session has become stale, which tells one stale spell from the next.
+         */
+        public int getStaleCount() {
+            return staleCount;
+        }
+        
+        /**
+         * Keeps an operation passed on while the session is stale, to be logged once it is not.
+         */
+        public void holdUnlogged(JsonObject operation) {
+            unloggedOperations.add(operation);
+        }
+        
+        public List<JsonObject> takeUnlogged() {
+            List<JsonObject> operations = new ArrayList<>(unloggedOperations);
+            unloggedOperations.clear();
+            return operations;
+        }
+        
+        public void deferJoin(WebSocket conn, JsonObject message) {
+            deferredJoins.add(new PendingJoin(conn, message));
         }
         
-        private void updateActivity() {
-            lastActivityTime = System.currentTimeMillis();
+        public List<PendingJoin> drainDeferredJoins() {
+            List<PendingJoin> drained = new ArrayList<>(deferredJoins);
+            deferredJoins.clear();
+            return drained;
         }
         
-        public long getLastActivityTime() {
-            return lastActivityTime;
+        public void close() {
+            closed = true;
         }
         
-        public boolean isInactive() {
-            // Session is inactive if no activity for more than 2 hours
-            return System.currentTimeMillis() - lastActivityTime > 7200000;
+        public boolean isClosed() {
+            return closed;
         }
     }
     
     /**
      * Handles a request for presence updates
      */
-    private void handleRequestPresence(WebSocket conn, JsonObject message) {
+    private void handleRequestPresence(WebSocket conn, JsonObject message, EditorSession session) {
         String userId = connectionToUserId.get(conn);
         
         if (userId == null) {
             return; // Silently ignore if not registered
         }
         
-        System.out.println("Received presence request from user: " + userId);
+        log.debug(() -> "Received presence request from user: " + userId);
         
-        // Find the session the user is in
-        EditorSession session = userSessions.get(userId);
-        if (session == null) {
+        // Check that the user is in the session
+        if (session == null || !session.hasUser(userId)) {
             return; // Not in a session
         }
         
-        // Send a direct presence update to this user
-        sendPresenceToUser(userId, session);
-        
-        // Also broadcast usernames
-        broadcastUsernames(session);
+        // Send the full snapshot to this user only
+        send(conn, gson.toJson(session.getPresence().snapshot()));
     }
     
     public static void main(String[] args) {
         int port = getPortFromEnv();
         
-        System.out.println("==================================================");
-        System.out.println("COLLABORATIVE EDITOR SERVER");
-        System.out.println("==================================================");
-        System.out.println("Starting WebSocket server on port: " + port);
-        System.out.println("Environment: " + (System.getenv("RAILWAY_ENVIRONMENT") != null ? "Production (Railway)" : "Development"));
+        log.info("==================================================");
+        log.info("COLLABORATIVE EDITOR SERVER");
+        log.info("==================================================");
+        log.info("Starting WebSocket server on port: " + port);
+        log.info("Environment: " + (System.getenv("RAILWAY_ENVIRONMENT") != null ? "Production (Railway)" : "Development"));
         
         // Print all environment variables for debugging
-        System.out.println("==================================================");
-        System.out.println("ENVIRONMENT VARIABLES:");
-        System.out.println("PORT: " + System.getenv("PORT"));
-        System.out.println("MONGODB_URI: " + (System.getenv("MONGODB_URI") != null ? 
+        log.info("==================================================");
+        log.info("ENVIRONMENT VARIABLES:");
+        log.info("PORT: " + System.getenv("PORT"));
+        log.info("MONGODB_URI: " + (System.getenv("MONGODB_URI") != null ? 
                           System.getenv("MONGODB_URI").replaceAll(":[^/]+@", ":****@") : "null"));
-        System.out.println("MONGODB_DATABASE: " + System.getenv("MONGODB_DATABASE"));
-        System.out.println("==================================================");
+        log.info("MONGODB_DATABASE: " + System.getenv("MONGODB_DATABASE"));
+        log.info("==================================================");
         
         // Initialize database connection - do this early to show any errors
         try {
             DatabaseService.getInstance();
-            System.out.println("Database service initialized");
+            log.info("Database service initialized");
         } catch (Exception e) {
-            System.err.println("Warning: Database service initialization error: " + e.getMessage());
-            e.printStackTrace();
+            log.warn("Database service initialization error: " + e.getMessage(), e);
         }
         
         // Create server instance
@@ -1535,26 +3266,24 @@ public class CollaborativeEditorServer extends WebSocketServer {
         
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("Shutting down server...");
+            log.info("Shutting down server...");
             try {
-                // Close the database connection
-                DatabaseService.getInstance().close();
-                // Stop the server
+                // Stop the server first so dirty documents are flushed before the database closes
                 server.stop();
+                DatabaseService.getInstance().close();
             } catch (Exception e) {
-                e.printStackTrace();
+                log.error("Error shutting down: " + e.getMessage(), e);
             }
         }));
         
         // Start the server
         try {
             server.start();
-            System.out.println("Server started successfully! Waiting for connections...");
-            System.out.println("==================================================");
-            System.out.println("WebSocket server started on port " + port);
+            log.info("Server started successfully! Waiting for connections...");
+            log.info("==================================================");
+            log.info("WebSocket server started on port " + port);
         } catch (Exception e) {
-            System.err.println("Failed to start server: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Failed to start server: " + e.getMessage(), e);
         }
     }
 } 
\ No newline at end of file
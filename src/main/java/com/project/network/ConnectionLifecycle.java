@@ -0,0 +1,250 @@
+package com.project.network;
+
+import com.project.util.Log;
+import org.java_websocket.WebSocket;
+import org.java_websocket.framing.CloseFrame;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the liveness of every client connection with a hashed timer wheel.
+ * Each connection has one timer on the wheel. Traffic from the client only updates
+ * timestamps; the wheel looks at a connection when its timer fires, and then either
+ * sends a WebSocket ping, closes the connection because the ping went unanswered or
+ * the client has been idle too long, or sets the timer again. The cost of a tick
+ * therefore depends on the timers that fire in it, not on the number of connections.
+ */
+public class ConnectionLifecycle {
+
+    private static final Log log = Log.get(ConnectionLifecycle.class);
+
+    /** Close code telling the client it was closed for sending nothing for too long. */
+    public static final int CLOSE_IDLE = 4002;
+
+    private static final int WHEEL_SIZE = 512;
+    private static final long DEFAULT_TICK_MS = 100;
+    private static final long DEFAULT_HEARTBEAT_INTERVAL_MS = 30_000;
+    private static final long DEFAULT_HEARTBEAT_TIMEOUT_MS = 15_000;
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 2 * 60 * 60 * 1000;
+
+    private final ServerMetrics metrics;
+    private final long tickMs;
+    private final long heartbeatIntervalMs;
+    private final long heartbeatTimeoutMs;
+    private final long idleTimeoutMs;
+
+    // Timers by slot; only touched by the ticker thread
+    private final List<List<Entry>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private long currentTick = 0;
+    private final long startTime = System.currentTimeMillis();
+
+    // Connections registered since the last tick, put on the wheel by the ticker thread
+    private final Queue<Entry> incoming = new ConcurrentLinkedQueue<>();
+
+    private ScheduledExecutorService ticker;
+
+    public ConnectionLifecycle(ServerMetrics metrics) {
+        this(metrics,
+             ServerConfig.getLong("TIMER_WHEEL_TICK_MS", DEFAULT_TICK_MS),
+             ServerConfig.getLong("HEARTBEAT_INTERVAL_MS", DEFAULT_HEARTBEAT_INTERVAL_MS),
+             ServerConfig.getLong("HEARTBEAT_TIMEOUT_MS", DEFAULT_HEARTBEAT_TIMEOUT_MS),
+             ServerConfig.getLong("IDLE_TIMEOUT_MS", DEFAULT_IDLE_TIMEOUT_MS));
+    }
+
+    public ConnectionLifecycle(ServerMetrics metrics, long tickMs, long heartbeatIntervalMs,
+                               long heartbeatTimeoutMs, long idleTimeoutMs) {
+        this.metrics = metrics;
+        this.tickMs = Math.max(1, tickMs);
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+        this.heartbeatTimeoutMs = heartbeatTimeoutMs;
+        this.idleTimeoutMs = idleTimeoutMs;
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Starts turning the wheel.
+     */
+    public void start() {
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-lifecycle");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::advance, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        log.info("Heartbeat every " + heartbeatIntervalMs + " ms (timeout " + heartbeatTimeoutMs +
+                           " ms), idle timeout " + idleTimeoutMs + " ms");
+    }
+
+    /**
+     * Stops the wheel. Connections are left open.
+     */
+    public void stop() {
+        if (ticker != null) {
+            ticker.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts tracking a new connection.
+     * @param conn The connection.
+     * @return The connection's entry, to be told about its traffic and removed when it closes.
+     */
+    public Entry register(WebSocket conn) {
+        Entry entry = new Entry(conn, System.currentTimeMillis());
+        incoming.add(entry);
+        return entry;
+    }
+
+    /**
+     * Runs one tick: places new timers, then handles the timers in the current slot.
+     */
+    private void advance() {
+        try {
+            long now = System.currentTimeMillis();
+            long targetTick = (now - startTime) / tickMs;
+
+            Entry entry;
+            while ((entry = incoming.poll()) != null) {
+                schedule(entry, nextDeadline(entry));
+            }
+
+            // Catch up if the ticker fell behind, one slot at a time
+            while (currentTick < targetTick) {
+                currentTick++;
+                List<Entry> slot = wheel.get((int) (currentTick % WHEEL_SIZE));
+                if (slot.isEmpty()) {
+                    continue;
+                }
+                List<Entry> due = new ArrayList<>();
+                slot.removeIf(e -> {
+                    if (e.removed) {
+                        return true;
+                    }
+                    if (e.deadlineTick <= currentTick) {
+                        due.add(e);
+                        return true;
+                    }
+                    // Due in a later turn of the wheel
+                    return false;
+                });
+                for (Entry e : due) {
+                    fire(e, now);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error during connection lifecycle tick: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decides what to do with a connection whose timer fired.
+     */
+    private void fire(Entry entry, long now) {
+        WebSocket conn = entry.conn;
+        if (!conn.isOpen()) {
+            return;
+        }
+
+        if (now - entry.lastMessage >= idleTimeoutMs) {
+            log.info("Closing idle connection " + conn.getRemoteSocketAddress());
+            metrics.increment("lifecycle.idle_closed");
+            conn.close(CLOSE_IDLE, "Idle timeout");
+            return;
+        }
+
+        if (entry.pingSentAt > 0) {
+            if (entry.lastSeen < entry.pingSentAt) {
+                // Nothing came back since the ping; the peer is gone without a close frame
+                log.info("Connection lost (no heartbeat reply): " + conn.getRemoteSocketAddress());
+                metrics.increment("lifecycle.lost");
+                conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat timeout");
+                return;
+            }
+            entry.pingSentAt = 0;
+        }
+
+        if (now - entry.lastSeen >= heartbeatIntervalMs) {
+            try {
+                conn.sendPing();
+                entry.pingSentAt = now;
+                metrics.increment("lifecycle.pings");
+                schedule(entry, Math.min(now + heartbeatTimeoutMs, entry.lastMessage + idleTimeoutMs));
+            } catch (Exception e) {
+                conn.closeConnection(CloseFrame.ABNORMAL_CLOSE, "Heartbeat failed");
+            }
+            return;
+        }
+
+        schedule(entry, nextDeadline(entry));
+    }
+
+    /**
+     * Gets when a connection without an outstanding ping next needs looking at.
+     */
+    private long nextDeadline(Entry entry) {
+        return Math.min(entry.lastSeen + heartbeatIntervalMs, entry.lastMessage + idleTimeoutMs);
+    }
+
+    private void schedule(Entry entry, long deadline) {
+        if (entry.removed) {
+            return;
+        }
+        // Round up so a timer never fires early, and never into the slot being processed
+        long tick = Math.max(currentTick + 1, (deadline - startTime + tickMs - 1) / tickMs);
+        entry.deadlineTick = tick;
+        wheel.get((int) (tick % WHEEL_SIZE)).add(entry);
+    }
+
+    /**
+     * Liveness state of one connection.
+     */
+    public static class Entry {
+        private final WebSocket conn;
+
+        // Written by the connection's threads, read by the ticker
+        private volatile long lastSeen;
+        private volatile long lastMessage;
+        private volatile boolean removed = false;
+
+        // Only touched by the ticker thread
+        private long deadlineTick;
+        private long pingSentAt = 0;
+
+        private Entry(WebSocket conn, long now) {
+            this.conn = conn;
+            this.lastSeen = now;
+            this.lastMessage = now;
+        }
+
+        /**
+         * Records an application message from the client.
+         */
+        public void messageReceived() {
+            long now = System.currentTimeMillis();
+            lastMessage = now;
+            lastSeen = now;
+        }
+
+        /**
+         * Records a pong (or other control frame) from the client.
+         */
+        public void pongReceived() {
+            lastSeen = System.currentTimeMillis();
+        }
+
+        /**
+         * Stops tracking the connection; its timer is dropped when it next comes up.
+         */
+        public void remove() {
+            removed = true;
+        }
+    }
+}
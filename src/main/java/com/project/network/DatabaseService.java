@@ -6,6 +6,7 @@ import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Updates;
+import com.project.util.Log;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
@@ -17,12 +18,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 /**
  * Service for handling database operations related to users and documents.
  * This implementation can work without MongoDB by using in-memory storage.
  */
 public class DatabaseService {
+
+    private static final Log log = Log.get(DatabaseService.class);
+
     // Get MongoDB connection string from environment variable or use default for local development
     private static final String CONNECTION_STRING = System.getenv("MONGODB_URI") != null ? 
             System.getenv("MONGODB_URI") : 
@@ -54,6 +59,9 @@ public class DatabaseService {
     
     private static DatabaseService instance;
     
+    // Call latencies and fallbacks to in-memory storage, shared by every instance
+    private static final ServerMetrics metrics = new ServerMetrics();
+    
     /**
      * Gets the singleton instance of the DatabaseService.
      * @return The DatabaseService instance.
@@ -65,24 +73,33 @@ public class DatabaseService {
         return instance;
     }
     
+    /**
+     * Gets the database call metrics: a db.call.seconds histogram per call and a
+     * db.fallbacks counter per call that fell back to in-memory storage after a failure.
+     * @return The metrics.
+     */
+    public static ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
     /**
      * Private constructor for the singleton pattern.
      */
     private DatabaseService() {
         try {
-            System.out.println("==================================================");
-            System.out.println("Attempting to connect to MongoDB...");
+            log.info("==================================================");
+            log.info("Attempting to connect to MongoDB...");
             
             // First try the environment variable
             String connectionStr = CONNECTION_STRING;
             
             // If environment variable isn't set, try Railway connection
             if (connectionStr.equals("mongodb://localhost:27017")) {
-                System.out.println("MONGODB_URI environment variable not set, trying Railway connection");
+                log.info("MONGODB_URI environment variable not set, trying Railway connection");
                 connectionStr = RAILWAY_CONNECTION_STRING;
             }
             
-            System.out.println("Using connection string: " + connectionStr.replaceAll(":[^/]+@", ":******@"));
+            log.info("Using connection string: " + connectionStr.replaceAll(":[^/]+@", ":******@"));
             
             // Set a shorter connection timeout (5 seconds instead of 30)
             mongoClient = MongoClients.create(connectionStr);
@@ -98,35 +115,34 @@ public class DatabaseService {
             long userCount = usersCollection.countDocuments();
             long docCount = documentsCollection.countDocuments();
             
-            System.out.println("==================================================");
-            System.out.println("MongoDB connection successful!");
-            System.out.println("Database: " + DATABASE_NAME);
-            System.out.println("Users collection: " + userCount + " documents");
-            System.out.println("Documents collection: " + docCount + " documents");
-            System.out.println("Your data will be saved persistently to MongoDB");
-            System.out.println("==================================================");
+            log.info("==================================================");
+            log.info("MongoDB connection successful!");
+            log.info("Database: " + DATABASE_NAME);
+            log.info("Users collection: " + userCount + " documents");
+            log.info("Documents collection: " + docCount + " documents");
+            log.info("Your data will be saved persistently to MongoDB");
+            log.info("==================================================");
             
             // Ensure collections exist - if they don't, create them
             if (!collectionExists(USERS_COLLECTION)) {
                 database.createCollection(USERS_COLLECTION);
-                System.out.println("Created users collection");
+                log.info("Created users collection");
             }
             
             if (!collectionExists(DOCUMENTS_COLLECTION)) {
                 database.createCollection(DOCUMENTS_COLLECTION);
-                System.out.println("Created documents collection");
+                log.info("Created documents collection");
             }
             
             useInMemoryStorage = false;
             mongoDbConnected = true;
         } catch (Exception e) {
-            System.err.println("==================================================");
-            System.err.println("ERROR: Failed to connect to MongoDB!");
-            System.err.println("Error message: " + e.getMessage());
-            System.err.println("IMPORTANT: FALLING BACK TO IN-MEMORY STORAGE!");
-            System.err.println("WARNING: Your data will NOT be saved permanently!");
-            System.err.println("==================================================");
-            e.printStackTrace();
+            log.warn("==================================================");
+            log.error("ERROR: Failed to connect to MongoDB!");
+            log.error("Error message: " + e.getMessage());
+            log.warn("IMPORTANT: FALLING BACK TO IN-MEMORY STORAGE!");
+            log.warn("WARNING: Your data will NOT be saved permanently!");
+            log.warn("==================================================", e);
             
             // Make sure to close any connection that might have been created
             if (mongoClient != null) {
@@ -172,7 +188,7 @@ public class DatabaseService {
         User user = new User(userId, username, hashedPassword, new Date());
         userMap.put(userId, user);
         
-        System.out.println("Created demo user. Username: 'demo', Password: 'password'");
+        log.info("Created demo user. Username: 'demo', Password: 'password'");
         
         // Create a sample document for the demo user
         String documentId = createDocumentInMemory("Welcome Document", userId);
@@ -187,8 +203,12 @@ public class DatabaseService {
      * @return True if registration was successful, false otherwise.
      */
     public boolean registerUser(String username, String password) {
+        return timed("registerUser", 0, () -> doRegisterUser(username, password));
+    }
+    
+    private boolean doRegisterUser(String username, String password) {
         if (username == null || username.trim().isEmpty() || password == null || password.isEmpty()) {
-            System.err.println("Cannot register user: Username or password is empty");
+            log.warn("Cannot register user: Username or password is empty");
             return false;
         }
         
@@ -196,23 +216,24 @@ public class DatabaseService {
         username = username.trim();
         
         if (useInMemoryStorage) {
-            System.out.println("Using in-memory storage for user registration: " + username);
+            log.info("Using in-memory storage for user registration: " + username);
             return registerUserInMemory(username, password);
         }
         
         try {
-            System.out.println("Attempting to register user in MongoDB: " + username);
+            log.info("Attempting to register user in MongoDB: " + username);
             
             // Double-check the MongoDB connection
             if (!mongoDbConnected) {
-                System.err.println("MongoDB not connected, falling back to in-memory storage");
+                log.warn("MongoDB not connected, falling back to in-memory storage");
+                countFallback("registerUser");
                 return registerUserInMemory(username, password);
             }
             
             // Check if username already exists
             Document existingUser = usersCollection.find(Filters.eq("username", username)).first();
             if (existingUser != null) {
-                System.out.println("Username already exists: " + username);
+                log.info("Username already exists: " + username);
                 return false;
             }
             
@@ -232,19 +253,46 @@ public class DatabaseService {
             // Confirm the user was added by fetching the new document
             Document confirmUser = usersCollection.find(Filters.eq("username", username)).first();
             if (confirmUser != null) {
-                System.out.println("Successfully registered user in MongoDB: " + username);
+                log.info("Successfully registered user in MongoDB: " + username);
                 return true;
             } else {
-                System.err.println("User registration verification failed: " + username);
+                log.error("User registration verification failed: " + username);
+                countFallback("registerUser");
                 return registerUserInMemory(username, password);
             }
         } catch (Exception e) {
-            System.err.println("Error registering user in MongoDB: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error registering user in MongoDB: " + e.getMessage(), e);
+            countFallback("registerUser");
             return registerUserInMemory(username, password);
         }
     }
     
+    /**
+     * Runs a call, recording how long it took in the metrics and as a flight recorder event.
+     */
+    private static <T> T timed(String call, int contentLength, Supplier<T> body) {
+        NetworkEvents.DatabaseCall event = new NetworkEvents.DatabaseCall();
+        event.begin();
+        long startNanos = System.nanoTime();
+        try {
+            return body.get();
+        } finally {
+            metrics.recordLatency(ServerMetrics.labeled("db.call.seconds", "call", call), System.nanoTime() - startNanos);
+            if (event.shouldCommit()) {
+                event.call = call;
+                event.contentLength = contentLength;
+                event.commit();
+            }
+        }
+    }
+    
+    /**
+     * Counts a call served from memory because MongoDB could not serve it.
+     */
+    private static void countFallback(String call) {
+        metrics.increment(ServerMetrics.labeled("db.fallbacks", "call", call));
+    }
+    
     private boolean registerUserInMemory(String username, String password) {
         // Check if username already exists
         if (userMap.values().stream().anyMatch(u -> u.username.equals(username))) {
@@ -259,7 +307,7 @@ public class DatabaseService {
         User user = new User(userId, username, hashedPassword, new Date());
         userMap.put(userId, user);
         
-        System.out.println("Successfully registered user in memory: " + username + " with ID: " + userId);
+        log.info("Successfully registered user in memory: " + username + " with ID: " + userId);
         return true;
     }
     
@@ -270,8 +318,12 @@ public class DatabaseService {
      * @return The user ID if authentication was successful, null otherwise.
      */
     public String authenticateUser(String username, String password) {
+        return timed("authenticateUser", 0, () -> doAuthenticateUser(username, password));
+    }
+    
+    private String doAuthenticateUser(String username, String password) {
         if (username == null || username.trim().isEmpty() || password == null || password.isEmpty()) {
-            System.err.println("Cannot authenticate: Username or password is empty");
+            log.warn("Cannot authenticate: Username or password is empty");
             return null;
         }
         
@@ -279,22 +331,23 @@ public class DatabaseService {
         username = username.trim();
         
         if (useInMemoryStorage) {
-            System.out.println("Using in-memory storage for authentication: " + username);
+            log.info("Using in-memory storage for authentication: " + username);
             return authenticateUserInMemory(username, password);
         }
         
         try {
-            System.out.println("Attempting to authenticate user in MongoDB: " + username);
+            log.info("Attempting to authenticate user in MongoDB: " + username);
             
             // Double-check the MongoDB connection
             if (!mongoDbConnected) {
-                System.err.println("MongoDB not connected, falling back to in-memory authentication");
+                log.warn("MongoDB not connected, falling back to in-memory authentication");
+                countFallback("authenticateUser");
                 return authenticateUserInMemory(username, password);
             }
             
             Document user = usersCollection.find(Filters.eq("username", username)).first();
             if (user == null) {
-                System.out.println("User not found in MongoDB: " + username);
+                log.info("User not found in MongoDB: " + username);
                 return authenticateUserInMemory(username, password);
             }
             
@@ -314,16 +367,16 @@ public class DatabaseService {
                     Updates.set("lastLogin", new Date())
                 );
                 
-                System.out.println("Successfully authenticated user in MongoDB: " + username + " with ID: " + userId);
+                log.info("Successfully authenticated user in MongoDB: " + username + " with ID: " + userId);
                 return userId;
             } else {
-                System.out.println("Invalid password for user: " + username);
+                log.info("Invalid password for user: " + username);
             }
             
             return null;
         } catch (Exception e) {
-            System.err.println("Error authenticating user in MongoDB: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error authenticating user in MongoDB: " + e.getMessage(), e);
+            countFallback("authenticateUser");
             return authenticateUserInMemory(username, password);
         }
     }
@@ -335,7 +388,7 @@ public class DatabaseService {
                 if (BCrypt.checkpw(password, entry.getValue().hashedPassword)) {
                     // Update last login time
                     entry.getValue().lastLogin = new Date();
-                    System.out.println("Successfully authenticated user in memory: " + username + " with ID: " + entry.getKey());
+                    log.info("Successfully authenticated user in memory: " + username + " with ID: " + entry.getKey());
                     return entry.getKey();
                 }
                 return null;
@@ -348,7 +401,7 @@ public class DatabaseService {
             String hashedPassword = BCrypt.hashpw(password, BCrypt.gensalt());
             User user = new User(userId, username, hashedPassword, new Date());
             userMap.put(userId, user);
-            System.out.println("Auto-created and authenticated user in memory: " + username + " with ID: " + userId);
+            log.info("Auto-created and authenticated user in memory: " + username + " with ID: " + userId);
             return userId;
         }
         
@@ -362,6 +415,10 @@ public class DatabaseService {
      * @return The document ID if creation was successful, null otherwise.
      */
     public String createDocument(String title, String ownerId) {
+        return timed("createDocument", 0, () -> doCreateDocument(title, ownerId));
+    }
+    
+    private String doCreateDocument(String title, String ownerId) {
         if (useInMemoryStorage) {
             return createDocumentInMemory(title, ownerId);
         }
@@ -382,8 +439,8 @@ public class DatabaseService {
                 return idObj.toString();
             }
         } catch (Exception e) {
-            System.err.println("Error creating document: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error creating document: " + e.getMessage(), e);
+            countFallback("createDocument");
             return createDocumentInMemory(title, ownerId);
         }
     }
@@ -402,6 +459,12 @@ public class DatabaseService {
      * @return True if the update was successful, false otherwise.
      */
     public boolean updateDocument(String documentId, String content) {
+        int contentLength = content == null ? 0 : content.length();
+        return timed("updateDocument", contentLength,
+                () -> doUpdateDocument(documentId, content));
+    }
+    
+    private boolean doUpdateDocument(String documentId, String content) {
         if (useInMemoryStorage) {
             return updateDocumentInMemory(documentId, content);
         }
@@ -414,7 +477,7 @@ public class DatabaseService {
                 idToQuery = new ObjectId(documentId);
             } catch (Exception e) {
                 // If it fails, use as string ID
-                System.out.println("Using string ID instead of ObjectId: " + documentId);
+                log.debug("Using string ID instead of ObjectId: " + documentId);
                 idToQuery = documentId;
             }
             
@@ -427,8 +490,8 @@ public class DatabaseService {
             documentsCollection.updateOne(filter, update);
             return true;
         } catch (Exception e) {
-            System.err.println("Error updating document: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error updating document: " + e.getMessage(), e);
+            countFallback("updateDocument");
             return updateDocumentInMemory(documentId, content);
         }
     }
@@ -453,6 +516,13 @@ public class DatabaseService {
      */
     public boolean updateDocumentWithSession(String documentId, String content, 
                                           String editorCode, String viewerCode) {
+        int contentLength = content == null ? 0 : content.length();
+        return timed("updateDocumentWithSession", contentLength,
+                () -> doUpdateDocumentWithSession(documentId, content, editorCode, viewerCode));
+    }
+    
+    private boolean doUpdateDocumentWithSession(String documentId, String content, 
+                                             String editorCode, String viewerCode) {
         if (useInMemoryStorage) {
             return updateDocumentWithSessionInMemory(documentId, content, editorCode, viewerCode);
         }
@@ -460,7 +530,8 @@ public class DatabaseService {
         try {
             // Check MongoDB connection status first
             if (!mongoDbConnected) {
-                System.out.println("MongoDB not connected, falling back to in-memory storage");
+                log.info("MongoDB not connected, falling back to in-memory storage");
+                countFallback("updateDocumentWithSession");
                 return updateDocumentWithSessionInMemory(documentId, content, editorCode, viewerCode);
             }
             
@@ -469,7 +540,7 @@ public class DatabaseService {
             try {
                 documentObjectId = new ObjectId(documentId);
             } catch (Exception e) {
-                System.out.println("Invalid ObjectId format, using string ID: " + documentId);
+                log.debug("Invalid ObjectId format, using string ID: " + documentId);
                 documentObjectId = documentId;
             }
             
@@ -490,7 +561,7 @@ public class DatabaseService {
                 return true;
             } catch (IllegalStateException e) {
                 // This is a connection state error - mark connection as closed and try to reconnect
-                System.out.println("MongoDB connection state error: " + e.getMessage());
+                log.info("MongoDB connection state error: " + e.getMessage());
                 mongoDbConnected = false;
                 
                 // Try once to reconnect
@@ -501,19 +572,23 @@ public class DatabaseService {
                             new Document("$set", update));
                         return true;
                     } catch (Exception e2) {
-                        System.err.println("Update failed even after reconnect: " + e2.getMessage());
+                        log.error("Update failed even after reconnect: " + e2.getMessage());
+                        countFallback("updateDocumentWithSession");
                         return updateDocumentWithSessionInMemory(documentId, content, editorCode, viewerCode);
                     }
                 } else {
                     // If reconnection failed, fall back to in-memory
+                    countFallback("updateDocumentWithSession");
                     return updateDocumentWithSessionInMemory(documentId, content, editorCode, viewerCode);
                 }
             } catch (Exception e) {
-                System.err.println("Error updating document: " + e.getMessage());
+                log.error("Error updating document: " + e.getMessage());
+                countFallback("updateDocumentWithSession");
                 return updateDocumentWithSessionInMemory(documentId, content, editorCode, viewerCode);
             }
         } catch (Exception e) {
-            System.err.println("Error updating document with session: " + e.getMessage());
+            log.error("Error updating document with session: " + e.getMessage());
+            countFallback("updateDocumentWithSession");
             return updateDocumentWithSessionInMemory(documentId, content, editorCode, viewerCode);
         }
     }
@@ -528,7 +603,7 @@ public class DatabaseService {
             return false;
         }
         
-        System.out.println("Attempting to reconnect to MongoDB...");
+        log.info("Attempting to reconnect to MongoDB...");
         
         try {
             // Close existing client if any
@@ -550,7 +625,7 @@ public class DatabaseService {
             database.runCommand(new Document("ping", 1));
             
             // If we get here, the connection is successful
-            System.out.println("Successfully reconnected to MongoDB");
+            log.info("Successfully reconnected to MongoDB");
             
             // Re-initialize collections
             usersCollection = database.getCollection(USERS_COLLECTION);
@@ -560,10 +635,10 @@ public class DatabaseService {
             return true;
         } catch (Exception e) {
             // If we still can't connect, switch to in-memory mode
-            System.err.println("Failed to reconnect to MongoDB: " + e.getMessage());
+            log.error("Failed to reconnect to MongoDB: " + e.getMessage());
             
             if (!useInMemoryStorage) {
-                System.out.println("Permanently switching to in-memory storage after repeated connection failures");
+                log.info("Permanently switching to in-memory storage after repeated connection failures");
                 useInMemoryStorage = true;
                 
                 // Create a demo user if in-memory storage is empty
@@ -581,22 +656,26 @@ public class DatabaseService {
      * @return The document, or null if not found.
      */
     public Document getDocument(String documentId) {
+        return timed("getDocument", 0, () -> doGetDocument(documentId));
+    }
+    
+    private Document doGetDocument(String documentId) {
         if (documentId == null || documentId.isEmpty()) {
-            System.err.println("Cannot get document: Document ID is null or empty");
+            log.warn("Cannot get document: Document ID is null or empty");
             return null;
         }
         
-        System.out.println("Retrieving document with ID: " + documentId);
+        log.debug("Retrieving document with ID: " + documentId);
         
         if (useInMemoryStorage) {
-            System.out.println("Using in-memory storage to retrieve document");
+            log.debug("Using in-memory storage to retrieve document");
             Document doc = getDocumentInMemory(documentId);
             if (doc != null) {
-                System.out.println("Found document in memory with ID: " + documentId);
-                System.out.println("Title: " + doc.getString("title"));
-                System.out.println("Content length: " + (doc.getString("content") != null ? doc.getString("content").length() : 0) + " characters");
+                log.debug("Found document in memory with ID: " + documentId);
+                log.debug("Title: " + doc.getString("title"));
+                log.debug("Content length: " + (doc.getString("content") != null ? doc.getString("content").length() : 0) + " characters");
             } else {
-                System.out.println("Document not found in memory: " + documentId);
+                log.debug("Document not found in memory: " + documentId);
             }
             return doc;
         }
@@ -604,46 +683,47 @@ public class DatabaseService {
         try {
             // Double-check MongoDB connection
             if (!mongoDbConnected || database == null) {
-                System.err.println("MongoDB not connected for document retrieval, falling back to in-memory");
+                log.warn("MongoDB not connected for document retrieval, falling back to in-memory");
+                countFallback("getDocument");
                 return getDocumentInMemory(documentId);
             }
             
-            System.out.println("Looking up document in MongoDB with ID: " + documentId);
+            log.debug("Looking up document in MongoDB with ID: " + documentId);
             
             // Handle different ID formats safely
             Object idToQuery;
             try {
                 // First try to parse as ObjectId
                 idToQuery = new ObjectId(documentId);
-                System.out.println("Using ObjectId format: " + idToQuery);
+                log.debug("Using ObjectId format: " + idToQuery);
             } catch (Exception e) {
                 // If it fails, use as string ID
-                System.out.println("Using string ID format: " + documentId);
+                log.debug("Using string ID format: " + documentId);
                 idToQuery = documentId;
             }
             
             Document doc = documentsCollection.find(Filters.eq("_id", idToQuery)).first();
             
             if (doc != null) {
-                System.out.println("Document found in MongoDB: " + documentId);
-                System.out.println("Title: " + doc.getString("title"));
-                System.out.println("Content length: " + (doc.getString("content") != null ? doc.getString("content").length() : 0) + " characters");
+                log.debug("Document found in MongoDB: " + documentId);
+                log.debug("Title: " + doc.getString("title"));
+                log.debug("Content length: " + (doc.getString("content") != null ? doc.getString("content").length() : 0) + " characters");
                 
                 // If content is null, set it to empty string for safety
                 if (doc.getString("content") == null) {
                     doc.append("content", "");
                 }
             } else {
-                System.err.println("Document not found in MongoDB: " + documentId);
+                log.warn("Document not found in MongoDB: " + documentId);
             }
             
             return doc;
         } catch (Exception e) {
-            System.err.println("Error getting document from MongoDB: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error getting document from MongoDB: " + e.getMessage(), e);
             
             // Try in-memory as fallback
-            System.out.println("Falling back to in-memory storage due to error");
+            log.info("Falling back to in-memory storage due to error");
+            countFallback("getDocument");
             return getDocumentInMemory(documentId);
         }
     }
@@ -671,18 +751,23 @@ public class DatabaseService {
      * @return A list of documents.
      */
     public List<Document> getDocumentsByOwner(String ownerId) {
+        return timed("getDocumentsByOwner", 0, () -> doGetDocumentsByOwner(ownerId));
+    }
+    
+    private List<Document> doGetDocumentsByOwner(String ownerId) {
         if (useInMemoryStorage) {
-            System.out.println("Using in-memory storage to retrieve documents for user: " + ownerId);
+            log.info("Using in-memory storage to retrieve documents for user: " + ownerId);
             return getDocumentsByOwnerInMemory(ownerId);
         }
         
         List<Document> documents = new ArrayList<>();
         try {
-            System.out.println("Retrieving documents from MongoDB for user: " + ownerId);
+            log.info("Retrieving documents from MongoDB for user: " + ownerId);
             
             // Double-check MongoDB connection
             if (!mongoDbConnected || database == null) {
-                System.err.println("MongoDB not connected for document retrieval, using in-memory");
+                log.warn("MongoDB not connected for document retrieval, using in-memory");
+                countFallback("getDocumentsByOwner");
                 return getDocumentsByOwnerInMemory(ownerId);
             }
             
@@ -691,30 +776,30 @@ public class DatabaseService {
                 documentsCollection.createIndex(Filters.eq("ownerId", 1));
             } catch (Exception e) {
                 // Ignore index creation errors
-                System.out.println("Note: Could not create index on ownerId: " + e.getMessage());
+                log.info("Note: Could not create index on ownerId: " + e.getMessage());
             }
             
             // Find documents with the given owner ID
             documentsCollection.find(Filters.eq("ownerId", ownerId))
                     .forEach(documents::add);
             
-            System.out.println("Retrieved " + documents.size() + " documents from MongoDB for user: " + ownerId);
+            log.info("Retrieved " + documents.size() + " documents from MongoDB for user: " + ownerId);
             
             // If no documents found, create a default document
             if (documents.isEmpty()) {
-                System.out.println("No documents found for user, creating default document");
+                log.info("No documents found for user, creating default document");
                 String docId = createDocument("Untitled Document", ownerId);
                 Document newDoc = getDocument(docId);
                 if (newDoc != null) {
                     documents.add(newDoc);
-                    System.out.println("Created default document with ID: " + docId);
+                    log.info("Created default document with ID: " + docId);
                 }
             }
             
             return documents;
         } catch (Exception e) {
-            System.err.println("Error getting documents from MongoDB: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error getting documents from MongoDB: " + e.getMessage(), e);
+            countFallback("getDocumentsByOwner");
             return getDocumentsByOwnerInMemory(ownerId);
         }
     }
@@ -764,6 +849,10 @@ public class DatabaseService {
      * @return A list of documents matching the session code
      */
     public List<Document> getDocumentsBySessionCode(String sessionCode) {
+        return timed("getDocumentsBySessionCode", 0, () -> doGetDocumentsBySessionCode(sessionCode));
+    }
+    
+    private List<Document> doGetDocumentsBySessionCode(String sessionCode) {
         if (useInMemoryStorage) {
             return getDocumentsBySessionCodeInMemory(sessionCode);
         }
@@ -779,8 +868,8 @@ public class DatabaseService {
             documentsCollection.find(filter).forEach(documents::add);
             return documents;
         } catch (Exception e) {
-            System.err.println("Error getting documents by session code: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error getting documents by session code: " + e.getMessage(), e);
+            countFallback("getDocumentsBySessionCode");
             return getDocumentsBySessionCodeInMemory(sessionCode);
         }
     }
@@ -833,20 +922,20 @@ public class DatabaseService {
                     long userCount = usersCollection.countDocuments();
                     long docCount = documentsCollection.countDocuments();
                     
-                    System.out.println("==================================================");
-                    System.out.println("MongoDB connection test: SUCCESS");
-                    System.out.println("Connected to: " + DATABASE_NAME);
-                    System.out.println("Users collection: " + userCount + " documents");
-                    System.out.println("Documents collection: " + docCount + " documents");
-                    System.out.println("==================================================");
+                    log.info("==================================================");
+                    log.info("MongoDB connection test: SUCCESS");
+                    log.info("Connected to: " + DATABASE_NAME);
+                    log.info("Users collection: " + userCount + " documents");
+                    log.info("Documents collection: " + docCount + " documents");
+                    log.info("==================================================");
                     
                     return true;
                 } catch (Exception e) {
-                    System.err.println("==================================================");
-                    System.err.println("MongoDB connection test: FAILED");
-                    System.err.println("Error: " + e.getMessage());
-                    System.err.println("Will attempt to reconnect...");
-                    System.err.println("==================================================");
+                    log.warn("==================================================");
+                    log.error("MongoDB connection test: FAILED");
+                    log.error("Error: " + e.getMessage());
+                    log.warn("Will attempt to reconnect...");
+                    log.warn("==================================================");
                     
                     // Close the existing client
                     try {
@@ -860,25 +949,24 @@ public class DatabaseService {
                 }
             } else if (mongoDbConnected && mongoClient == null) {
                 // This is an inconsistent state - try to reconnect
-                System.err.println("==================================================");
-                System.err.println("MongoDB connection state inconsistent!");
-                System.err.println("Attempting to reconnect...");
-                System.err.println("==================================================");
+                log.warn("==================================================");
+                log.warn("MongoDB connection state inconsistent!");
+                log.warn("Attempting to reconnect...");
+                log.warn("==================================================");
                 
                 return attemptReconnect();
             } else {
                 // Currently using in-memory storage
-                System.err.println("==================================================");
-                System.err.println("Currently using IN-MEMORY STORAGE.");
-                System.err.println("Your data is NOT being saved to MongoDB!");
-                System.err.println("Attempting to reconnect to MongoDB...");
-                System.err.println("==================================================");
+                log.warn("==================================================");
+                log.warn("Currently using IN-MEMORY STORAGE.");
+                log.warn("Your data is NOT being saved to MongoDB!");
+                log.warn("Attempting to reconnect to MongoDB...");
+                log.warn("==================================================");
                 
                 return attemptReconnect();
             }
         } catch (Exception e) {
-            System.err.println("Error during connection test: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error during connection test: " + e.getMessage(), e);
             return false;
         }
     }
@@ -889,6 +977,10 @@ public class DatabaseService {
      * @return The last login time, or null if not found.
      */
     public Date getLastLoginTime(String userId) {
+        return timed("getLastLoginTime", 0, () -> doGetLastLoginTime(userId));
+    }
+    
+    private Date doGetLastLoginTime(String userId) {
         if (useInMemoryStorage) {
             User user = userMap.get(userId);
             return user != null ? user.lastLogin : null;
@@ -916,7 +1008,7 @@ public class DatabaseService {
             
             return null;
         } catch (Exception e) {
-            System.err.println("Error getting last login time: " + e.getMessage());
+            log.error("Error getting last login time: " + e.getMessage());
             return null;
         }
     }
@@ -972,6 +1064,10 @@ public class DatabaseService {
      * @return The document if found, null otherwise.
      */
     public Document getDocumentBySessionCode(String sessionCode) {
+        return timed("getDocumentBySessionCode", 0, () -> doGetDocumentBySessionCode(sessionCode));
+    }
+    
+    private Document doGetDocumentBySessionCode(String sessionCode) {
         if (sessionCode == null || sessionCode.isEmpty()) {
             return null;
         }
@@ -983,6 +1079,7 @@ public class DatabaseService {
         try {
             // Check MongoDB connection
             if (!mongoDbConnected && !attemptReconnect()) {
+                countFallback("getDocumentBySessionCode");
                 return getDocumentBySessionCodeInMemory(sessionCode);
             }
             
@@ -995,15 +1092,14 @@ public class DatabaseService {
             ).first();
             
             if (doc != null) {
-                System.out.println("Found document with session code: " + sessionCode + ", document ID: " + doc.get("_id"));
+                log.info("Found document with session code: " + sessionCode + ", document ID: " + doc.get("_id"));
                 return doc;
             } else {
-                System.out.println("No document found with session code: " + sessionCode);
+                log.info("No document found with session code: " + sessionCode);
                 return null;
             }
         } catch (Exception e) {
-            System.err.println("Error searching for document by session code: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error searching for document by session code: " + e.getMessage(), e);
             return null;
         }
     }
@@ -1019,7 +1115,7 @@ public class DatabaseService {
             if ((doc.editorCode != null && doc.editorCode.equals(sessionCode)) ||
                 (doc.viewerCode != null && doc.viewerCode.equals(sessionCode))) {
                 
-                System.out.println("Found in-memory document with session code: " + sessionCode);
+                log.info("Found in-memory document with session code: " + sessionCode);
                 
                 // Convert to MongoDB Document format
                 Document document = new Document()
@@ -1036,7 +1132,7 @@ public class DatabaseService {
             }
         }
         
-        System.out.println("No in-memory document found with session code: " + sessionCode);
+        log.info("No in-memory document found with session code: " + sessionCode);
         return null;
     }
     
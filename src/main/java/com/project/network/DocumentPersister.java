@@ -0,0 +1,242 @@
+package com.project.network;
+
+import com.project.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write-behind persistence of session documents.
+ * Updates are kept in memory per document, each replacing the last, and written to
+ * the database once the document has been quiet for the debounce interval, once it has
+ * been dirty for the maximum delay, or straight away when the unwritten content grows
+ * past the size threshold. A document edited by many users is therefore written once
+ * per flush rather than once per user.
+ */
+public class DocumentPersister {
+
+    private static final Log log = Log.get(DocumentPersister.class);
+
+    private static final long DEFAULT_DEBOUNCE_MS = 2000;
+    private static final long DEFAULT_MAX_DELAY_MS = 10_000;
+    private static final long DEFAULT_MAX_DIRTY_BYTES = 4 * 1024 * 1024;
+
+    private final ServerMetrics metrics;
+    private final long debounceMs;
+    private final long maxDelayMs;
+    private final long maxDirtyBytes;
+
+    // Latest unwritten state of each document
+    private final Map<String, DirtyDocument> dirty = new ConcurrentHashMap<>();
+    private final AtomicLong dirtyBytes = new AtomicLong();
+
+    private final AtomicLong lastFlushLatencyMs = new AtomicLong();
+    private final AtomicLong maxFlushLatencyMs = new AtomicLong();
+    private final AtomicLong maxLagMs = new AtomicLong();
+
+    private final ScheduledExecutorService flusher;
+
+    public DocumentPersister(ServerMetrics metrics) {
+        this(metrics,
+             ServerConfig.getLong("PERSIST_DEBOUNCE_MS", DEFAULT_DEBOUNCE_MS),
+             ServerConfig.getLong("PERSIST_MAX_DELAY_MS", DEFAULT_MAX_DELAY_MS),
+             ServerConfig.getLong("PERSIST_MAX_DIRTY_BYTES", DEFAULT_MAX_DIRTY_BYTES));
+    }
+
+    public DocumentPersister(ServerMetrics metrics, long debounceMs, long maxDelayMs, long maxDirtyBytes) {
+        this.metrics = metrics;
+        this.debounceMs = debounceMs;
+        this.maxDelayMs = Math.max(debounceMs, maxDelayMs);
+        this.maxDirtyBytes = maxDirtyBytes;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "document-persister");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkMs = Math.max(50, Math.min(250, debounceMs / 2));
+        flusher.scheduleWithFixedDelay(() -> flush(false), checkMs, checkMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Told whether a document's content was written.
+     */
+    public interface WriteListener {
+        /**
+         * Called on the persister's thread once the content, or a later update that replaced
+         * it, has been written or the write has failed.
+         * @param saved Whether the write succeeded. A failed write is retried later without
+         *              telling the listener again.
+         */
+        void written(boolean saved);
+    }
+
+    /**
+     * Records the latest content of a document, to be written later.
+     * @param documentId The document ID.
+     * @param content The full document content.
+     * @param editorCode The session's editor code.
+     * @param viewerCode The session's viewer code.
+     */
+    public void markDirty(String documentId, String content, String editorCode, String viewerCode) {
+        markDirty(documentId, content, editorCode, viewerCode, null);
+    }
+
+    /**
+     * Records the latest content of a document, to be written later, and who to tell once it is.
+     * @param listener Told the outcome of the write, or null.
+     */
+    public void markDirty(String documentId, String content, String editorCode, String viewerCode, WriteListener listener) {
+        long now = System.currentTimeMillis();
+        long[] growth = new long[1];
+        dirty.compute(documentId, (id, old) -> {
+            List<WriteListener> listeners = new ArrayList<>();
+            if (old != null) {
+                listeners.addAll(old.listeners);
+            }
+            if (listener != null) {
+                listeners.add(listener);
+            }
+            if (old == null) {
+                growth[0] = content.length();
+                return new DirtyDocument(content, editorCode, viewerCode, now, now, listeners);
+            }
+            // Replaces the unwritten update, which is never written; whoever waits for it is told of this one
+            metrics.increment("persist.coalesced");
+            growth[0] = content.length() - old.content.length();
+            return new DirtyDocument(content, editorCode, viewerCode, old.firstDirtyAt, now, listeners);
+        });
+        metrics.increment("persist.updates");
+
+        if (dirtyBytes.addAndGet(growth[0]) > maxDirtyBytes && !flusher.isShutdown()) {
+            // Too much unwritten content; write everything now rather than waiting for quiet
+            flusher.execute(() -> flush(true));
+        }
+    }
+
+    /**
+     * Writes every dirty document now and stops the background flusher.
+     * Called on shutdown, after the last update has been recorded.
+     */
+    public void flushAll() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int count = dirty.size();
+        flush(true);
+        log.info("Flushed " + count + " dirty documents on shutdown");
+    }
+
+    /**
+     * Gets the persistence statistics.
+     * @return The number of dirty documents and bytes, the age of the oldest unwritten update,
+     *         and the latest and largest flush latency and lag.
+     */
+    public Map<String, Long> getStats() {
+        long now = System.currentTimeMillis();
+        long oldest = 0;
+        for (DirtyDocument document : dirty.values()) {
+            oldest = Math.max(oldest, now - document.firstDirtyAt);
+        }
+        Map<String, Long> stats = new HashMap<>();
+        stats.put("dirtyDocuments", (long) dirty.size());
+        stats.put("dirtyBytes", dirtyBytes.get());
+        stats.put("currentLagMs", oldest);
+        stats.put("lastFlushLatencyMs", lastFlushLatencyMs.get());
+        stats.put("maxFlushLatencyMs", maxFlushLatencyMs.get());
+        stats.put("maxLagMs", maxLagMs.get());
+        return stats;
+    }
+
+    /**
+     * Writes the documents that are due, or all of them.
+     */
+    private void flush(boolean all) {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, DirtyDocument> entry : dirty.entrySet()) {
+                DirtyDocument document = entry.getValue();
+                boolean due = all || now - document.lastDirtyAt >= debounceMs || now - document.firstDirtyAt >= maxDelayMs;
+                // Skip it if a newer update replaced it since we looked; that one is written later
+                if (due && dirty.remove(entry.getKey(), document)) {
+                    dirtyBytes.addAndGet(-document.content.length());
+                    write(entry.getKey(), document);
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error flushing documents: " + e.getMessage());
+        }
+    }
+
+    private void write(String documentId, DirtyDocument document) {
+        long start = System.nanoTime();
+        boolean saved;
+        try {
+            saved = DatabaseService.getInstance().updateDocumentWithSession(
+                    documentId, document.content, document.editorCode, document.viewerCode);
+        } catch (Exception e) {
+            log.error("Error persisting document " + documentId + ": " + e.getMessage());
+            saved = false;
+        }
+        long latencyMs = (System.nanoTime() - start) / 1_000_000;
+        long lagMs = System.currentTimeMillis() - document.firstDirtyAt;
+
+        lastFlushLatencyMs.set(latencyMs);
+        maxFlushLatencyMs.accumulateAndGet(latencyMs, Math::max);
+        maxLagMs.accumulateAndGet(lagMs, Math::max);
+        metrics.add("persist.flush_latency_ms", latencyMs);
+        metrics.add("persist.lag_ms", lagMs);
+
+        if (saved) {
+            metrics.increment("persist.writes");
+        } else {
+            metrics.increment("persist.failures");
+            // Retry after another debounce interval, unless a newer update has already taken its place
+            DirtyDocument retry = new DirtyDocument(document.content, document.editorCode, document.viewerCode,
+                                                    document.firstDirtyAt, System.currentTimeMillis(), List.of());
+            if (dirty.putIfAbsent(documentId, retry) == null) {
+                dirtyBytes.addAndGet(document.content.length());
+            }
+        }
+
+        for (WriteListener listener : document.listeners) {
+            try {
+                listener.written(saved);
+            } catch (Exception e) {
+                log.error("Error in document write listener: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Unwritten state of one document.
+     */
+    private static class DirtyDocument {
+        private final String content;
+        private final String editorCode;
+        private final String viewerCode;
+        private final long firstDirtyAt;
+        private final long lastDirtyAt;
+        private final List<WriteListener> listeners;
+
+        DirtyDocument(String content, String editorCode, String viewerCode, long firstDirtyAt, long lastDirtyAt,
+                      List<WriteListener> listeners) {
+            this.content = content;
+            this.editorCode = editorCode;
+            this.viewerCode = viewerCode;
+            this.firstDirtyAt = firstDirtyAt;
+            this.lastDirtyAt = lastDirtyAt;
+            this.listeners = listeners;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.project.network;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Session bus that delivers messages to subscribers in this process only.
+ * Publishing calls each subscriber of the topics directly on the publishing thread.
+ */
+public class InProcessSessionBus implements SessionBus {
+
+    private final Map<String, CopyOnWriteArrayList<Subscriber>> subscribers = new ConcurrentHashMap<>();
+
+    @Override
+    public void subscribe(String topic, Subscriber subscriber) {
+        subscribers.computeIfAbsent(topic, key -> new CopyOnWriteArrayList<>()).addIfAbsent(subscriber);
+    }
+
+    @Override
+    public void unsubscribe(String topic, Subscriber subscriber) {
+        subscribers.computeIfPresent(topic, (key, list) -> {
+            list.remove(subscriber);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    @Override
+    public void publish(Collection<String> topics, String message, String excludeUserId) {
+        for (Subscriber subscriber : subscribersOf(topics)) {
+            subscriber.deliver(message, excludeUserId);
+        }
+    }
+
+    @Override
+    public void publishRemote(Collection<String> topics, String message) {
+        // No other processes to reach
+    }
+
+    @Override
+    public boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Delivers messages from another process to this process's subscribers of the topics.
+     * @param topics The topics the messages were published under.
+     * @param messages The messages, in publication order.
+     */
+    void deliverRemote(Collection<String> topics, List<String> messages) {
+        for (Subscriber subscriber : subscribersOf(topics)) {
+            subscriber.deliverRemote(messages);
+        }
+    }
+
+    /**
+     * Gets the subscribers of any of the topics, each once.
+     */
+    private Collection<Subscriber> subscribersOf(Collection<String> topics) {
+        if (topics.size() == 1) {
+            List<Subscriber> list = subscribers.get(topics.iterator().next());
+            return list != null ? list : Collections.emptyList();
+        }
+        Set<Subscriber> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (String topic : topics) {
+            List<Subscriber> list = subscribers.get(topic);
+            if (list != null) {
+                result.addAll(list);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        subscribers.clear();
+    }
+}
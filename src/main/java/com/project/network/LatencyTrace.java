@@ -0,0 +1,175 @@
+package com.project.network;
+
+import com.google.gson.JsonObject;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * End-to-end latency tracing of edits, from the keystroke on one client to the edit
+ * being applied on another.
+ * An insert or delete carries the time it was made (originAt), and picks up a stamp at
+ * each hop: when the client writes it to the connection (sentAt), when the server reads
+ * it (receivedAt) and when the server sequences it and fans it out (fanoutAt). The client
+ * that applies it then has every hop. All stamps are microseconds on the server's clock:
+ * each client estimates its offset from the server with an NTP style exchange of
+ * clock_sync messages and adds it to its own clock, so hops between machines come out
+ * right to within half the round trip of the best exchange.
+ */
+public class LatencyTrace {
+
+    public static final String ORIGIN_AT = "originAt";
+    public static final String SENT_AT = "sentAt";
+    public static final String RECEIVED_AT = "receivedAt";
+    public static final String FANOUT_AT = "fanoutAt";
+
+    // Hops, in the order an edit goes through them
+    public static final String HOP_CLIENT_QUEUE = "client_queue";
+    public static final String HOP_UPLINK = "uplink";
+    public static final String HOP_SERVER = "server";
+    public static final String HOP_DOWNLINK = "downlink_apply";
+    public static final String HOP_END_TO_END = "end_to_end";
+
+    // Clock sync exchanges kept, of which the one with the shortest round trip is used
+    private static final int CLOCK_SAMPLES = 8;
+
+    private final long[][] clockSamples = new long[CLOCK_SAMPLES][];
+    private int nextClockSample = 0;
+    private volatile long clockOffsetMicros = 0;
+    private volatile long clockSyncRoundTripMicros = -1;
+
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the current time of the local clock.
+     * @return Microseconds since the epoch.
+     */
+    public static long nowMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
+    }
+
+    /**
+     * Gets the current time on the server's clock, as far as this client can tell.
+     * @return Microseconds since the epoch.
+     */
+    public long serverNowMicros() {
+        return nowMicros() + clockOffsetMicros;
+    }
+
+    /**
+     * Stamps an edit with the time it was made.
+     * @param message The insert or delete message.
+     */
+    void stampOrigin(JsonObject message) {
+        message.addProperty(ORIGIN_AT, serverNowMicros());
+    }
+
+    /**
+     * Stamps a traced edit with the time it is written to the connection. Other messages
+     * are returned as they are, without looking past their type.
+     * @param message The encoded message, as produced by Gson with the type first.
+     * @return The message to write.
+     */
+    String stampSent(String message) {
+        if (!(message.startsWith("{\"type\":\"insert\"") || message.startsWith("{\"type\":\"delete\""))
+                || !message.contains("\"" + ORIGIN_AT + "\"")) {
+            return message;
+        }
+        return message.substring(0, message.length() - 1) + ",\"" + SENT_AT + "\":" + serverNowMicros() + "}";
+    }
+
+    /**
+     * Creates a clock_sync request carrying our send time.
+     * @return The message.
+     */
+    JsonObject createClockSync() {
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "clock_sync");
+        message.addProperty("t0", nowMicros());
+        return message;
+    }
+
+    /**
+     * Takes in the server's answer to a clock_sync request and updates the clock offset.
+     * @param message The answer, holding our send time t0 and the server's receive and
+     *                send times t1 and t2.
+     */
+    synchronized void acceptClockSync(JsonObject message) {
+        long t3 = nowMicros();
+        long t0 = message.get("t0").getAsLong();
+        long t1 = message.get("t1").getAsLong();
+        long t2 = message.get("t2").getAsLong();
+        long roundTrip = (t3 - t0) - (t2 - t1);
+        long offset = ((t1 - t0) + (t2 - t3)) / 2;
+        clockSamples[nextClockSample] = new long[] {roundTrip, offset};
+        nextClockSample = (nextClockSample + 1) % CLOCK_SAMPLES;
+
+        // The exchange with the least time on the wire has the least room for asymmetry
+        long[] best = null;
+        for (long[] sample : clockSamples) {
+            if (sample != null && (best == null || sample[0] < best[0])) {
+                best = sample;
+            }
+        }
+        clockSyncRoundTripMicros = best[0];
+        clockOffsetMicros = best[1];
+    }
+
+    /**
+     * Records the hops of a remote edit that has just been applied.
+     * @param message The insert or delete message as received from the server.
+     */
+    void recordApplied(JsonObject message) {
+        if (!message.has(ORIGIN_AT) || !message.has(FANOUT_AT)) {
+            return;
+        }
+        long applied = serverNowMicros();
+        long origin = message.get(ORIGIN_AT).getAsLong();
+        long received = message.get(RECEIVED_AT).getAsLong();
+        long fanout = message.get(FANOUT_AT).getAsLong();
+        if (message.has(SENT_AT)) {
+            long sent = message.get(SENT_AT).getAsLong();
+            record(HOP_CLIENT_QUEUE, sent - origin);
+            record(HOP_UPLINK, received - sent);
+        }
+        record(HOP_SERVER, fanout - received);
+        record(HOP_DOWNLINK, applied - fanout);
+        record(HOP_END_TO_END, applied - origin);
+    }
+
+    /**
+     * Records one hop.
+     * @param hop The hop name.
+     * @param micros Its duration in microseconds.
+     */
+    public void record(String hop, long micros) {
+        histograms.computeIfAbsent(hop, key -> new LatencyHistogram()).record(micros);
+    }
+
+    /**
+     * Gets the histograms recorded so far.
+     * @return The histograms keyed by hop name, which keep counting.
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Gets the estimated offset of the server's clock from ours.
+     * @return The offset in microseconds, 0 before the first clock_sync answer.
+     */
+    public long getClockOffsetMicros() {
+        return clockOffsetMicros;
+    }
+
+    /**
+     * Gets the round trip time of the clock_sync exchange the offset was taken from.
+     * @return The round trip time in microseconds, or -1 before the first answer.
+     */
+    public long getClockSyncRoundTripMicros() {
+        return clockSyncRoundTripMicros;
+    }
+}
@@ -0,0 +1,504 @@
+package com.project.network;
+
+import com.project.crdt.CRDTCharacter;
+import com.project.crdt.CRDTDocument;
+import com.project.crdt.Position;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator for a single server.
+ * Starts a number of sessions, each with simulated editors and viewers that use the real
+ * {@link NetworkClient} (headless) and keep their own CRDT replica of the document.
+ * Editors type at a fixed rate in one of a few edit patterns and every user moves its
+ * cursor. At the end it reports edit throughput, fan-out latency percentiles (from an
+ * editor's send to each other member's receipt), the server's CPU time and the heap, and
+ * the edits that never arrived and replicas that ended up different from their session.
+ *
+ * Runs against a server started in the same process unless LOADGEN_SERVER gives the URI
+ * of one already running, in which case server CPU is not measured. The heap figure is
+ * for this process and includes the simulated clients.
+ *
+ * Settings (environment variables or system properties):
+ * LOADGEN_SESSIONS (10), LOADGEN_EDITORS (3) and LOADGEN_VIEWERS (2) per session,
+ * LOADGEN_SECONDS (30), LOADGEN_EDIT_RATE (5 edits/s per editor), LOADGEN_CURSOR_RATE
+ * (5 moves/s per user), LOADGEN_PATTERN (typing, random or burst) and LOADGEN_SERVER.
+ *
+ * Usage: mvn -q compile exec:java -Dexec.mainClass=com.project.network.LoadGenerator -DLOADGEN_SESSIONS=50
+ */
+public class LoadGenerator {
+
+    // Edit patterns: typing appends at the cursor with the odd backspace, random edits
+    // anywhere, burst pastes a run of characters at once
+    private static final String PATTERN_TYPING = "typing";
+    private static final String PATTERN_RANDOM = "random";
+    private static final String PATTERN_BURST = "burst";
+    private static final int BURST_LENGTH = 20;
+
+    // Thread name prefixes of the server's threads, for its CPU time
+    private static final String[] SERVER_THREADS = {
+        "WebSocketSelector", "WebSocketWorker", "session-worker", "presence-ticker", "connection-lifecycle"
+    };
+
+    private final int sessions = ServerConfig.getInt("LOADGEN_SESSIONS", 10);
+    private final int editors = ServerConfig.getInt("LOADGEN_EDITORS", 3);
+    private final int viewers = ServerConfig.getInt("LOADGEN_VIEWERS", 2);
+    private final int seconds = ServerConfig.getInt("LOADGEN_SECONDS", 30);
+    private final int editRate = ServerConfig.getInt("LOADGEN_EDIT_RATE", 5);
+    private final int cursorRate = ServerConfig.getInt("LOADGEN_CURSOR_RATE", 5);
+    private final String pattern = ServerConfig.get("LOADGEN_PATTERN") != null ? ServerConfig.get("LOADGEN_PATTERN") : PATTERN_TYPING;
+
+    private final LongAdder editsSent = new LongAdder();
+    private final LongAdder editsReceived = new LongAdder();
+    private final LongAdder cursorsSent = new LongAdder();
+    private final AtomicInteger joinFailures = new AtomicInteger();
+    private final AtomicInteger connectFailures = new AtomicInteger();
+    private final AtomicLong peakHeapBytes = new AtomicLong();
+
+    // Inserts on their way to the other members of their session, by position
+    private final Map<Position, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Long> latenciesMicros = new ConcurrentLinkedQueue<>();
+
+    public static void main(String[] args) throws Exception {
+        new LoadGenerator().run();
+    }
+
+    private void run() throws Exception {
+        String serverUri = ServerConfig.get("LOADGEN_SERVER");
+        CollaborativeEditorServer server = null;
+        if (serverUri == null) {
+            int port = freePort();
+            server = new CollaborativeEditorServer(port);
+            server.start();
+            awaitListening(port);
+            serverUri = "ws://localhost:" + port;
+        }
+
+        System.out.println("Server: " + serverUri + (server != null ? " (in process)" : ""));
+        System.out.println(sessions + " sessions x (" + editors + " editors + " + viewers + " viewers), " +
+                           editRate + " edits/s per editor (" + pattern + "), " +
+                           cursorRate + " cursor moves/s per user, " + seconds + " s");
+
+        // Connect and join everyone
+        List<SimulatedUser> users = new ArrayList<>();
+        CountDownLatch joined = new CountDownLatch(sessions * (editors + viewers));
+        long connectStart = System.nanoTime();
+        for (int s = 0; s < sessions; s++) {
+            List<SimulatedUser> members = new ArrayList<>();
+            for (int u = 0; u < editors + viewers; u++) {
+                SimulatedUser user = new SimulatedUser("load" + s + "u" + u, "load" + s, u < editors, members, joined);
+                if (user.connect(serverUri)) {
+                    members.add(user);
+                    users.add(user);
+                } else {
+                    connectFailures.incrementAndGet();
+                    joined.countDown();
+                }
+            }
+        }
+        if (!joined.await(60, TimeUnit.SECONDS)) {
+            System.err.println("Timed out waiting for joins (" + joined.getCount() + " outstanding)");
+        }
+        System.out.printf("Connected %d users in %.1f s (%d connect failures, %d join failures)%n",
+                          users.size(), (System.nanoTime() - connectStart) / 1e9, connectFailures.get(), joinFailures.get());
+        if (users.isEmpty()) {
+            stop(server);
+            return;
+        }
+
+        // Drive everyone from a small pool, spreading the first ticks over one period
+        ScheduledExecutorService drivers = Executors.newScheduledThreadPool(4);
+        Random jitter = new Random(42);
+        long editPeriodMicros = 1_000_000L / Math.max(1, editRate);
+        long cursorPeriodMicros = 1_000_000L / Math.max(1, cursorRate);
+        for (SimulatedUser user : users) {
+            if (user.editor && editRate > 0) {
+                drivers.scheduleAtFixedRate(user::edit, jitter.nextInt((int) editPeriodMicros), editPeriodMicros, TimeUnit.MICROSECONDS);
+            }
+            if (cursorRate > 0) {
+                drivers.scheduleAtFixedRate(user::moveCursor, jitter.nextInt((int) cursorPeriodMicros), cursorPeriodMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        drivers.scheduleAtFixedRate(this::sampleHeap, 0, 1, TimeUnit.SECONDS);
+
+        long cpuBefore = serverCpuNanos(server);
+        long start = System.nanoTime();
+        Thread.sleep(seconds * 1000L);
+        drivers.shutdownNow();
+        long elapsedNanos = System.nanoTime() - start;
+        long cpuNanos = serverCpuNanos(server) - cpuBefore;
+
+        // Wait until edits stop arriving before comparing replicas
+        awaitQuiet();
+
+        report(users, server, elapsedNanos, cpuNanos);
+
+        for (SimulatedUser user : users) {
+            user.client.close();
+        }
+        stop(server);
+    }
+
+    private void report(List<SimulatedUser> users, CollaborativeEditorServer server, long elapsedNanos, long cpuNanos) {
+        double elapsedSeconds = elapsedNanos / 1e9;
+        long sent = editsSent.sum();
+        long received = editsReceived.sum();
+
+        // Every member should have received every edit sent by the others in its session
+        long expected = 0;
+        long dropped = 0;
+        for (SimulatedUser user : users) {
+            long shouldHave = 0;
+            for (SimulatedUser other : user.members) {
+                if (other != user) {
+                    shouldHave += other.sent.get();
+                }
+            }
+            expected += shouldHave;
+            dropped += Math.max(0, shouldHave - user.received.get());
+        }
+
+        // Replicas that differ from the text most members of their session have
+        int divergedReplicas = 0;
+        int divergedSessions = 0;
+        Map<List<SimulatedUser>, Boolean> visited = new IdentityHashMap<>();
+        for (SimulatedUser user : users) {
+            if (visited.put(user.members, Boolean.TRUE) != null) {
+                continue;
+            }
+            Map<String, Integer> texts = new HashMap<>();
+            for (SimulatedUser member : user.members) {
+                texts.merge(member.text(), 1, Integer::sum);
+            }
+            int majority = texts.values().stream().max(Integer::compare).orElse(0);
+            if (texts.size() > 1) {
+                divergedSessions++;
+                divergedReplicas += user.members.size() - majority;
+            }
+        }
+
+        long[] latencies = new long[latenciesMicros.size()];
+        int count = 0;
+        for (Long latency : latenciesMicros) {
+            if (count < latencies.length) {
+                latencies[count++] = latency;
+            }
+        }
+        Arrays.sort(latencies, 0, count);
+
+        System.out.println("==================================================");
+        System.out.printf("Edits sent:        %d (%.0f/s), cursor moves sent: %d (%.0f/s)%n",
+                          sent, sent / elapsedSeconds, cursorsSent.sum(), cursorsSent.sum() / elapsedSeconds);
+        System.out.printf("Edits delivered:   %d of %d expected (%.0f/s)%n", received, expected, received / elapsedSeconds);
+        if (count > 0) {
+            System.out.printf("Fan-out latency:   p50 %.2f ms, p95 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                              percentile(latencies, count, 0.50), percentile(latencies, count, 0.95),
+                              percentile(latencies, count, 0.99), latencies[count - 1] / 1000.0);
+        }
+        if (server != null) {
+            System.out.printf("Server CPU:        %.1f s (%.0f%% of one core)%n",
+                              cpuNanos / 1e9, 100.0 * cpuNanos / elapsedNanos);
+        }
+        System.out.printf("Heap:              peak %d MB used, %d MB max%n",
+                          peakHeapBytes.get() >> 20, Runtime.getRuntime().maxMemory() >> 20);
+        System.out.printf("Dropped edits:     %d%n", dropped);
+        System.out.printf("Diverged replicas: %d in %d of %d sessions%n", divergedReplicas, divergedSessions, visited.size());
+        if (server != null) {
+            System.out.println("Shed by server:    " + server.getSheddingStats());
+        }
+        System.out.println("==================================================");
+    }
+
+    private static double percentile(long[] sorted, int count, double fraction) {
+        return sorted[Math.min(count - 1, (int) (count * fraction))] / 1000.0;
+    }
+
+    private void sampleHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        peakHeapBytes.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+    }
+
+    /**
+     * Adds up the CPU time of the in-process server's threads.
+     */
+    private static long serverCpuNanos(CollaborativeEditorServer server) {
+        if (server == null) {
+            return 0;
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isThreadCpuTimeSupported()) {
+            return 0;
+        }
+        long total = 0;
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info == null) {
+                continue;
+            }
+            for (String prefix : SERVER_THREADS) {
+                if (info.getThreadName().startsWith(prefix)) {
+                    total += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+                    break;
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Waits for edits in flight to arrive: until nothing has been received for a second,
+     * or ten seconds at most.
+     */
+    private void awaitQuiet() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        long last = -1;
+        while (System.currentTimeMillis() < deadline) {
+            Thread.sleep(1000);
+            long now = editsReceived.sum();
+            if (now == last) {
+                return;
+            }
+            last = now;
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static void awaitListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", port), 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static void stop(CollaborativeEditorServer server) throws InterruptedException {
+        if (server != null) {
+            server.stop(1000);
+        }
+    }
+
+    /**
+     * An edit on its way to the other members of its session.
+     */
+    private static final class InFlight {
+        private final long sentAt = System.nanoTime();
+        private final AtomicInteger remaining;
+
+        InFlight(int receivers) {
+            this.remaining = new AtomicInteger(receivers);
+        }
+    }
+
+    /**
+     * One simulated user: a headless client with its own replica of the document.
+     * The replica is guarded by its own lock, since local edits come from the driver
+     * threads and remote ones from the socket's thread.
+     */
+    private class SimulatedUser {
+        private final String userId;
+        private final String sessionCode;
+        private final boolean editor;
+        private final List<SimulatedUser> members;
+        private final CountDownLatch joined;
+        private final NetworkClient client;
+        private final CRDTDocument document;
+        private final Random random;
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong received = new AtomicLong();
+        private volatile boolean inSession = false;
+        private volatile int cursor = 0;
+
+        SimulatedUser(String userId, String sessionCode, boolean editor, List<SimulatedUser> members, CountDownLatch joined) {
+            this.userId = userId;
+            this.sessionCode = sessionCode;
+            this.editor = editor;
+            this.members = members;
+            this.joined = joined;
+            this.document = new CRDTDocument(userId);
+            this.random = new Random(userId.hashCode());
+            this.client = new NetworkClient(userId, userId, NetworkClient.INLINE);
+            client.addOperationListener(this::onOperation);
+            client.addCodeListener(codes -> {
+                if (!inSession) {
+                    inSession = true;
+                    joined.countDown();
+                }
+            });
+            client.addErrorListener(error -> {
+                if (!inSession) {
+                    joinFailures.incrementAndGet();
+                    joined.countDown();
+                }
+            });
+        }
+
+        boolean connect(String serverUri) {
+            client.setServerUri(serverUri);
+            if (!client.connect()) {
+                return false;
+            }
+            client.joinSession(sessionCode, editor);
+            return true;
+        }
+
+        String text() {
+            synchronized (document) {
+                return document.getText();
+            }
+        }
+
+        private void onOperation(Operation operation) {
+            switch (operation.getType()) {
+                case INSERT: {
+                    CRDTCharacter character = operation.getCharacter();
+                    synchronized (document) {
+                        document.remoteInsert(character);
+                    }
+                    received();
+                    InFlight edit = inFlight.get(character.getPosition());
+                    if (edit != null) {
+                        latenciesMicros.add((System.nanoTime() - edit.sentAt) / 1000);
+                        if (edit.remaining.decrementAndGet() <= 0) {
+                            inFlight.remove(character.getPosition());
+                        }
+                    }
+                    break;
+                }
+                case DELETE:
+                    synchronized (document) {
+                        document.remoteDelete(operation.getPosition());
+                    }
+                    received();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void received() {
+            received.incrementAndGet();
+            editsReceived.increment();
+        }
+
+        /**
+         * Makes one edit according to the edit pattern. Runs on a driver thread.
+         */
+        void edit() {
+            if (!inSession) {
+                return;
+            }
+            try {
+                switch (pattern) {
+                    case PATTERN_RANDOM:
+                        if (random.nextInt(10) < 3) {
+                            delete(random.nextInt(Math.max(1, length())));
+                        } else {
+                            insert(random.nextInt(length() + 1));
+                        }
+                        break;
+                    case PATTERN_BURST:
+                        int at = Math.min(cursor, length());
+                        for (int i = 0; i < BURST_LENGTH; i++) {
+                            insert(at + i);
+                        }
+                        break;
+                    default:
+                        if (random.nextInt(10) == 0 && cursor > 0) {
+                            delete(Math.min(cursor, length()) - 1);
+                        } else {
+                            insert(Math.min(cursor, length()));
+                        }
+                        break;
+                }
+            } catch (Exception e) {
+                System.err.println("Edit by " + userId + " failed: " + e.getMessage());
+            }
+        }
+
+        private int length() {
+            synchronized (document) {
+                return document.length();
+            }
+        }
+
+        private void insert(int index) {
+            CRDTCharacter character;
+            synchronized (document) {
+                character = document.localInsert(index, (char) ('a' + random.nextInt(26)));
+            }
+            cursor = index + 1;
+            if (members.size() > 1) {
+                inFlight.put(character.getPosition(), new InFlight(members.size() - 1));
+            }
+            client.sendInsert(character);
+            sent();
+        }
+
+        private void delete(int index) {
+            CRDTCharacter character;
+            synchronized (document) {
+                if (index < 0 || index >= document.length()) {
+                    return;
+                }
+                character = document.localDelete(index);
+            }
+            if (character == null) {
+                return;
+            }
+            cursor = index;
+            client.sendDelete(character.getPosition());
+            sent();
+        }
+
+        private void sent() {
+            sent.incrementAndGet();
+            editsSent.increment();
+        }
+
+        /**
+         * Moves the cursor: editors to where they are typing, viewers somewhere random.
+         * Runs on a driver thread.
+         */
+        void moveCursor() {
+            if (!inSession) {
+                return;
+            }
+            int position = editor ? Math.min(cursor, length()) : random.nextInt(length() + 1);
+            if (!editor) {
+                cursor = position;
+            }
+            client.sendCursorMove(position);
+            cursorsSent.increment();
+        }
+    }
+}
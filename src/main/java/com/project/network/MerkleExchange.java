@@ -0,0 +1,153 @@
+package com.project.network;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.project.crdt.MerkleTree;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side of one anti-entropy exchange, which rebuilds the server's copy of the
+ * document from the parts of it this client already has.
+ * The server describes its tree top down, one level per round trip. Every server node
+ * whose hash is found in the local tree is taken from the local text; the others are
+ * expanded into their children, down to blocks, whose text is fetched. Only the
+ * differing regions and the hashes leading to them cross the network.
+ */
+class MerkleExchange {
+
+    private final MerkleTree local;
+    private final long version;
+    private final long seq;
+    private final long startedAt = System.currentTimeMillis();
+
+    private long rootHash;
+    private boolean rootIsBlock;
+
+    // What the server has told us so far: children of expanded nodes, as {hash, length, block}
+    private final Map<Long, long[][]> expanded = new HashMap<>();
+    private final Map<Long, String> fetched = new HashMap<>();
+    private long fetchedChars = 0;
+
+    /**
+     * Starts an exchange.
+     * @param local The local tree, which must not change until the exchange is over.
+     * @param version The content version the local tree was compared at.
+     * @param seq The last logged operation the local text includes.
+     */
+    MerkleExchange(MerkleTree local, long version, long seq) {
+        this.local = local;
+        this.version = version;
+        this.seq = seq;
+    }
+
+    long getVersion() {
+        return version;
+    }
+
+    long getSeq() {
+        return seq;
+    }
+
+    long getStartedAt() {
+        return startedAt;
+    }
+
+    long getFetchedChars() {
+        return fetchedChars;
+    }
+
+    /**
+     * Takes in a merkle_nodes message and works out what is still missing.
+     * @param message The message from the server.
+     * @return The merkle_request to send next, or null once the server's text can be built.
+     */
+    JsonObject accept(JsonObject message) {
+        rootHash = message.get("root").getAsLong();
+        rootIsBlock = message.get("rootBlock").getAsBoolean();
+
+        if (message.has("nodes")) {
+            for (Map.Entry<String, JsonElement> entry : message.getAsJsonObject("nodes").entrySet()) {
+                JsonArray children = entry.getValue().getAsJsonArray();
+                long[][] parsed = new long[children.size()][];
+                for (int i = 0; i < parsed.length; i++) {
+                    JsonArray child = children.get(i).getAsJsonArray();
+                    parsed[i] = new long[] {child.get(0).getAsLong(), child.get(1).getAsLong(), child.get(2).getAsLong()};
+                }
+                expanded.put(Long.parseLong(entry.getKey()), parsed);
+            }
+        }
+        if (message.has("blocks")) {
+            for (Map.Entry<String, JsonElement> entry : message.getAsJsonObject("blocks").entrySet()) {
+                String text = entry.getValue().getAsString();
+                fetched.put(Long.parseLong(entry.getKey()), text);
+                fetchedChars += text.length();
+            }
+        }
+
+        List<Long> expand = new ArrayList<>();
+        List<Long> fetch = new ArrayList<>();
+        findMissing(rootHash, rootIsBlock, expand, fetch);
+        if (expand.isEmpty() && fetch.isEmpty()) {
+            return null;
+        }
+
+        JsonObject request = new JsonObject();
+        request.addProperty("type", "merkle_request");
+        request.addProperty("version", version);
+        request.add("expand", toJson(expand));
+        request.add("fetch", toJson(fetch));
+        return request;
+    }
+
+    /**
+     * Builds the server's text once nothing is missing.
+     * @return The text.
+     */
+    String buildText() {
+        StringBuilder text = new StringBuilder();
+        append(rootHash, text);
+        return text.toString();
+    }
+
+    private void findMissing(long hash, boolean block, List<Long> expand, List<Long> fetch) {
+        if (local.getNode(hash) != null || fetched.containsKey(hash)) {
+            return;
+        }
+        long[][] children = expanded.get(hash);
+        if (children != null) {
+            for (long[] child : children) {
+                findMissing(child[0], child[2] != 0, expand, fetch);
+            }
+        } else if (block) {
+            fetch.add(hash);
+        } else {
+            expand.add(hash);
+        }
+    }
+
+    private void append(long hash, StringBuilder text) {
+        MerkleTree.Node node = local.getNode(hash);
+        if (node != null) {
+            text.append(local.getText(node));
+        } else if (fetched.containsKey(hash)) {
+            text.append(fetched.get(hash));
+        } else {
+            for (long[] child : expanded.get(hash)) {
+                append(child[0], text);
+            }
+        }
+    }
+
+    private static JsonArray toJson(List<Long> hashes) {
+        JsonArray array = new JsonArray();
+        for (long hash : hashes) {
+            array.add(hash);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,240 @@
+package com.project.network;
+
+import com.project.util.Log;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the server's metrics over HTTP at /metrics in the Prometheus text format.
+ * Counters and histograms come from the server's and the database service's
+ * {@link ServerMetrics}, and edit hop latencies from the server's {@link LatencyTrace}
+ * as summaries; session sizes, outbound queues and persistence are read as gauges
+ * when scraped. Listens on METRICS_PORT, where 0 turns the endpoint off, at METRICS_HOST.
+ * The endpoint has no authentication, so it only listens on the loopback interface unless
+ * METRICS_HOST names another address to reach it from.
+ */
+public class MetricsEndpoint {
+
+    private static final Log log = Log.get(MetricsEndpoint.class);
+
+    private static final int DEFAULT_PORT = 9464;
+    private static final String DEFAULT_HOST = "127.0.0.1";
+    private static final String PREFIX = "collab_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final CollaborativeEditorServer server;
+    private final String host;
+    private final int port;
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    MetricsEndpoint(CollaborativeEditorServer server, String host, int port) {
+        this.server = server;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Creates the endpoint for a server from METRICS_HOST and METRICS_PORT.
+     * @param server The server whose metrics are served.
+     * @return The endpoint, or null if METRICS_PORT is 0.
+     */
+    public static MetricsEndpoint fromConfig(CollaborativeEditorServer server) {
+        int port = ServerConfig.getInt("METRICS_PORT", DEFAULT_PORT);
+        String host = ServerConfig.get("METRICS_HOST");
+        return port > 0 ? new MetricsEndpoint(server, host != null ? host : DEFAULT_HOST, port) : null;
+    }
+
+    /**
+     * Starts listening. A port that cannot be bound is logged and the server runs without metrics.
+     */
+    public synchronized void start() {
+        try {
+            httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+        } catch (IOException e) {
+            log.warn("Could not start metrics endpoint on " + host + ":" + port + ": " + e.getMessage());
+            return;
+        }
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/metrics", this::handle);
+        httpServer.start();
+        log.info("Metrics served on " + host + ":" + port + " at /metrics");
+    }
+
+    /**
+     * Stops listening.
+     */
+    public synchronized void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+            httpServer = null;
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (RuntimeException e) {
+            log.error("Error rendering metrics: " + e.getMessage());
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Renders every metric in the Prometheus text format.
+     * @return The exposition text.
+     */
+    String render() {
+        StringBuilder out = new StringBuilder();
+        Set<String> typed = new HashSet<>();
+        for (ServerMetrics metrics : new ServerMetrics[] {server.getMetrics(), DatabaseService.getMetrics()}) {
+            for (Map.Entry<String, Long> counter : metrics.snapshot().entrySet()) {
+                String[] name = split(counter.getKey());
+                String metric = PREFIX + name[0] + "_total";
+                type(out, typed, metric, "counter");
+                sample(out, metric, name[1], counter.getValue());
+            }
+            for (Map.Entry<String, ServerMetrics.Histogram> entry : metrics.histograms().entrySet()) {
+                String[] name = split(entry.getKey());
+                renderHistogram(out, typed, PREFIX + name[0], name[1], entry.getValue());
+            }
+        }
+        renderEditHops(out);
+        renderSessions(out);
+        renderOutboundQueues(out);
+        for (Map.Entry<String, Long> stat : new TreeMap<>(server.getPersistenceStats()).entrySet()) {
+            gauge(out, PREFIX + "persistence_" + snakeCase(stat.getKey()), stat.getValue());
+        }
+        return out.toString();
+    }
+
+    private void renderHistogram(StringBuilder out, Set<String> typed, String metric, String labels,
+                                 ServerMetrics.Histogram histogram) {
+        type(out, typed, metric, "histogram");
+        double[] bounds = histogram.getBounds();
+        long[] counts = histogram.getCumulativeCounts();
+        String separator = labels.isEmpty() ? "" : labels + ",";
+        for (int i = 0; i < bounds.length; i++) {
+            sample(out, metric + "_bucket", separator + "le=\"" + bounds[i] + "\"", counts[i]);
+        }
+        long count = histogram.getCount();
+        sample(out, metric + "_bucket", separator + "le=\"+Inf\"", count);
+        sample(out, metric + "_sum", labels, histogram.getSum());
+        sample(out, metric + "_count", labels, count);
+    }
+
+    private void renderEditHops(StringBuilder out) {
+        String metric = PREFIX + "edit_hop_seconds";
+        out.append("# TYPE ").append(metric).append(" summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : server.getLatencyTrace().getHistograms().entrySet()) {
+            String hop = "hop=\"" + entry.getKey() + "\"";
+            LatencyHistogram histogram = entry.getValue();
+            for (double quantile : QUANTILES) {
+                sample(out, metric, hop + ",quantile=\"" + quantile + "\"",
+                        histogram.getPercentileMicros(quantile * 100) / 1e6);
+            }
+            sample(out, metric + "_sum", hop, histogram.getSumMicros() / 1e6);
+            sample(out, metric + "_count", hop, histogram.getCount());
+        }
+    }
+
+    private void renderSessions(StringBuilder out) {
+        Map<String, Map<String, Long>> sessions = new TreeMap<>(server.getSessionStats());
+        gauge(out, PREFIX + "sessions", sessions.size());
+        String users = PREFIX + "session_users";
+        String length = PREFIX + "session_document_chars";
+        out.append("# TYPE ").append(users).append(" gauge\n");
+        for (Map.Entry<String, Map<String, Long>> session : sessions.entrySet()) {
+            sample(out, users, "session=\"" + session.getKey() + "\"", session.getValue().get("users"));
+        }
+        out.append("# TYPE ").append(length).append(" gauge\n");
+        for (Map.Entry<String, Map<String, Long>> session : sessions.entrySet()) {
+            sample(out, length, "session=\"" + session.getKey() + "\"", session.getValue().get("documentLength"));
+        }
+    }
+
+    private void renderOutboundQueues(StringBuilder out) {
+        Map<String, Map<String, Long>> queues = server.getOutboundQueueStats();
+        long depth = 0;
+        long maxDepth = 0;
+        long pendingBytes = 0;
+        long underPressure = 0;
+        for (Map<String, Long> stats : queues.values()) {
+            depth += stats.get("depth");
+            maxDepth = Math.max(maxDepth, stats.get("depth"));
+            pendingBytes += stats.get("pendingBytes");
+            underPressure += stats.get("underPressure");
+        }
+        // Totals and the worst connection only; a series per connection would grow without bound
+        gauge(out, PREFIX + "connections", queues.size());
+        gauge(out, PREFIX + "outbound_queue_depth", depth);
+        gauge(out, PREFIX + "outbound_queue_depth_max", maxDepth);
+        gauge(out, PREFIX + "outbound_pending_bytes", pendingBytes);
+        gauge(out, PREFIX + "outbound_connections_under_pressure", underPressure);
+    }
+
+    private static void gauge(StringBuilder out, String metric, long value) {
+        out.append("# TYPE ").append(metric).append(" gauge\n");
+        sample(out, metric, "", value);
+    }
+
+    private static void type(StringBuilder out, Set<String> typed, String metric, String type) {
+        if (typed.add(metric)) {
+            out.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+        }
+    }
+
+    private static void sample(StringBuilder out, String metric, String labels, Object value) {
+        out.append(metric);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    /**
+     * Splits a {@link ServerMetrics} name into a Prometheus metric name and its labels.
+     * @return {name, labels without braces}.
+     */
+    private static String[] split(String name) {
+        int brace = name.indexOf('{');
+        String base = brace < 0 ? name : name.substring(0, brace);
+        String labels = brace < 0 ? "" : name.substring(brace + 1, name.length() - 1);
+        return new String[] {base.replaceAll("[^a-zA-Z0-9_]", "_"), labels};
+    }
+
+    private static String snakeCase(String name) {
+        return name.replaceAll("([a-z0-9])([A-Z])", "$1_$2").toLowerCase();
+    }
+}
@@ -1,54 +1,112 @@
 package com.project.network;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.project.crdt.CRDTCharacter;
+import com.project.crdt.ContentHash;
+import com.project.crdt.MerkleTree;
 import com.project.crdt.Position;
+import com.project.util.Log;
+import org.java_websocket.WebSocket;
 import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.framing.Framedata;
 import org.java_websocket.handshake.ServerHandshake;
 
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import javafx.application.Platform;
 
 /**
  * A WebSocket client for handling communication with the server.
  */
 public class NetworkClient {
+    private static final Log log = Log.get(NetworkClient.class);
+    
     // Use environment variable for server URL or fallback to localhost
     private static final String DEFAULT_SERVER_URI = getServerUriFromEnv();
     
+    // How often the document is compared with the server's copy, and how long after our
+    // last edit, so that edits still on their way don't count as differences
+    private static final long ANTI_ENTROPY_INTERVAL_MS = 10_000;
+    private static final long ANTI_ENTROPY_QUIET_MS = 3_000;
+    private static final long ANTI_ENTROPY_TIMEOUT_MS = 30_000;
+    
     private String userId;
     private String username;
+    private volatile String serverUri = DEFAULT_SERVER_URI;
     private WebSocketClient webSocketClient;
     private final Gson gson = new Gson();
     
+    /**
+     * Callback executor calling listeners directly on the thread the event arose on.
+     */
+    public static final Executor INLINE = Runnable::run;
+    
+    // Runs listener calls: on the JavaFX application thread unless another executor was given
+    private final Executor callbackExecutor;
+    
     private final List<Consumer<Operation>> operationListeners = new ArrayList<>();
     private final List<Consumer<Map<String, String>>> presenceListeners = new ArrayList<>();
     private final List<Consumer<String>> errorListeners = new ArrayList<>();
     private final List<Consumer<CodePair>> codeListeners = new ArrayList<>();
+    private final List<Consumer<SnapshotProgress>> snapshotListeners = new ArrayList<>();
     
     // Track current cursor position to avoid sending duplicates
     private volatile int lastSentCursorPosition = -1;
     
-    // Track if a cursor move operation is pending
-    private volatile boolean cursorMoveScheduled = false;
+    // How often the round trip time is measured with a ping
+    private static final long RTT_PROBE_INTERVAL_MS = 5_000;
+    private static final long RTT_PROBE_TIMEOUT_MS = 30_000;
+    
+    // Timers, anti-entropy and all sending run on this one thread; sending goes through
+    // the priority lanes of the outbound scheduler, and so does writing the outbox journal
+    private final ScheduledExecutorService scheduler = newScheduler();
+    private final OutboundScheduler outbound = new OutboundScheduler(scheduler, this::transmit);
+    private volatile long rttProbeSentAt = 0;
+    
+    // Reconnect delays after the connection is lost, doubling from the first to the last
+    private static final long RECONNECT_INITIAL_DELAY_MS = 1_000;
+    private static final long RECONNECT_MAX_DELAY_MS = 30_000;
+    private int reconnectAttempts = 0;
+    private boolean reconnectScheduled = false;
+    private volatile boolean disconnectRequested = false;
     
-    // Cursor position update throttling
-    private static final long CURSOR_MOVE_THROTTLE_MS = 40; // Reduced from 50ms to 40ms for smoother updates
-    private volatile long lastCursorMoveTime = 0;
+    // Our edits the server has not acknowledged, resent after a reconnect, and the token
+    // the server knows this client by within the current session
+    private final OperationOutbox outbox;
+    private volatile String resumeToken;
+    
+    // Whether the edits in the outbox were left by an earlier client and are sent on joining
+    private volatile boolean recoveringOutbox = false;
+    
+    // After the server sheds an edit, the outbox is sent again at the rate the server's
+    // edit limit allows, in batches this far apart; new edits wait their turn until then
+    private static final long RESEND_INTERVAL_MS = 100;
+    private volatile boolean resending = false;
+    private ScheduledFuture<?> resendTask;
+    private long lastResentClientSeq;
+    private int resendBatch;
+    
+    // Our estimate of the server's clock, and the hop latencies of other users' edits
+    private final LatencyTrace latencyTrace = new LatencyTrace();
     
     // Keep track of the last operation times
     private Map<String, Long> lastOperationTimes = new ConcurrentHashMap<>();
@@ -60,8 +118,50 @@ public class NetworkClient {
     
     private List<Consumer<Boolean>> connectionListeners = new ArrayList<>();
     
-    // Track seen document sync message IDs to prevent duplicates
-    private final Set<String> recentlySyncedDocuments = new HashSet<>();
+    // Merkle tree of our document, compared with the server's to find and repair differences
+    private final MerkleTree merkleTree = new MerkleTree();
+    private volatile MerkleExchange merkleExchange;
+    private volatile long merkleCheckStartedAt = 0;
+    private volatile Supplier<String> documentSupplier;
+    
+    // Snapshots being streamed to us, by snapshot ID; only touched by the socket's thread
+    private final Map<String, SnapshotAssembly> snapshots = new HashMap<>();
+    
+    // Content version of the last document sync applied for the current session (-1 = none)
+    private volatile long lastSyncVersion = -1;
+    
+    // Document content at lastSyncVersion, the base our outgoing patches are computed against,
+    // and its ContentHash, from which the hashes of patched content are worked out
+    private volatile String lastSyncContent;
+    private volatile long lastSyncHash;
+    
+    // Content of our latest update, until the server acknowledges the version holding it,
+    // with the last logged operation and the last of our own edits it includes
+    private volatile String pendingUpdateContent;
+    private volatile long pendingUpdateHash;
+    private volatile String pendingUpdateOperation;
+    private volatile long pendingUpdateLastSeq;
+    private volatile long pendingUpdateClientSeq;
+    
+    // The session we last joined, so an automatic reconnect can rejoin it
+    private volatile String currentSessionCode;
+    private volatile boolean currentSessionAsEditor;
+    private volatile boolean rejoinOnConnect = false;
+    
+    // Stored document being edited, so the server can persist it for the session
+    private volatile String documentId;
+    
+    // Saves waiting for the server to confirm the write, by request ID
+    private static final long SAVE_TIMEOUT_MS = 20_000;
+    private final Map<Long, Consumer<SaveResult>> pendingSaves = new ConcurrentHashMap<>();
+    private final AtomicLong nextSaveId = new AtomicLong();
+    
+    // Highest server sequence number seen for the current session (-1 = none)
+    private volatile long lastSeenSeq = -1;
+    
+    // Session roster kept up to date from presence snapshots and deltas
+    private final Map<String, String> sessionRoster = new HashMap<>();
+    private long presenceVersion = -1;
     
     /**
      * Returns the underlying WebSocketClient instance.
@@ -72,30 +172,64 @@ public class NetworkClient {
     }
     
     public NetworkClient(String userId) {
-        this.userId = userId;
-        this.username = userId; // Don't prefix with "User"
-        
-        // Start the sync history cleaner
-        startSyncHistoryCleaner();
+        this(userId, null);
     }
     
+    /**
+     * Creates a client that calls its listeners on the JavaFX application thread and keeps
+     * its unacknowledged edits in a journal on disk (see {@link OperationOutbox#forUser}),
+     * so edits an earlier client of the user never got to send go out when this one joins
+     * the same session.
+     * @param userId The user ID.
+     * @param username The username, or null to use the user ID.
+     */
     public NetworkClient(String userId, String username) {
+        this(userId, username, new FxExecutor(), OperationOutbox.forUser(userId));
+    }
+    
+    /**
+     * Creates a client that calls its listeners on the given executor instead of the
+     * JavaFX application thread, so it runs without JavaFX: in bots, load generators
+     * and benchmarks. {@link #INLINE} calls them directly on the socket's thread.
+     * Listeners are called in event order as long as the executor runs tasks in order.
+     * @param userId The user ID.
+     * @param username The username, or null to use the user ID.
+     * @param callbackExecutor Runs listener calls.
+     */
+    public NetworkClient(String userId, String username, Executor callbackExecutor) {
+        this(userId, username, callbackExecutor, new OperationOutbox());
+    }
+    
+    private NetworkClient(String userId, String username, Executor callbackExecutor, OperationOutbox outbox) {
         this.userId = userId;
-        this.username = username;
-        
-        // Start the sync history cleaner
-        startSyncHistoryCleaner();
+        this.outbox = outbox;
+        outbox.setJournalExecutor(scheduler);
+        this.username = username != null ? username : userId; // Don't prefix with "User"
+        this.callbackExecutor = callbackExecutor;
+        scheduleAntiEntropy();
+        scheduleRttProbe();
         
         // Send username update immediately after connection
-        addConnectionListener(connected -> {
-            if (connected) {
-                JsonObject usernameMessage = new JsonObject();
-                usernameMessage.addProperty("type", "update_username");
-                usernameMessage.addProperty("userId", userId);
-                usernameMessage.addProperty("username", username);
-                webSocketClient.send(gson.toJson(usernameMessage));
-            }
-        });
+        if (username != null) {
+            addConnectionListener(connected -> {
+                if (connected) {
+                    JsonObject usernameMessage = new JsonObject();
+                    usernameMessage.addProperty("type", "update_username");
+                    usernameMessage.addProperty("userId", userId);
+                    usernameMessage.addProperty("username", username);
+                    send(usernameMessage);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Sets the server to connect to, instead of the one from the environment.
+     * Takes effect on the next connect.
+     * @param serverUri The WebSocket URI of the server.
+     */
+    public void setServerUri(String serverUri) {
+        this.serverUri = serverUri;
     }
     
     /**
@@ -106,14 +240,15 @@ public class NetworkClient {
         try {
             // Check if already connected
             if (webSocketClient != null && webSocketClient.isOpen()) {
-                System.out.println("Already connected to WebSocket server");
+                log.info("Already connected to WebSocket server");
                 return true;
             }
             
-            System.out.println("Connecting to WebSocket server: " + DEFAULT_SERVER_URI);
+            log.info("Connecting to WebSocket server: " + serverUri);
+            disconnectRequested = false;
             
             // Log Java version for debugging
-            System.out.println("Java version: " + System.getProperty("java.version"));
+            log.info("Java version: " + System.getProperty("java.version"));
             
             // Enable SSL debugging if needed
             // System.setProperty("javax.net.debug", "ssl,handshake");
@@ -122,11 +257,15 @@ public class NetworkClient {
             purgeDisconnectedUsers();
             
             // Connect to the server
-            webSocketClient = new WebSocketClient(new URI(DEFAULT_SERVER_URI)) {
+            webSocketClient = new WebSocketClient(new URI(serverUri)) {
                 @Override
                 public void onOpen(ServerHandshake handshakedata) {
-                    System.out.println("Connected to WebSocket server");
+                    log.info("Connected to WebSocket server");
                     connected = true;
+                    rttProbeSentAt = 0;
+                    synchronized (NetworkClient.this) {
+                        reconnectAttempts = 0;
+                    }
                     notifyConnectionListeners(true);
                     
                     // First register our userId
@@ -136,6 +275,16 @@ public class NetworkClient {
                     if (username != null && !username.isEmpty()) {
                         sendPresenceUpdate();
                     }
+                    
+                    // Estimate the server's clock now rather than at the first probe
+                    scheduler.execute(NetworkClient.this::sendClockSync);
+                    
+                    // After an automatic reconnect, rejoin the session and catch up from our last sequence
+                    if (rejoinOnConnect && currentSessionCode != null) {
+                        rejoinOnConnect = false;
+                        log.info("Rejoining session " + currentSessionCode + " from sequence " + lastSeenSeq);
+                        joinSession(currentSessionCode, currentSessionAsEditor);
+                    }
                 }
                 
                 @Override
@@ -143,36 +292,48 @@ public class NetworkClient {
                     handleServerMessage(message);
                 }
                 
+                @Override
+                public void onWebsocketPong(WebSocket conn, Framedata f) {
+                    super.onWebsocketPong(conn, f);
+                    long sentAt = rttProbeSentAt;
+                    if (sentAt != 0) {
+                        rttProbeSentAt = 0;
+                        outbound.recordRtt((System.nanoTime() - sentAt) / 1_000_000.0);
+                    }
+                }
+                
                 @Override
                 public void onClose(int code, String reason, boolean remote) {
                     connected = false;
-                    System.out.println("Connection closed: " + reason + " (code: " + code + ")");
+                    log.info("Connection closed: " + reason + " (code: " + code + ")");
                     
                     // Clear presence data since we're no longer connected
                     lastKnownCursorPositions.clear();
                     
+                    // Snapshots cut off by the close are never finished; the rejoin sends a new one
+                    snapshots.clear();
+                    
+                    // Nothing queued can go out on this connection any more
+                    outbound.clear();
+                    
+                    // A save still waiting may or may not have been written
+                    failPendingSaves("Connection lost before the save was confirmed");
+                    
                     // Notify connection listeners
                     notifyConnectionListeners(false);
                     
-                    // Try to automatically reconnect after a delay if this was a remote closure
-                    if (remote) {
-                        new Thread(() -> {
-                            try {
-                                System.out.println("Attempting to reconnect in 3 seconds...");
-                                Thread.sleep(3000);
-                                connect();
-                            } catch (InterruptedException e) {
-                                Thread.currentThread().interrupt();
-                            }
-                        }).start();
+                    // Reconnect unless we closed the connection ourselves; edits made in
+                    // the meantime wait in the outbox
+                    if (!disconnectRequested && webSocketClient == this) {
+                        rejoinOnConnect = true;
+                        scheduleReconnect();
                     }
                 }
                 
                 @Override
                 public void onError(Exception ex) {
                     notifyErrorListeners("WebSocket error: " + ex.getMessage());
-                    System.err.println("WebSocket error: " + ex.getMessage());
-                    ex.printStackTrace();
+                    log.error("WebSocket error: " + ex.getMessage(), ex);
                     
                     // Attempt to reconnect after error
                     if (connected) {
@@ -188,32 +349,54 @@ public class NetworkClient {
             // Connect with timeout
             boolean success = false;
             try {
-                System.out.println("Attempting to connect with 10 second timeout...");
+                log.info("Attempting to connect with 10 second timeout...");
                 success = webSocketClient.connectBlocking(10, java.util.concurrent.TimeUnit.SECONDS);
             } catch (InterruptedException e) {
-                System.err.println("Connection interrupted: " + e.getMessage());
+                log.warn("Connection interrupted: " + e.getMessage());
                 Thread.currentThread().interrupt();
             }
             
             if (!success) {
-                System.err.println("Failed to connect to WebSocket server: " + DEFAULT_SERVER_URI);
-                notifyErrorListeners("Failed to connect to collaboration server at " + DEFAULT_SERVER_URI);
+                log.error("Failed to connect to WebSocket server: " + serverUri);
+                notifyErrorListeners("Failed to connect to collaboration server at " + serverUri);
                 return false;
             }
             
             return true;
         } catch (URISyntaxException e) {
             notifyErrorListeners("Invalid server URI: " + e.getMessage());
-            System.err.println("Invalid server URI: " + e.getMessage());
+            log.warn("Invalid server URI: " + e.getMessage());
             return false;
         } catch (Exception e) {
             notifyErrorListeners("Connection error: " + e.getMessage());
-            System.err.println("Connection error: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Connection error: " + e.getMessage(), e);
             return false;
         }
     }
     
+    /**
+     * Schedules a reconnect attempt, waiting twice as long after every failed attempt,
+     * with some jitter so that clients cut off together don't all come back at once.
+     */
+    private synchronized void scheduleReconnect() {
+        if (reconnectScheduled) {
+            return;
+        }
+        long delay = Math.min(RECONNECT_MAX_DELAY_MS, RECONNECT_INITIAL_DELAY_MS << Math.min(reconnectAttempts, 16));
+        delay = (long) (delay * (0.8 + 0.4 * Math.random()));
+        reconnectAttempts++;
+        reconnectScheduled = true;
+        log.info("Attempting to reconnect in " + delay + "ms (attempt " + reconnectAttempts + ")...");
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                reconnectScheduled = false;
+            }
+            if (!disconnectRequested && !connect()) {
+                scheduleReconnect();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
     /**
      * Sends user registration to the server.
      */
@@ -227,10 +410,10 @@ public class NetworkClient {
                     message.addProperty("username", username);
                 }
                 
-                webSocketClient.send(gson.toJson(message));
-                System.out.println("Registering with server as user: " + (username != null ? username : userId));
+                send(message);
+                log.info("Registering with server as user: " + (username != null ? username : userId));
             } catch (Exception e) {
-                System.err.println("Error sending registration: " + e.getMessage());
+                log.error("Error sending registration: " + e.getMessage());
             }
         }
     }
@@ -239,22 +422,52 @@ public class NetworkClient {
      * Disconnects from the server.
      */
     public void disconnect() {
+        disconnectRequested = true;
         if (webSocketClient != null && webSocketClient.isOpen()) {
             try {
                 webSocketClient.closeBlocking();
             } catch (InterruptedException e) {
-                System.err.println("Error disconnecting: " + e.getMessage());
+                log.error("Error disconnecting: " + e.getMessage());
             }
         }
         connected = false;
     }
     
+    /**
+     * Disconnects from the server for good and stops the client's scheduler thread.
+     * The client cannot connect again afterwards.
+     */
+    public void close() {
+        disconnect();
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        outbox.close();
+    }
+    
+    /**
+     * Creates the scheduler thread. Once it is shut down, timers that have not fired
+     * are cancelled and whatever is still handed to it is dropped.
+     */
+    private static ScheduledExecutorService newScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "network-client");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return executor;
+    }
+    
     /**
      * Sends an insert operation to the server.
      * @param character The character to insert.
      */
     public void sendInsert(CRDTCharacter character) {
-        if (!connected) {
+        if (!connected && currentSessionCode == null) {
             notifyErrorListeners("Not connected to server");
             return;
         }
@@ -273,8 +486,9 @@ public class NetworkClient {
         charObj.addProperty("authorId", character.getAuthorId());
         charObj.addProperty("timestamp", character.getTimestamp());
         message.add("character", charObj);
+        latencyTrace.stampOrigin(message);
         
-        webSocketClient.send(gson.toJson(message));
+        sendOperation(message);
     }
     
     /**
@@ -282,7 +496,7 @@ public class NetworkClient {
      * @param position The position to delete.
      */
     public void sendDelete(Position position) {
-        if (!connected) {
+        if (!connected && currentSessionCode == null) {
             notifyErrorListeners("Not connected to server");
             return;
         }
@@ -294,16 +508,18 @@ public class NetworkClient {
         message.addProperty("type", "delete");
         message.addProperty("userId", userId);
         message.add("position", gson.toJsonTree(position));
+        latencyTrace.stampOrigin(message);
         
         // Log for debugging
-        System.out.println("Sending DELETE operation for position: " + position);
+        log.debugSampled("delete", () -> "Sending DELETE operation for position: " + position);
         
-        webSocketClient.send(gson.toJson(message));
+        sendOperation(message);
     }
     
     /**
      * Sends a cursor move operation to the server.
-     * This method uses throttling to avoid sending too many updates.
+     * Moves are coalesced by the outbound scheduler, which sends only the latest position
+     * once per cursor interval, so a burst of moves costs one message.
      * @param position The new cursor position.
      */
     public void sendCursorMove(int position) {
@@ -315,74 +531,171 @@ public class NetworkClient {
         if (position == lastSentCursorPosition) {
             return;
         }
+        lastSentCursorPosition = position;
         
-        // Check if we recently sent an edit operation, if so, delay the cursor update
-        long now = System.currentTimeMillis();
-        long lastEditTime = Math.max(
-            lastOperationTimes.getOrDefault("insert", 0L),
-            lastOperationTimes.getOrDefault("delete", 0L)
-        );
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "cursor_move");
+        message.addProperty("userId", userId);
+        message.addProperty("position", position);
+        send(message);
+    }
+    
+    /**
+     * Stamps an edit with its client sequence number, keeps it in the outbox until the
+     * server acknowledges it, and sends it if we are connected.
+     * @param message The edit message.
+     */
+    private void sendOperation(JsonObject message) {
+        String encoded = outbox.add(message);
+        if (connected && !resending) {
+            outbound.send(message.get("type").getAsString(), encoded);
+        }
+    }
+    
+    /**
+     * Resends what the server doesn't have after joining: the edits it hasn't applied
+     * and our last document update if it was never acknowledged. If the server resumed
+     * our earlier state it tells us the last edit it applied; otherwise every edit still
+     * in the outbox goes out again.
+     * @param joinAck The join_session_ack message.
+     */
+    private void resumeOutbox(JsonObject joinAck) {
+        boolean resumed = joinAck.has("resumed") && joinAck.get("resumed").getAsBoolean();
+        if (joinAck.has("resumeToken")) {
+            String previousToken = resumeToken;
+            resumeToken = joinAck.get("resumeToken").getAsString();
+            if (!resumed && previousToken != null) {
+                log.info("Server did not resume our session state; resending all unacknowledged edits");
+            }
+        }
+        if (resumed && joinAck.has("appliedClientSeq")) {
+            outbox.acknowledge(joinAck.get("appliedClientSeq").getAsLong());
+        }
+        outbox.setSession(currentSessionCode, resumeToken);
         
-        // If we recently did an edit, send cursor updates less frequently
-        if (now - lastEditTime < 100) {
-            if (now - lastCursorMoveTime < CURSOR_MOVE_THROTTLE_MS * 2) { // Double the throttle time during edits
-                return;
+        List<String[]> unacknowledged = outbox.getUnacknowledged();
+        if (!unacknowledged.isEmpty()) {
+            log.info("Resending " + unacknowledged.size() + " unacknowledged edits");
+            for (String[] operation : unacknowledged) {
+                outbound.send(operation[0], operation[1]);
             }
         }
         
-        // Throttle updates
-        if (now - lastCursorMoveTime < CURSOR_MOVE_THROTTLE_MS) {
-            // If we're already scheduled to send an update, just update the position
-            if (cursorMoveScheduled) {
-                lastSentCursorPosition = position;
-                return;
+        if (recoveringOutbox) {
+            // The edits of the earlier client are not in our document and the server does not
+            // send our own edits back, so once it has logged them ask for the log's tail
+            recoveringOutbox = false;
+            if (!unacknowledged.isEmpty()) {
+                JsonObject resyncMsg = new JsonObject();
+                resyncMsg.addProperty("type", "request_resync");
+                resyncMsg.addProperty("userId", userId);
+                resyncMsg.addProperty("lastSeq", Math.max(0, lastSeenSeq));
+                send(resyncMsg);
             }
-            
-            // Schedule a delayed update
-            cursorMoveScheduled = true;
-            lastSentCursorPosition = position;
-            
-            final int capturedPosition = position;
-            new Thread(() -> {
-                try {
-                    Thread.sleep(CURSOR_MOVE_THROTTLE_MS);
-                    sendCursorMoveNow(lastSentCursorPosition); // Use the latest position
-                    cursorMoveScheduled = false;
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                }
-            }).start();
-            
-            return;
         }
         
-        // Send immediately
-        sendCursorMoveNow(position);
+        String content = pendingUpdateContent;
+        if (outbox.takeOverflow()) {
+            // Edits were lost from the outbox, so only the full document can repair the server's copy
+            notifyOperationListeners(new Operation(Operation.Type.REQUEST_DOCUMENT_RESYNC, null, null, userId, -1));
+        } else if (content != null) {
+            sendContentUpdate(content, pendingUpdateOperation, pendingUpdateLastSeq, pendingUpdateClientSeq);
+        }
     }
     
     /**
-     * Immediately sends a cursor move without throttling.
-     * @param position The cursor position.
+     * Sends a message to the server through the outbound scheduler.
+     * @param message The message, which must have a type.
      */
-    private void sendCursorMoveNow(int position) {
-        if (!connected) {
+    public void sendMessage(JsonObject message) {
+        send(message);
+    }
+    
+    /**
+     * Queues a message for the server in the outbound lane of its type.
+     * @param message The message, which must have a type.
+     */
+    private void send(JsonObject message) {
+        outbound.send(message.get("type").getAsString(), gson.toJson(message));
+    }
+    
+    /**
+     * Writes a message to the connection, if it is open. Runs on the scheduler thread.
+     * @param message The encoded message.
+     */
+    private void transmit(String message) {
+        WebSocketClient client = webSocketClient;
+        if (client == null || !client.isOpen()) {
             return;
         }
-        
-        lastCursorMoveTime = System.currentTimeMillis();
-        lastSentCursorPosition = position;
-        
-        JsonObject message = new JsonObject();
-        message.addProperty("type", "cursor_move");
-        message.addProperty("userId", userId);
-        message.addProperty("position", position);
-        
+        NetworkEvents.ClientSend event = new NetworkEvents.ClientSend();
+        event.begin();
         try {
-            webSocketClient.send(gson.toJson(message));
+            client.send(latencyTrace.stampSent(message));
         } catch (Exception e) {
-            System.err.println("Error sending cursor move: " + e.getMessage());
-            // Don't show error to user - cursor movements are non-critical
+            log.error("Error sending message: " + e.getMessage());
         }
+        if (event.shouldCommit()) {
+            event.messageSize = message.length();
+            event.commit();
+        }
+    }
+    
+    /**
+     * Measures the round trip time with a WebSocket ping now and then; the cursor interval
+     * follows it.
+     */
+    private void scheduleRttProbe() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            WebSocketClient client = webSocketClient;
+            long sentAt = rttProbeSentAt;
+            if (client == null || !client.isOpen()
+                    || (sentAt != 0 && System.nanoTime() - sentAt < RTT_PROBE_TIMEOUT_MS * 1_000_000)) {
+                return;
+            }
+            try {
+                rttProbeSentAt = System.nanoTime();
+                client.sendPing();
+            } catch (Exception e) {
+                rttProbeSentAt = 0;
+            }
+            sendClockSync();
+        }, RTT_PROBE_INTERVAL_MS, RTT_PROBE_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Asks the server for its clock, to keep our estimate of its offset up to date.
+     * Written straight to the connection rather than through the lanes, since time spent
+     * queued would count against the estimate. Runs on the scheduler thread.
+     */
+    private void sendClockSync() {
+        transmit(gson.toJson(latencyTrace.createClockSync()));
+    }
+    
+    /**
+     * Gets the latency trace: our estimate of the server's clock, and the time other
+     * users' edits took at each hop on their way to us.
+     * @return The trace.
+     */
+    public LatencyTrace getLatencyTrace() {
+        return latencyTrace;
+    }
+    
+    /**
+     * Gets the smoothed round trip time to the server.
+     * @return The round trip time in milliseconds, or -1 before the first measurement.
+     */
+    public double getRoundTripTimeMs() {
+        return outbound.getSmoothedRttMs();
+    }
+    
+    /**
+     * Sets the stored document being edited. It is sent along when creating or joining a
+     * session and with document updates, so that the server can save it for the session.
+     * @param documentId The document ID, or null if the document is not stored.
+     */
+    public void setDocumentId(String documentId) {
+        this.documentId = documentId;
     }
     
     /**
@@ -397,8 +710,11 @@ public class NetworkClient {
         JsonObject message = new JsonObject();
         message.addProperty("type", "create_session");
         message.addProperty("userId", userId);
+        if (documentId != null) {
+            message.addProperty("documentId", documentId);
+        }
         
-        webSocketClient.send(gson.toJson(message));
+        send(message);
     }
     
     /**
@@ -408,7 +724,7 @@ public class NetworkClient {
      */
     public void joinSession(String code, boolean isEditor) {
         if (!connected) {
-            System.err.println("Failed to join session: Not connected to server");
+            log.error("Failed to join session: Not connected to server");
             notifyErrorListeners("Not connected to server");
             return;
         }
@@ -421,14 +737,14 @@ public class NetworkClient {
             if (username != null && !username.isEmpty()) {
                 registerMsg.addProperty("username", username);
             }
-            webSocketClient.send(gson.toJson(registerMsg));
+            send(registerMsg);
             
-            System.out.println("=================================================");
-            System.out.println("JOIN SESSION REQUEST:");
-            System.out.println("Code: " + code);
-            System.out.println("Role: " + (isEditor ? "EDITOR" : "VIEWER"));
-            System.out.println("User ID: " + userId);
-            System.out.println("=================================================");
+            log.info("=================================================");
+            log.info("JOIN SESSION REQUEST:");
+            log.info("Code: " + code);
+            log.info("Role: " + (isEditor ? "EDITOR" : "VIEWER"));
+            log.info("User ID: " + userId);
+            log.info("=================================================");
             
             // Create and send the join message
             JsonObject joinMsg = new JsonObject();
@@ -439,13 +755,50 @@ public class NetworkClient {
             if (username != null && !username.isEmpty()) {
                 joinMsg.addProperty("username", username);
             }
+            if (documentId != null) {
+                joinMsg.addProperty("documentId", documentId);
+            }
+            
+            // When rejoining the same session, ask only for the operations we missed and
+            // resume, so that only our edits the server hasn't applied are sent again
+            boolean rejoining = code.equals(currentSessionCode);
+            if (!rejoining && currentSessionCode == null && outbox.size() > 0 && code.equals(outbox.getSessionCode())) {
+                // Edits an earlier client made in this session and never got acknowledged;
+                // resume with its token so the server can tell which it already applied
+                log.info("Resuming " + outbox.size() + " unacknowledged edits from an earlier client");
+                rejoining = true;
+                resumeToken = outbox.getResumeToken();
+                recoveringOutbox = true;
+            }
+            if (rejoining && lastSeenSeq >= 0) {
+                joinMsg.addProperty("lastSeq", lastSeenSeq);
+            } else if (!rejoining) {
+                lastSeenSeq = -1;
+            }
+            if (rejoining && resumeToken != null) {
+                joinMsg.addProperty("resumeToken", resumeToken);
+            } else if (!rejoining) {
+                resumeToken = null;
+                outbox.reset();
+            }
+            outbox.setSession(code, resumeToken);
+            joinMsg.addProperty("firstClientSeq", outbox.getFirstClientSeq());
+            currentSessionCode = code;
+            currentSessionAsEditor = isEditor;
+            
+            // Content versions are per session, so start over; an update of ours that
+            // never made it is sent again once we are back in the same session
+            lastSyncVersion = -1;
+            lastSyncContent = null;
+            if (!rejoining) {
+                pendingUpdateContent = null;
+            }
             
             // Send the join request
-            webSocketClient.send(gson.toJson(joinMsg));
-            System.out.println("Join request sent to server");
+            send(joinMsg);
+            log.info("Join request sent to server");
         } catch (Exception e) {
-            System.err.println("Exception in joinSession: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Exception in joinSession: " + e.getMessage(), e);
             notifyErrorListeners("Error joining session: " + e.getMessage());
         }
     }
@@ -455,22 +808,40 @@ public class NetworkClient {
      * @param message The message from the server.
      */
     private void handleServerMessage(String message) {
+        NetworkEvents.ClientReceive event = new NetworkEvents.ClientReceive();
+        event.begin();
+        JsonObject jsonMessage = null;
+        try {
+            jsonMessage = gson.fromJson(message, JsonObject.class);
+            handleServerMessage(jsonMessage);
+        } catch (Exception e) {
+            log.error("Error parsing message: " + e.getMessage());
+        }
+        if (event.shouldCommit()) {
+            event.type = jsonMessage != null && jsonMessage.has("type") ? jsonMessage.get("type").getAsString() : null;
+            event.messageSize = message.length();
+            event.commit();
+        }
+    }
+    
+    /**
+     * Handles a parsed message from the server.
+     * @param jsonMessage The message from the server.
+     */
+    private void handleServerMessage(JsonObject jsonMessage) {
         try {
-            JsonObject jsonMessage = gson.fromJson(message, JsonObject.class);
             String type = jsonMessage.get("type").getAsString();
             
-            System.out.println("Received message from server: type=" + type);
+            log.debugSampled("received", () -> "Received message from server: type=" + type);
             
             switch (type) {
                 case "register_ack":
-                    System.out.println("Registration acknowledged by server");
+                    log.info("Registration acknowledged by server");
                     // Registration successful, we can proceed with other operations
-                    // Start a thread to clean the sync history periodically
-                    startSyncHistoryCleaner();
                     break;
                     
                 case "create_session_ack":
-                    System.out.println("Create session acknowledged by server");
+                    log.info("Create session acknowledged by server");
                     
                     // Get editor and viewer codes from response
                     String editorCode, viewerCode;
@@ -479,14 +850,14 @@ public class NetworkClient {
                         // New format with separate codes
                         editorCode = jsonMessage.get("editorCode").getAsString();
                         viewerCode = jsonMessage.get("viewerCode").getAsString();
-                        System.out.println("Received distinct editor and viewer codes - Editor: " + editorCode + ", Viewer: " + viewerCode);
+                        log.info("Received distinct editor and viewer codes - Editor: " + editorCode + ", Viewer: " + viewerCode);
                     } else if (jsonMessage.has("sessionId")) {
                         // Legacy format with same code for both
                         editorCode = jsonMessage.get("sessionId").getAsString();
                         viewerCode = editorCode;
-                        System.out.println("Received legacy session code: " + editorCode);
+                        log.info("Received legacy session code: " + editorCode);
                     } else {
-                        System.err.println("Invalid create_session_ack response - missing codes");
+                        log.warn("Invalid create_session_ack response - missing codes");
                         break;
                     }
                     
@@ -496,9 +867,9 @@ public class NetworkClient {
                     break;
                     
                 case "join_session_ack":
-                    System.out.println("Join session acknowledged by server");
+                    log.info("Join session acknowledged by server");
                     boolean asEditor = jsonMessage.has("asEditor") && jsonMessage.get("asEditor").getAsBoolean();
-                    System.out.println("Joined as: " + (asEditor ? "EDITOR" : "VIEWER"));
+                    log.info("Joined as: " + (asEditor ? "EDITOR" : "VIEWER"));
                     
                     // Extract editor and viewer codes if provided
                     if (jsonMessage.has("editorCode")) {
@@ -506,9 +877,9 @@ public class NetworkClient {
                         String joinViewerCode = jsonMessage.has("viewerCode") ? 
                             jsonMessage.get("viewerCode").getAsString() : joinEditorCode;
                         
-                        System.out.println("Received session codes in join response:");
-                        System.out.println("  Editor code: " + joinEditorCode);
-                        System.out.println("  Viewer code: " + joinViewerCode);
+                        log.info("Received session codes in join response:");
+                        log.info("  Editor code: " + joinEditorCode);
+                        log.info("  Viewer code: " + joinViewerCode);
                         
                         // Notify code listeners with the received codes
                         notifyCodeListeners(new CodePair(joinEditorCode, joinViewerCode));
@@ -516,7 +887,17 @@ public class NetworkClient {
                     
                     if (jsonMessage.has("documentContent")) {
                         String documentContent = jsonMessage.get("documentContent").getAsString();
-                        System.out.println("Document content received: " + documentContent.length() + " characters");
+                        log.info("Document content received: " + documentContent.length() + " characters");
+                        
+                        // The snapshot reflects the log up to this sequence; the tail follows in catch_up
+                        if (jsonMessage.has("snapshotSeq")) {
+                            lastSeenSeq = jsonMessage.get("snapshotSeq").getAsLong();
+                        }
+                        if (jsonMessage.has("version")) {
+                            lastSyncVersion = jsonMessage.get("version").getAsLong();
+                            lastSyncHash = hashOf(jsonMessage, documentContent);
+                            lastSyncContent = documentContent;
+                        }
                         
                         // Create a special operation for document sync
                         Operation syncOperation = new Operation(
@@ -527,11 +908,16 @@ public class NetworkClient {
                             -1,
                             documentContent
                         );
+                        if (jsonMessage.has("hash")) {
+                            syncOperation.setDocumentHash(jsonMessage.get("hash").getAsLong());
+                        }
                         
                         // Notify immediately
                         notifyOperationListeners(syncOperation);
+                    } else if (jsonMessage.has("catchUp") && "tail".equals(jsonMessage.get("catchUp").getAsString())) {
+                        log.info("Rejoined from sequence " + lastSeenSeq + " - missing operations follow");
                     } else {
-                        System.out.println("No document content in join response - will need to request sync");
+                        log.info("No document content in join response - will need to request sync");
                     }
                     
                     // Get any usernames provided
@@ -544,14 +930,25 @@ public class NetworkClient {
                                 userMapFromServer.put(entry.getKey(), entry.getValue().getAsString());
                             }
                             
+                            // The join snapshot is the base that later presence deltas apply to
+                            long version = jsonMessage.has("presenceVersion") ? 
+                                jsonMessage.get("presenceVersion").getAsLong() : -1;
+                            resetRoster(userMapFromServer, version);
+                            
                             if (!userMapFromServer.isEmpty()) {
                                 notifyPresenceListeners(userMapFromServer);
-                                System.out.println("Received usernames for " + userMapFromServer.size() + " users");
+                                log.info("Received usernames for " + userMapFromServer.size() + " users");
                             }
                         } catch (Exception e) {
-                            System.err.println("Error processing usernames: " + e.getMessage());
+                            log.error("Error processing usernames: " + e.getMessage());
                         }
                     }
+                    
+                    resumeOutbox(jsonMessage);
+                    break;
+                    
+                case "op_ack":
+                    outbox.acknowledge(jsonMessage.get("clientSeq").getAsLong());
                     break;
                     
                 case "session_joined":
@@ -559,12 +956,12 @@ public class NetworkClient {
                     String editorCodeJoined = jsonMessage.get("editorCode").getAsString();
                     String viewerCodeJoined = jsonMessage.get("viewerCode").getAsString();
                     
-                    System.out.println("==================================================");
-                    System.out.println("SESSION JOINED SUCCESSFULLY as " + (asEditorJoined ? "EDITOR" : "VIEWER"));
-                    System.out.println("Editor code: " + editorCodeJoined);
-                    System.out.println("Viewer code: " + viewerCodeJoined);
-                    System.out.println("User ID: " + userId);
-                    System.out.println("==================================================");
+                    log.info("==================================================");
+                    log.info("SESSION JOINED SUCCESSFULLY as " + (asEditorJoined ? "EDITOR" : "VIEWER"));
+                    log.info("Editor code: " + editorCodeJoined);
+                    log.info("Viewer code: " + viewerCodeJoined);
+                    log.info("User ID: " + userId);
+                    log.info("==================================================");
                     
                     // After joining, update our code information
                     notifyCodeListeners(new CodePair(editorCodeJoined, viewerCodeJoined));
@@ -575,8 +972,8 @@ public class NetworkClient {
                         usernameMessage.addProperty("type", "update_username");
                         usernameMessage.addProperty("userId", userId);
                         usernameMessage.addProperty("username", username);
-                        webSocketClient.send(gson.toJson(usernameMessage));
-                        System.out.println("Sent username update: " + username);
+                        send(usernameMessage);
+                        log.info("Sent username update: " + username);
                     }
                     break;
                     
@@ -588,7 +985,7 @@ public class NetworkClient {
                                                jsonMessage.get("highPriority").getAsBoolean();
                         
                         if (highPriority) {
-                            System.out.println("Received HIGH PRIORITY presence update");
+                            log.debug("Received HIGH PRIORITY presence update");
                         }
                         
                         if (jsonMessage.get("users").isJsonArray()) {
@@ -619,16 +1016,16 @@ public class NetworkClient {
                             // New format: a map of user IDs to usernames
                             Map<String, String> userMap = gson.fromJson(jsonMessage.get("users"), Map.class);
                             
-                            // Log the received user map
-                            StringBuilder userMapStr = new StringBuilder();
-                            for (Map.Entry<String, String> entry : userMap.entrySet()) {
-                                userMapStr.append(entry.getKey()).append("->").append(entry.getValue()).append(", ");
+                            // A versioned snapshot replaces our roster
+                            if (jsonMessage.has("version")) {
+                                resetRoster(userMap, jsonMessage.get("version").getAsLong());
                             }
-                            System.out.println("Received user map: " + userMapStr.toString());
+                            
+                            log.debug(() -> "Received user map: " + userMap);
                             
                             // Always notify for high priority updates
                             if (highPriority) {
-                                System.out.println("Forcing presence update due to high priority");
+                                log.debug("Forcing presence update due to high priority");
                                 notifyPresenceListeners(userMap);
                             } else {
                                 notifyPresenceListeners(userMap);
@@ -637,6 +1034,10 @@ public class NetworkClient {
                     }
                     break;
                     
+                case "presence_delta":
+                    handlePresenceDelta(jsonMessage);
+                    break;
+                    
                 case "update_username":
                     // Someone updated their username, broadcast to all clients
                     if (jsonMessage.has("userId") && jsonMessage.has("username")) {
@@ -665,26 +1066,42 @@ public class NetworkClient {
                             
                             if (!userMapFromServer.isEmpty()) {
                                 notifyPresenceListeners(userMapFromServer);
-                                System.out.println("Received bulk username updates for " + userMapFromServer.size() + " users");
+                                log.info("Received bulk username updates for " + userMapFromServer.size() + " users");
                             }
                         } catch (Exception e) {
-                            System.err.println("Error processing username updates: " + e.getMessage());
+                            log.error("Error processing username updates: " + e.getMessage());
                         }
                     }
                     break;
                     
                 case "insert":
+                    trackSequence(jsonMessage);
                     handleInsertOperation(jsonMessage);
+                    traceApplied(jsonMessage);
                     break;
                     
                 case "delete":
+                    trackSequence(jsonMessage);
                     handleDeleteOperation(jsonMessage);
+                    traceApplied(jsonMessage);
+                    break;
+                    
+                case "clock_sync":
+                    latencyTrace.acceptClockSync(jsonMessage);
+                    break;
+                    
+                case "catch_up":
+                    handleCatchUp(jsonMessage);
                     break;
                     
                 case "cursor_move":
                     handleCursorMoveOperation(jsonMessage);
                     break;
                     
+                case "cursor_batch":
+                    handleCursorBatch(jsonMessage);
+                    break;
+                    
                 case "cursor_remove":
                     handleCursorRemoveOperation(jsonMessage);
                     break;
@@ -693,6 +1110,50 @@ public class NetworkClient {
                     handleDocumentSyncOperation(jsonMessage);
                     break;
                     
+                case "document_patch":
+                    handleDocumentPatch(jsonMessage);
+                    break;
+                    
+                case "merkle_check":
+                    scheduler.execute(this::checkConsistency);
+                    break;
+                    
+                case "merkle_status":
+                    handleMerkleStatus(jsonMessage);
+                    break;
+                    
+                case "merkle_nodes":
+                    handleMerkleNodes(jsonMessage);
+                    break;
+                    
+                case "snapshot_begin":
+                    handleSnapshotBegin(jsonMessage);
+                    break;
+                    
+                case "snapshot_chunk":
+                    handleSnapshotChunk(jsonMessage);
+                    break;
+                    
+                case "snapshot_end":
+                    handleSnapshotEnd(jsonMessage);
+                    break;
+                    
+                case "document_ack":
+                    handleDocumentAck(jsonMessage);
+                    break;
+                    
+                case "save_result":
+                    handleSaveResult(jsonMessage);
+                    break;
+                    
+                case "slow_down":
+                    handleSlowDown(jsonMessage);
+                    break;
+                    
+                case "document_patch_rejected":
+                    handleDocumentPatchRejected(jsonMessage);
+                    break;
+                    
                 case "sync_confirmation_request":
                     handleSyncConfirmationRequest(jsonMessage);
                     break;
@@ -700,7 +1161,7 @@ public class NetworkClient {
                 case "sync_confirmation":
                     // Log that document sync is confirmed
                     int docLength = jsonMessage.get("documentLength").getAsInt();
-                    System.out.println("Document sync confirmed - document length: " + docLength);
+                    log.debug(() -> "Document sync confirmed - document length: " + docLength);
                     break;
                     
                 case "error":
@@ -719,7 +1180,7 @@ public class NetworkClient {
                             userMap.put(id, name);
                         }
                         
-                        System.out.println("Received usernames for " + userMap.size() + " users");
+                        log.info("Received usernames for " + userMap.size() + " users");
                         
                         // Notify listeners of presence update
                         notifyPresenceListeners(userMap);
@@ -732,7 +1193,7 @@ public class NetworkClient {
                         String joinedUserId = jsonMessage.get("userId").getAsString();
                         String joinedUsername = jsonMessage.get("username").getAsString();
                         
-                        System.out.println("⭐ IMPORTANT: Received notification that user joined: " + 
+                        log.info("⭐ IMPORTANT: Received notification that user joined: " + 
                                          joinedUsername + " (" + joinedUserId + ")");
                         
                         // Create a user map for this update
@@ -753,7 +1214,7 @@ public class NetworkClient {
                         JsonObject presenceRequest = new JsonObject();
                         presenceRequest.addProperty("type", "request_presence");
                         presenceRequest.addProperty("userId", userId);
-                        webSocketClient.send(gson.toJson(presenceRequest));
+                        send(presenceRequest);
                         
                         // Also add this user to our last known cursor positions
                         lastKnownCursorPositions.put(joinedUserId, -1);
@@ -761,11 +1222,122 @@ public class NetworkClient {
                     break;
                     
                 default:
-                    System.out.println("Unknown message type: " + type);
+                    log.info("Unknown message type: " + type);
+            }
+        } catch (Exception e) {
+            log.error("Error processing message: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Replaces the session roster with a full snapshot from the server.
+     * @param users The user IDs and names in the snapshot.
+     * @param version The presence version of the snapshot, or -1 if the server doesn't send one.
+     */
+    private void resetRoster(Map<String, String> users, long version) {
+        synchronized (sessionRoster) {
+            sessionRoster.clear();
+            sessionRoster.putAll(users);
+            presenceVersion = version;
+        }
+    }
+    
+    /**
+     * Applies a single presence change (user added, removed or renamed) to the roster.
+     * A gap in the version sequence means we missed a delta, so we ask for a fresh snapshot.
+     * @param message The presence_delta message.
+     */
+    private void handlePresenceDelta(JsonObject message) {
+        long version = message.get("version").getAsLong();
+        String change = message.get("change").getAsString();
+        String changedUserId = message.get("userId").getAsString();
+        String changedUsername = message.has("username") ? message.get("username").getAsString() : changedUserId;
+        
+        Map<String, String> rosterCopy;
+        synchronized (sessionRoster) {
+            if (presenceVersion >= 0 && version <= presenceVersion) {
+                return; // Already reflected in our roster
+            }
+            
+            if (presenceVersion < 0 || version != presenceVersion + 1) {
+                log.info("Presence version gap (have " + presenceVersion + ", got " + version + "), requesting snapshot");
+                JsonObject presenceRequest = new JsonObject();
+                presenceRequest.addProperty("type", "request_presence");
+                presenceRequest.addProperty("userId", userId);
+                send(presenceRequest);
+                return;
+            }
+            
+            if ("removed".equals(change)) {
+                sessionRoster.remove(changedUserId);
+            } else {
+                sessionRoster.put(changedUserId, changedUsername);
+            }
+            presenceVersion = version;
+            rosterCopy = new HashMap<>(sessionRoster);
+        }
+        
+        if ("removed".equals(change)) {
+            lastKnownCursorPositions.remove(changedUserId);
+            
+            // Drop the departed user's cursor marker
+            notifyOperationListeners(new Operation(Operation.Type.CURSOR_MOVE, null, null, changedUserId, -1));
+        }
+        
+        notifyPresenceListeners(rosterCopy);
+    }
+    
+    /**
+     * Records the server sequence number carried by a relayed operation.
+     * @param message The operation message.
+     */
+    private void trackSequence(JsonObject message) {
+        if (message.has("seq")) {
+            long seq = message.get("seq").getAsLong();
+            if (seq > lastSeenSeq) {
+                lastSeenSeq = seq;
+            }
+        }
+    }
+    
+    /**
+     * Applies the operations the server logged while we were away.
+     * @param message The catch_up message from the server.
+     */
+    private void handleCatchUp(JsonObject message) {
+        try {
+            com.google.gson.JsonArray ops = message.getAsJsonArray("ops");
+            String mode = message.has("mode") ? message.get("mode").getAsString() : "tail";
+            log.info("Catching up on " + ops.size() + " operations (" + mode + ")");
+            
+            for (com.google.gson.JsonElement element : ops) {
+                JsonObject op = element.getAsJsonObject();
+                String opType = op.get("type").getAsString();
+                
+                // Skip anything we have already applied
+                if (op.has("seq") && op.get("seq").getAsLong() <= lastSeenSeq) {
+                    continue;
+                }
+                trackSequence(op);
+                
+                if ("insert".equals(opType)) {
+                    handleInsertOperation(op);
+                } else if ("delete".equals(opType)) {
+                    handleDeleteOperation(op);
+                }
             }
         } catch (Exception e) {
-            System.err.println("Error processing message: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing catch-up: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Records the hops of a traced remote edit once the listeners have applied it. Edits
+     * replayed by a catch-up are not recorded, as their latency includes our time away.
+     */
+    private void traceApplied(JsonObject message) {
+        if (message.has(LatencyTrace.FANOUT_AT)) {
+            callbackExecutor.execute(() -> latencyTrace.recordApplied(message));
         }
     }
     
@@ -786,8 +1358,7 @@ public class NetworkClient {
             Operation operation = new Operation(Operation.Type.INSERT, character, null, sourceUserId, -1);
             notifyOperationListeners(operation);
         } catch (Exception e) {
-            System.err.println("Error processing insert operation: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing insert operation: " + e.getMessage(), e);
         }
     }
     
@@ -800,8 +1371,7 @@ public class NetworkClient {
             Operation operation = new Operation(Operation.Type.DELETE, null, position, sourceUserId, -1);
             notifyOperationListeners(operation);
         } catch (Exception e) {
-            System.err.println("Error processing delete operation: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing delete operation: " + e.getMessage(), e);
         }
     }
     
@@ -817,8 +1387,31 @@ public class NetworkClient {
             Operation operation = new Operation(Operation.Type.CURSOR_MOVE, null, null, sourceUserId, position);
             notifyOperationListeners(operation);
         } catch (Exception e) {
-            System.err.println("Error processing cursor move operation: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing cursor move operation: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Handles an aggregated presence frame carrying the latest cursor of each user that moved.
+     * @param message The cursor_batch message from the server.
+     */
+    private void handleCursorBatch(JsonObject message) {
+        try {
+            JsonObject cursors = message.getAsJsonObject("cursors");
+            for (Map.Entry<String, com.google.gson.JsonElement> entry : cursors.entrySet()) {
+                String sourceUserId = entry.getKey();
+                if (sourceUserId.equals(userId)) {
+                    continue; // Our own cursor, already shown locally
+                }
+                
+                int position = entry.getValue().getAsInt();
+                lastKnownCursorPositions.put(sourceUserId, position);
+                
+                Operation operation = new Operation(Operation.Type.CURSOR_MOVE, null, null, sourceUserId, position);
+                notifyOperationListeners(operation);
+            }
+        } catch (Exception e) {
+            log.error("Error processing cursor batch: " + e.getMessage(), e);
         }
     }
     
@@ -830,56 +1423,54 @@ public class NetworkClient {
             Operation operation = new Operation(Operation.Type.CURSOR_MOVE, null, null, sourceUserId, -1);
             notifyOperationListeners(operation);
         } catch (Exception e) {
-            System.err.println("Error processing cursor remove operation: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing cursor remove operation: " + e.getMessage(), e);
         }
     }
     
+    /**
+     * Gets the {@link ContentHash} of content the server sent, which comes with it from servers
+     * that know it.
+     */
+    private static long hashOf(JsonObject message, String content) {
+        if (message.has("hash") && !message.get("hash").isJsonNull()) {
+            return message.get("hash").getAsLong();
+        }
+        return ContentHash.of(content);
+    }
+    
     private void handleDocumentSyncOperation(JsonObject message) {
         try {
             String content = message.get("content").getAsString();
+            boolean highPriority = message.has("highPriority") && message.get("highPriority").getAsBoolean();
             
-            // Create a unique identifier for this sync message
-            String syncId = "";
-            if (message.has("timestamp")) {
-                syncId = message.get("timestamp").getAsString();
-            } else {
-                syncId = content.hashCode() + "-" + System.currentTimeMillis();
-            }
-            
-            // Check if we've already processed this exact sync recently
-            synchronized (recentlySyncedDocuments) {
-                if (recentlySyncedDocuments.contains(syncId)) {
-                    System.out.println("Ignoring duplicate document sync: " + syncId);
+            // Skip content we already have; corrective syncs are always applied
+            if (message.has("version")) {
+                long version = message.get("version").getAsLong();
+                if (version < lastSyncVersion || (version == lastSyncVersion && !highPriority)) {
+                    log.debug("Ignoring document sync for version " + version + " (have " + lastSyncVersion + ")");
                     return;
                 }
-                
-                // Remember this sync to avoid duplicates
-                recentlySyncedDocuments.add(syncId);
-                
-                // Limit the size of history to prevent memory leaks
-                if (recentlySyncedDocuments.size() > 100) {
-                    // Remove oldest entries when we exceed 100
-                    Iterator<String> iterator = recentlySyncedDocuments.iterator();
-                    for (int i = 0; i < 50 && iterator.hasNext(); i++) {
-                        iterator.next();
-                        iterator.remove();
-                    }
-                }
+                lastSyncVersion = version;
+                lastSyncHash = hashOf(message, content);
+                lastSyncContent = content;
             }
             
-            System.out.println("Received document sync with " + content.length() + " characters");
+            log.debug(() -> "Received document sync with " + content.length() + " characters");
+            
+            // A resync snapshot resets our position in the operation log
+            if (message.has("snapshotSeq")) {
+                lastSeenSeq = message.get("snapshotSeq").getAsLong();
+            }
             
             // Check if there's a sender ID and it's our own message echoed back
             if (message.has("senderId") && message.get("senderId").getAsString().equals(userId)) {
-                System.out.println("Ignoring document sync from our own user ID");
+                log.info("Ignoring document sync from our own user ID");
                 return;
             }
             
             // Always log document sync for debugging
-            boolean highPriority = message.has("highPriority") && message.get("highPriority").getAsBoolean();
             if (highPriority) {
-                System.out.println("HIGH PRIORITY document sync received");
+                log.info("HIGH PRIORITY document sync received");
             }
             
             // Create a special operation for document sync
@@ -891,6 +1482,9 @@ public class NetworkClient {
                 -1, 
                 content
             );
+            if (message.has("hash")) {
+                operation.setDocumentHash(message.get("hash").getAsLong());
+            }
             
             // Queue the operation for immediate processing
             notifyOperationListeners(operation);
@@ -903,13 +1497,462 @@ public class NetworkClient {
                 confirmMsg.addProperty("userId", userId);
                 confirmMsg.addProperty("timestamp", System.currentTimeMillis());
                 
-                webSocketClient.send(gson.toJson(confirmMsg));
-                System.out.println("Sent sync confirmation for " + content.length() + " characters");
+                send(confirmMsg);
+                log.debug(() -> "Sent sync confirmation for " + content.length() + " characters");
+            }
+        } catch (Exception e) {
+            log.error("Error processing document sync operation: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Handles a document update relayed as a patch. The patch applies to the content of its
+     * base version; if that is not the version we hold, we ask for a full snapshot instead.
+     * @param message The message from the server.
+     */
+    private void handleDocumentPatch(JsonObject message) {
+        try {
+            long baseVersion = message.get("baseVersion").getAsLong();
+            long version = message.get("version").getAsLong();
+            if (version <= lastSyncVersion) {
+                return;
+            }
+            
+            String base = lastSyncContent;
+            String content = null;
+            if (baseVersion == lastSyncVersion && base != null) {
+                JsonArray patch = message.getAsJsonArray("patch");
+                content = TextPatch.apply(base, patch);
+                int[] unchanged = TextPatch.unchangedEnds(patch, base.length());
+                if (ContentHash.replace(lastSyncHash, base, content, unchanged[0], unchanged[1]) != message.get("hash").getAsLong()) {
+                    log.warn("Patched document does not match version " + version);
+                    content = null;
+                }
             }
+            
+            if (content == null) {
+                log.info("Missed document version " + baseVersion + " (have " + lastSyncVersion + "), requesting resync");
+                JsonObject resyncMsg = new JsonObject();
+                resyncMsg.addProperty("type", "request_resync");
+                resyncMsg.addProperty("userId", userId);
+                send(resyncMsg);
+                return;
+            }
+            
+            // From here on it is an ordinary sync of the patched content
+            JsonObject sync = message.deepCopy();
+            sync.remove("patch");
+            sync.remove("baseVersion");
+            sync.addProperty("type", "document_sync");
+            sync.addProperty("content", content);
+            handleDocumentSyncOperation(sync);
         } catch (Exception e) {
-            System.err.println("Error processing document sync operation: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error processing document patch: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Sets where the current document text comes from, for comparing it with the server's copy.
+     * @param supplier Supplies the full document text; called off the JavaFX thread.
+     */
+    public void setDocumentSupplier(Supplier<String> supplier) {
+        this.documentSupplier = supplier;
+    }
+    
+    private void scheduleAntiEntropy() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                checkConsistency();
+            } catch (Exception e) {
+                log.error("Error checking document consistency: " + e.getMessage());
+            }
+        }, ANTI_ENTROPY_INTERVAL_MS, ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Starts an anti-entropy exchange: sends the root hash of our document's Merkle tree,
+     * brought up to date with the current text, for the server to compare with its own.
+     * Only done while nothing of ours is in flight, since the copies are expected to
+     * differ until our edits arrive. The server compares only if its tree was built at
+     * the seq our text is at. Runs on the scheduler thread.
+     */
+    private void checkConsistency() {
+        long now = System.currentTimeMillis();
+        Supplier<String> supplier = documentSupplier;
+        if (!connected || currentSessionCode == null || supplier == null || lastSyncVersion < 0 || lastSeenSeq < 0
+                || pendingUpdateContent != null || now - lastLocalEditTime() < ANTI_ENTROPY_QUIET_MS) {
+            return;
+        }
+        if (merkleCheckStartedAt > 0 && now - merkleCheckStartedAt < ANTI_ENTROPY_TIMEOUT_MS) {
+            return; // The last exchange is still running
+        }
+        
+        long version = lastSyncVersion;
+        long seq = lastSeenSeq;
+        String text = supplier.get();
+        merkleTree.update(text);
+        merkleExchange = new MerkleExchange(merkleTree, version, seq);
+        merkleCheckStartedAt = now;
+        
+        JsonObject rootMsg = new JsonObject();
+        rootMsg.addProperty("type", "merkle_root");
+        rootMsg.addProperty("userId", userId);
+        rootMsg.addProperty("version", version);
+        rootMsg.addProperty("lastSeq", seq);
+        rootMsg.addProperty("root", merkleTree.getRootHash());
+        rootMsg.addProperty("length", text.length());
+        send(rootMsg);
+    }
+    
+    private long lastLocalEditTime() {
+        return Math.max(lastOperationTimes.getOrDefault("content_update", 0L),
+               Math.max(lastOperationTimes.getOrDefault("insert", 0L), lastOperationTimes.getOrDefault("delete", 0L)));
+    }
+    
+    /**
+     * Handles the end of an anti-entropy exchange without differences to repair.
+     * @param message The merkle_status message.
+     */
+    private void handleMerkleStatus(JsonObject message) {
+        String status = message.get("status").getAsString();
+        if (!"match".equals(status)) {
+            log.info("Document comparison skipped (" + status + ")");
         }
+        merkleExchange = null;
+        merkleCheckStartedAt = 0;
+    }
+    
+    /**
+     * Handles part of the server's Merkle tree: asks for what is still missing, or once
+     * nothing is, rebuilds the server's text and applies it like a corrective sync.
+     * @param message The merkle_nodes message.
+     */
+    private void handleMerkleNodes(JsonObject message) {
+        MerkleExchange exchange = merkleExchange;
+        if (exchange == null) {
+            return;
+        }
+        
+        // Our copy moved on while comparing; whatever we found may no longer apply
+        long version = message.get("version").getAsLong();
+        if (version != exchange.getVersion() || lastSyncVersion != version || lastSeenSeq != exchange.getSeq()
+                || lastLocalEditTime() >= exchange.getStartedAt()) {
+            merkleExchange = null;
+            merkleCheckStartedAt = 0;
+            return;
+        }
+        
+        JsonObject request = exchange.accept(message);
+        if (request != null) {
+            request.addProperty("userId", userId);
+            send(request);
+            return;
+        }
+        
+        merkleExchange = null;
+        merkleCheckStartedAt = 0;
+        String content = exchange.buildText();
+        if (content.length() != message.get("length").getAsInt()
+                || ContentHash.of(content) != message.get("hash").getAsLong()) {
+            log.warn("Rebuilt document does not match version " + version + ", requesting resync");
+            JsonObject resyncMsg = new JsonObject();
+            resyncMsg.addProperty("type", "request_resync");
+            resyncMsg.addProperty("userId", userId);
+            send(resyncMsg);
+            return;
+        }
+        
+        log.info("Repaired document from version " + version + " with " + exchange.getFetchedChars() +
+                           " of " + content.length() + " characters from the server");
+        JsonObject sync = new JsonObject();
+        sync.addProperty("type", "document_sync");
+        sync.addProperty("content", content);
+        sync.addProperty("highPriority", true);
+        sync.addProperty("version", version);
+        sync.addProperty("hash", message.get("hash").getAsLong());
+        handleDocumentSyncOperation(sync);
+    }
+    
+    /**
+     * Starts assembling a document snapshot that the server streams in chunks.
+     * @param message The snapshot_begin message.
+     */
+    private void handleSnapshotBegin(JsonObject message) {
+        SnapshotAssembly snapshot = new SnapshotAssembly(
+            message.getAsJsonObject("message"),
+            message.get("field").getAsString(),
+            message.get("length").getAsInt(),
+            message.get("chunks").getAsInt()
+        );
+        snapshots.put(message.get("snapshotId").getAsString(), snapshot);
+        log.info("Receiving " + snapshot.getMessageType() + " snapshot of " + snapshot.length +
+                           " characters in " + snapshot.chunks + " chunks");
+        notifySnapshotListeners(new SnapshotProgress(snapshot.getMessageType(), "", 0, snapshot.length, false));
+    }
+    
+    /**
+     * Adds a chunk to a snapshot being streamed, and passes it on so it can be shown straight away.
+     * @param message The snapshot_chunk message.
+     */
+    private void handleSnapshotChunk(JsonObject message) {
+        String snapshotId = message.get("snapshotId").getAsString();
+        SnapshotAssembly snapshot = snapshots.get(snapshotId);
+        if (snapshot == null) {
+            return;
+        }
+        
+        int seq = message.get("seq").getAsInt();
+        int offset = message.get("offset").getAsInt();
+        if (seq != snapshot.nextSeq || offset != snapshot.content.length()) {
+            log.warn("Snapshot " + snapshotId + " chunk " + seq + " out of order, discarding snapshot");
+            abandonSnapshot(snapshotId);
+            return;
+        }
+        
+        String data = message.get("data").getAsString();
+        snapshot.content.append(data);
+        snapshot.nextSeq++;
+        notifySnapshotListeners(new SnapshotProgress(snapshot.getMessageType(), data, offset, snapshot.length, false));
+    }
+    
+    /**
+     * Completes a streamed snapshot: checks the assembled content against the checksum, then
+     * handles the original message with its content restored.
+     * @param message The snapshot_end message.
+     */
+    private void handleSnapshotEnd(JsonObject message) {
+        String snapshotId = message.get("snapshotId").getAsString();
+        SnapshotAssembly snapshot = snapshots.get(snapshotId);
+        if (snapshot == null) {
+            return;
+        }
+        
+        String content = snapshot.content.toString();
+        if (snapshot.nextSeq != snapshot.chunks || content.length() != snapshot.length
+                || ContentHash.of(content) != message.get("hash").getAsLong()) {
+            log.warn("Snapshot " + snapshotId + " failed its checksum, discarding snapshot");
+            abandonSnapshot(snapshotId);
+            return;
+        }
+        
+        snapshots.remove(snapshotId);
+        notifySnapshotListeners(new SnapshotProgress(snapshot.getMessageType(), "", content.length(), snapshot.length, true));
+        snapshot.message.addProperty(snapshot.field, content);
+        handleServerMessage(snapshot.message);
+    }
+    
+    /**
+     * Drops a snapshot that arrived damaged and asks the server for the document again.
+     */
+    private void abandonSnapshot(String snapshotId) {
+        SnapshotAssembly snapshot = snapshots.remove(snapshotId);
+        if (snapshot != null) {
+            notifySnapshotListeners(new SnapshotProgress(snapshot.getMessageType(), "", 0, snapshot.length, true));
+        }
+        JsonObject resyncMsg = new JsonObject();
+        resyncMsg.addProperty("type", "request_resync");
+        resyncMsg.addProperty("userId", userId);
+        send(resyncMsg);
+    }
+    
+    /**
+     * Handles the server acknowledging our latest document update, whose content becomes
+     * the base of our next patch.
+     * @param message The message from the server.
+     */
+    private void handleDocumentAck(JsonObject message) {
+        String content = pendingUpdateContent;
+        long version = message.get("version").getAsLong();
+        if (content == null || version < lastSyncVersion || pendingUpdateHash != message.get("hash").getAsLong()) {
+            return;
+        }
+        lastSyncVersion = version;
+        lastSyncHash = pendingUpdateHash;
+        lastSyncContent = content;
+        pendingUpdateContent = null;
+    }
+    
+    /**
+     * Handles the server reporting the outcome of a save we asked for.
+     * @param message The save_result message.
+     */
+    private void handleSaveResult(JsonObject message) {
+        Consumer<SaveResult> callback = pendingSaves.remove(message.get("requestId").getAsLong());
+        if (callback == null) {
+            return;
+        }
+        boolean saved = message.get("saved").getAsBoolean();
+        String reason = message.has("reason") ? message.get("reason").getAsString() : null;
+        completeSave(callback, new SaveResult(saved, reason));
+    }
+    
+    private void failPendingSaves(String reason) {
+        for (Long requestId : new ArrayList<>(pendingSaves.keySet())) {
+            Consumer<SaveResult> callback = pendingSaves.remove(requestId);
+            if (callback != null) {
+                completeSave(callback, new SaveResult(false, reason));
+            }
+        }
+    }
+    
+    private void completeSave(Consumer<SaveResult> callback, SaveResult result) {
+        callbackExecutor.execute(() -> {
+            try {
+                callback.accept(result);
+            } catch (Exception e) {
+                log.error("Error in save callback: " + e.getMessage(), e);
+            }
+        });
+    }
+    
+    /**
+     * Handles the server refusing a patch because its base version is gone, by sending
+     * the same content in full.
+     * @param message The message from the server.
+     */
+    private void handleDocumentPatchRejected(JsonObject message) {
+        String content = pendingUpdateContent;
+        if (content == null) {
+            return;
+        }
+        log.info("Document patch against version " + message.get("baseVersion").getAsLong() +
+                           " rejected (server has " + message.get("version").getAsLong() + "), sending full content");
+        // Any base we hold is stale, so this goes out in full
+        lastSyncContent = null;
+        sendContentUpdate(content, pendingUpdateOperation, pendingUpdateLastSeq, pendingUpdateClientSeq);
+    }
+    
+    /**
+     * Handles the server telling us we are over a rate limit. The server dropped an edit
+     * and applies none of ours after it until it arrives, so once the wait is over the
+     * unacknowledged edits are sent again from the oldest, paced to the rate the server
+     * accepts them at. Those it already applied it drops.
+     * @param message The slow_down message.
+     */
+    private void handleSlowDown(JsonObject message) {
+        String messageClass = message.get("class").getAsString();
+        long retryAfterMs = message.get("retryAfterMs").getAsLong();
+        log.info("Server is rate limiting " + messageClass + " messages, retry after " + retryAfterMs + "ms");
+        
+        if (messageClass.equals("edit")) {
+            double rate = message.has("rate") ? message.get("rate").getAsDouble() : 0;
+            scheduler.execute(() -> {
+                // Start over from the oldest edit, the one the server is waiting for
+                resending = true;
+                lastResentClientSeq = 0;
+                resendBatch = rate > 0 ? (int) Math.max(1, rate * RESEND_INTERVAL_MS / 1000) : Integer.MAX_VALUE;
+                if (resendTask != null) {
+                    resendTask.cancel(false);
+                }
+                // The server sends no further slow_down until this wait is over
+                resendTask = scheduler.schedule(this::resendUnacknowledged, Math.max(retryAfterMs, 100), TimeUnit.MILLISECONDS);
+            });
+        }
+    }
+    
+    /**
+     * Sends the next batch of unacknowledged edits again, and comes back for the one after
+     * it until all have been sent. Runs on the scheduler thread.
+     */
+    private void resendUnacknowledged() {
+        resendTask = null;
+        if (!connected) {
+            // Joining again resends them
+            resending = false;
+            return;
+        }
+        List<String[]> batch = outbox.getUnacknowledged(lastResentClientSeq, resendBatch);
+        for (String[] operation : batch) {
+            outbound.send(operation[0], operation[1]);
+            lastResentClientSeq = Long.parseLong(operation[2]);
+        }
+        if (batch.size() < resendBatch) {
+            resending = false;
+            // An edit added after the last batch was read may not have been sent yet
+            List<String[]> rest = outbox.getUnacknowledged(lastResentClientSeq, Integer.MAX_VALUE);
+            for (String[] operation : rest) {
+                outbound.send(operation[0], operation[1]);
+            }
+        } else {
+            resendTask = scheduler.schedule(this::resendUnacknowledged, RESEND_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Sends the current document content to the server, as a patch against the last
+     * acknowledged version when we have one and the patch is smaller than the content.
+     * @param content The full document content.
+     * @param operation "undo" or "redo" for a high priority update, or null for a regular one.
+     */
+    private void sendContentUpdate(String content, String operation) {
+        sendContentUpdate(content, operation, Math.max(0, lastSeenSeq), outbox.getLastClientSeq());
+    }
+    
+    /**
+     * Sends document content to the server.
+     * @param content The full document content.
+     * @param operation "undo" or "redo" for a high priority update, or null for a regular one.
+     * @param lastSeq The last logged operation the content includes.
+     * @param lastClientSeq The client sequence number of our last edit the content includes.
+     */
+    private void sendContentUpdate(String content, String operation, long lastSeq, long lastClientSeq) {
+        long now = System.currentTimeMillis();
+        JsonObject message = new JsonObject();
+        
+        String base = lastSyncContent;
+        JsonArray patch = null;
+        long hash;
+        if (base != null && lastSyncVersion >= 0) {
+            // The diff tells which part of the content changed, and only that part is hashed
+            patch = TextPatch.diff(base, content);
+            int[] unchanged = TextPatch.unchangedEnds(patch, base.length());
+            hash = ContentHash.replace(lastSyncHash, base, content, unchanged[0], unchanged[1]);
+            if (patch.toString().length() >= content.length()) {
+                patch = null;
+            }
+        } else {
+            hash = ContentHash.of(content);
+        }
+        
+        if (patch != null) {
+            message.addProperty("type", "document_patch");
+            message.addProperty("baseVersion", lastSyncVersion);
+            message.add("patch", patch);
+        } else if (operation != null) {
+            message.addProperty("type", "instant_document_update");
+            message.addProperty("content", content);
+        } else {
+            message.addProperty("type", "document_update");
+            message.addProperty("content", content);
+        }
+        message.addProperty("userId", userId);
+        message.addProperty("hash", hash);
+        message.addProperty("timestamp", now);
+        if (operation != null) {
+            message.addProperty("username", username);
+            message.addProperty("operation", operation);
+            message.addProperty("highPriority", true);
+        }
+        if (documentId != null) {
+            message.addProperty("documentId", documentId);
+        }
+        
+        // Add a unique sequence number to help server detect duplicates
+        message.addProperty("seq", now);
+        // The last logged operation the content includes; any after it were still on their way.
+        // Our own edits up to the last one stamped are in it, though they may be logged later
+        message.addProperty("lastSeq", lastSeq);
+        message.addProperty("lastClientSeq", lastClientSeq);
+        
+        pendingUpdateHash = hash;
+        pendingUpdateContent = content;
+        pendingUpdateOperation = operation;
+        pendingUpdateLastSeq = lastSeq;
+        pendingUpdateClientSeq = lastClientSeq;
+        lastOperationTimes.put("content_update", now);
+        send(message);
+        log.debug("Sent " + (patch != null ? "document patch" : "full document update") +
+                           " for " + content.length() + " chars");
     }
     
     /**
@@ -932,7 +1975,7 @@ public class NetworkClient {
                     currentDocLength = getDocumentOperation.getDocumentLength();
                     break; // Only need one successful response
                 } catch (Exception e) {
-                    System.err.println("Error getting document length: " + e.getMessage());
+                    log.error("Error getting document length: " + e.getMessage());
                 }
             }
             
@@ -942,9 +1985,9 @@ public class NetworkClient {
             confirmMsg.addProperty("receivedLength", currentDocLength);
             confirmMsg.addProperty("userId", userId);
             
-            webSocketClient.send(gson.toJson(confirmMsg));
+            send(confirmMsg);
             
-            System.out.println("Sent document sync confirmation with length: " + currentDocLength);
+            log.debug("Sent document sync confirmation with length: " + currentDocLength);
             
             // Check if server expects us to have content but we don't
             int expectedLength = -1;
@@ -956,14 +1999,17 @@ public class NetworkClient {
             // request a document resync
             if ((expectedLength > 0 && currentDocLength <= 0) || 
                 (expectedLength > 0 && expectedLength != currentDocLength)) {
-                System.out.println("Length mismatch: local=" + currentDocLength + 
+                log.info("Length mismatch: local=" + currentDocLength + 
                                   ", expected=" + expectedLength + ". Requesting resync.");
                 
-                // Force a document resync
+                // Force a document resync; the copy has diverged, so missed operations
+                // alone would not repair it
                 JsonObject resyncRequest = new JsonObject();
                 resyncRequest.addProperty("type", "request_resync");
                 resyncRequest.addProperty("userId", userId);
-                webSocketClient.send(gson.toJson(resyncRequest));
+                resyncRequest.addProperty("lastSeq", lastSeenSeq);
+                resyncRequest.addProperty("full", true);
+                send(resyncRequest);
                 
                 // Also notify listeners to trigger a local resync request
                 Operation requestResyncOperation = new Operation(Operation.Type.REQUEST_DOCUMENT_RESYNC, 
@@ -971,8 +2017,7 @@ public class NetworkClient {
                 notifyOperationListeners(requestResyncOperation);
             }
         } catch (Exception e) {
-            System.err.println("Error handling sync confirmation request: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error handling sync confirmation request: " + e.getMessage(), e);
             
             // Send error notification
             JsonObject errorMsg = new JsonObject();
@@ -981,7 +2026,7 @@ public class NetworkClient {
             errorMsg.addProperty("error", e.getMessage());
             errorMsg.addProperty("userId", userId);
             
-            webSocketClient.send(gson.toJson(errorMsg));
+            send(errorMsg);
         }
     }
     
@@ -1017,31 +2062,30 @@ public class NetworkClient {
         codeListeners.add(listener);
     }
     
-    private void notifyOperationListeners(Operation operation) {
-        // Make a copy to avoid concurrent modification issues
-        final List<Consumer<Operation>> listenersCopy = new ArrayList<>(operationListeners);
-        
-        if (Platform.isFxApplicationThread()) {
-            // If already on JavaFX thread, execute directly
-            for (Consumer<Operation> listener : listenersCopy) {
+    /**
+     * Hands an event to a list of listeners on the callback executor.
+     * @param listeners The listeners, copied so they can be added to meanwhile.
+     * @param event The event.
+     * @param kind The kind of listener, for error messages.
+     */
+    private <T> void dispatch(List<Consumer<T>> listeners, T event, String kind) {
+        final List<Consumer<T>> listenersCopy = new ArrayList<>(listeners);
+        if (listenersCopy.isEmpty()) {
+            return;
+        }
+        callbackExecutor.execute(() -> {
+            for (Consumer<T> listener : listenersCopy) {
                 try {
-                    listener.accept(operation);
+                    listener.accept(event);
                 } catch (Exception e) {
-                    System.err.println("Error in operation listener: " + e.getMessage());
+                    log.error("Error in " + kind + " listener: " + e.getMessage());
                 }
             }
-        } else {
-            // Otherwise, use Platform.runLater
-            Platform.runLater(() -> {
-                for (Consumer<Operation> listener : listenersCopy) {
-                    try {
-                        listener.accept(operation);
-                    } catch (Exception e) {
-                        System.err.println("Error in operation listener: " + e.getMessage());
-                    }
-                }
-            });
-        }
+        });
+    }
+    
+    private void notifyOperationListeners(Operation operation) {
+        dispatch(operationListeners, operation, "operation");
     }
     
     /**
@@ -1071,7 +2115,7 @@ public class NetworkClient {
                 break;
             }
         }
-        System.out.println("Notifying presence listeners with " + userMap.size() + 
+        log.debug("Notifying presence listeners with " + userMap.size() + 
                           " users" + (hasOtherUsers ? " including remote users" : " (only self)"));
         
         // Add all these users to our tracked cursor positions map
@@ -1083,88 +2127,110 @@ public class NetworkClient {
             }
         }
         
-        // Make a copy to avoid concurrent modification issues
-        final List<Consumer<Map<String, String>>> listenersCopy = new ArrayList<>(presenceListeners);
-        final Map<String, String> userMapCopy = new HashMap<>(userMap);
-        
-        if (Platform.isFxApplicationThread()) {
-            // If already on JavaFX thread, execute directly
-            for (Consumer<Map<String, String>> listener : listenersCopy) {
-                try {
-                    listener.accept(userMapCopy);
-                } catch (Exception e) {
-                    System.err.println("Error in presence listener: " + e.getMessage());
-                    e.printStackTrace();
-                }
-            }
-        } else {
-            // Otherwise, use Platform.runLater
-            Platform.runLater(() -> {
-                for (Consumer<Map<String, String>> listener : listenersCopy) {
-                    try {
-                        listener.accept(userMapCopy);
-                    } catch (Exception e) {
-                        System.err.println("Error in presence listener: " + e.getMessage());
-                        e.printStackTrace();
-                    }
-                }
-            });
-        }
+        dispatch(presenceListeners, new HashMap<>(userMap), "presence");
     }
     
     private void notifyErrorListeners(String error) {
-        // Make a copy to avoid concurrent modification issues
-        final List<Consumer<String>> listenersCopy = new ArrayList<>(errorListeners);
-        final String errorMessage = error;
+        dispatch(errorListeners, error, "error");
+    }
+    
+    /**
+     * Adds a listener for the progress of document snapshots streamed in chunks.
+     * @param listener The listener to add.
+     */
+    public void addSnapshotListener(Consumer<SnapshotProgress> listener) {
+        snapshotListeners.add(listener);
+    }
+    
+    private void notifySnapshotListeners(SnapshotProgress progress) {
+        // Same executor as operations, so progress is seen before the completed document
+        dispatch(snapshotListeners, progress, "snapshot");
+    }
+    
+    private void notifyCodeListeners(CodePair codePair) {
+        dispatch(codeListeners, codePair, "code");
+    }
+    
+    /**
+     * Progress of a document snapshot being streamed from the server.
+     */
+    public static class SnapshotProgress {
+        private final String messageType;
+        private final String chunk;
+        private final int offset;
+        private final int total;
+        private final boolean complete;
         
-        if (Platform.isFxApplicationThread()) {
-            // If already on JavaFX thread, execute directly
-            for (Consumer<String> listener : listenersCopy) {
-                try {
-                    listener.accept(errorMessage);
-                } catch (Exception e) {
-                    System.err.println("Error in error listener: " + e.getMessage());
-                }
-            }
-        } else {
-            // Otherwise, use Platform.runLater
-            Platform.runLater(() -> {
-                for (Consumer<String> listener : listenersCopy) {
-                    try {
-                        listener.accept(errorMessage);
-                    } catch (Exception e) {
-                        System.err.println("Error in error listener: " + e.getMessage());
-                    }
-                }
-            });
+        public SnapshotProgress(String messageType, String chunk, int offset, int total, boolean complete) {
+            this.messageType = messageType;
+            this.chunk = chunk;
+            this.offset = offset;
+            this.total = total;
+            this.complete = complete;
+        }
+        
+        /**
+         * Gets the type of the message the snapshot belongs to, such as join_session_ack or document_sync.
+         */
+        public String getMessageType() {
+            return messageType;
+        }
+        
+        /**
+         * Gets the text of the chunk just received, or an empty string for the start and end of a snapshot.
+         */
+        public String getChunk() {
+            return chunk;
+        }
+        
+        /**
+         * Gets the offset of the chunk in the document.
+         */
+        public int getOffset() {
+            return offset;
+        }
+        
+        /**
+         * Gets the number of characters received so far, including this chunk.
+         */
+        public int getReceived() {
+            return offset + chunk.length();
+        }
+        
+        public int getTotal() {
+            return total;
+        }
+        
+        /**
+         * Checks whether the snapshot is finished, either complete or discarded.
+         * A complete snapshot is followed by the message carrying the whole document.
+         */
+        public boolean isComplete() {
+            return complete;
         }
     }
     
-    private void notifyCodeListeners(CodePair codePair) {
-        // Make a copy to avoid concurrent modification issues
-        final List<Consumer<CodePair>> listenersCopy = new ArrayList<>(codeListeners);
-        final CodePair codePairCopy = codePair;
+    /**
+     * A snapshot being assembled from its chunks.
+     */
+    private static class SnapshotAssembly {
+        private final JsonObject message;
+        private final String field;
+        private final int length;
+        private final int chunks;
+        private final StringBuilder content;
+        private int nextSeq = 0;
         
-        if (Platform.isFxApplicationThread()) {
-            // If already on JavaFX thread, execute directly
-            for (Consumer<CodePair> listener : listenersCopy) {
-                try {
-                    listener.accept(codePairCopy);
-                } catch (Exception e) {
-                    System.err.println("Error in code listener: " + e.getMessage());
-                }
-            }
-        } else {
-            // Otherwise, use Platform.runLater
-            Platform.runLater(() -> {
-                for (Consumer<CodePair> listener : listenersCopy) {
-                    try {
-                        listener.accept(codePairCopy);
-                    } catch (Exception e) {
-                        System.err.println("Error in code listener: " + e.getMessage());
-                    }
-                }
-            });
+        SnapshotAssembly(JsonObject message, String field, int length, int chunks) {
+            this.message = message;
+            this.field = field;
+            this.length = length;
+            this.chunks = chunks;
+            this.content = new StringBuilder(length);
+        }
+        
+        String getMessageType() {
+            return message.get("type").getAsString();
         }
     }
     
@@ -1189,6 +2255,27 @@ public class NetworkClient {
         }
     }
     
+    /**
+     * The outcome of a save, as confirmed by the server.
+     */
+    public static class SaveResult {
+        private final boolean saved;
+        private final String reason;
+        
+        public SaveResult(boolean saved, String reason) {
+            this.saved = saved;
+            this.reason = reason;
+        }
+        
+        public boolean isSaved() {
+            return saved;
+        }
+        
+        public String getReason() {
+            return reason;
+        }
+    }
+    
     /**
      * Sends the full document content to the server.
      * @param content The full document content.
@@ -1208,30 +2295,78 @@ public class NetworkClient {
         
         // Significantly increase throttling to 1000ms (1 second)
         if (now - lastDocUpdateTime < 1000) {
-            System.out.println("Throttling document update - last update was " + (now - lastDocUpdateTime) + "ms ago");
+            log.debug("Throttling document update - last update was " + (now - lastDocUpdateTime) + "ms ago");
             return;
         }
         
         // Record this update time
         lastOperationTimes.put("document_update", now);
         
-        // Create the message
-        JsonObject message = new JsonObject();
-        message.addProperty("type", "document_update");
-        message.addProperty("userId", userId);
-        message.addProperty("content", finalContent);
-        message.addProperty("timestamp", now);
+        try {
+            sendContentUpdate(finalContent, null);
+        } catch (Exception e) {
+            log.error("Error sending document update: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Saves the document: sends its content, bypassing the update throttle, and asks the
+     * server to write the session's document to the database. The callback is told the
+     * outcome once the server has written it or refused, or when no answer comes.
+     * @param content The full document content.
+     * @param callback Told whether the document was saved, on the callback executor.
+     */
+    public void saveDocument(String content, Consumer<SaveResult> callback) {
+        if (!connected) {
+            completeSave(callback, new SaveResult(false, "Not connected to server"));
+            return;
+        }
         
-        // Add a unique sequence number to help server detect duplicates
-        message.addProperty("seq", System.currentTimeMillis());
+        long requestId = nextSaveId.incrementAndGet();
+        pendingSaves.put(requestId, callback);
+        try {
+            sendContentUpdate(content == null ? "" : content, null);
+            lastOperationTimes.put("document_update", System.currentTimeMillis());
+            
+            // The save request shares the content update's lane, so the server has the
+            // content by the time it handles the request
+            JsonObject message = new JsonObject();
+            message.addProperty("type", "save_document");
+            message.addProperty("userId", userId);
+            message.addProperty("requestId", requestId);
+            if (documentId != null) {
+                message.addProperty("documentId", documentId);
+            }
+            send(message);
+        } catch (Exception e) {
+            log.error("Error sending save request: " + e.getMessage(), e);
+            pendingSaves.remove(requestId);
+            completeSave(callback, new SaveResult(false, e.getMessage()));
+            return;
+        }
         
-        // Add retry logic for important document updates
+        scheduler.schedule(() -> {
+            Consumer<SaveResult> pending = pendingSaves.remove(requestId);
+            if (pending != null) {
+                completeSave(pending, new SaveResult(false, "The server did not confirm the save"));
+            }
+        }, SAVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Sends the document content after an undo or redo, bypassing the update throttle so
+     * other members see it straight away.
+     * @param content The full document content.
+     * @param operation "undo" or "redo".
+     */
+    public void sendInstantDocumentUpdate(String content, String operation) {
+        if (!connected) {
+            return;
+        }
         try {
-            webSocketClient.send(gson.toJson(message));
-            System.out.println("Sent document update with " + finalContent.length() + " chars");
+            sendContentUpdate(content == null ? "" : content, operation);
         } catch (Exception e) {
-            System.err.println("Error sending document update: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error sending " + operation + " sync: " + e.getMessage());
         }
     }
     
@@ -1240,7 +2375,7 @@ public class NetworkClient {
      * @param operation The operation that was undone
      */
     public void sendUndo(Operation operation) {
-        if (!connected) {
+        if (!connected && currentSessionCode == null) {
             notifyErrorListeners("Not connected to server");
             return;
         }
@@ -1265,7 +2400,7 @@ public class NetworkClient {
         
         message.addProperty("operationType", operation.getType().toString());
         
-        webSocketClient.send(gson.toJson(message));
+        sendOperation(message);
     }
     
     /**
@@ -1273,7 +2408,7 @@ public class NetworkClient {
      * @param operation The operation that was redone
      */
     public void sendRedo(Operation operation) {
-        if (!connected) {
+        if (!connected && currentSessionCode == null) {
             notifyErrorListeners("Not connected to server");
             return;
         }
@@ -1298,7 +2433,7 @@ public class NetworkClient {
         
         message.addProperty("operationType", operation.getType().toString());
         
-        webSocketClient.send(gson.toJson(message));
+        sendOperation(message);
     }
     
     public void sendPresenceUpdate() {
@@ -1312,9 +2447,9 @@ public class NetworkClient {
             message.addProperty("userId", userId);
             message.addProperty("username", username);
             message.addProperty("timestamp", System.currentTimeMillis());
-            webSocketClient.send(gson.toJson(message));
+            send(message);
         } catch (Exception e) {
-            System.err.println("Error sending presence update: " + e.getMessage());
+            log.error("Error sending presence update: " + e.getMessage());
         }
     }
     
@@ -1361,23 +2496,6 @@ public class NetworkClient {
         return connected && webSocketClient != null && webSocketClient.isOpen();
     }
     
-    /**
-     * Clears the sync history periodically to prevent memory leaks.
-     * This will run every 30 seconds to clean up the message history.
-     */
-    private void startSyncHistoryCleaner() {
-        // Clean up every 30 seconds
-        new Timer(true).schedule(new TimerTask() {
-            @Override
-            public void run() {
-                synchronized (recentlySyncedDocuments) {
-                    recentlySyncedDocuments.clear();
-                    System.out.println("Cleared sync history");
-                }
-            }
-        }, 30000, 30000);
-    }
-    
     /**
      * Sends a "leave session" message to properly clean up on the server.
      * Should be called when the user intentionally leaves a session.
@@ -1391,10 +2509,17 @@ public class NetworkClient {
             JsonObject message = new JsonObject();
             message.addProperty("type", "leave_session");
             message.addProperty("userId", userId);
-            webSocketClient.send(gson.toJson(message));
-            System.out.println("Sent leave session message to server");
+            send(message);
+            
+            // Forget the session so a reconnect doesn't rejoin it
+            currentSessionCode = null;
+            lastSeenSeq = -1;
+            resumeToken = null;
+            outbox.reset();
+            resetRoster(new HashMap<>(), -1);
+            log.info("Sent leave session message to server");
         } catch (Exception e) {
-            System.err.println("Error sending leave session message: " + e.getMessage());
+            log.error("Error sending leave session message: " + e.getMessage());
         }
     }
     
@@ -1417,7 +2542,7 @@ public class NetworkClient {
         // Notify listeners to rebuild their user lists with just ourselves
         notifyPresenceListeners(emptyUserMap);
         
-        System.out.println("Purged all disconnected users");
+        log.info("Purged all disconnected users");
     }
     
     /**
@@ -1427,37 +2552,68 @@ public class NetworkClient {
         String serverUrl = System.getenv("SERVER_URL");
         if (serverUrl != null && !serverUrl.isEmpty()) {
             // Log the original URL from environment
-            System.out.println("Original SERVER_URL from environment: " + serverUrl);
+            log.info("Original SERVER_URL from environment: " + serverUrl);
             
             // Keep the URL as is if it already has a protocol
             if (serverUrl.startsWith("ws://") || serverUrl.startsWith("wss://")) {
-                System.out.println("Using WebSocket URL with protocol: " + serverUrl);
+                log.info("Using WebSocket URL with protocol: " + serverUrl);
                 return serverUrl;
             }
             
             // If the URL starts with https, convert to wss
             if (serverUrl.startsWith("https://")) {
                 serverUrl = "wss://" + serverUrl.substring(8);
-                System.out.println("Converted HTTPS to WSS: " + serverUrl);
+                log.info("Converted HTTPS to WSS: " + serverUrl);
             } else if (!serverUrl.startsWith("ws://") && !serverUrl.startsWith("wss://")) {
                 // If URL doesn't have a protocol, add wss://
                 serverUrl = "wss://" + serverUrl;
-                System.out.println("Added WSS protocol: " + serverUrl);
+                log.info("Added WSS protocol: " + serverUrl);
             }
             
             // Ensure URL ends with a trailing slash
             if (!serverUrl.endsWith("/")) {
                 serverUrl = serverUrl + "/";
-                System.out.println("Added trailing slash: " + serverUrl);
+                log.info("Added trailing slash: " + serverUrl);
             }
             
-            System.out.println("Final WebSocket URL: " + serverUrl);
+            log.info("Final WebSocket URL: " + serverUrl);
             return serverUrl;
         }
         
         // Default for local development
         String defaultUrl = "ws://localhost:8887";
-        System.out.println("No SERVER_URL environment variable found, using default: " + defaultUrl);
+        log.info("No SERVER_URL environment variable found, using default: " + defaultUrl);
         return defaultUrl;
     }
-} 
\ No newline at end of file
+    
+    /**
+     * Runs listener calls on the JavaFX application thread, directly when already on it.
+     * Calls arriving from other threads are collected and handed over in one runLater,
+     * so a burst of events costs a single hop onto the FX queue.
+     * Kept in its own class so JavaFX is only loaded by clients that use it.
+     */
+    private static final class FxExecutor implements Executor {
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        
+        @Override
+        public void execute(Runnable task) {
+            if (Platform.isFxApplicationThread() && tasks.isEmpty()) {
+                task.run();
+                return;
+            }
+            tasks.add(task);
+            if (drainScheduled.compareAndSet(false, true)) {
+                Platform.runLater(this::drain);
+            }
+        }
+        
+        private void drain() {
+            drainScheduled.set(false);
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
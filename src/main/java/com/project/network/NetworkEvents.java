@@ -0,0 +1,103 @@
+package com.project.network;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight recorder events for the server's and client's hot paths. They cost nothing
+ * unless a recording with them enabled is running. Per-message events are recorded
+ * from 1 ms by default, so a recording picks out the slow ones; document rebuilds and
+ * database calls are rare enough to record every time.
+ */
+public final class NetworkEvents {
+
+    private NetworkEvents() {
+    }
+
+    @Name("com.project.network.MessageDispatch")
+    @Label("Server Message Dispatch")
+    @Category({"Collaborative Editor", "Server"})
+    @Description("A client message handled by the server")
+    @Threshold("1 ms")
+    public static final class MessageDispatch extends Event {
+        @Label("Message Type")
+        public String type;
+
+        @Label("In Session")
+        @Description("Whether the message ran on a session's executor")
+        public boolean inSession;
+    }
+
+    @Name("com.project.network.FanOut")
+    @Label("Server Fan-out")
+    @Category({"Collaborative Editor", "Server"})
+    @Description("A session message sent to this server's members of the session")
+    @Threshold("1 ms")
+    public static final class FanOut extends Event {
+        @Label("Recipients")
+        public int recipients;
+
+        @Label("Message Size")
+        @DataAmount(DataAmount.BYTES)
+        @Description("Characters in the message")
+        public long messageSize;
+
+        @Label("Streamed")
+        @Description("Whether the message went out as a snapshot stream")
+        public boolean streamed;
+    }
+
+    @Name("com.project.network.ClientSend")
+    @Label("Client Send")
+    @Category({"Collaborative Editor", "Client"})
+    @Description("A message written to the server connection")
+    @Threshold("1 ms")
+    public static final class ClientSend extends Event {
+        @Label("Message Size")
+        @DataAmount(DataAmount.BYTES)
+        @Description("Characters in the message")
+        public long messageSize;
+    }
+
+    @Name("com.project.network.ClientReceive")
+    @Label("Client Receive")
+    @Category({"Collaborative Editor", "Client"})
+    @Description("A message from the server parsed and handled")
+    @Threshold("1 ms")
+    public static final class ClientReceive extends Event {
+        @Label("Message Type")
+        public String type;
+
+        @Label("Message Size")
+        @DataAmount(DataAmount.BYTES)
+        @Description("Characters in the message")
+        public long messageSize;
+    }
+
+    @Name("com.project.network.DocumentSyncRebuild")
+    @Label("Document Sync Rebuild")
+    @Category({"Collaborative Editor", "Client"})
+    @Description("The local document rebuilt from content synced from the server")
+    public static final class DocumentSyncRebuild extends Event {
+        @Label("Content Length")
+        public int contentLength;
+    }
+
+    @Name("com.project.network.DatabaseCall")
+    @Label("Database Call")
+    @Category({"Collaborative Editor", "Database"})
+    @Description("A DatabaseService read or write")
+    public static final class DatabaseCall extends Event {
+        @Label("Call")
+        public String call;
+
+        @Label("Content Length")
+        @Description("Characters of document content written, 0 for calls that write none")
+        public int contentLength;
+    }
+}
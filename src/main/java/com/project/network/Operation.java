@@ -1,6 +1,7 @@
 package com.project.network;
 
 import com.project.crdt.CRDTCharacter;
+import com.project.crdt.ContentHash;
 import com.project.crdt.Position;
 
 /**
@@ -28,6 +29,7 @@ public class Operation {
     private final int cursorPosition;
     private final String documentContent;
     private int documentLength = -1; // For GET_DOCUMENT_LENGTH operation response
+    private Long documentHash; // ContentHash of the sync content, when the server sent one
     
     /**
      * Creates a new operation.
@@ -123,6 +125,25 @@ public class Operation {
         return documentLength;
     }
     
+    /**
+     * Sets the content hash the server reported for a DOCUMENT_SYNC operation.
+     * @param hash The {@link ContentHash} of the document content.
+     */
+    public void setDocumentHash(long hash) {
+        this.documentHash = hash;
+    }
+    
+    /**
+     * Gets the content hash of a DOCUMENT_SYNC operation, computing it if the server sent none.
+     * @return The {@link ContentHash} of the document content.
+     */
+    public long getDocumentHash() {
+        if (documentHash == null) {
+            documentHash = ContentHash.of(documentContent != null ? documentContent : "");
+        }
+        return documentHash;
+    }
+    
     @Override
     public String toString() {
         switch (type) {
@@ -0,0 +1,192 @@
+package com.project.network;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A bounded, per-session log of sequenced operations.
+ * The server stamps every relayed edit with a sequence number and keeps the
+ * most recent ones here, so a client that reconnects with the last sequence
+ * number it saw can be sent only the operations it missed.
+ */
+public class OperationLog {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+    private static final Gson gson = new Gson();
+
+    // Ring buffer of serialized operations, their sequence numbers, and the user and
+    // client sequence number each came from (null and 0 when the operation has none)
+    private final String[] entries;
+    private final long[] sequences;
+    private final String[] authors;
+    private final long[] clientSeqs;
+    private final int capacity;
+
+    // Index of the oldest retained entry and the number of retained entries
+    private int head = 0;
+    private int size = 0;
+
+    // Sequence number of the most recently appended operation (0 = none yet)
+    private long latestSeq = 0;
+
+    public OperationLog() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public OperationLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new String[capacity];
+        this.sequences = new long[capacity];
+        this.authors = new String[capacity];
+        this.clientSeqs = new long[capacity];
+    }
+
+    /**
+     * Stamps the next sequence number into an operation and appends it to the log,
+     * evicting the oldest entry when the buffer is full.
+     * @param operation The operation message to sequence. Its "seq" property is set.
+     * @return The serialized operation, ready to be relayed to session members.
+     */
+    public synchronized String append(JsonObject operation) {
+        long seq = latestSeq + 1;
+        operation.addProperty("seq", seq);
+        String operationJson = gson.toJson(operation);
+
+        int index = (head + size) % capacity;
+        if (size == capacity) {
+            // Overwrite the oldest entry
+            head = (head + 1) % capacity;
+        } else {
+            size++;
+        }
+
+        entries[index] = operationJson;
+        sequences[index] = seq;
+        authors[index] = operation.has("userId") ? operation.get("userId").getAsString() : null;
+        clientSeqs[index] = operation.has("clientSeq") ? operation.get("clientSeq").getAsLong() : 0;
+        latestSeq = seq;
+        return operationJson;
+    }
+
+    /**
+     * Starts an empty log partway through a sequence, so that the operations appended next
+     * are numbered as they are elsewhere, as when a session's copy in one server process
+     * takes over the numbering of its copy in another.
+     * @param seq The sequence number of the last operation already sequenced elsewhere.
+     * @throws IllegalStateException If the log already holds operations.
+     */
+    public synchronized void skipTo(long seq) {
+        if (size > 0) {
+            throw new IllegalStateException("Log already holds " + size + " operations");
+        }
+        latestSeq = Math.max(latestSeq, seq);
+    }
+
+    /**
+     * Empties the log and carries on numbering after the given sequence number, which may
+     * be lower than the latest, as when a session's copy in one server process takes over
+     * the numbering of its copy in another after the two numbered operations differently.
+     * @param seq The sequence number of the last operation already sequenced elsewhere.
+     */
+    public synchronized void restartAt(long seq) {
+        Arrays.fill(entries, null);
+        Arrays.fill(authors, null);
+        head = 0;
+        size = 0;
+        latestSeq = seq;
+    }
+
+    /**
+     * Checks whether a user's operation with a given client sequence number is retained.
+     * @param author The user.
+     * @param clientSeq The user's client sequence number.
+     * @return true if the operation is retained.
+     */
+    public synchronized boolean contains(String author, long clientSeq) {
+        if (author == null || clientSeq <= 0) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % capacity;
+            if (clientSeqs[index] == clientSeq && author.equals(authors[index])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the sequence number of the most recent operation.
+     * @return The latest sequence number, or 0 if nothing has been logged.
+     */
+    public synchronized long getLatestSeq() {
+        return latestSeq;
+    }
+
+    /**
+     * Gets the sequence number of the oldest operation still in the buffer.
+     * @return The oldest retained sequence number, or latest + 1 if the log is empty.
+     */
+    public synchronized long getOldestSeq() {
+        return size == 0 ? latestSeq + 1 : sequences[head];
+    }
+
+    /**
+     * Checks whether every operation after the given sequence number is still retained.
+     * @param lastSeq The last sequence number the caller has seen.
+     * @return true if {@link #getSince(long)} can return a complete tail.
+     */
+    public synchronized boolean covers(long lastSeq) {
+        return lastSeq >= getOldestSeq() - 1 && lastSeq <= latestSeq;
+    }
+
+    /**
+     * Gets every retained operation with a sequence number greater than the given one.
+     * @param lastSeq The last sequence number the caller has seen.
+     * @return The serialized operations in sequence order (possibly empty).
+     */
+    public synchronized List<String> getSince(long lastSeq) {
+        return getSince(lastSeq, null, 0);
+    }
+
+    /**
+     * Gets every retained operation with a sequence number greater than the given one,
+     * leaving out one user's operations up to a client sequence number. A snapshot sent by
+     * a client already holds the client's own operations that were still on their way to
+     * us, which are logged after the last sequence number it had seen.
+     * @param lastSeq The last sequence number the caller has seen.
+     * @param author The user whose operations are left out, or null for none.
+     * @param authorClientSeq The user's last client sequence number left out.
+     * @return The serialized operations in sequence order (possibly empty).
+     */
+    public synchronized List<String> getSince(long lastSeq, String author, long authorClientSeq) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % capacity;
+            if (sequences[index] <= lastSeq) {
+                continue;
+            }
+            if (author != null && clientSeqs[index] > 0 && clientSeqs[index] <= authorClientSeq
+                    && author.equals(authors[index])) {
+                continue;
+            }
+            result.add(entries[index]);
+        }
+        return result;
+    }
+
+    /**
+     * Gets the number of operations currently retained.
+     * @return The number of retained operations.
+     */
+    public synchronized int size() {
+        return size;
+    }
+}
@@ -0,0 +1,503 @@
+package com.project.network;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.project.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+
+/**
+ * The client's operations that the server has not acknowledged yet.
+ * Every edit is stamped with the next client sequence number and kept here, whether or
+ * not it could be sent, until an op_ack covering it arrives. After a reconnect the server
+ * tells us the last one it applied, and the rest are sent again in order. Once more than
+ * MAX_OPERATIONS are waiting the oldest are dropped and the outbox is marked as
+ * overflowed; the document then has to be sent in full instead.
+ *
+ * A durable outbox also keeps a journal on disk, so that edits the server never got
+ * survive the client itself being closed or crashing: with the session they belong to and
+ * its resume token, they are loaded again by the next client of the same user and sent
+ * when it joins that session. Each running client holds a lock on its own journal, so
+ * clients of the same user open at the same time keep separate ones. The journal is a text file of one record per line: "S" and
+ * the session state as JSON, "A" and an added operation, "K" and an acknowledged client
+ * sequence number. Records are written in batches by the journal executor, normally the
+ * client's scheduler thread, so the thread making edits never waits on the disk. Each batch
+ * is flushed but not forced to the disk, so the journal survives the process, not the
+ * machine, going down; it is rewritten from what is waiting whenever nothing is, or when it
+ * has grown by MAX_OPERATIONS records.
+ */
+class OperationOutbox {
+
+    private static final Log log = Log.get(OperationOutbox.class);
+
+    private static final int MAX_OPERATIONS = 10_000;
+
+    // How many clients of one user can keep a journal at the same time
+    private static final int MAX_JOURNALS_PER_USER = 16;
+
+    private final Gson gson = new Gson();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long nextClientSeq = 1;
+    private boolean overflowed = false;
+
+    // The session the operations belong to and the server's resume token for it
+    private String sessionCode;
+    private String resumeToken;
+
+    // Journal file, or null when the outbox is only kept in memory
+    private Path journal;
+    private int journalRecords = 0;
+
+    // Records not written yet, and the journal's new content if it is to be rewritten first
+    private final List<String> pendingRecords = new ArrayList<>();
+    private List<String> pendingRewrite;
+    private boolean writeScheduled = false;
+    private Executor journalExecutor = Runnable::run;
+
+    // Only used by the journal executor
+    private BufferedWriter journalWriter;
+
+    // Lock keeping other clients off the journal, held until the outbox is closed
+    private FileChannel journalLock;
+
+    /**
+     * Creates an outbox kept in memory only.
+     */
+    OperationOutbox() {
+    }
+
+    /**
+     * Creates an outbox journaled to a file, loading what an earlier client left in it.
+     * If the journal cannot be read or written, the outbox is kept in memory only.
+     * @param journal The journal file.
+     */
+    OperationOutbox(Path journal) {
+        try {
+            Files.createDirectories(journal.toAbsolutePath().getParent());
+            if (Files.exists(journal)) {
+                load(journal);
+            }
+            this.journal = journal;
+            compact();
+            if (!entries.isEmpty()) {
+                log.info("Loaded " + entries.size() + " unacknowledged edits for session " + sessionCode + " from " + journal);
+            }
+        } catch (IOException e) {
+            log.warn("Could not open outbox journal " + journal + "; unacknowledged edits are kept in memory only: " + e.getMessage());
+            this.journal = null;
+        }
+    }
+
+    /**
+     * Creates the durable outbox of a user, journaled in OUTBOX_DIR (by default
+     * .collaborative-editor/outbox in the user's home directory).
+     * @param userId The user ID.
+     * @return The outbox.
+     */
+    static OperationOutbox forUser(String userId) {
+        String dir = ServerConfig.get("OUTBOX_DIR");
+        Path directory = dir != null ? Path.of(dir)
+                : Path.of(System.getProperty("user.home"), ".collaborative-editor", "outbox");
+        return open(directory, userId);
+    }
+
+    /**
+     * Creates an outbox journaled to the first of a user's journals in a directory that
+     * no other client holds, which is where a client that went down left its edits.
+     * If every journal is held, or none can be locked, the outbox is kept in memory only.
+     * @param directory The directory.
+     * @param userId The user ID.
+     * @return The outbox.
+     */
+    static OperationOutbox open(Path directory, String userId) {
+        String name = userId.replaceAll("[^A-Za-z0-9._-]", "_");
+        try {
+            Files.createDirectories(directory);
+            for (int instance = 1; instance <= MAX_JOURNALS_PER_USER; instance++) {
+                FileChannel lock = tryLock(directory.resolve(name + "." + instance + ".lock"));
+                if (lock != null) {
+                    OperationOutbox outbox = new OperationOutbox(directory.resolve(name + "." + instance + ".journal"));
+                    outbox.journalLock = lock;
+                    return outbox;
+                }
+            }
+            log.warn("Every outbox journal of " + userId + " is in use; unacknowledged edits are kept in memory only");
+        } catch (IOException e) {
+            log.warn("Could not lock an outbox journal in " + directory + "; unacknowledged edits are kept in memory only: " + e.getMessage());
+        }
+        return new OperationOutbox();
+    }
+
+    private static FileChannel tryLock(Path lockFile) throws IOException {
+        FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Held by another client in this process
+        }
+        channel.close();
+        return null;
+    }
+
+    /**
+     * Stamps an operation with the next client sequence number and keeps it until acknowledged.
+     * @param message The operation message; its "clientSeq" property is set.
+     * @return The encoded message.
+     */
+    synchronized String add(JsonObject message) {
+        long clientSeq = nextClientSeq++;
+        message.addProperty("clientSeq", clientSeq);
+        String encoded = gson.toJson(message);
+        entries.add(new Entry(clientSeq, message.get("type").getAsString(), encoded));
+        if (entries.size() > MAX_OPERATIONS) {
+            entries.poll();
+            overflowed = true;
+        }
+        journal("A\t" + encoded);
+        return encoded;
+    }
+
+    /**
+     * Drops the operations the server has applied.
+     * @param clientSeq The last client sequence number applied.
+     */
+    synchronized void acknowledge(long clientSeq) {
+        if (entries.isEmpty() || entries.peek().clientSeq > clientSeq) {
+            return;
+        }
+        while (!entries.isEmpty() && entries.peek().clientSeq <= clientSeq) {
+            entries.poll();
+        }
+        if (entries.isEmpty()) {
+            compact();
+        } else {
+            journal("K\t" + clientSeq);
+        }
+    }
+
+    /**
+     * Gets the operations still waiting, oldest first.
+     * @return Pairs of {type, encoded message}.
+     */
+    synchronized List<String[]> getUnacknowledged() {
+        List<String[]> waiting = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            waiting.add(new String[] {entry.type, entry.message});
+        }
+        return waiting;
+    }
+
+    /**
+     * Gets some of the operations still waiting, oldest first.
+     * @param afterClientSeq Only operations with a later client sequence number are returned.
+     * @param limit The most operations returned.
+     * @return Triples of {type, encoded message, client sequence number}.
+     */
+    synchronized List<String[]> getUnacknowledged(long afterClientSeq, int limit) {
+        List<String[]> waiting = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (waiting.size() >= limit) {
+                break;
+            }
+            if (entry.clientSeq > afterClientSeq) {
+                waiting.add(new String[] {entry.type, entry.message, Long.toString(entry.clientSeq)});
+            }
+        }
+        return waiting;
+    }
+
+    /**
+     * Checks whether operations were dropped because too many were waiting, and clears the mark.
+     * @return true if operations were dropped since the last call.
+     */
+    synchronized boolean takeOverflow() {
+        boolean dropped = overflowed;
+        overflowed = false;
+        if (dropped) {
+            journalSession();
+        }
+        return dropped;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the client sequence number of the oldest operation waiting, or the one the next
+     * operation gets if none is.
+     * @return The client sequence number.
+     */
+    synchronized long getFirstClientSeq() {
+        return entries.isEmpty() ? nextClientSeq : entries.peek().clientSeq;
+    }
+
+    /**
+     * Gets the client sequence number of the last operation stamped.
+     * @return The client sequence number, 0 if none was.
+     */
+    synchronized long getLastClientSeq() {
+        return nextClientSeq - 1;
+    }
+
+    /**
+     * Records the session the operations belong to and the server's resume token for it.
+     * @param sessionCode The session code.
+     * @param resumeToken The resume token, or null if the server has not given one yet.
+     */
+    synchronized void setSession(String sessionCode, String resumeToken) {
+        if (Objects.equals(sessionCode, this.sessionCode) && Objects.equals(resumeToken, this.resumeToken)) {
+            return;
+        }
+        this.sessionCode = sessionCode;
+        this.resumeToken = resumeToken;
+        journalSession();
+    }
+
+    /**
+     * Gets the session the waiting operations belong to, which for a durable outbox may be
+     * one an earlier client of the user was in.
+     * @return The session code, or null if none.
+     */
+    synchronized String getSessionCode() {
+        return sessionCode;
+    }
+
+    /**
+     * Gets the resume token recorded with the session.
+     * @return The token, or null if none.
+     */
+    synchronized String getResumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * Forgets every operation and starts numbering over, for a different session.
+     */
+    synchronized void reset() {
+        entries.clear();
+        nextClientSeq = 1;
+        overflowed = false;
+        sessionCode = null;
+        resumeToken = null;
+        compact();
+    }
+
+    /**
+     * Sets the executor the journal is written by from now on. Until this is called
+     * the journal is written by the thread changing the outbox.
+     * @param executor A single-threaded executor.
+     */
+    synchronized void setJournalExecutor(Executor executor) {
+        this.journalExecutor = executor;
+    }
+
+    /**
+     * Writes what is still pending to the journal and closes it. Called once the journal
+     * executor has stopped; the outbox is kept in memory only afterwards.
+     */
+    void close() {
+        writeJournal();
+        synchronized (this) {
+            journal = null;
+        }
+        closeWriter();
+        if (journalLock != null) {
+            try {
+                journalLock.close();
+            } catch (IOException e) {
+                // The lock goes with the process anyway
+            }
+            journalLock = null;
+        }
+    }
+
+    private void load(Path file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    loadRecord(line);
+                } catch (RuntimeException e) {
+                    // A record cut short by the process going down ends the journal
+                    log.warn("Ignoring the rest of outbox journal " + file + " after a damaged record");
+                    break;
+                }
+            }
+        }
+    }
+
+    private void loadRecord(String line) {
+        String payload = line.substring(2);
+        switch (line.charAt(0)) {
+            case 'S': {
+                JsonObject state = JsonParser.parseString(payload).getAsJsonObject();
+                sessionCode = state.has("session") ? state.get("session").getAsString() : null;
+                resumeToken = state.has("resumeToken") ? state.get("resumeToken").getAsString() : null;
+                nextClientSeq = Math.max(nextClientSeq, state.get("nextClientSeq").getAsLong());
+                overflowed = state.get("overflowed").getAsBoolean();
+                break;
+            }
+            case 'A': {
+                JsonObject message = JsonParser.parseString(payload).getAsJsonObject();
+                long clientSeq = message.get("clientSeq").getAsLong();
+                entries.add(new Entry(clientSeq, message.get("type").getAsString(), payload));
+                if (entries.size() > MAX_OPERATIONS) {
+                    entries.poll();
+                    overflowed = true;
+                }
+                nextClientSeq = Math.max(nextClientSeq, clientSeq + 1);
+                break;
+            }
+            case 'K': {
+                long clientSeq = Long.parseLong(payload);
+                while (!entries.isEmpty() && entries.peek().clientSeq <= clientSeq) {
+                    entries.poll();
+                }
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown record");
+        }
+    }
+
+    private void journalSession() {
+        journal(sessionRecord());
+    }
+
+    private String sessionRecord() {
+        JsonObject state = new JsonObject();
+        if (sessionCode != null) {
+            state.addProperty("session", sessionCode);
+        }
+        if (resumeToken != null) {
+            state.addProperty("resumeToken", resumeToken);
+        }
+        state.addProperty("nextClientSeq", nextClientSeq);
+        state.addProperty("overflowed", overflowed);
+        return "S\t" + gson.toJson(state);
+    }
+
+    private void journal(String record) {
+        if (journal == null) {
+            return;
+        }
+        if (++journalRecords > MAX_OPERATIONS + entries.size()) {
+            compact();
+            return;
+        }
+        pendingRecords.add(record);
+        scheduleWrite();
+    }
+
+    /**
+     * Has the journal rewritten to hold just the session state and the waiting operations.
+     */
+    private void compact() {
+        if (journal == null) {
+            return;
+        }
+        List<String> content = new ArrayList<>(1 + entries.size());
+        content.add(sessionRecord());
+        for (Entry entry : entries) {
+            content.add("A\t" + entry.message);
+        }
+        // Whatever was pending is part of the new content
+        pendingRecords.clear();
+        pendingRewrite = content;
+        journalRecords = content.size();
+        scheduleWrite();
+    }
+
+    private void scheduleWrite() {
+        if (!writeScheduled) {
+            writeScheduled = true;
+            journalExecutor.execute(this::writeJournal);
+        }
+    }
+
+    /**
+     * Writes the pending records to the journal, rewriting it first if that is pending.
+     * Runs on the journal executor.
+     */
+    private void writeJournal() {
+        Path file;
+        List<String> rewrite;
+        List<String> records;
+        synchronized (this) {
+            writeScheduled = false;
+            file = journal;
+            rewrite = pendingRewrite;
+            records = new ArrayList<>(pendingRecords);
+            pendingRewrite = null;
+            pendingRecords.clear();
+        }
+        if (file == null || (rewrite == null && records.isEmpty())) {
+            return;
+        }
+        try {
+            if (rewrite != null) {
+                closeWriter();
+                Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+                Files.write(temp, rewrite, StandardCharsets.UTF_8);
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            if (journalWriter == null) {
+                journalWriter = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+            }
+            for (String record : records) {
+                journalWriter.write(record);
+                journalWriter.newLine();
+            }
+            journalWriter.flush();
+        } catch (IOException e) {
+            log.warn("Error writing outbox journal " + file + "; unacknowledged edits are kept in memory only: " + e.getMessage());
+            synchronized (this) {
+                journal = null;
+            }
+            closeWriter();
+        }
+    }
+
+    private void closeWriter() {
+        if (journalWriter != null) {
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+        journalWriter = null;
+    }
+
+    private static final class Entry {
+        private final long clientSeq;
+        private final String type;
+        private final String message;
+
+        Entry(long clientSeq, String type, String message) {
+            this.clientSeq = clientSeq;
+            this.type = type;
+            this.message = message;
+        }
+    }
+}
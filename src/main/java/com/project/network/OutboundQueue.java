@@ -0,0 +1,437 @@
+package com.project.network;
+
+import com.project.util.Log;
+import org.java_websocket.WebSocket;
+import org.java_websocket.WebSocketAdapter;
+import org.java_websocket.WebSocketImpl;
+import org.java_websocket.WebSocketServerFactory;
+import org.java_websocket.drafts.Draft;
+import org.java_websocket.server.DefaultWebSocketServerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Outbound message queue for one client connection.
+ * Messages go straight to the socket while the connection keeps up. Once the
+ * socket's buffered amount passes the high watermark, messages are held here
+ * until it drains below the low watermark. While held, cursor updates are merged
+ * per user and presence deltas are replaced by a single fresh snapshot. If the
+ * held messages exceed the hard limit, the client is disconnected so that it
+ * reconnects and catches up from the operation log.
+ */
+public class OutboundQueue {
+
+    private static final Log log = Log.get(OutboundQueue.class);
+
+    /** Close code telling the client it was too slow and should reconnect and resync. */
+    public static final int CLOSE_SLOW_CONSUMER = 4000;
+
+    private static final int DEFAULT_HIGH_WATERMARK = 256 * 1024;
+    private static final int DEFAULT_LOW_WATERMARK = 64 * 1024;
+    private static final int DEFAULT_HARD_LIMIT = 4 * 1024 * 1024;
+
+    private final WebSocket conn;
+    private final ServerMetrics metrics;
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final long hardLimit;
+
+    // Messages held while the connection is under pressure, in send order: serialized
+    // messages, or the unsent rest of a stream of frames
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+    private long pendingBytes = 0;
+
+    // Coalesced state that replaces superseded messages while under pressure
+    private final Map<String, Integer> pendingCursors = new HashMap<>();
+    private Supplier<String> pendingPresenceSnapshot;
+
+    private boolean underPressure = false;
+    private boolean closed = false;
+
+    // Bytes handed to the socket and not yet written to the network: added as frames are
+    // queued, taken off by the server's channel as it writes them
+    private final AtomicLong unflushedBytes = new AtomicLong();
+
+    // Per-connection statistics
+    private long sentCount = 0;
+    private long coalescedCount = 0;
+    private int maxDepth = 0;
+
+    public OutboundQueue(WebSocket conn, ServerMetrics metrics) {
+        this(conn, metrics,
+             ServerConfig.getLong("OUTBOUND_HIGH_WATERMARK", DEFAULT_HIGH_WATERMARK),
+             ServerConfig.getLong("OUTBOUND_LOW_WATERMARK", DEFAULT_LOW_WATERMARK),
+             ServerConfig.getLong("OUTBOUND_HARD_LIMIT", DEFAULT_HARD_LIMIT));
+    }
+
+    public OutboundQueue(WebSocket conn, ServerMetrics metrics, long highWatermark, long lowWatermark, long hardLimit) {
+        this.conn = conn;
+        this.metrics = metrics;
+        this.highWatermark = highWatermark;
+        this.lowWatermark = Math.min(lowWatermark, highWatermark);
+        this.hardLimit = hardLimit;
+    }
+
+    /**
+     * Sends a message that must be delivered in order (edits, acks, syncs, errors).
+     * @param json The serialized message.
+     */
+    public synchronized void send(String json) {
+        if (!canSendDirectly()) {
+            hold(json);
+            return;
+        }
+        write(json);
+    }
+
+    /**
+     * Sends a stream of frames that must be delivered in order, such as a large document
+     * snapshot. Frames are written only while the socket's buffer is below the high
+     * watermark; the rest of the stream waits here and is written as the connection
+     * drains. Unsent frames do not count towards the hard limit, since the stream
+     * produces them from content the server holds anyway.
+     * @param frames The serialized frames.
+     */
+    public synchronized void sendStream(Iterator<String> frames) {
+        if (!canSendDirectly()) {
+            holdStream(frames);
+            return;
+        }
+        while (frames.hasNext() && getBufferedBytes() < highWatermark) {
+            write(frames.next());
+        }
+        if (frames.hasNext()) {
+            // Later messages have to wait for the rest of the stream
+            underPressure = true;
+            holdStream(frames);
+        }
+    }
+
+    /**
+     * Sends a presence delta. Under pressure the delta is dropped and a fresh
+     * snapshot is sent once the connection drains, which supersedes every delta.
+     * @param json The serialized presence delta.
+     * @param snapshotSupplier Produces the current presence snapshot when needed.
+     */
+    public synchronized void sendPresence(String json, Supplier<String> snapshotSupplier) {
+        if (closed) {
+            return;
+        }
+        if (!canSendDirectly()) {
+            if (pendingPresenceSnapshot != null) {
+                coalesced();
+            }
+            pendingPresenceSnapshot = snapshotSupplier;
+            return;
+        }
+        write(json);
+    }
+
+    /**
+     * Sends an aggregated cursor frame. Under pressure only the latest cursor of
+     * each user is kept and sent as one frame once the connection drains.
+     * @param json The serialized cursor_batch frame shared by all session members.
+     * @param cursors The cursors carried by the frame.
+     */
+    public synchronized void sendCursors(String json, Map<String, Integer> cursors) {
+        if (closed) {
+            return;
+        }
+        if (!canSendDirectly()) {
+            for (Map.Entry<String, Integer> entry : cursors.entrySet()) {
+                if (pendingCursors.put(entry.getKey(), entry.getValue()) != null) {
+                    coalesced();
+                }
+            }
+            return;
+        }
+        write(json);
+    }
+
+    /**
+     * Flushes held messages while the socket's buffer is below the low watermark.
+     * Called on every tick of the server's presence ticker.
+     */
+    public synchronized void drain() {
+        if (!underPressure || closed) {
+            return;
+        }
+        if (!conn.isOpen()) {
+            clear();
+            return;
+        }
+
+        while (!pending.isEmpty() && getBufferedBytes() < lowWatermark) {
+            Object next = pending.peek();
+            if (next instanceof Iterator) {
+                Iterator<?> frames = (Iterator<?>) next;
+                if (frames.hasNext()) {
+                    write((String) frames.next());
+                    continue;
+                }
+                pending.poll();
+                continue;
+            }
+            String json = (String) pending.poll();
+            pendingBytes -= json.length();
+            write(json);
+        }
+        if (!pending.isEmpty()) {
+            return;
+        }
+
+        // Everything reliable is out; send the coalesced state that replaced superseded messages
+        if (pendingPresenceSnapshot != null) {
+            write(pendingPresenceSnapshot.get());
+            pendingPresenceSnapshot = null;
+        }
+        if (!pendingCursors.isEmpty()) {
+            JsonObject cursorsObj = new JsonObject();
+            for (Map.Entry<String, Integer> entry : pendingCursors.entrySet()) {
+                cursorsObj.addProperty(entry.getKey(), entry.getValue());
+            }
+            JsonObject frame = new JsonObject();
+            frame.addProperty("type", "cursor_batch");
+            frame.add("cursors", cursorsObj);
+            write(frame.toString());
+            pendingCursors.clear();
+        }
+
+        underPressure = false;
+        log.info("Connection " + conn.getRemoteSocketAddress() + " recovered from backpressure");
+    }
+
+    /**
+     * Gets the number of messages held in this queue.
+     * @return The queue depth.
+     */
+    public synchronized int getDepth() {
+        return pending.size() + pendingCursors.size() + (pendingPresenceSnapshot != null ? 1 : 0);
+    }
+
+    /**
+     * Gets a snapshot of this connection's queue statistics.
+     * @return Statistics keyed by name.
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> stats = new HashMap<>();
+        stats.put("depth", (long) getDepth());
+        stats.put("maxDepth", (long) maxDepth);
+        stats.put("pendingBytes", pendingBytes);
+        stats.put("bufferedBytes", getBufferedBytes());
+        stats.put("sent", sentCount);
+        stats.put("coalesced", coalescedCount);
+        stats.put("underPressure", underPressure ? 1L : 0L);
+        return stats;
+    }
+
+    /**
+     * Checks whether the connection is currently backed up.
+     * @return true if messages are being held.
+     */
+    public synchronized boolean isUnderPressure() {
+        return underPressure;
+    }
+
+    /**
+     * Releases held messages once the connection is gone.
+     */
+    public synchronized void clear() {
+        closed = true;
+        pending.clear();
+        pendingBytes = 0;
+        pendingCursors.clear();
+        pendingPresenceSnapshot = null;
+    }
+
+    private boolean canSendDirectly() {
+        if (closed || !conn.isOpen()) {
+            return false;
+        }
+        if (underPressure) {
+            drain();
+            if (underPressure) {
+                return false;
+            }
+        }
+        if (getBufferedBytes() >= highWatermark) {
+            underPressure = true;
+            metrics.increment("outbound.pressure_events");
+            log.info("Connection " + conn.getRemoteSocketAddress() + " is backed up, holding outbound messages");
+            return false;
+        }
+        return true;
+    }
+
+    private void hold(String json) {
+        if (closed) {
+            return;
+        }
+
+        pending.add(json);
+        pendingBytes += json.length();
+        maxDepth = Math.max(maxDepth, getDepth());
+
+        if (pendingBytes > hardLimit) {
+            // The client can't keep up; make it reconnect and catch up instead of growing without bound
+            log.info("Disconnecting slow consumer " + conn.getRemoteSocketAddress() +
+                               " with " + pending.size() + " held messages (" + pendingBytes + " bytes)");
+            metrics.increment("outbound.slow_consumer_disconnects");
+            clear();
+            conn.close(CLOSE_SLOW_CONSUMER, "Slow consumer, reconnect and resync");
+        }
+    }
+
+    private void holdStream(Iterator<String> frames) {
+        if (closed) {
+            return;
+        }
+        pending.add(frames);
+        maxDepth = Math.max(maxDepth, getDepth());
+    }
+
+    private void write(String json) {
+        try {
+            // Counted first, since the selector may write the frame before send returns
+            unflushedBytes.addAndGet(frameBytes(json));
+            conn.send(json);
+            sentCount++;
+        } catch (Exception e) {
+            log.error("Error sending to " + conn.getRemoteSocketAddress() + ": " + e.getMessage());
+        }
+    }
+
+    private void coalesced() {
+        coalescedCount++;
+        metrics.increment("outbound.coalesced");
+    }
+
+    /**
+     * Gets the number of bytes queued on the socket but not yet written to the network.
+     */
+    private long getBufferedBytes() {
+        // An empty socket buffer means everything counted has been written, so the count
+        // is reset there and cannot drift, e.g. by pings that were never counted in
+        if (!conn.hasBufferedData()) {
+            unflushedBytes.set(0);
+            return 0;
+        }
+        return Math.max(0, unflushedBytes.get());
+    }
+
+    /**
+     * Records bytes of this connection written to the network.
+     */
+    void flushed(long bytes) {
+        unflushedBytes.addAndGet(-bytes);
+    }
+
+    /**
+     * Gets the size of the unmasked text frame the server sends for a message: its UTF-8
+     * length plus the frame header.
+     */
+    static long frameBytes(String text) {
+        long payload = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                payload++;
+            } else if (c < 0x800) {
+                payload += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1))) {
+                payload += 4;
+                i++;
+            } else {
+                payload += 3;
+            }
+        }
+        return payload + (payload <= 125 ? 2 : payload <= 0xFFFF ? 4 : 10);
+    }
+
+    /**
+     * Creates the factory for the server's connections, whose channels report every write
+     * to the connection's queue.
+     * @param queues Finds a connection's queue, or null if it has none.
+     */
+    public static WebSocketServerFactory countingFactory(Function<WebSocket, OutboundQueue> queues) {
+        DefaultWebSocketServerFactory defaults = new DefaultWebSocketServerFactory();
+        return new WebSocketServerFactory() {
+            @Override
+            public WebSocketImpl createWebSocket(WebSocketAdapter adapter, Draft draft) {
+                return defaults.createWebSocket(adapter, draft);
+            }
+
+            @Override
+            public WebSocketImpl createWebSocket(WebSocketAdapter adapter, List<Draft> drafts) {
+                return defaults.createWebSocket(adapter, drafts);
+            }
+
+            @Override
+            public ByteChannel wrapChannel(SocketChannel channel, SelectionKey key) {
+                return new CountingChannel(channel, key, queues);
+            }
+
+            @Override
+            public void close() {
+                defaults.close();
+            }
+        };
+    }
+
+    /**
+     * A socket channel that tells the queue of the connection it belongs to how much it wrote.
+     * The connection is the selection key's attachment.
+     */
+    private static final class CountingChannel implements ByteChannel {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final Function<WebSocket, OutboundQueue> queues;
+
+        CountingChannel(SocketChannel channel, SelectionKey key, Function<WebSocket, OutboundQueue> queues) {
+            this.channel = channel;
+            this.key = key;
+            this.queues = queues;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = channel.write(src);
+            if (written > 0 && key.attachment() instanceof WebSocket) {
+                OutboundQueue queue = queues.apply((WebSocket) key.attachment());
+                if (queue != null) {
+                    queue.flushed(written);
+                }
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.project.network;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Client side outbound path, sending messages in priority lanes rather than call order.
+ * Edits, and everything that must stay in order with them (full document updates, undo
+ * and redo, session membership), go first; then acknowledgements and sync checks; then
+ * cursor moves and presence. Cursor and presence messages are coalesced, only the latest
+ * of each type waiting, and sent at most once per cursor interval. The interval follows
+ * the measured round trip time, since cursor updates sent faster than the connection
+ * turns them around only queue up, and is doubled right after an edit so edits are not
+ * slowed by them. All sending happens on the given single-threaded executor.
+ */
+class OutboundScheduler {
+
+    /**
+     * Priority lanes, highest first.
+     */
+    enum Lane {
+        EDIT,
+        SYNC,
+        PRESENCE;
+
+        /**
+         * Gets the lane of a message type.
+         * @param type The message type.
+         * @return The lane.
+         */
+        static Lane of(String type) {
+            switch (type) {
+                case "insert":
+                case "delete":
+                case "undo":
+                case "redo":
+                case "document_update":
+                case "instant_document_update":
+                case "document_patch":
+                case "save_document":
+                case "register":
+                case "create_session":
+                case "join_session":
+                case "leave_session":
+                    return EDIT;
+                case "cursor_move":
+                case "presence":
+                    return PRESENCE;
+                default:
+                    return SYNC;
+            }
+        }
+    }
+
+    // Bounds of the cursor interval, and the share of the round trip time it follows
+    private static final long MIN_CURSOR_INTERVAL_MS = 40;
+    private static final long MAX_CURSOR_INTERVAL_MS = 250;
+    private static final double CURSOR_INTERVAL_RTT_SHARE = 0.5;
+
+    // How long after an edit cursor updates are sent at half rate
+    private static final long EDIT_QUIET_MS = 100;
+
+    // Weight of a new sample in the smoothed round trip time
+    private static final double RTT_ALPHA = 0.125;
+
+    private final ScheduledExecutorService executor;
+    private final Consumer<String> transport;
+
+    // Guarded by this object's lock
+    private final ArrayDeque<String> edits = new ArrayDeque<>();
+    private final ArrayDeque<String> sync = new ArrayDeque<>();
+    private final Map<String, String> presence = new LinkedHashMap<>();
+    private boolean flushScheduled = false;
+    private boolean presenceDelayed = false;
+
+    // Only touched on the executor
+    private long lastPresenceSentAt = 0;
+    private long lastEditSentAt = 0;
+
+    private volatile double smoothedRttMs = -1;
+
+    /**
+     * Creates a scheduler.
+     * @param executor The single-threaded executor all sending happens on.
+     * @param transport Writes a message to the connection.
+     */
+    OutboundScheduler(ScheduledExecutorService executor, Consumer<String> transport) {
+        this.executor = executor;
+        this.transport = transport;
+    }
+
+    /**
+     * Queues a message in the lane of its type. A cursor move or presence message replaces
+     * one of the same type that has not gone out yet.
+     * @param type The message type.
+     * @param message The encoded message.
+     */
+    void send(String type, String message) {
+        synchronized (this) {
+            Lane lane = Lane.of(type);
+            switch (lane) {
+                case EDIT:
+                    edits.add(message);
+                    break;
+                case SYNC:
+                    sync.add(message);
+                    break;
+                default:
+                    presence.put(type, message);
+                    break;
+            }
+            // Presence waiting for the cursor interval goes out when it has passed
+            if (flushScheduled || (lane == Lane.PRESENCE && presenceDelayed)) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        executor.execute(this::flush);
+    }
+
+    /**
+     * Drops everything waiting, e.g. when the connection is lost.
+     */
+    synchronized void clear() {
+        edits.clear();
+        sync.clear();
+        presence.clear();
+    }
+
+    /**
+     * Takes in a round trip time measurement.
+     * @param rttMs The measured round trip time in milliseconds.
+     */
+    void recordRtt(double rttMs) {
+        double smoothed = smoothedRttMs;
+        smoothedRttMs = smoothed < 0 ? rttMs : smoothed + RTT_ALPHA * (rttMs - smoothed);
+    }
+
+    /**
+     * Gets the smoothed round trip time.
+     * @return The round trip time in milliseconds, or -1 before the first measurement.
+     */
+    double getSmoothedRttMs() {
+        return smoothedRttMs;
+    }
+
+    /**
+     * Gets the current minimum time between two cursor or presence messages.
+     * @return The interval in milliseconds.
+     */
+    long getCursorIntervalMs() {
+        double rtt = smoothedRttMs;
+        long interval = rtt < 0 ? MIN_CURSOR_INTERVAL_MS : (long) (rtt * CURSOR_INTERVAL_RTT_SHARE);
+        return Math.max(MIN_CURSOR_INTERVAL_MS, Math.min(MAX_CURSOR_INTERVAL_MS, interval));
+    }
+
+    /**
+     * Sends everything waiting in the edit and sync lanes, then the presence lane if the
+     * cursor interval has passed; otherwise comes back for it once it has. Runs on the executor.
+     */
+    private void flush() {
+        while (true) {
+            String message;
+            boolean edit = false;
+            synchronized (this) {
+                message = edits.poll();
+                if (message != null) {
+                    edit = true;
+                } else {
+                    message = sync.poll();
+                }
+                if (message == null) {
+                    break;
+                }
+            }
+            if (edit) {
+                lastEditSentAt = System.currentTimeMillis();
+            }
+            transport.accept(message);
+        }
+
+        long now = System.currentTimeMillis();
+        long interval = getCursorIntervalMs();
+        if (now - lastEditSentAt < EDIT_QUIET_MS) {
+            interval *= 2;
+        }
+        long wait = lastPresenceSentAt + interval - now;
+
+        String[] due;
+        synchronized (this) {
+            if (!edits.isEmpty() || !sync.isEmpty()) {
+                // Queued while we were sending; flushScheduled is still set, so nobody else runs
+                executor.execute(this::flush);
+                return;
+            }
+            if (presence.isEmpty()) {
+                flushScheduled = false;
+                return;
+            }
+            if (wait > 0) {
+                if (!presenceDelayed) {
+                    presenceDelayed = true;
+                    executor.schedule(this::flushDelayed, wait, TimeUnit.MILLISECONDS);
+                }
+                flushScheduled = false;
+                return;
+            }
+            due = presence.values().toArray(new String[0]);
+            presence.clear();
+        }
+        lastPresenceSentAt = now;
+        for (String message : due) {
+            transport.accept(message);
+        }
+
+        synchronized (this) {
+            // Anything queued while we were sending is picked up by another pass
+            if (edits.isEmpty() && sync.isEmpty() && presence.isEmpty()) {
+                flushScheduled = false;
+                return;
+            }
+        }
+        executor.execute(this::flush);
+    }
+
+    /**
+     * Flushes once the cursor interval has passed, unless a flush is already on its way.
+     */
+    private void flushDelayed() {
+        synchronized (this) {
+            presenceDelayed = false;
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        flush();
+    }
+}
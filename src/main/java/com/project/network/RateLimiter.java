@@ -0,0 +1,179 @@
+package com.project.network;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token buckets limiting how fast messages are accepted, one bucket per message class.
+ * Each connection (one per user) and each session has its own limiter, so a single
+ * misbehaving client is held back by its own limits and a session as a whole cannot
+ * flood its members. Rates come from RATE_&lt;CLASS&gt;_USER and RATE_&lt;CLASS&gt;_SESSION in
+ * messages per second, where 0 means unlimited; each bucket holds RATE_BURST_SECONDS
+ * worth of messages so short bursts go through.
+ */
+public class RateLimiter {
+
+    /**
+     * Classes of client messages that are limited separately.
+     */
+    public enum MessageClass {
+        EDIT("edit", 500, 2000),
+        DOCUMENT("document", 5, 20),
+        CURSOR("cursor", 50, 500),
+        CONTROL("control", 20, 200);
+
+        private final String name;
+        private final double userRate;
+        private final double sessionRate;
+
+        MessageClass(String name, int defaultUserRate, int defaultSessionRate) {
+            this.name = name;
+            String prefix = "RATE_" + name.toUpperCase() + "_";
+            this.userRate = ServerConfig.getInt(prefix + "USER", defaultUserRate);
+            this.sessionRate = ServerConfig.getInt(prefix + "SESSION", defaultSessionRate);
+        }
+
+        /**
+         * Gets the name used in counters and slow_down messages.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Gets the class of a message type.
+         * @param type The message type.
+         * @return The class, or null for messages that are never limited (registering and
+         *         entering or leaving sessions).
+         */
+        public static MessageClass of(String type) {
+            switch (type) {
+                case "insert":
+                case "delete":
+                case "undo":
+                case "redo":
+                    return EDIT;
+                case "document_update":
+                case "instant_document_update":
+                case "document_patch":
+                    return DOCUMENT;
+                case "cursor_move":
+                case "presence":
+                    return CURSOR;
+                case "register":
+                case "create_session":
+                case "join_session":
+                case "leave_session":
+                    return null;
+                default:
+                    return CONTROL;
+            }
+        }
+    }
+
+    private static final double BURST_SECONDS = Math.max(0.1, ServerConfig.getLong("RATE_BURST_SECONDS", 2));
+
+    private final TokenBucket[] buckets = new TokenBucket[MessageClass.values().length];
+
+    private RateLimiter(boolean session, LongSupplier clock) {
+        for (MessageClass messageClass : MessageClass.values()) {
+            double rate = session ? messageClass.sessionRate : messageClass.userRate;
+            if (rate > 0) {
+                buckets[messageClass.ordinal()] = new TokenBucket(rate, Math.max(1, rate * BURST_SECONDS), clock);
+            }
+        }
+    }
+
+    /**
+     * Creates the limiter for one user's connection.
+     * @return The limiter.
+     */
+    public static RateLimiter forUser() {
+        return forUser(System::nanoTime);
+    }
+
+    /**
+     * Creates the limiter for one user's connection, refilled by a given clock.
+     * @param clock The clock, in nanoseconds.
+     * @return The limiter.
+     */
+    static RateLimiter forUser(LongSupplier clock) {
+        return new RateLimiter(false, clock);
+    }
+
+    /**
+     * Creates the limiter for a session.
+     * @return The limiter.
+     */
+    public static RateLimiter forSession() {
+        return new RateLimiter(true, System::nanoTime);
+    }
+
+    /**
+     * Takes a token for a message, if one is available.
+     * @param messageClass The message class.
+     * @return true if the message may be handled now.
+     */
+    public boolean tryAcquire(MessageClass messageClass) {
+        TokenBucket bucket = buckets[messageClass.ordinal()];
+        return bucket == null || bucket.tryAcquire();
+    }
+
+    /**
+     * Gets how long until a message of a class would be accepted.
+     * @param messageClass The message class.
+     * @return The wait in milliseconds, 0 if a token is available now.
+     */
+    public long getRetryAfterMs(MessageClass messageClass) {
+        TokenBucket bucket = buckets[messageClass.ordinal()];
+        return bucket == null ? 0 : bucket.getRetryAfterMs();
+    }
+
+    /**
+     * Gets the rate messages of a class are accepted at, once a burst is used up.
+     * @param messageClass The message class.
+     * @return The rate in messages per second, 0 if unlimited.
+     */
+    public double getRate(MessageClass messageClass) {
+        TokenBucket bucket = buckets[messageClass.ordinal()];
+        return bucket == null ? 0 : bucket.ratePerNano * 1e9;
+    }
+
+    /**
+     * A bucket refilled continuously at a fixed rate up to its capacity.
+     */
+    private static class TokenBucket {
+        private final double ratePerNano;
+        private final double capacity;
+        private final LongSupplier clock;
+        private double tokens;
+        private long lastRefill;
+
+        TokenBucket(double ratePerSecond, double capacity, LongSupplier clock) {
+            this.ratePerNano = ratePerSecond / 1e9;
+            this.capacity = capacity;
+            this.clock = clock;
+            this.tokens = capacity;
+            this.lastRefill = clock.getAsLong();
+        }
+
+        synchronized boolean tryAcquire() {
+            refill();
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized long getRetryAfterMs() {
+            refill();
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / ratePerNano / 1e6);
+        }
+
+        private void refill() {
+            long now = clock.getAsLong();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * ratePerNano);
+            lastRefill = now;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.project.network;
+
+import com.project.util.Log;
+
+/**
+ * Reads server tuning settings.
+ * Each setting is looked up as an environment variable first and then as a
+ * system property with the same name, falling back to the given default.
+ */
+public final class ServerConfig {
+
+    private static final Log log = Log.get(ServerConfig.class);
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Gets the raw value of a setting.
+     * @param name The setting name, e.g. "PRESENCE_TICK_MS".
+     * @return The configured value, or null if it is not set.
+     */
+    public static String get(String name) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            value = System.getProperty(name);
+        }
+        return (value == null || value.isEmpty()) ? null : value.trim();
+    }
+
+    /**
+     * Gets an integer setting.
+     * @param name The setting name.
+     * @param defaultValue The value to use when the setting is missing or invalid.
+     * @return The configured value.
+     */
+    public static int getInt(String name, int defaultValue) {
+        String value = get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + name + " setting '" + value + "'. Using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a long setting.
+     * @param name The setting name.
+     * @param defaultValue The value to use when the setting is missing or invalid.
+     * @return The configured value.
+     */
+    public static long getLong(String name, long defaultValue) {
+        String value = get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            log.warn("Invalid " + name + " setting '" + value + "'. Using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Gets a boolean setting ("true"/"false", "1"/"0", "yes"/"no").
+     * @param name The setting name.
+     * @param defaultValue The value to use when the setting is missing.
+     * @return The configured value.
+     */
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return value.equalsIgnoreCase("true") || value.equals("1") || value.equalsIgnoreCase("yes");
+    }
+}
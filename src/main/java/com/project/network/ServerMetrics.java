@@ -0,0 +1,166 @@
+package com.project.network;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Simple named counters and histograms for the collaborative editor server.
+ * Counters are cheap to increment from any thread and can be read as a snapshot.
+ * A name may carry labels in Prometheus form, e.g. messages.received{type="insert"};
+ * see {@link #labeled}.
+ */
+public class ServerMetrics {
+
+    /**
+     * Histogram bounds for durations, in seconds.
+     */
+    public static final double[] LATENCY_BUCKETS = {
+        0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10
+    };
+
+    /**
+     * Histogram bounds for counts of things, e.g. recipients of a broadcast.
+     */
+    public static final double[] SIZE_BUCKETS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Builds a metric name with one label.
+     * @param name The metric name.
+     * @param label The label name.
+     * @param value The label value; quotes, backslashes and line breaks are escaped.
+     * @return The labeled name, e.g. messages.received{type="insert"}.
+     */
+    public static String labeled(String name, String label, String value) {
+        String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name + "{" + label + "=\"" + escaped + "\"}";
+    }
+
+    /**
+     * Increments a counter by one.
+     * @param name The counter name.
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds a value to a counter.
+     * @param name The counter name.
+     * @param delta The amount to add.
+     */
+    public void add(String name, long delta) {
+        counters.computeIfAbsent(name, key -> new LongAdder()).add(delta);
+    }
+
+    /**
+     * Gets the current value of a counter.
+     * @param name The counter name.
+     * @return The counter value, or 0 if it has never been incremented.
+     */
+    public long get(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Records a value in a histogram, creating it with the given bounds on first use.
+     * @param name The histogram name.
+     * @param value The value.
+     * @param bounds The upper bounds of the buckets, in increasing order.
+     */
+    public void observe(String name, double value, double[] bounds) {
+        histograms.computeIfAbsent(name, key -> new Histogram(bounds)).observe(value);
+    }
+
+    /**
+     * Records a duration in a histogram with {@link #LATENCY_BUCKETS}.
+     * @param name The histogram name.
+     * @param nanos The duration in nanoseconds.
+     */
+    public void recordLatency(String name, long nanos) {
+        observe(name, nanos / 1e9, LATENCY_BUCKETS);
+    }
+
+    /**
+     * Gets the histograms recorded so far.
+     * @return A sorted map of histogram names to histograms, which keep counting.
+     */
+    public Map<String, Histogram> histograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    /**
+     * Gets a sorted snapshot of all counters.
+     * @return A map of counter names to values.
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> result = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().sum());
+        }
+        return result;
+    }
+
+    /**
+     * Counts of values at or below each of a fixed set of bounds, plus their sum.
+     */
+    public static final class Histogram {
+        private final double[] bounds;
+        private final LongAdder[] buckets;
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        Histogram(double[] bounds) {
+            this.bounds = bounds.clone();
+            this.buckets = new LongAdder[bounds.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(double value) {
+            for (int i = 0; i < bounds.length; i++) {
+                if (value <= bounds[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(value);
+        }
+
+        /**
+         * Gets the bucket bounds.
+         */
+        public double[] getBounds() {
+            return bounds.clone();
+        }
+
+        /**
+         * Gets the cumulative count of values at or below each bound.
+         */
+        public long[] getCumulativeCounts() {
+            long[] cumulative = new long[bounds.length];
+            long total = 0;
+            for (int i = 0; i < bounds.length; i++) {
+                total += buckets[i].sum();
+                cumulative[i] = total;
+            }
+            return cumulative;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getSum() {
+            return sum.sum();
+        }
+    }
+}
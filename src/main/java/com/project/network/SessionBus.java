@@ -0,0 +1,94 @@
+package com.project.network;
+
+import com.project.util.Log;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Publish/subscribe bus that fans session messages out to the members of a session.
+ * Each server process subscribes its local copy of a session to the session's codes;
+ * whatever is published under those codes reaches every subscriber of any of them,
+ * in this process and, depending on the implementation, in other server processes too.
+ */
+public interface SessionBus {
+
+    /**
+     * Receives the messages published under a topic.
+     */
+    interface Subscriber {
+
+        /**
+         * Delivers a message published by this process, on the publishing thread.
+         * @param message The serialized message.
+         * @param excludeUserId A user who must not receive the message, or null.
+         */
+        void deliver(String message, String excludeUserId);
+
+        /**
+         * Delivers messages published by other server processes, on the bus's own thread.
+         * @param messages The serialized messages, in publication order.
+         */
+        void deliverRemote(List<String> messages);
+    }
+
+    /**
+     * Subscribes to a topic.
+     * @param topic The topic, usually a session code.
+     * @param subscriber The subscriber.
+     */
+    void subscribe(String topic, Subscriber subscriber);
+
+    /**
+     * Removes a subscription.
+     * @param topic The topic.
+     * @param subscriber The subscriber.
+     */
+    void unsubscribe(String topic, Subscriber subscriber);
+
+    /**
+     * Publishes a message to every subscriber of any of the given topics, each subscriber once.
+     * @param topics The topics, usually the codes of a session.
+     * @param message The serialized message.
+     * @param excludeUserId A user who must not receive the message (the sender), or null.
+     */
+    void publish(Collection<String> topics, String message, String excludeUserId);
+
+    /**
+     * Publishes a message to the subscribers of the topics in other server processes only,
+     * for state this process has already applied or that concerns the processes themselves.
+     * @param topics The topics, usually the codes of a session.
+     * @param message The serialized message.
+     */
+    void publishRemote(Collection<String> topics, String message);
+
+    /**
+     * Checks whether other server processes share this bus, so that a session new to this
+     * process may already exist in another one.
+     * @return true if messages can reach other processes.
+     */
+    boolean isShared();
+
+    /**
+     * Releases the bus's connections and threads.
+     */
+    void close();
+
+    /**
+     * Creates the bus selected by SESSION_BUS: "local" (the default) keeps fan-out inside
+     * this process, "socket" also shares it with the processes in SESSION_BUS_PEERS.
+     * @param metrics The server metrics.
+     * @return The bus.
+     */
+    static SessionBus fromConfig(ServerMetrics metrics) {
+        String type = ServerConfig.get("SESSION_BUS");
+        if (type == null || type.equalsIgnoreCase("local")) {
+            return new InProcessSessionBus();
+        }
+        if (type.equalsIgnoreCase("socket")) {
+            return SocketSessionBus.fromConfig(metrics);
+        }
+        Log.get(SessionBus.class).warn("Unknown SESSION_BUS '" + type + "'. Using local");
+        return new InProcessSessionBus();
+    }
+}
@@ -0,0 +1,93 @@
+package com.project.network;
+
+import com.project.util.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serial executor that owns the state of one editing session.
+ * Tasks submitted here run one at a time and in submission order, so the
+ * session's state needs no locks. The tasks themselves run on a shared worker
+ * pool, which lets different sessions make progress in parallel.
+ */
+public class SessionExecutor implements Executor {
+
+    private static final Log log = Log.get(SessionExecutor.class);
+
+    // Tasks run per turn before the worker is handed back to other sessions
+    private static final int MAX_TASKS_PER_TURN = 64;
+
+    private final Executor workers;
+    private final Queue<Runnable> mailbox = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicInteger depth = new AtomicInteger();
+
+    /**
+     * Creates a session executor.
+     * @param workers The shared pool that runs the tasks. Passing {@code Runnable::run}
+     *                runs tasks on the submitting thread, still one at a time.
+     */
+    public SessionExecutor(Executor workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Queues a task for this session.
+     * @param task The task to run on the session.
+     */
+    @Override
+    public void execute(Runnable task) {
+        mailbox.add(task);
+        depth.incrementAndGet();
+        schedule();
+    }
+
+    /**
+     * Gets the number of tasks waiting to run.
+     * @return The mailbox depth.
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            // Already queued or running; the running turn will pick the task up
+            return;
+        }
+        try {
+            workers.execute(this::runTurn);
+        } catch (RejectedExecutionException e) {
+            scheduled.set(false);
+            log.warn("Session task rejected: " + e.getMessage());
+        }
+    }
+
+    private void runTurn() {
+        try {
+            for (int i = 0; i < MAX_TASKS_PER_TURN; i++) {
+                Runnable task = mailbox.poll();
+                if (task == null) {
+                    break;
+                }
+                depth.decrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Error in session task: " + e.getMessage(), e);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // Tasks added after the last poll, or left over from a full turn
+            if (!mailbox.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.project.network;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Versioned presence state of one editing session.
+ * Every change bumps the version and produces a small delta message, so members
+ * only receive what changed; a full snapshot is sent only to new joiners.
+ */
+public class SessionPresence {
+
+    private final Map<String, Member> members = new LinkedHashMap<>();
+    private long version = 0;
+
+    /**
+     * Adds a user to the presence list, or updates their name or role.
+     * @param userId The user ID.
+     * @param username The display name.
+     * @param editor Whether the user is an editor.
+     * @return The delta message, or null if the user is not listed or nothing changed.
+     */
+    public synchronized JsonObject add(String userId, String username, boolean editor) {
+        if (!isListable(userId, username)) {
+            return remove(userId);
+        }
+
+        Member existing = members.get(userId);
+        if (existing != null) {
+            if (existing.username.equals(username) && existing.editor == editor) {
+                return null;
+            }
+            existing.username = username;
+            existing.editor = editor;
+            return delta("renamed", userId, existing);
+        }
+
+        Member member = new Member(username, editor);
+        members.put(userId, member);
+        return delta("added", userId, member);
+    }
+
+    /**
+     * Updates the display name of a session member.
+     * A user who becomes listable with the new name is added.
+     * @param userId The user ID.
+     * @param username The new display name.
+     * @param editor Whether the user is an editor (used if the user is added).
+     * @return The delta message, or null if nothing changed.
+     */
+    public synchronized JsonObject rename(String userId, String username, boolean editor) {
+        Member existing = members.get(userId);
+        return add(userId, username, existing != null ? existing.editor : editor);
+    }
+
+    /**
+     * Removes a user from the presence list.
+     * @param userId The user ID.
+     * @return The delta message, or null if the user was not listed.
+     */
+    public synchronized JsonObject remove(String userId) {
+        Member removed = members.remove(userId);
+        if (removed == null) {
+            return null;
+        }
+        return delta("removed", userId, removed);
+    }
+
+    /**
+     * Checks whether a user is currently listed.
+     * @param userId The user ID.
+     * @return true if the user is listed.
+     */
+    public synchronized boolean contains(String userId) {
+        return members.containsKey(userId);
+    }
+
+    /**
+     * Gets the current presence version.
+     * @return The version, incremented on every change.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Builds a full presence snapshot message for a new joiner.
+     * @return A "presence" message carrying the current version.
+     */
+    public synchronized JsonObject snapshot() {
+        JsonObject users = new JsonObject();
+        JsonArray editors = new JsonArray();
+        JsonArray viewers = new JsonArray();
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            users.addProperty(entry.getKey(), entry.getValue().username);
+            if (entry.getValue().editor) {
+                editors.add(entry.getKey());
+            } else {
+                viewers.add(entry.getKey());
+            }
+        }
+
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "presence");
+        message.addProperty("version", version);
+        message.add("users", users);
+        message.add("editors", editors);
+        message.add("viewers", viewers);
+        return message;
+    }
+
+    /**
+     * Gets the number of listed users.
+     * @return The number of users.
+     */
+    public synchronized int size() {
+        return members.size();
+    }
+
+    private JsonObject delta(String change, String userId, Member member) {
+        version++;
+
+        JsonObject message = new JsonObject();
+        message.addProperty("type", "presence_delta");
+        message.addProperty("version", version);
+        message.addProperty("change", change);
+        message.addProperty("userId", userId);
+        message.addProperty("username", member.username);
+        message.addProperty("role", member.editor ? "editor" : "viewer");
+        return message;
+    }
+
+    /**
+     * Filters out phantom users: UUID-style IDs, over-long IDs (MongoDB IDs are 24 chars)
+     * and users without a proper name.
+     */
+    private static boolean isListable(String userId, String username) {
+        if (userId == null || userId.contains("-") || userId.length() > 24) {
+            return false;
+        }
+        if (username == null || username.isEmpty()) {
+            return false;
+        }
+        return !(username.contains("-") && username.length() > 20);
+    }
+
+    private static class Member {
+        private String username;
+        private boolean editor;
+
+        Member(String username, boolean editor) {
+            this.username = username;
+            this.editor = editor;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.project.network;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.project.crdt.ContentHash;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A message carrying document content, split into frames for transfer.
+ * The message itself, without its content, travels in a snapshot_begin frame together
+ * with the content length and chunk count. The content follows in snapshot_chunk frames,
+ * each with its sequence number and character offset, and a snapshot_end frame carries
+ * the {@link ContentHash} of the whole content. The client puts the content back into
+ * the message once the hash checks out and handles it as if it had arrived whole.
+ * Frames are encoded on first use and shared by every connection the stream is sent to.
+ */
+public class SnapshotStream {
+
+    private static final int DEFAULT_CHUNK_CHARS = 64 * 1024;
+    private static final int CHUNK_CHARS = Math.max(1024, ServerConfig.getInt("SNAPSHOT_CHUNK_CHARS", DEFAULT_CHUNK_CHARS));
+
+    private static final AtomicLong nextId = new AtomicLong();
+    private static final Gson gson = new Gson();
+
+    private final String id = Long.toString(nextId.incrementAndGet());
+    private final JsonObject message;
+    private final String field;
+    private final String content;
+    private final int[] offsets;
+
+    // Encoded frames: begin, the chunks, end
+    private final String[] frames;
+
+    /**
+     * Creates a stream.
+     * @param message The message, without its content.
+     * @param field The name of the message field the content belongs in.
+     * @param content The content.
+     */
+    public SnapshotStream(JsonObject message, String field, String content) {
+        this.message = message;
+        this.field = field;
+        this.content = content;
+        this.offsets = chunkOffsets(content);
+        this.frames = new String[offsets.length + 1];
+    }
+
+    /**
+     * Checks whether content is large enough to be streamed rather than sent in one message.
+     * @param content The content.
+     * @return true if the content is longer than one chunk.
+     */
+    public static boolean needsStreaming(String content) {
+        return content != null && content.length() > CHUNK_CHARS;
+    }
+
+    /**
+     * Gets the frames of the stream, in order.
+     * @return An iterator over the encoded frames.
+     */
+    public Iterator<String> frames() {
+        return new Iterator<>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < frames.length;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return frame(next++);
+            }
+        };
+    }
+
+    private synchronized String frame(int index) {
+        if (frames[index] == null) {
+            frames[index] = encode(index);
+        }
+        return frames[index];
+    }
+
+    private String encode(int index) {
+        JsonObject frame = new JsonObject();
+        int chunkCount = offsets.length - 1;
+        if (index == 0) {
+            frame.addProperty("type", "snapshot_begin");
+            frame.addProperty("snapshotId", id);
+            frame.addProperty("field", field);
+            frame.addProperty("length", content.length());
+            frame.addProperty("chunks", chunkCount);
+            frame.add("message", message);
+        } else if (index <= chunkCount) {
+            int seq = index - 1;
+            frame.addProperty("type", "snapshot_chunk");
+            frame.addProperty("snapshotId", id);
+            frame.addProperty("seq", seq);
+            frame.addProperty("offset", offsets[seq]);
+            frame.addProperty("data", content.substring(offsets[seq], offsets[seq + 1]));
+        } else {
+            frame.addProperty("type", "snapshot_end");
+            frame.addProperty("snapshotId", id);
+            frame.addProperty("hash", ContentHash.of(content));
+        }
+        return gson.toJson(frame);
+    }
+
+    /**
+     * Splits content into chunks of at most CHUNK_CHARS characters, never between the two
+     * halves of a surrogate pair.
+     * @return The start offset of each chunk, followed by the content length.
+     */
+    private static int[] chunkOffsets(String content) {
+        // A chunk is never shorter than CHUNK_CHARS - 1 unless it is the last one
+        int[] offsets = new int[content.length() / (CHUNK_CHARS - 1) + 2];
+        int pos = 0;
+        int n = 0;
+        while (pos < content.length()) {
+            offsets[n++] = pos;
+            int end = Math.min(content.length(), pos + CHUNK_CHARS);
+            if (end < content.length() && Character.isHighSurrogate(content.charAt(end - 1))) {
+                end--;
+            }
+            pos = end;
+        }
+        offsets[n] = content.length();
+        return Arrays.copyOf(offsets, n + 1);
+    }
+}
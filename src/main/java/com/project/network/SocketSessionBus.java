@@ -0,0 +1,319 @@
+package com.project.network;
+
+import com.project.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session bus shared by several server processes over plain TCP sockets.
+ * Messages are delivered to this process's subscribers straight away and collected
+ * per session (the topics they were published under) for the other processes. Once
+ * per tick the collected messages are sent to every peer as a single frame, so a busy
+ * session costs one write per peer per tick rather than one per message. Every process connects to every other process directly,
+ * so frames are never forwarded and cannot loop.
+ */
+public class SocketSessionBus implements SessionBus {
+
+    private static final Log log = Log.get(SocketSessionBus.class);
+
+    private static final int DEFAULT_PORT = 9887;
+    private static final int DEFAULT_TICK_MS = 10;
+    private static final long RECONNECT_DELAY_MS = 1000;
+
+    private final InProcessSessionBus local = new InProcessSessionBus();
+    private final ServerMetrics metrics;
+    private final ServerSocket serverSocket;
+    private final List<Peer> peers = new ArrayList<>();
+    private final ScheduledExecutorService ticker;
+
+    // Messages published since the last tick, per set of topics, in publication order
+    private Map<List<String>, List<String>> batch = new LinkedHashMap<>();
+    private final Object batchLock = new Object();
+
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the bus.
+     * @param port The port other processes connect to.
+     * @param peerAddresses The bus addresses of the other processes, as "host:port".
+     * @param tickMs The interval at which collected messages are sent to the peers.
+     * @param metrics The server metrics.
+     * @throws IOException If the bus port cannot be opened.
+     */
+    public SocketSessionBus(int port, List<String> peerAddresses, long tickMs, ServerMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        for (String address : peerAddresses) {
+            peers.add(new Peer(address));
+        }
+
+        Thread acceptor = new Thread(this::acceptLoop, "session-bus-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-bus-ticker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::flush, tickMs, tickMs, TimeUnit.MILLISECONDS);
+
+        log.info("Session bus listening on port " + port + ", peers " + peerAddresses + ", tick " + tickMs + " ms");
+    }
+
+    /**
+     * Creates the bus from SESSION_BUS_PORT, SESSION_BUS_PEERS and SESSION_BUS_TICK_MS.
+     * SESSION_BUS_PEERS lists the other processes as "host:port" separated by commas.
+     * Falls back to an in-process bus if the bus port cannot be opened.
+     * @param metrics The server metrics.
+     * @return The bus.
+     */
+    static SessionBus fromConfig(ServerMetrics metrics) {
+        List<String> peerAddresses = new ArrayList<>();
+        String peerList = ServerConfig.get("SESSION_BUS_PEERS");
+        if (peerList != null) {
+            for (String address : peerList.split(",")) {
+                if (!address.trim().isEmpty()) {
+                    peerAddresses.add(address.trim());
+                }
+            }
+        }
+        int port = ServerConfig.getInt("SESSION_BUS_PORT", DEFAULT_PORT);
+        try {
+            return new SocketSessionBus(port, peerAddresses,
+                    ServerConfig.getInt("SESSION_BUS_TICK_MS", DEFAULT_TICK_MS), metrics);
+        } catch (IOException e) {
+            log.warn("Could not open session bus port " + port + ": " + e.getMessage() + ". Using local bus");
+            return new InProcessSessionBus();
+        }
+    }
+
+    @Override
+    public void subscribe(String topic, Subscriber subscriber) {
+        local.subscribe(topic, subscriber);
+    }
+
+    @Override
+    public void unsubscribe(String topic, Subscriber subscriber) {
+        local.unsubscribe(topic, subscriber);
+    }
+
+    @Override
+    public void publish(Collection<String> topics, String message, String excludeUserId) {
+        local.publish(topics, message, excludeUserId);
+        publishRemote(topics, message);
+    }
+
+    @Override
+    public void publishRemote(Collection<String> topics, String message) {
+        if (peers.isEmpty()) {
+            return;
+        }
+        synchronized (batchLock) {
+            batch.computeIfAbsent(List.copyOf(topics), key -> new ArrayList<>()).add(message);
+        }
+    }
+
+    @Override
+    public boolean isShared() {
+        return !peers.isEmpty();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ticker.shutdownNow();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.error("Error closing session bus: " + e.getMessage());
+        }
+        for (Peer peer : peers) {
+            peer.disconnect();
+        }
+        local.close();
+    }
+
+    /**
+     * Sends the messages collected since the last tick to every peer as one frame.
+     */
+    private void flush() {
+        Map<List<String>, List<String>> sessions;
+        synchronized (batchLock) {
+            if (batch.isEmpty()) {
+                return;
+            }
+            sessions = batch;
+            batch = new LinkedHashMap<>();
+        }
+
+        try {
+            byte[] frame = encode(sessions);
+            for (Peer peer : peers) {
+                peer.send(frame);
+            }
+            metrics.increment("bus.frames_sent");
+            metrics.add("bus.batches_sent", sessions.size());
+        } catch (Exception e) {
+            log.error("Error flushing session bus: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a frame: the batch count, then for each batch its topics and its messages.
+     */
+    private static byte[] encode(Map<List<String>, List<String>> sessions) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(sessions.size());
+        for (Map.Entry<List<String>, List<String>> entry : sessions.entrySet()) {
+            out.writeInt(entry.getKey().size());
+            for (String topic : entry.getKey()) {
+                out.writeUTF(topic);
+            }
+            out.writeInt(entry.getValue().size());
+            for (String message : entry.getValue()) {
+                byte[] data = message.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Thread reader = new Thread(() -> readLoop(socket), "session-bus-reader-" + socket.getRemoteSocketAddress());
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (!closed) {
+                    log.error("Session bus accept error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads frames from one peer and hands each batch to the local subscribers of its topics.
+     */
+    private void readLoop(Socket socket) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+            while (!closed) {
+                in.readInt(); // Frame length, used by readers that skip frames
+                int batchCount = in.readInt();
+                for (int b = 0; b < batchCount; b++) {
+                    int topicCount = in.readInt();
+                    List<String> topics = new ArrayList<>(topicCount);
+                    for (int t = 0; t < topicCount; t++) {
+                        topics.add(in.readUTF());
+                    }
+                    int count = in.readInt();
+                    List<String> messages = new ArrayList<>(count);
+                    for (int m = 0; m < count; m++) {
+                        byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        messages.add(new String(data, StandardCharsets.UTF_8));
+                    }
+                    local.deliverRemote(topics, messages);
+                    metrics.add("bus.messages_received", count);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.info("Session bus peer " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Outbound connection to another process, reopened on the next tick after it fails.
+     */
+    private class Peer {
+        private final String host;
+        private final int port;
+        private Socket socket;
+        private DataOutputStream out;
+        private long nextAttempt = 0;
+
+        Peer(String address) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid session bus peer '" + address + "', expected host:port");
+            }
+            this.host = address.substring(0, colon);
+            this.port = Integer.parseInt(address.substring(colon + 1));
+        }
+
+        void send(byte[] frame) {
+            if (out == null && !connect()) {
+                metrics.increment("bus.frames_dropped");
+                return;
+            }
+            try {
+                out.writeInt(frame.length);
+                out.write(frame);
+                out.flush();
+            } catch (IOException e) {
+                log.error("Session bus peer " + host + ":" + port + " write failed: " + e.getMessage());
+                metrics.increment("bus.frames_dropped");
+                disconnect();
+            }
+        }
+
+        private boolean connect() {
+            long now = System.currentTimeMillis();
+            if (now < nextAttempt) {
+                return false;
+            }
+            try {
+                Socket s = new Socket();
+                s.connect(new InetSocketAddress(host, port), (int) RECONNECT_DELAY_MS);
+                s.setTcpNoDelay(true);
+                socket = s;
+                out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                log.info("Session bus connected to peer " + host + ":" + port);
+                return true;
+            } catch (IOException e) {
+                nextAttempt = now + RECONNECT_DELAY_MS;
+                return false;
+            }
+        }
+
+        void disconnect() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already broken
+                }
+            }
+            socket = null;
+            out = null;
+            nextAttempt = System.currentTimeMillis() + RECONNECT_DELAY_MS;
+        }
+    }
+}
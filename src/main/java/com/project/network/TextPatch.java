@@ -0,0 +1,292 @@
+package com.project.network;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+import java.util.Arrays;
+
+/**
+ * Compact edit scripts between two versions of a document.
+ * A patch is a JSON array applied from the start of the old text: a positive number
+ * keeps that many characters, a negative number skips (deletes) that many, and a
+ * string is inserted. Whatever is left of the old text after the last entry is kept.
+ * Patches are computed with the linear-space variant of Myers' O(ND) diff, splitting
+ * on the middle snake and recursing on both halves.
+ */
+public final class TextPatch {
+
+    // Edit distance beyond which the rest of a region is replaced wholesale
+    private static final int MAX_EDIT_DISTANCE = 1024;
+
+    private TextPatch() {
+    }
+
+    /**
+     * Computes a patch that turns one text into another.
+     * @param from The old text.
+     * @param to The new text.
+     * @return The patch.
+     */
+    public static JsonArray diff(String from, String to) {
+        Script script = new Script();
+        diff(from, 0, from.length(), to, 0, to.length(), script);
+        return script.toJson();
+    }
+
+    /**
+     * Applies a patch to a text.
+     * @param base The text the patch was computed against.
+     * @param patch The patch.
+     * @return The patched text.
+     * @throws IllegalArgumentException If the patch does not fit the text.
+     */
+    public static String apply(String base, JsonArray patch) {
+        StringBuilder result = new StringBuilder(base.length());
+        int pos = 0;
+        for (JsonElement element : patch) {
+            JsonPrimitive entry = element.getAsJsonPrimitive();
+            if (entry.isString()) {
+                result.append(entry.getAsString());
+                continue;
+            }
+            int count = entry.getAsInt();
+            int end = pos + Math.abs(count);
+            if (end > base.length()) {
+                throw new IllegalArgumentException("Patch runs past the end of a " + base.length() + " character text");
+            }
+            if (count > 0) {
+                result.append(base, pos, end);
+            }
+            pos = end;
+        }
+        result.append(base, pos, base.length());
+        return result.toString();
+    }
+
+    /**
+     * Works out how much of the start and end of a text a patch leaves as it is, without
+     * looking at the text.
+     * @param patch The patch.
+     * @param baseLength The length of the text the patch was computed against.
+     * @return The number of unchanged leading and trailing characters, {prefix, suffix},
+     *         which do not overlap in either the old or the new text.
+     */
+    public static int[] unchangedEnds(JsonArray patch, int baseLength) {
+        int prefix = 0;
+        int trailing = 0;
+        boolean leading = true;
+        int pos = 0;
+        int newLength = baseLength;
+        for (JsonElement element : patch) {
+            JsonPrimitive entry = element.getAsJsonPrimitive();
+            if (entry.isString()) {
+                newLength += entry.getAsString().length();
+                leading = false;
+                trailing = 0;
+                continue;
+            }
+            int count = entry.getAsInt();
+            if (count > 0) {
+                prefix += leading ? count : 0;
+                trailing += count;
+            } else {
+                newLength += count;
+                leading = false;
+                trailing = 0;
+            }
+            pos += Math.abs(count);
+        }
+        int suffix = Math.min(trailing + baseLength - pos, Math.min(baseLength, newLength) - prefix);
+        return new int[] {prefix, suffix};
+    }
+
+    /**
+     * Diffs a[aStart, aEnd) against b[bStart, bEnd), appending the edits to the script.
+     */
+    private static void diff(String a, int aStart, int aEnd, String b, int bStart, int bEnd, Script script) {
+        // Common prefix and suffix are kept as they are
+        int prefix = 0;
+        while (aStart + prefix < aEnd && bStart + prefix < bEnd && a.charAt(aStart + prefix) == b.charAt(bStart + prefix)) {
+            prefix++;
+        }
+        script.keep(prefix);
+        aStart += prefix;
+        bStart += prefix;
+
+        int suffix = 0;
+        while (aEnd - suffix > aStart && bEnd - suffix > bStart && a.charAt(aEnd - suffix - 1) == b.charAt(bEnd - suffix - 1)) {
+            suffix++;
+        }
+        aEnd -= suffix;
+        bEnd -= suffix;
+
+        if (aStart == aEnd) {
+            script.insert(b, bStart, bEnd);
+        } else if (bStart == bEnd) {
+            script.delete(aEnd - aStart);
+        } else {
+            int[] split = middleSnake(a, aStart, aEnd, b, bStart, bEnd);
+            if (split == null) {
+                script.delete(aEnd - aStart);
+                script.insert(b, bStart, bEnd);
+            } else {
+                diff(a, aStart, split[0], b, bStart, split[1], script);
+                diff(a, split[0], aEnd, b, split[1], bEnd, script);
+            }
+        }
+
+        script.keep(suffix);
+    }
+
+    /**
+     * Finds the middle snake of an optimal edit path by running the search forwards from the
+     * start and backwards from the end until they overlap. Uses space linear in the input.
+     * @return The point {x, y} where the path crosses the middle, or null if the texts have
+     *         nothing in common or the edit distance exceeds the limit.
+     */
+    private static int[] middleSnake(String a, int aStart, int aEnd, String b, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = (n + m + 1) / 2;
+        int vOffset = maxD;
+        int vLength = 2 * maxD + 2;
+        int[] v1 = new int[vLength];
+        int[] v2 = new int[vLength];
+        Arrays.fill(v1, -1);
+        Arrays.fill(v2, -1);
+        v1[vOffset + 1] = 0;
+        v2[vOffset + 1] = 0;
+
+        int delta = n - m;
+        // With an odd delta the forward search detects the overlap, otherwise the reverse one
+        boolean front = (delta % 2 != 0);
+        int k1Start = 0;
+        int k1End = 0;
+        int k2Start = 0;
+        int k2End = 0;
+
+        int limit = Math.min(maxD, MAX_EDIT_DISTANCE);
+        for (int d = 0; d < limit; d++) {
+            // Forward paths
+            for (int k1 = -d + k1Start; k1 <= d - k1End; k1 += 2) {
+                int k1Offset = vOffset + k1;
+                int x1;
+                if (k1 == -d || (k1 != d && v1[k1Offset - 1] < v1[k1Offset + 1])) {
+                    x1 = v1[k1Offset + 1];
+                } else {
+                    x1 = v1[k1Offset - 1] + 1;
+                }
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a.charAt(aStart + x1) == b.charAt(bStart + y1)) {
+                    x1++;
+                    y1++;
+                }
+                v1[k1Offset] = x1;
+                if (x1 > n) {
+                    k1End += 2;
+                } else if (y1 > m) {
+                    k1Start += 2;
+                } else if (front) {
+                    int k2Offset = vOffset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < vLength && v2[k2Offset] != -1) {
+                        int x2 = n - v2[k2Offset];
+                        if (x1 >= x2) {
+                            return new int[] {aStart + x1, bStart + y1};
+                        }
+                    }
+                }
+            }
+
+            // Reverse paths
+            for (int k2 = -d + k2Start; k2 <= d - k2End; k2 += 2) {
+                int k2Offset = vOffset + k2;
+                int x2;
+                if (k2 == -d || (k2 != d && v2[k2Offset - 1] < v2[k2Offset + 1])) {
+                    x2 = v2[k2Offset + 1];
+                } else {
+                    x2 = v2[k2Offset - 1] + 1;
+                }
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a.charAt(aEnd - x2 - 1) == b.charAt(bEnd - y2 - 1)) {
+                    x2++;
+                    y2++;
+                }
+                v2[k2Offset] = x2;
+                if (x2 > n) {
+                    k2End += 2;
+                } else if (y2 > m) {
+                    k2Start += 2;
+                } else if (!front) {
+                    int k1Offset = vOffset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < vLength && v1[k1Offset] != -1) {
+                        int x1 = v1[k1Offset];
+                        int y1 = vOffset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            return new int[] {aStart + x1, bStart + y1};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Builds a patch, merging adjacent edits of the same kind.
+     */
+    private static class Script {
+        private final JsonArray entries = new JsonArray();
+        private int pendingKeep = 0;
+        private int pendingDelete = 0;
+        private final StringBuilder pendingInsert = new StringBuilder();
+
+        void keep(int count) {
+            if (count == 0) {
+                return;
+            }
+            flushEdits();
+            pendingKeep += count;
+        }
+
+        void delete(int count) {
+            if (count == 0) {
+                return;
+            }
+            flushKeep();
+            pendingDelete += count;
+        }
+
+        void insert(String text, int start, int end) {
+            if (start == end) {
+                return;
+            }
+            flushKeep();
+            pendingInsert.append(text, start, end);
+        }
+
+        JsonArray toJson() {
+            // A trailing keep is implied
+            flushEdits();
+            return entries;
+        }
+
+        private void flushKeep() {
+            if (pendingKeep > 0) {
+                entries.add(pendingKeep);
+                pendingKeep = 0;
+            }
+        }
+
+        private void flushEdits() {
+            if (pendingDelete > 0) {
+                entries.add(-pendingDelete);
+                pendingDelete = 0;
+            }
+            if (pendingInsert.length() > 0) {
+                entries.add(pendingInsert.toString());
+                pendingInsert.setLength(0);
+            }
+        }
+    }
+}
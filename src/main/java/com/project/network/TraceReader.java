@@ -0,0 +1,143 @@
+package com.project.network;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads a trace written by {@link TraceRecorder}, one message at a time.
+ * A trace cut short, as by a server that crashed while recording, reads up to its last
+ * complete message.
+ */
+public class TraceReader implements Closeable {
+
+    private final DataInputStream in;
+    private final long startMicros;
+    private final Map<Integer, String> users = new HashMap<>();
+    private long lastMicros;
+
+    public TraceReader(Path file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file), 65536), 65536));
+        try {
+            if (in.readInt() != TraceRecorder.MAGIC) {
+                throw new IOException("Not a session trace: " + file);
+            }
+            int version = in.readUnsignedByte();
+            if (version != TraceRecorder.VERSION) {
+                throw new IOException("Unsupported session trace version " + version + ": " + file);
+            }
+            startMicros = in.readLong();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        lastMicros = startMicros;
+    }
+
+    /**
+     * Gets when recording started.
+     * @return Microseconds since the epoch.
+     */
+    public long getStartMicros() {
+        return startMicros;
+    }
+
+    /**
+     * Reads the next message.
+     * @return The message, or null at the end of the trace.
+     */
+    public Record next() throws IOException {
+        try {
+            while (true) {
+                int kind = in.read();
+                if (kind < 0) {
+                    return null;
+                }
+                if (kind == TraceRecorder.USER_RECORD) {
+                    int number = (int) readVarLong();
+                    users.put(number, in.readUTF());
+                } else if (kind == TraceRecorder.MESSAGE_RECORD) {
+                    long zigzag = readVarLong();
+                    lastMicros += (zigzag >>> 1) ^ -(zigzag & 1);
+                    int sessionId = (int) readVarLong() - 1;
+                    String userId = users.get((int) readVarLong());
+                    byte[] bytes = new byte[(int) readVarLong()];
+                    in.readFully(bytes);
+                    return new Record(lastMicros, sessionId, userId, new String(bytes, StandardCharsets.UTF_8));
+                } else {
+                    throw new IOException("Corrupt session trace: unknown record kind " + kind);
+                }
+            }
+        } catch (EOFException e) {
+            // Cut off in the middle of a record
+            return null;
+        }
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt session trace: varint too long");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * A recorded message.
+     */
+    public static final class Record {
+        private final long receivedMicros;
+        private final int sessionId;
+        private final String userId;
+        private final String message;
+
+        Record(long receivedMicros, int sessionId, String userId, String message) {
+            this.receivedMicros = receivedMicros;
+            this.sessionId = sessionId;
+            this.userId = userId;
+            this.message = message;
+        }
+
+        /**
+         * @return When the server received the message, in microseconds since the epoch.
+         */
+        public long getReceivedMicros() {
+            return receivedMicros;
+        }
+
+        /**
+         * @return The ID of the session the message was routed to, or -1 for none.
+         */
+        public int getSessionId() {
+            return sessionId;
+        }
+
+        /**
+         * @return The user who sent the message, or null if not known.
+         */
+        public String getUserId() {
+            return userId;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
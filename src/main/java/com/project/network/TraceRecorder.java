@@ -0,0 +1,202 @@
+package com.project.network;
+
+import com.project.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Records the messages clients send to the server, with the time each was received, the
+ * session it was routed to and the user who sent it, to an append-only trace file that
+ * {@link TraceReplay} can play back. Clock syncs, messages shed by the client's own rate
+ * limit and messages relayed to another node in a cluster are not recorded.
+ *
+ * The file is a gzip stream, flushed after every batch so that a crash loses at most the
+ * last batch, holding a header (magic, version, start time in epoch microseconds) and then
+ * records of two kinds: a user record gives a user ID the next number, and a message record
+ * has the microseconds since the previous message, the session's ID plus one (0 for none),
+ * the user's number (0 for none) and the message as UTF-8, all numbers as varints.
+ *
+ * Messages are queued by the threads receiving them and written by a thread of their own;
+ * when the writer falls behind, messages are dropped and counted rather than slowing the
+ * server down.
+ */
+public class TraceRecorder {
+
+    private static final Log log = Log.get(TraceRecorder.class);
+
+    static final int MAGIC = 0x43455452;
+    static final int VERSION = 1;
+    static final int USER_RECORD = 1;
+    static final int MESSAGE_RECORD = 2;
+
+    private static final int QUEUE_SIZE = 65536;
+    private static final int MAX_BATCH = 1024;
+
+    private final Path file;
+    private final ServerMetrics metrics;
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final DataOutputStream out;
+    private final Thread writer;
+    private volatile boolean closed = false;
+
+    // Written by the writer thread only
+    private final Map<String, Integer> userNumbers = new HashMap<>();
+    private long lastMicros;
+
+    /**
+     * Creates the recorder configured by TRACE_FILE, the path of the trace to write.
+     * @return The recorder, or null if TRACE_FILE is not set or the file cannot be created,
+     *         in which case the server runs without recording.
+     */
+    public static TraceRecorder fromConfig(ServerMetrics metrics) {
+        String path = ServerConfig.get("TRACE_FILE");
+        if (path == null || path.isEmpty()) {
+            return null;
+        }
+        try {
+            return new TraceRecorder(Path.of(path), metrics);
+        } catch (IOException e) {
+            log.warn("Could not create session trace " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the trace file, replacing any file already there, and starts writing to it.
+     */
+    public TraceRecorder(Path file, ServerMetrics metrics) throws IOException {
+        this.file = file;
+        this.metrics = metrics;
+        OutputStream stream = Files.newOutputStream(file);
+        this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(stream, 65536, true), 65536));
+        this.lastMicros = LatencyTrace.nowMicros();
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(lastMicros);
+        out.flush();
+
+        writer = new Thread(this::writeLoop, "trace-recorder");
+        writer.setDaemon(true);
+        writer.start();
+        log.info("Recording session trace to " + file);
+    }
+
+    /**
+     * Queues a received message to be written.
+     * @param receivedMicros When the message was received, from {@link LatencyTrace#nowMicros}.
+     * @param sessionId The ID of the session the message was routed to, or -1 for none.
+     * @param userId The user who sent it, or null if not known.
+     * @param message The message as received.
+     */
+    public void record(long receivedMicros, int sessionId, String userId, String message) {
+        if (closed) {
+            return;
+        }
+        if (!queue.offer(new Entry(receivedMicros, sessionId, userId, message))) {
+            metrics.increment("trace.dropped");
+        }
+    }
+
+    /**
+     * Writes what is queued and closes the file.
+     */
+    public void close() throws InterruptedException {
+        closed = true;
+        writer.join(5000);
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Entry entry : batch) {
+                    write(entry);
+                }
+                // A sync flush, so that everything written so far can be read back
+                out.flush();
+                metrics.add("trace.records", batch.size());
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            closed = true;
+            log.error("Error writing session trace " + file + "; recording stopped: " + e.getMessage());
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                log.warn("Error closing session trace " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        int user = 0;
+        if (entry.userId != null) {
+            Integer number = userNumbers.get(entry.userId);
+            if (number == null) {
+                number = userNumbers.size() + 1;
+                userNumbers.put(entry.userId, number);
+                out.writeByte(USER_RECORD);
+                writeVarLong(out, number);
+                out.writeUTF(entry.userId);
+            }
+            user = number;
+        }
+
+        // Messages can be queued slightly out of order by different threads, so the delta
+        // is zigzag-encoded to keep small negative values small
+        long delta = entry.receivedMicros - lastMicros;
+        lastMicros = entry.receivedMicros;
+        byte[] bytes = entry.message.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(MESSAGE_RECORD);
+        writeVarLong(out, (delta << 1) ^ (delta >> 63));
+        writeVarLong(out, entry.sessionId + 1);
+        writeVarLong(out, user);
+        writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static final class Entry {
+        private final long receivedMicros;
+        private final int sessionId;
+        private final String userId;
+        private final String message;
+
+        Entry(long receivedMicros, int sessionId, String userId, String message) {
+            this.receivedMicros = receivedMicros;
+            this.sessionId = sessionId;
+            this.userId = userId;
+            this.message = message;
+        }
+    }
+}
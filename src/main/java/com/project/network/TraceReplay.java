@@ -0,0 +1,406 @@
+package com.project.network;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.project.crdt.CRDTCharacter;
+import com.project.crdt.CRDTDocument;
+import com.project.crdt.Position;
+import org.java_websocket.client.WebSocketClient;
+import org.java_websocket.handshake.ServerHandshake;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays back a trace recorded by {@link TraceRecorder}, with the messages spaced as they
+ * were received, sped up by a factor of 1 to 1000, or as fast as possible.
+ *
+ * The crdt target applies the recorded inserts and deletes straight to one
+ * {@link CRDTDocument} replica per session, with no server or network, and reports the
+ * time each took. The server target connects a client per recorded user to a server and
+ * sends it every recorded message, so that a production workload can be rerun against a
+ * change to the server. Creating and joining sessions is replayed as joining a session
+ * named after the recorded one, with the role that was asked for, since the recorded
+ * codes and resume tokens belong to the server that recorded them.
+ * Both report how late messages were sent against their schedule; a replay that cannot
+ * keep up shows as a growing lag.
+ *
+ * Runs against a server started in the same process unless REPLAY_SERVER gives the URI of
+ * one already running.
+ *
+ * Settings (environment variables or system properties):
+ * REPLAY_FILE (the trace, required), REPLAY_TARGET (crdt or server, default crdt),
+ * REPLAY_SPEED (1 to 1000, default 1; 0 for as fast as possible) and REPLAY_SERVER.
+ *
+ * Usage: mvn -q compile exec:java -Dexec.mainClass=com.project.network.TraceReplay -DREPLAY_FILE=trace.bin -DREPLAY_SPEED=100
+ */
+public class TraceReplay {
+
+    private static final Gson gson = new Gson();
+
+    private static final String TARGET_CRDT = "crdt";
+    private static final String TARGET_SERVER = "server";
+    private static final int MAX_SPEED = 1000;
+
+    private final String file = ServerConfig.get("REPLAY_FILE");
+    private final String target = ServerConfig.get("REPLAY_TARGET") != null ? ServerConfig.get("REPLAY_TARGET") : TARGET_CRDT;
+    private final int speed = ServerConfig.getInt("REPLAY_SPEED", 1);
+
+    // How late each message was sent, against the recorded spacing divided by the speed
+    private final LatencyHistogram scheduleLag = new LatencyHistogram();
+
+    public static void main(String[] args) throws Exception {
+        new TraceReplay().run();
+    }
+
+    private void run() throws Exception {
+        if (file == null || !Files.isReadable(Path.of(file))) {
+            System.err.println("REPLAY_FILE must name a trace recorded with TRACE_FILE");
+            System.exit(2);
+        }
+        if (speed < 0 || speed > MAX_SPEED) {
+            System.err.println("REPLAY_SPEED must be from 1 to " + MAX_SPEED + ", or 0 for as fast as possible");
+            System.exit(2);
+        }
+        Target replay;
+        if (TARGET_CRDT.equals(target)) {
+            replay = new CrdtTarget();
+        } else if (TARGET_SERVER.equals(target)) {
+            replay = new ServerTarget(ServerConfig.get("REPLAY_SERVER"));
+        } else {
+            System.err.println("REPLAY_TARGET must be " + TARGET_CRDT + " or " + TARGET_SERVER);
+            System.exit(2);
+            return;
+        }
+
+        System.out.println("Replaying " + file + " to " + replay.describe() + " at "
+                           + (speed == 0 ? "full speed" : speed + "x"));
+        long traceStart = -1;
+        long traceEnd = 0;
+        long messages = 0;
+        long wallStart = System.nanoTime();
+        try (TraceReader reader = new TraceReader(Path.of(file))) {
+            TraceReader.Record record;
+            while ((record = reader.next()) != null) {
+                if (traceStart < 0) {
+                    traceStart = record.getReceivedMicros();
+                }
+                traceEnd = Math.max(traceEnd, record.getReceivedMicros());
+                if (speed > 0) {
+                    awaitDue(wallStart + (record.getReceivedMicros() - traceStart) * 1000 / speed);
+                }
+                replay.apply(record);
+                messages++;
+            }
+        }
+        long elapsedNanos = System.nanoTime() - wallStart;
+        replay.finish();
+
+        double traceSeconds = traceStart < 0 ? 0 : (traceEnd - traceStart) / 1e6;
+        System.out.println("==================================================");
+        System.out.printf("Messages:          %d over %.1f s recorded, replayed in %.1f s (%.0f/s)%n",
+                          messages, traceSeconds, elapsedNanos / 1e9, messages / Math.max(1e-9, elapsedNanos / 1e9));
+        if (speed > 0 && scheduleLag.getCount() > 0) {
+            System.out.printf("Schedule lag:      p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                              scheduleLag.getPercentileMicros(50) / 1000.0, scheduleLag.getPercentileMicros(99) / 1000.0,
+                              scheduleLag.getMaxMicros() / 1000.0);
+        }
+        replay.report();
+        System.out.println("==================================================");
+    }
+
+    /**
+     * Waits until a message is due, then records how late it is.
+     */
+    private void awaitDue(long dueNanos) {
+        long wait;
+        while ((wait = dueNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        scheduleLag.record(-wait / 1000);
+    }
+
+    private static JsonObject parse(String message) {
+        try {
+            return gson.fromJson(message, JsonObject.class);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static String typeOf(JsonObject message) {
+        return message != null && message.has("type") ? message.get("type").getAsString() : "";
+    }
+
+    /**
+     * Where the messages are replayed to.
+     */
+    private interface Target {
+        String describe();
+
+        void apply(TraceReader.Record record);
+
+        /**
+         * Called after the last message, to let the target settle.
+         */
+        void finish() throws InterruptedException;
+
+        void report();
+    }
+
+    /**
+     * Applies inserts and deletes to a replica per session.
+     */
+    private static class CrdtTarget implements Target {
+        private final Map<Integer, CRDTDocument> replicas = new HashMap<>();
+        // In nanoseconds rather than microseconds, since most operations take less than one
+        private final LatencyHistogram applyNanos = new LatencyHistogram();
+        private long inserts = 0;
+        private long deletes = 0;
+        private long skipped = 0;
+
+        @Override
+        public String describe() {
+            return "CRDT replicas";
+        }
+
+        @Override
+        public void apply(TraceReader.Record record) {
+            JsonObject message = parse(record.getMessage());
+            String type = typeOf(message);
+            if (record.getSessionId() < 0 || !("insert".equals(type) || "delete".equals(type))) {
+                skipped++;
+                return;
+            }
+            CRDTDocument replica = replicas.computeIfAbsent(record.getSessionId(), id -> new CRDTDocument("replay"));
+            try {
+                if ("insert".equals(type)) {
+                    JsonObject characterObj = message.getAsJsonObject("character");
+                    String value = characterObj.get("value").getAsString();
+                    if (value.length() != 1) {
+                        skipped++;
+                        return;
+                    }
+                    Position position = gson.fromJson(characterObj.getAsJsonObject("position"), Position.class);
+                    String authorId = characterObj.has("authorId") ? characterObj.get("authorId").getAsString() : record.getUserId();
+                    long timestamp = characterObj.has("timestamp") ? characterObj.get("timestamp").getAsLong() : 0;
+                    CRDTCharacter character = new CRDTCharacter(value.charAt(0), position, authorId, timestamp);
+                    long start = System.nanoTime();
+                    replica.remoteInsert(character);
+                    applyNanos.record(System.nanoTime() - start);
+                    inserts++;
+                } else {
+                    Position position = gson.fromJson(message.getAsJsonObject("position"), Position.class);
+                    long start = System.nanoTime();
+                    replica.remoteDelete(position);
+                    applyNanos.record(System.nanoTime() - start);
+                    deletes++;
+                }
+            } catch (RuntimeException e) {
+                skipped++;
+            }
+        }
+
+        @Override
+        public void finish() {
+        }
+
+        @Override
+        public void report() {
+            int longest = 0;
+            long characters = 0;
+            for (CRDTDocument replica : replicas.values()) {
+                longest = Math.max(longest, replica.length());
+                characters += replica.length();
+            }
+            System.out.printf("Operations:        %d inserts, %d deletes in %d sessions (%d other messages skipped)%n",
+                              inserts, deletes, replicas.size(), skipped);
+            if (applyNanos.getCount() > 0) {
+                System.out.printf("Apply time:        mean %.0f ns, p50 %d ns, p99 %d ns, max %d ns%n",
+                                  applyNanos.getMeanMicros(), applyNanos.getPercentileMicros(50),
+                                  applyNanos.getPercentileMicros(99), applyNanos.getMaxMicros());
+            }
+            System.out.printf("Documents:         %d characters in all, longest %d%n", characters, longest);
+        }
+    }
+
+    /**
+     * Sends every message to a server, each from a connection of its recorded user.
+     */
+    private class ServerTarget implements Target {
+        private final String serverUri;
+        private final CollaborativeEditorServer server;
+        private final Map<String, ReplayClient> clients = new LinkedHashMap<>();
+        private final LongAdder received = new LongAdder();
+        private long sent = 0;
+        private long skipped = 0;
+        private int connectFailures = 0;
+
+        ServerTarget(String serverUri) throws IOException, InterruptedException {
+            if (serverUri == null) {
+                // An in-process server recording to the trace being read would overwrite it
+                String traceFile = ServerConfig.get("TRACE_FILE");
+                if (traceFile != null && !traceFile.isEmpty() && Files.exists(Path.of(traceFile))
+                        && Files.isSameFile(Path.of(traceFile), Path.of(file))) {
+                    System.err.println("TRACE_FILE must not be the trace being replayed");
+                    System.exit(2);
+                }
+                int port = LoadGenerator.freePort();
+                server = new CollaborativeEditorServer(port);
+                server.start();
+                LoadGenerator.awaitListening(port);
+                serverUri = "ws://localhost:" + port;
+            } else {
+                server = null;
+            }
+            this.serverUri = serverUri;
+        }
+
+        @Override
+        public String describe() {
+            return serverUri + (server != null ? " (in process)" : "");
+        }
+
+        @Override
+        public void apply(TraceReader.Record record) {
+            String userId = record.getUserId();
+            if (userId == null) {
+                skipped++;
+                return;
+            }
+            ReplayClient client = clients.computeIfAbsent(userId, this::connect);
+            if (client == null || !client.isOpen()) {
+                skipped++;
+                return;
+            }
+
+            JsonObject message = parse(record.getMessage());
+            String type = typeOf(message);
+            if ("register".equals(type)) {
+                client.registered = true;
+            } else if (!client.registered) {
+                // Recorded after the user registered; register as the server saw them
+                JsonObject register = new JsonObject();
+                register.addProperty("type", "register");
+                register.addProperty("userId", userId);
+                register.addProperty("username", userId);
+                client.send(gson.toJson(register));
+                client.registered = true;
+            }
+
+            if ("create_session".equals(type) || "join_session".equals(type)) {
+                if (record.getSessionId() < 0) {
+                    skipped++;
+                    return;
+                }
+                client.send(gson.toJson(rejoin(message, userId, record.getSessionId())));
+            } else {
+                client.send(record.getMessage());
+            }
+            sent++;
+        }
+
+        /**
+         * Makes the join that stands in for a recorded create or join.
+         */
+        private JsonObject rejoin(JsonObject recorded, String userId, int sessionId) {
+            JsonObject join = new JsonObject();
+            join.addProperty("type", "join_session");
+            join.addProperty("userId", userId);
+            if (recorded.has("username")) {
+                join.add("username", recorded.get("username"));
+            }
+            join.addProperty("code", "replay" + sessionId);
+            join.addProperty("asEditor", "create_session".equals(typeOf(recorded))
+                    || recorded.has("asEditor") && recorded.get("asEditor").getAsBoolean());
+            return join;
+        }
+
+        private ReplayClient connect(String userId) {
+            try {
+                ReplayClient client = new ReplayClient(URI.create(serverUri));
+                if (client.connectBlocking(10, TimeUnit.SECONDS)) {
+                    return client;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connectFailures++;
+            return null;
+        }
+
+        /**
+         * Waits for the server's replies to stop arriving: until nothing has been received
+         * for a second, or ten seconds at most. Then disconnects everyone.
+         */
+        @Override
+        public void finish() throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10_000;
+            long last = -1;
+            while (System.currentTimeMillis() < deadline) {
+                Thread.sleep(1000);
+                long now = received.sum();
+                if (now == last) {
+                    break;
+                }
+                last = now;
+            }
+            for (ReplayClient client : clients.values()) {
+                if (client != null) {
+                    client.close();
+                }
+            }
+            if (server != null) {
+                server.stop(1000);
+            }
+        }
+
+        @Override
+        public void report() {
+            System.out.printf("Sent:              %d messages from %d users (%d connect failures, %d messages skipped)%n",
+                              sent, clients.size(), connectFailures, skipped);
+            System.out.printf("Received:          %d frames%n", received.sum());
+            if (server != null) {
+                System.out.println("Shed by server:    " + server.getSheddingStats());
+            }
+        }
+
+        /**
+         * One recorded user's connection; counts what the server sends it.
+         */
+        private class ReplayClient extends WebSocketClient {
+            private boolean registered = false;
+
+            ReplayClient(URI uri) {
+                super(uri);
+                setTcpNoDelay(true);
+            }
+
+            @Override
+            public void onOpen(ServerHandshake handshakedata) {
+            }
+
+            @Override
+            public void onMessage(String message) {
+                received.increment();
+            }
+
+            @Override
+            public void onClose(int code, String reason, boolean remote) {
+            }
+
+            @Override
+            public void onError(Exception ex) {
+                System.err.println("Replay connection error: " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -2,23 +2,32 @@ package com.project.ui;
 
 import com.project.crdt.CRDTCharacter;
 import com.project.crdt.CRDTDocument;
+import com.project.crdt.ContentHash;
 import com.project.crdt.Position;
+import com.project.network.LatencyHistogram;
+import com.project.network.LatencyTrace;
 import com.project.network.NetworkClient;
+import com.project.network.NetworkEvents;
 import com.project.network.Operation;
 import com.project.network.DatabaseService;
+import com.project.util.Log;
 
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
 import javafx.geometry.Bounds;
+import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.paint.Color;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import javafx.util.Pair;
 
 import java.io.File;
@@ -36,10 +45,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.Optional;
 import java.util.function.Supplier;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
 public class EditorController {
+    private static final Log log = Log.get(EditorController.class);
+    
     @FXML
     private TextArea editorArea;
     
@@ -121,7 +131,7 @@ public class EditorController {
      */
     public void setUserId(String userId) {
         this.userId = userId;
-        System.out.println("Initialized with userId: " + userId);
+        log.info("Initialized with userId: " + userId);
         
         // Initialize the network client with user ID
         if (networkClient == null) {
@@ -138,7 +148,7 @@ public class EditorController {
      */
     public void setUsername(String username) {
         this.username = username;
-        System.out.println("Initialized with username: " + username);
+        log.info("Initialized with username: " + username);
         
         // Make sure our own username is in the user map
         if (userMap == null) {
@@ -172,8 +182,8 @@ public class EditorController {
             message.addProperty("type", "username_update");
             message.addProperty("userId", userId);
             message.addProperty("username", username);
-            networkClient.getWebSocketClient().send(new Gson().toJson(message));
-            System.out.println("Sent username update to server: " + username);
+            networkClient.sendMessage(message);
+            log.info("Sent username update to server: " + username);
         }
     }
     
@@ -195,7 +205,7 @@ public class EditorController {
                 loadDocumentContent();
             } catch (Exception e) {
                 updateStatus("Error loading document: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error loading document: " + e.getMessage(), e);
             }
         }
     }
@@ -212,7 +222,7 @@ public class EditorController {
             return;
         }
         
-        System.out.println("Setting join session info: Code=" + sessionCode + ", Role=" + (isEditorRole ? "EDITOR" : "VIEWER"));
+        log.info("Setting join session info: Code=" + sessionCode + ", Role=" + (isEditorRole ? "EDITOR" : "VIEWER"));
         
         // Make sure we're initialized before joining
         if (!initialized) {
@@ -252,7 +262,7 @@ public class EditorController {
             // Initialize the network client with both userId and username
             networkClient = new NetworkClient(siteId, username);
             
-            System.out.println("Initialized with username: " + username + ", userId: " + siteId);
+            log.info("Initialized with username: " + username + ", userId: " + siteId);
             this.userId = siteId;
             
             // Add the network client's operation listener
@@ -298,7 +308,7 @@ public class EditorController {
                 
                 // If document info is already set, load it now
                 if (documentId != null) {
-                    System.out.println("Document ID already set, loading content: " + documentId);
+                    log.info("Document ID already set, loading content: " + documentId);
                     // Use a brief delay to allow connection to establish
                     new Thread(() -> {
                         try {
@@ -326,7 +336,7 @@ public class EditorController {
             updateWordCount();
         } catch (Exception e) {
             updateStatus("Error initializing editor: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error initializing editor: " + e.getMessage(), e);
         }
     }
     
@@ -340,16 +350,27 @@ public class EditorController {
         // Add error listener
         networkClient.addErrorListener(this::updateStatus);
         
+        // Show large documents as they stream in
+        networkClient.addSnapshotListener(this::handleSnapshotProgress);
+        
+        // Let the network client compare our document with the server's copy
+        networkClient.setDocumentSupplier(() -> {
+            CRDTDocument current = document;
+            synchronized (current) {
+                return current.getText();
+            }
+        });
+        
         // Add code listener
         networkClient.addCodeListener(codes -> {
             Platform.runLater(() -> {
                 // Add a more visible log for the codes
-                System.out.println("=====================================");
-                System.out.println("RECEIVED SESSION CODES:");
-                System.out.println("Editor code: " + codes.getEditorCode());
-                System.out.println("Viewer code: " + codes.getViewerCode());
-                System.out.println("Current user role: " + (isEditor ? "EDITOR" : "VIEWER"));
-                System.out.println("=====================================");
+                log.info("=====================================");
+                log.info("RECEIVED SESSION CODES:");
+                log.info("Editor code: " + codes.getEditorCode());
+                log.info("Viewer code: " + codes.getViewerCode());
+                log.info("Current user role: " + (isEditor ? "EDITOR" : "VIEWER"));
+                log.info("=====================================");
                 
                 // Update the UI fields based on user role
                 if (isEditor) {
@@ -368,9 +389,9 @@ public class EditorController {
                         documentId, document.getText(), codes.getEditorCode(), codes.getViewerCode());
                     
                     if (saved) {
-                        System.out.println("Session codes saved with document ID: " + documentId);
+                        log.info("Session codes saved with document ID: " + documentId);
                     } else {
-                        System.err.println("Failed to save session codes with document ID: " + documentId);
+                        log.error("Failed to save session codes with document ID: " + documentId);
                     }
                 }
             });
@@ -547,7 +568,7 @@ public class EditorController {
             operation.getType() == Operation.Type.DOCUMENT_SYNC) {
             
             // Log for debugging
-            System.out.println("Processing remote operation: " + operation.getType());
+            log.debugSampled("remote_operation", () -> "Processing remote operation: " + operation.getType());
             
             try {
             synchronized (document) {
@@ -564,7 +585,7 @@ public class EditorController {
                             }
                             
                         document.remoteInsert(character);
-                            System.out.println("Inserted character at position: " + character.getPosition().toString());
+                            log.debugSampled("remote_insert", () -> "Inserted character at position: " + character.getPosition().toString());
                         break;
                             
                     case DELETE:
@@ -579,14 +600,14 @@ public class EditorController {
                             }
                             
                         document.remoteDelete(position);
-                            System.out.println("Deleted character at position: " + position.toString());
+                            log.debugSampled("remote_delete", () -> "Deleted character at position: " + position.toString());
                         break;
                             
                     case DOCUMENT_SYNC:
-                            System.out.println("Document sync received with " + 
+                            log.debug(() -> "Document sync received with " + 
                                 (operation.getDocumentContent() != null ? operation.getDocumentContent().length() : 0) + 
                                 " characters");
-                        handleDocumentSync(operation.getDocumentContent());
+                        handleDocumentSync(operation.getDocumentContent(), operation.getDocumentHash());
                         return; // Skip the text update since handleDocumentSync does it
                             
                     default:
@@ -616,8 +637,7 @@ public class EditorController {
                                 networkClient.sendCursorMove(editorArea.getCaretPosition());
                             }
                         } catch (Exception e) {
-                            System.err.println("Error updating UI after remote operation: " + e.getMessage());
-                            e.printStackTrace();
+                            log.error("Error updating UI after remote operation: " + e.getMessage(), e);
                             
                             // This might indicate client corruption
                             handlePossibleCorruption();
@@ -630,8 +650,7 @@ public class EditorController {
                 }
             }
             } catch (Exception e) {
-                System.err.println("Error processing remote operation: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error processing remote operation: " + e.getMessage(), e);
                 
                 // This might indicate client corruption
                 handlePossibleCorruption();
@@ -652,46 +671,67 @@ public class EditorController {
                 if (networkClient != null) {
                     String currentContent = document.getText();
                     networkClient.sendDocumentUpdate(currentContent);
-                    System.out.println("Sent document resync with " + currentContent.length() + " characters");
+                    log.info("Sent document resync with " + currentContent.length() + " characters");
                 }
             });
         }
     }
     
+    /**
+     * Shows the progress of a document snapshot streamed in chunks. The document being
+     * joined is shown as its chunks arrive, read-only until the whole snapshot is in;
+     * the completed snapshot then goes through the normal document sync.
+     * Runs on the JavaFX thread.
+     * @param progress The snapshot progress.
+     */
+    private void handleSnapshotProgress(NetworkClient.SnapshotProgress progress) {
+        boolean joining = "join_session_ack".equals(progress.getMessageType());
+        
+        if (progress.isComplete()) {
+            editorArea.setEditable(isEditor);
+            updateStatus("Document loaded (" + progress.getTotal() + " characters)");
+            return;
+        }
+        
+        if (joining) {
+            isUpdatingText.set(true);
+            try {
+                if (progress.getReceived() == 0) {
+                    editorArea.setEditable(false);
+                    editorArea.clear();
+                } else {
+                    editorArea.appendText(progress.getChunk());
+                }
+            } finally {
+                isUpdatingText.set(false);
+            }
+        }
+        
+        int percent = progress.getTotal() > 0 ? (int) (100L * progress.getReceived() / progress.getTotal()) : 100;
+        updateStatus("Loading document... " + percent + "%");
+    }
+    
     /**
      * Handles a document sync operation.
      * This is called when the server sends the full document content.
      * @param content The document content.
+     * @param contentHash The {@link ContentHash} of the content.
      */
-    private void handleDocumentSync(String content) {
+    private void handleDocumentSync(String content, long contentHash) {
         try {
             if (content == null) {
-                System.err.println("Received null content in document sync");
+                log.warn("Received null content in document sync");
             return;
         }
         
-            System.out.println("Received document sync with " + content.length() + " characters");
+            log.debug(() -> "Received document sync with " + content.length() + " characters");
             
             // Save the current cursor position before updating
             final int currentCaretPosition = editorArea.getCaretPosition();
-            final String currentText = document.getText();
-            
-            // Check for major discrepancies that might indicate client corruption
-            if (currentText != null && currentText.length() > 0 && content.length() > 0) {
-                double lengthRatio = (double) Math.max(currentText.length(), content.length()) / 
-                                    Math.min(Math.max(1, currentText.length()), content.length());
-                
-                if (lengthRatio > 5.0) {
-                    // Extreme difference in document lengths might indicate corruption
-                    System.err.println("Extreme document length mismatch: current=" + currentText.length() + 
-                                       ", sync=" + content.length() + ", ratio=" + lengthRatio);
-                    handlePossibleCorruption();
-                }
-            }
             
             // Only update if the content differs from what we have
-            if (content.equals(currentText)) {
-                System.out.println("Document sync content matches current content, no update needed");
+            if (document.hasContent(content.length(), contentHash)) {
+                log.debug("Document sync content matches current content, no update needed");
                 
                 // Still send a confirmation for this sync
                 if (networkClient != null) {
@@ -700,13 +740,15 @@ public class EditorController {
                     confirmMsg.addProperty("receivedLength", content.length());
                     confirmMsg.addProperty("userId", userId);
                     
-                    networkClient.getWebSocketClient().send(new Gson().toJson(confirmMsg));
-                    System.out.println("Sent sync confirmation for " + content.length() + " characters");
+                    networkClient.sendMessage(confirmMsg);
+                    log.debug(() -> "Sent sync confirmation for " + content.length() + " characters");
                 }
                 return;
             }
             
             // If we're updating with new content
+            NetworkEvents.DocumentSyncRebuild rebuild = new NetworkEvents.DocumentSyncRebuild();
+            rebuild.begin();
             synchronized (document) {
                 // Create a new CRDT document with the synced content
                 CRDTDocument newDocument = new CRDTDocument(userId);
@@ -718,6 +760,10 @@ public class EditorController {
                 
                 // Replace our document with the synced one
                 document = newDocument;
+                if (rebuild.shouldCommit()) {
+                    rebuild.contentLength = content.length();
+                    rebuild.commit();
+                }
                 
                 // Update UI - but try to maintain cursor position logically
                 Platform.runLater(() -> {
@@ -741,7 +787,7 @@ public class EditorController {
                             }
                         }
                     } catch (Exception e) {
-                        System.err.println("Error restoring cursor position: " + e.getMessage());
+                        log.error("Error restoring cursor position: " + e.getMessage());
                     }
                     
                     // Update word count
@@ -758,13 +804,12 @@ public class EditorController {
                     confirmMsg.addProperty("receivedLength", content.length());
                     confirmMsg.addProperty("userId", userId);
                     
-                    networkClient.getWebSocketClient().send(new Gson().toJson(confirmMsg));
-                    System.out.println("Sent sync confirmation for " + content.length() + " characters");
+                    networkClient.sendMessage(confirmMsg);
+                    log.debug(() -> "Sent sync confirmation for " + content.length() + " characters");
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error handling document sync: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error handling document sync: " + e.getMessage(), e);
             
             // This might indicate client corruption
             handlePossibleCorruption();
@@ -855,7 +900,7 @@ public class EditorController {
             return;
         }
         
-        System.out.println("Received user update with " + userMap.size() + " users: " + userMap.keySet());
+        log.debug(() -> "Received user update with " + userMap.size() + " users: " + userMap.keySet());
         
         // Create a new simplified clean map with just valid users
         Map<String, String> cleanUserMap = new HashMap<>();
@@ -882,7 +927,7 @@ public class EditorController {
             
             // Skip if no username
             if (name == null || name.trim().isEmpty()) {
-                System.out.println("Skipping user with empty name: " + id);
+                log.debug(() -> "Skipping user with empty name: " + id);
                 continue;
             }
             
@@ -892,7 +937,7 @@ public class EditorController {
             // If this user wasn't in our existing map, they're new
             if (!this.userMap.containsKey(id)) {
                 foundNewValidUsers = true;
-                System.out.println("Found new user: " + name + " (" + id + ")");
+                log.debug(() -> "Found new user: " + name + " (" + id + ")");
             }
         }
         
@@ -905,7 +950,7 @@ public class EditorController {
                     cleanUserMap.put(entry.getKey(), entry.getValue());
                 }
             }
-            System.out.println("Merged single-user update with existing users, now have " + 
+            log.debug(() -> "Merged single-user update with existing users, now have " + 
                               cleanUserMap.size() + " users");
         }
         
@@ -933,20 +978,19 @@ public class EditorController {
                 // Update collaboration status in the console
                 boolean hasOtherUsers = users.size() > 1;
                 if (hasOtherUsers) {
-                    System.out.println("Collaborating with " + (users.size() - 1) + 
+                    log.debug(() -> "Collaborating with " + (users.size() - 1) + 
                                       " other user" + (users.size() > 2 ? "s" : ""));
                 } else {
-                    System.out.println("No other users connected");
+                    log.debug("No other users connected");
                 }
                 
-                System.out.println("Updated active users list with " + (cleanUserMap.size() - 1) + 
+                log.debug(() -> "Updated active users list with " + (cleanUserMap.size() - 1) + 
                                   " real users: " + users);
                 
                 // Update cursor markers only for valid users
                 updateCursorMarkers(new ArrayList<>(cleanUserMap.keySet()));
             } catch (Exception e) {
-                System.err.println("Error updating user list: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error updating user list: " + e.getMessage(), e);
             }
         });
     }
@@ -1123,8 +1167,7 @@ public class EditorController {
                     marker.setUsername(username);
                 }
             } catch (Exception e) {
-                System.err.println("Error updating cursor: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error updating cursor: " + e.getMessage(), e);
             }
         });
     }
@@ -1153,15 +1196,12 @@ public class EditorController {
                     caretPosition = text.length();
                 }
                 
-                // Log for debugging
-                System.out.println("Attempting backspace at position: " + caretPosition);
-                
                 // Try to delete the character from the CRDT document
                 CRDTCharacter deletedChar = document.localDelete(caretPosition - 1);
                 
                 if (deletedChar != null) {
                     // If successful, send the delete operation to the network
-                    System.out.println("Successfully deleted char: " + deletedChar.getValue() + " at position: " + deletedChar.getPosition());
+                    log.debugSampled("local_delete", () -> "Successfully deleted char: " + deletedChar.getValue() + " at position: " + deletedChar.getPosition());
                     networkClient.sendDelete(deletedChar.getPosition());
                     
                     // Also directly update the UI for better responsiveness
@@ -1184,22 +1224,21 @@ public class EditorController {
                     // Update word count
                     updateWordCount();
                 } else {
-                    System.err.println("Failed to delete character at position " + (caretPosition - 1));
+                    log.error("Failed to delete character at position " + (caretPosition - 1));
                     // If deletion failed in CRDT, do a forced UI update to sync with internal state
                     String currentDocText = document.getText();
                     updateEditorText(currentDocText);
-                    System.err.println("Backspace failed - forced text resync");
+                    log.error("Backspace failed - forced text resync");
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error handling backspace: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error handling backspace: " + e.getMessage(), e);
             
             // Force UI update to match internal state
             try {
                 updateEditorText(document.getText());
             } catch (Exception ex) {
-                System.err.println("Failed to update UI after error: " + ex.getMessage());
+                log.error("Failed to update UI after error: " + ex.getMessage());
             }
         }
     }
@@ -1221,15 +1260,12 @@ public class EditorController {
                 return;
             }
             
-            // Log for debugging
-            System.out.println("Attempting to delete character at position: " + caretPosition);
-            
             // Try to delete the character from the CRDT document
             CRDTCharacter deletedChar = document.localDelete(caretPosition);
             
             if (deletedChar != null) {
                 // If successful, send the delete operation to the network
-                System.out.println("Successfully deleted char: " + deletedChar.getValue() + " at position: " + deletedChar.getPosition());
+                log.debugSampled("local_delete", () -> "Successfully deleted char: " + deletedChar.getValue() + " at position: " + deletedChar.getPosition());
                 networkClient.sendDelete(deletedChar.getPosition());
                 
                 // Also directly update the UI for better responsiveness
@@ -1252,21 +1288,20 @@ public class EditorController {
                 // Update word count
                 updateWordCount();
             } else {
-                System.err.println("Failed to delete character at position " + caretPosition);
+                log.error("Failed to delete character at position " + caretPosition);
                 // If deletion failed in CRDT, do a forced UI update to sync with internal state
                 String currentDocText = document.getText();
                 updateEditorText(currentDocText);
-                System.err.println("Delete failed - forced text resync");
+                log.error("Delete failed - forced text resync");
             }
         } catch (Exception e) {
-            System.err.println("Error handling delete: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error handling delete: " + e.getMessage(), e);
             
             // Force UI update to match internal state
             try {
                 updateEditorText(document.getText());
             } catch (Exception ex) {
-                System.err.println("Failed to update UI after error: " + ex.getMessage());
+                log.error("Failed to update UI after error: " + ex.getMessage());
             }
         }
     }
@@ -1359,7 +1394,7 @@ public class EditorController {
                 updateStatus("Document exported to " + file.getName());
             } catch (IOException e) {
                 updateStatus("Error exporting document: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error exporting document: " + e.getMessage(), e);
             }
         }
     }
@@ -1425,8 +1460,7 @@ public class EditorController {
                     networkClient.sendDocumentUpdate(currentContent);
                 }
             } catch (Exception e) {
-                System.err.println("Error performing undo: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error performing undo: " + e.getMessage(), e);
                 updateStatus("Error during undo: " + e.getMessage());
                 
                 // Try to recover from the error by forcing a document update
@@ -1434,7 +1468,7 @@ public class EditorController {
                     String currentContent = document.getText();
                     networkClient.sendDocumentUpdate(currentContent);
                 } catch (Exception ex) {
-                    System.err.println("Could not recover from undo error: " + ex.getMessage());
+                    log.error("Could not recover from undo error: " + ex.getMessage());
                 }
             }
         }
@@ -1501,8 +1535,7 @@ public class EditorController {
                     networkClient.sendDocumentUpdate(currentContent);
                 }
             } catch (Exception e) {
-                System.err.println("Error performing redo: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error performing redo: " + e.getMessage(), e);
                 updateStatus("Error during redo: " + e.getMessage());
                 
                 // Try to recover from the error by forcing a document update
@@ -1510,7 +1543,7 @@ public class EditorController {
                     String currentContent = document.getText();
                     networkClient.sendDocumentUpdate(currentContent);
                 } catch (Exception ex) {
-                    System.err.println("Could not recover from redo error: " + ex.getMessage());
+                    log.error("Could not recover from redo error: " + ex.getMessage());
                 }
             }
         }
@@ -1523,23 +1556,8 @@ public class EditorController {
      * @param operationType The type of operation (undo or redo)
      */
     private void sendUndoRedoFullDocumentUpdate(String content, String operationType) {
-        if (networkClient != null && networkClient.getWebSocketClient() != null) {
-            try {
-                // Create a specialized message with HIGH_PRIORITY
-                JsonObject message = new JsonObject();
-                message.addProperty("type", "instant_document_update");
-                message.addProperty("userId", userId);
-                message.addProperty("username", username);
-                message.addProperty("content", content);
-                message.addProperty("operation", operationType);
-                message.addProperty("highPriority", true);
-                message.addProperty("timestamp", System.currentTimeMillis());
-                
-                networkClient.getWebSocketClient().send(new Gson().toJson(message));
-                System.out.println("Sent " + operationType + " full document update with " + content.length() + " chars");
-            } catch (Exception e) {
-                System.err.println("Error sending " + operationType + " sync: " + e.getMessage());
-            }
+        if (networkClient != null) {
+            networkClient.sendInstantDocumentUpdate(content, operationType);
         }
     }
     
@@ -1571,6 +1589,7 @@ public class EditorController {
         }
         
         // Request new codes from the server
+        networkClient.setDocumentId(documentId);
         networkClient.requestCodes();
     }
     
@@ -1583,7 +1602,7 @@ public class EditorController {
             boolean isEditorRole = result.getValue();
             
             try {
-                System.out.println("Join session dialog returned: code=" + code + ", isEditor=" + isEditorRole);
+                log.info("Join session dialog returned: code=" + code + ", isEditor=" + isEditorRole);
                 
                 // Update our editor status
                 isEditor = isEditorRole;
@@ -1603,7 +1622,8 @@ public class EditorController {
                 cursorMarkers.clear();
                 
                 // Important: Join the session with the server FIRST
-                System.out.println("Joining session with code: " + code + " as " + (isEditorRole ? "editor" : "viewer"));
+                log.info("Joining session with code: " + code + " as " + (isEditorRole ? "editor" : "viewer"));
+                networkClient.setDocumentId(documentId);
                 networkClient.joinSession(code, isEditorRole);
                 
                 // Update UI to show we're waiting
@@ -1634,13 +1654,12 @@ public class EditorController {
                             handleRemoteOperation(requestResyncOperation);
                         });
                     } catch (Exception e) {
-                        System.err.println("Error in sync thread: " + e.getMessage());
-                        e.printStackTrace();
+                        log.error("Error in sync thread: " + e.getMessage(), e);
                     }
                 }).start();
             } catch (Exception e) {
                 updateStatus("Error joining session: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error joining session: " + e.getMessage(), e);
             }
         });
     }
@@ -1652,7 +1671,7 @@ public class EditorController {
      */
     private void createDocumentForSession(String sessionCode, boolean isEditorRole) {
         try {
-            System.out.println("Creating document for session: " + sessionCode);
+            log.info("Creating document for session: " + sessionCode);
             
             // First, check if there's already a document in the database for this session code
             org.bson.Document existingDoc = DatabaseService.getInstance().getDocumentBySessionCode(sessionCode);
@@ -1661,7 +1680,7 @@ public class EditorController {
                 String foundDocId = existingDoc.get("_id").toString();
                 String foundTitle = existingDoc.getString("title");
                 
-                System.out.println("Found existing document for session: " + foundDocId + " (" + foundTitle + ")");
+                log.info("Found existing document for session: " + foundDocId + " (" + foundTitle + ")");
                 
                 // Update our current document info
                 documentId = foundDocId;
@@ -1678,7 +1697,7 @@ public class EditorController {
                         Stage stage = (Stage) editorArea.getScene().getWindow();
                         stage.setTitle(windowTitle);
                     } catch (Exception e) {
-                        System.err.println("Error updating window title: " + e.getMessage());
+                        log.error("Error updating window title: " + e.getMessage());
                     }
                 });
                 
@@ -1686,7 +1705,7 @@ public class EditorController {
             }
             
             // No existing document found for this session, create a new one
-            System.out.println("No existing document found for session. Creating new document.");
+            log.info("No existing document found for session. Creating new document.");
             
             // Create a default title based on the session code
             String newTitle = "Shared Document - " + sessionCode;
@@ -1699,9 +1718,9 @@ public class EditorController {
                 newDocId, "", sessionCode, sessionCode);
             
             if (updated) {
-                System.out.println("Created new document with ID: " + newDocId + " for session: " + sessionCode);
+                log.info("Created new document with ID: " + newDocId + " for session: " + sessionCode);
             } else {
-                System.err.println("Failed to update document with session codes");
+                log.error("Failed to update document with session codes");
             }
             
             // Update our current document info
@@ -1719,7 +1738,7 @@ public class EditorController {
                     Stage stage = (Stage) editorArea.getScene().getWindow();
                     stage.setTitle(windowTitle);
                 } catch (Exception e) {
-                    System.err.println("Error updating window title: " + e.getMessage());
+                    log.error("Error updating window title: " + e.getMessage());
                 }
             });
             
@@ -1735,17 +1754,16 @@ public class EditorController {
                             JsonObject resyncRequest = new JsonObject();
                             resyncRequest.addProperty("type", "request_resync");
                             resyncRequest.addProperty("userId", userId);
-                            finalNetworkClient.getWebSocketClient().send(new Gson().toJson(resyncRequest));
-                            System.out.println("Requested document content from server for new session");
+                            finalNetworkClient.sendMessage(resyncRequest);
+                            log.info("Requested document content from server for new session");
                         });
                     } catch (Exception e) {
-                        System.err.println("Error requesting document sync: " + e.getMessage());
+                        log.error("Error requesting document sync: " + e.getMessage());
                     }
                 }).start();
             }
         } catch (Exception e) {
-            System.err.println("Error creating document for session: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error creating document for session: " + e.getMessage(), e);
             updateStatus("Error creating document: " + e.getMessage());
         }
     }
@@ -1801,7 +1819,7 @@ public class EditorController {
             }
             
             // Then fully disconnect
-            networkClient.disconnect();
+            networkClient.close();
         }
         
         // Close the window
@@ -1878,7 +1896,7 @@ public class EditorController {
             }
         } catch (Exception e) {
             updateStatus("Error opening document: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error opening document: " + e.getMessage(), e);
         }
     }
     
@@ -1890,10 +1908,10 @@ public class EditorController {
      */
     private void joinExistingSession(String code, boolean isEditorRole) {
         try {
-            System.out.println("======== JOIN EXISTING SESSION ========");
-            System.out.println("Code: " + code);
-            System.out.println("Role: " + (isEditorRole ? "EDITOR" : "VIEWER"));
-            System.out.println("User ID: " + userId);
+            log.info("======== JOIN EXISTING SESSION ========");
+            log.info("Code: " + code);
+            log.info("Role: " + (isEditorRole ? "EDITOR" : "VIEWER"));
+            log.info("User ID: " + userId);
             
             // Save this code to recent session codes
             DocumentSelectionDialog.saveRecentSessionCode(code);
@@ -1941,7 +1959,7 @@ public class EditorController {
                                 }
                             });
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            log.error("Error retrying the connection: " + e.getMessage(), e);
                         }
                     }).start();
                     return;
@@ -1952,8 +1970,7 @@ public class EditorController {
             
         } catch (Exception e) {
             updateStatus("Error joining session: " + e.getMessage());
-            System.err.println("Error in joinExistingSession: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error in joinExistingSession: " + e.getMessage(), e);
         }
     }
     
@@ -1963,10 +1980,10 @@ public class EditorController {
     private void completeJoinSession(String code, boolean isEditorRole) {
         try {
             // Important: Join the session with the server
-            System.out.println("=== JOINING SESSION ===");
-            System.out.println("Session code: " + code);
-            System.out.println("Joining as: " + (isEditorRole ? "EDITOR" : "VIEWER"));
-            System.out.println("Local user ID: " + userId);
+            log.info("=== JOINING SESSION ===");
+            log.info("Session code: " + code);
+            log.info("Joining as: " + (isEditorRole ? "EDITOR" : "VIEWER"));
+            log.info("Local user ID: " + userId);
             
             // Update our local role flag
             isEditor = isEditorRole;
@@ -1982,10 +1999,11 @@ public class EditorController {
             }
             
             // Now join the session on the server
+            networkClient.setDocumentId(documentId);
             networkClient.joinSession(code, isEditorRole);
             
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Error joining session: " + e.getMessage(), e);
             updateStatus("Error joining session: " + e.getMessage());
         }
     }
@@ -2040,7 +2058,7 @@ public class EditorController {
                 
                 // Disconnect from network completely (only for app shutdown)
                 if (networkClient != null) {
-                    networkClient.disconnect();
+                    networkClient.close();
                     
                     // Wait a bit before reconnecting
                     try {
@@ -2055,7 +2073,7 @@ public class EditorController {
                 }
             } else {
                 // For regular document switching, we just clean up UI but preserve network connection
-                System.out.println("Temporary session transition - preserving codes: " + 
+                log.info("Temporary session transition - preserving codes: " + 
                                   "Editor=" + currentEditorCode + ", Viewer=" + currentViewerCode);
                 
                 // Store codes for possible restoration when loading new document
@@ -2066,8 +2084,7 @@ public class EditorController {
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error during session transition: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error during session transition: " + e.getMessage(), e);
         }
     }
     
@@ -2094,16 +2111,50 @@ public class EditorController {
     }
     
     private void saveDocument() {
+        saveDocument(false);
+    }
+    
+    /**
+     * Saves the document. In a shared session the server saves it once for all of its
+     * editors, and the status reports the outcome only when the server confirms it.
+     * @param manual Whether the user asked for the save; an automatic save says nothing
+     *               when there is nothing this user can save.
+     */
+    private void saveDocument(boolean manual) {
         // Process any pending inserts before saving
         processBatchInserts();
         
+        String content = document.getText();
+        
+        // Get the editor and viewer codes
+        String editorCode = editorCodeField.getText();
+        String viewerCode = viewerCodeField.getText();
+        
+        if (networkClient.isConnected() && viewerCode != null && !viewerCode.isEmpty()) {
+            if (!isEditor) {
+                if (manual) {
+                    Platform.runLater(() -> updateStatus("Only editors can save this document"));
+                }
+                return;
+            }
+            if (documentId != null) {
+                networkClient.setDocumentId(documentId);
+            } else if (!manual) {
+                // Another editor's stored document may be the session's, but it is theirs to autosave
+                return;
+            }
+            Platform.runLater(() -> updateStatus("Saving..."));
+            networkClient.saveDocument(content, result -> {
+                if (result.isSaved()) {
+                    updateStatus("Document saved");
+                } else {
+                    updateStatus("Failed to save document: " + result.getReason());
+                }
+            });
+            return;
+        }
+        
         if (documentId != null) {
-            String content = document.getText();
-            
-            // Get the editor and viewer codes
-            String editorCode = editorCodeField.getText();
-            String viewerCode = viewerCodeField.getText();
-            
             boolean saved = false;
             if (editorCode != null && !editorCode.isEmpty() && 
                 viewerCode != null && !viewerCode.isEmpty()) {
@@ -2123,6 +2174,8 @@ public class EditorController {
             } else {
                 Platform.runLater(() -> updateStatus("Failed to save document"));
             }
+        } else if (manual) {
+            Platform.runLater(() -> updateStatus("Nothing to save: the document is not stored yet"));
         }
     }
     
@@ -2136,19 +2189,11 @@ public class EditorController {
             // Process any pending batch operations first
             processBatchInserts();
             
-            // Save the document
-            saveDocument();
-            
-            // Force a document update to ensure it's synced with the server
-            if (document != null) {
-                String content = document.getText();
-                networkClient.sendDocumentUpdate(content);
-            }
-            
-            updateStatus("Document saved successfully");
+            // Save the document; the status reports the outcome once it is known
+            saveDocument(true);
         } catch (Exception e) {
             updateStatus("Error saving document: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error saving document: " + e.getMessage(), e);
         }
     }
     
@@ -2181,7 +2226,7 @@ public class EditorController {
                 if (c >= 32 || c == '\t' || c == '\n' || c == '\r') {
                     cleanContent.append(c);
                 } else {
-                    System.out.println("Removed problematic character at position " + i + 
+                    log.info("Removed problematic character at position " + i + 
                                       ": code=" + (int)c);
                 }
             }
@@ -2222,8 +2267,7 @@ public class EditorController {
                 updateStatus("Document fixed and cleaned");
             }
         } catch (Exception e) {
-            System.err.println("Error fixing document: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error fixing document: " + e.getMessage(), e);
             updateStatus("Error fixing document: " + e.getMessage());
         }
     }
@@ -2247,8 +2291,72 @@ public class EditorController {
             }
         } catch (Exception e) {
             updateStatus("Error testing MongoDB connection: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error testing MongoDB connection: " + e.getMessage(), e);
+        }
+    }
+    
+    /**
+     * Shows the latency diagnostics window: how long other users' edits took at each hop
+     * on their way to this screen, and our estimate of the server's clock. It refreshes
+     * every second while open.
+     * @param event The action event.
+     */
+    @FXML
+    private void handleLatencyDiagnostics(ActionEvent event) {
+        if (networkClient == null) {
+            updateStatus("Not connected to server");
+            return;
+        }
+        LatencyTrace trace = networkClient.getLatencyTrace();
+        
+        TextArea report = new TextArea();
+        report.setEditable(false);
+        report.setStyle("-fx-font-family: monospace;");
+        report.setText(formatLatencyReport(trace));
+        
+        Timeline refresh = new Timeline(new KeyFrame(Duration.seconds(1), e -> report.setText(formatLatencyReport(trace))));
+        refresh.setCycleCount(Timeline.INDEFINITE);
+        refresh.play();
+        
+        Stage stage = new Stage();
+        stage.initOwner(editorArea.getScene().getWindow());
+        stage.setTitle("Latency Diagnostics");
+        stage.setScene(new Scene(report, 640, 260));
+        stage.setOnHidden(e -> refresh.stop());
+        stage.show();
+    }
+    
+    /**
+     * Formats the hop latencies of a trace as a table, in milliseconds.
+     */
+    private String formatLatencyReport(LatencyTrace trace) {
+        StringBuilder report = new StringBuilder();
+        long roundTrip = trace.getClockSyncRoundTripMicros();
+        report.append(String.format("Server clock offset: %.2f ms (sync round trip: %s)%n",
+                trace.getClockOffsetMicros() / 1000.0,
+                roundTrip < 0 ? "none yet" : String.format("%.2f ms", roundTrip / 1000.0)));
+        report.append(String.format("Round trip time: %.1f ms%n%n", networkClient.getRoundTripTimeMs()));
+        report.append(String.format("%-16s %8s %9s %9s %9s %9s %9s%n", "Hop", "Count", "Mean", "p50", "p95", "p99", "Max"));
+        
+        Map<String, LatencyHistogram> histograms = trace.getHistograms();
+        String[] hops = {LatencyTrace.HOP_CLIENT_QUEUE, LatencyTrace.HOP_UPLINK, LatencyTrace.HOP_SERVER,
+                LatencyTrace.HOP_DOWNLINK, LatencyTrace.HOP_END_TO_END};
+        for (String hop : hops) {
+            LatencyHistogram histogram = histograms.get(hop);
+            if (histogram == null) {
+                continue;
+            }
+            report.append(String.format("%-16s %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", hop, histogram.getCount(),
+                    histogram.getMeanMicros() / 1000.0,
+                    histogram.getPercentileMicros(50) / 1000.0,
+                    histogram.getPercentileMicros(95) / 1000.0,
+                    histogram.getPercentileMicros(99) / 1000.0,
+                    histogram.getMaxMicros() / 1000.0));
+        }
+        if (histograms.isEmpty()) {
+            report.append("No edits from other users received yet\n");
         }
+        return report.toString();
     }
     
     /**
@@ -2295,26 +2403,25 @@ public class EditorController {
                 return;
             }
             
-            System.out.println("==================================================");
-            System.out.println("LOADING DOCUMENT");
-            System.out.println("Document ID: " + documentId);
-            System.out.println("Document Title: " + documentTitle);
-            System.out.println("User ID: " + userId);
-            System.out.println("==================================================");
+            log.info("==================================================");
+            log.info("LOADING DOCUMENT");
+            log.info("Document ID: " + documentId);
+            log.info("Document Title: " + documentTitle);
+            log.info("User ID: " + userId);
+            log.info("==================================================");
             
             org.bson.Document doc = null;
             try {
                 doc = DatabaseService.getInstance().getDocument(documentId);
                 if (doc == null) {
-                    System.err.println("Document not found in database: " + documentId);
+                    log.warn("Document not found in database: " + documentId);
                     updateStatus("Document not found. Creating a new one.");
                     // Create a new document and generate a session for it
                     createNewDocumentWithSession();
                     return;
                 }
             } catch (Exception e) {
-                System.err.println("Database error: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Database error: " + e.getMessage(), e);
                 updateStatus("Error connecting to database. Using empty document.");
                 // Create a new document and generate a session for it
                 createNewDocumentWithSession();
@@ -2322,17 +2429,17 @@ public class EditorController {
             }
             
             // Output details about the document for debugging
-            System.out.println("Document details from database:");
-            System.out.println("  ID: " + doc.get("_id"));
-            System.out.println("  Title: " + doc.getString("title"));
-            System.out.println("  Owner ID: " + doc.getString("ownerId"));
+            log.info("Document details from database:");
+            log.info("  ID: " + doc.get("_id"));
+            log.info("  Title: " + doc.getString("title"));
+            log.info("  Owner ID: " + doc.getString("ownerId"));
             String docContent = doc.getString("content");
-            System.out.println("  Content length: " + (docContent != null ? docContent.length() : 0) + " characters");
+            log.info("  Content length: " + (docContent != null ? docContent.length() : 0) + " characters");
             
                 // Get owner ID to check if this is our own document or a shared one
                 String ownerId = doc.getString("ownerId");
                 boolean isOwnedByCurrentUser = userId.equals(ownerId);
-            System.out.println("Document is owned by current user: " + isOwnedByCurrentUser);
+            log.info("Document is owned by current user: " + isOwnedByCurrentUser);
                 
             // Get content from the document
                 String content = null;
@@ -2340,10 +2447,10 @@ public class EditorController {
                     content = doc.getString("content");
                 if (content == null) {
                     content = "";
-                    System.out.println("Content was null, using empty string");
+                    log.info("Content was null, using empty string");
                 }
                 } catch (Exception e) {
-                    System.err.println("Error reading document content: " + e.getMessage());
+                    log.error("Error reading document content: " + e.getMessage());
                     updateStatus("Error reading document content. Using empty document.");
                 content = "";
                 }
@@ -2354,9 +2461,9 @@ public class EditorController {
                 try {
                     existingEditorCode = doc.getString("editorCode");
                     existingViewerCode = doc.getString("viewerCode");
-                System.out.println("Found session codes - Editor: " + existingEditorCode + ", Viewer: " + existingViewerCode);
+                log.info("Found session codes - Editor: " + existingEditorCode + ", Viewer: " + existingViewerCode);
                 } catch (Exception e) {
-                    System.err.println("Error reading session codes: " + e.getMessage());
+                    log.error("Error reading session codes: " + e.getMessage());
                 }
                 
             // ALWAYS ENSURE DOCUMENT IS IN A SESSION
@@ -2365,7 +2472,7 @@ public class EditorController {
             
             if (finalEditorCode != null && !finalEditorCode.isEmpty()) {
                 // Document already has a session, join it
-                System.out.println("Document has existing session, joining it...");
+                log.info("Document has existing session, joining it...");
                 
                 // Set the editor and viewer codes in the UI
                 Platform.runLater(() -> {
@@ -2402,26 +2509,24 @@ public class EditorController {
                                 // Update the text area
                                 updateEditorText(finalContent);
                             } catch (Exception e) {
-                                System.err.println("Error inserting document content: " + e.getMessage());
-                                e.printStackTrace();
+                                log.error("Error inserting document content: " + e.getMessage(), e);
                             }
                         });
                     } catch (Exception e) {
-                        System.err.println("Error loading document content: " + e.getMessage());
-                        e.printStackTrace();
+                        log.error("Error loading document content: " + e.getMessage(), e);
                     }
                 }
                 
                 // Join the session (always as editor if it's our document)
                 boolean joinAsEditor = isOwnedByCurrentUser;
                 String codeToUse = joinAsEditor ? finalEditorCode : (finalViewerCode != null && !finalViewerCode.isEmpty() ? finalViewerCode : finalEditorCode);
-                System.out.println("Joining session with code " + codeToUse + " as " + (joinAsEditor ? "EDITOR" : "VIEWER") + 
+                log.info("Joining session with code " + codeToUse + " as " + (joinAsEditor ? "EDITOR" : "VIEWER") + 
                                   " (document owner: " + isOwnedByCurrentUser + ")");
                 DocumentSelectionDialog.saveRecentSessionCode(codeToUse);
                 joinExistingSession(codeToUse, joinAsEditor);
             } else {
                 // No session exists yet, create one automatically
-                System.out.println("Document has no session, creating one...");
+                log.info("Document has no session, creating one...");
                 
                 // Load content first
                 if (content != null && !content.isEmpty()) {
@@ -2437,19 +2542,18 @@ public class EditorController {
                                 // Update the text area
                                 updateEditorText(finalContent);
                             } catch (Exception e) {
-                                System.err.println("Error inserting document content: " + e.getMessage());
-                                e.printStackTrace();
+                                log.error("Error inserting document content: " + e.getMessage(), e);
                             }
                         });
                     } catch (Exception e) {
-                        System.err.println("Error loading document content: " + e.getMessage());
-                        e.printStackTrace();
+                        log.error("Error loading document content: " + e.getMessage(), e);
                     }
                 }
                 
                 // Request new session codes
                 if (isOwnedByCurrentUser) {
                     // Only create new session if we own the document
+                    networkClient.setDocumentId(documentId);
                     networkClient.requestCodes();
                     updateStatus("Creating new session for document...");
                     
@@ -2465,7 +2569,7 @@ public class EditorController {
                                 }
                             });
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            log.error("Error sending the document to the new session: " + e.getMessage(), e);
                         }
                     }).start();
                 } else {
@@ -2477,7 +2581,7 @@ public class EditorController {
             }
         } catch (Exception e) {
             updateStatus("Error loading document: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error loading document: " + e.getMessage(), e);
             
             // Reset to empty document in case of error
             try {
@@ -2487,7 +2591,7 @@ public class EditorController {
                 // Always ensure a session even after error
                 createNewDocumentWithSession();
             } catch (Exception ex) {
-                System.err.println("Failed to reset document: " + ex.getMessage());
+                log.error("Failed to reset document: " + ex.getMessage());
             }
         }
     }
@@ -2504,10 +2608,11 @@ public class EditorController {
                     userId
                 );
                 
-                System.out.println("Created new document with ID: " + documentId);
+                log.info("Created new document with ID: " + documentId);
             }
             
             // Request session codes for the new document
+                    networkClient.setDocumentId(documentId);
                     networkClient.requestCodes();
             updateStatus("Creating new session for document...");
                     
@@ -2524,12 +2629,11 @@ public class EditorController {
                         networkClient.sendDocumentUpdate("");
                             });
                         } catch (Exception e) {
-                            e.printStackTrace();
+                            log.error("Error sending the new document: " + e.getMessage(), e);
                         }
                     }).start();
         } catch (Exception e) {
-            System.err.println("Error creating new document with session: " + e.getMessage());
-            e.printStackTrace();
+            log.error("Error creating new document with session: " + e.getMessage(), e);
             updateStatus("Error creating document. Please try again.");
         }
     }
@@ -2560,7 +2664,7 @@ public class EditorController {
                     }
                 }
             } catch (Exception e) {
-                System.err.println("Error refreshing cursor markers: " + e.getMessage());
+                log.error("Error refreshing cursor markers: " + e.getMessage());
             }
         });
     }
@@ -2591,7 +2695,7 @@ public class EditorController {
                     try {
                         saveDocument();
                     } catch (Exception e) {
-                        System.err.println("Error saving document during reset: " + e.getMessage());
+                        log.error("Error saving document during reset: " + e.getMessage());
                     }
                 }
                 
@@ -2610,9 +2714,9 @@ public class EditorController {
                 // Disconnect from network
                 if (networkClient != null) {
                     try {
-                        networkClient.disconnect();
+                        networkClient.close();
         } catch (Exception e) {
-                        System.err.println("Error disconnecting: " + e.getMessage());
+                        log.error("Error disconnecting: " + e.getMessage());
                     }
                 }
             
@@ -2642,17 +2746,17 @@ public class EditorController {
                                 
                                 updateStatus("Client reset completed successfully");
                             } catch (Exception e) {
-                                System.err.println("Error during client reset: " + e.getMessage());
+                                log.error("Error during client reset: " + e.getMessage());
                                 updateStatus("Error during client reset: " + e.getMessage());
                             }
                         });
                     } catch (Exception e) {
-                        System.err.println("Error during client reset: " + e.getMessage());
+                        log.error("Error during client reset: " + e.getMessage());
                     }
                 }).start();
             });
         } catch (Exception e) {
-            System.err.println("Error resetting client: " + e.getMessage());
+            log.error("Error resetting client: " + e.getMessage());
             updateStatus("Error resetting client: " + e.getMessage());
         }
     }
@@ -2678,7 +2782,7 @@ public class EditorController {
                         (double)uiLength / Math.max(1, docLength);
                     
                     if (lengthRatio > 1.2) {
-                        System.err.println("Document content significantly out of sync (ratio: " + lengthRatio + 
+                        log.warn("Document content significantly out of sync (ratio: " + lengthRatio + 
                                           "). Doc length: " + docLength + ", UI length: " + uiLength);
                         
                         // Ask user if they want to reset
@@ -2699,7 +2803,7 @@ public class EditorController {
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error checking for corruption: " + e.getMessage());
+            log.error("Error checking for corruption: " + e.getMessage());
         }
     }
 
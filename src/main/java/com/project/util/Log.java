@@ -0,0 +1,289 @@
+package com.project.util;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Leveled logging that keeps console output off the threads doing the work.
+ * A call below LOG_LEVEL (DEBUG, INFO, WARN or ERROR; INFO by default) returns before
+ * building its message. The rest go into a bounded ring buffer of LOG_BUFFER_SIZE records
+ * that one background thread formats and writes in batches. When the buffer is full,
+ * debug and info records are dropped and counted, while warnings and errors wait for room.
+ * Messages on paths taken for every keystroke or message should use {@link #debugSampled},
+ * which writes one in every LOG_SAMPLE_RATE of them.
+ * The settings are read like the server's others, as environment variables or system
+ * properties, but not through ServerConfig, which logs its warnings here.
+ */
+public final class Log {
+
+    /**
+     * Severity of a record, lowest first.
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private static final Level THRESHOLD = parseLevel(setting("LOG_LEVEL"));
+    private static final int SAMPLE_RATE = Math.max(1, intSetting("LOG_SAMPLE_RATE", 100));
+    private static final int BUFFER_SIZE = Math.max(16, intSetting("LOG_BUFFER_SIZE", 8192));
+    private static final int MAX_BATCH = 256;
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static final BlockingQueue<LogRecord> buffer = new ArrayBlockingQueue<>(BUFFER_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong enqueued = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+
+    static {
+        startWriter();
+    }
+
+    private final String name;
+    private final Map<String, AtomicLong> sampleCounters = new ConcurrentHashMap<>();
+
+    private Log(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Gets the log of a class.
+     * @param type The class.
+     * @return A log whose records carry the class's simple name.
+     */
+    public static Log get(Class<?> type) {
+        return new Log(type.getSimpleName());
+    }
+
+    public boolean isDebugEnabled() {
+        return THRESHOLD == Level.DEBUG;
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    /**
+     * Logs at debug level, building the message only if it is going to be written.
+     */
+    public void debug(Supplier<String> message) {
+        if (isDebugEnabled()) {
+            log(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    /**
+     * Logs at debug level, writing one in every LOG_SAMPLE_RATE messages of a kind.
+     * @param kind Groups the messages counted together, e.g. "insert".
+     * @param message Builds the message, only for those written.
+     */
+    public void debugSampled(String kind, Supplier<String> message) {
+        if (!isDebugEnabled()) {
+            return;
+        }
+        long count = sampleCounters.computeIfAbsent(kind, key -> new AtomicLong()).incrementAndGet();
+        if (count % SAMPLE_RATE == 1 || SAMPLE_RATE == 1) {
+            log(Level.DEBUG, message.get() + (SAMPLE_RATE > 1 ? " [" + kind + " #" + count + ", 1 in " + SAMPLE_RATE + " logged]" : ""), null);
+        }
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public void warn(String message, Throwable error) {
+        log(Level.WARN, message, error);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    /**
+     * Waits until every record logged so far has been written, e.g. before exiting.
+     * @param timeoutMs The longest time to wait.
+     */
+    public static void flush(long timeoutMs) {
+        long target = enqueued.get();
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (written.get() < target && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the number of records dropped because the buffer was full.
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void log(Level level, String message, Throwable error) {
+        if (level.compareTo(THRESHOLD) < 0) {
+            return;
+        }
+        LogRecord record = new LogRecord(System.currentTimeMillis(), level, name, Thread.currentThread().getName(), message, error);
+        if (buffer.offer(record)) {
+            enqueued.incrementAndGet();
+            return;
+        }
+        if (level.compareTo(Level.WARN) < 0) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            buffer.put(record);
+            enqueued.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write(List.of(record));
+        }
+    }
+
+    private static void startWriter() {
+        Thread thread = new Thread(Log::drain, "log-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000), "log-flush"));
+    }
+
+    /**
+     * Writes records as they come in, a batch at a time. Runs on the writer thread.
+     */
+    private static void drain() {
+        List<LogRecord> batch = new ArrayList<>(MAX_BATCH);
+        long reportedDrops = 0;
+        while (true) {
+            try {
+                LogRecord first = buffer.poll(1, TimeUnit.SECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    buffer.drainTo(batch, MAX_BATCH - 1);
+                    write(batch);
+                    written.addAndGet(batch.size());
+                    batch.clear();
+                }
+                long drops = dropped.get();
+                if (drops != reportedDrops) {
+                    System.err.println(LocalTime.now().format(TIME_FORMAT) + " WARN  [log-writer] Log - "
+                            + (drops - reportedDrops) + " log records dropped, buffer full");
+                    reportedDrops = drops;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                written.addAndGet(batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    private static void write(List<LogRecord> records) {
+        StringBuilder out = new StringBuilder();
+        StringBuilder err = new StringBuilder();
+        for (LogRecord record : records) {
+            StringBuilder target = record.level.compareTo(Level.WARN) >= 0 ? err : out;
+            target.append(LocalTime.ofInstant(Instant.ofEpochMilli(record.time), ZoneId.systemDefault()).format(TIME_FORMAT))
+                    .append(' ').append(String.format("%-5s", record.level))
+                    .append(" [").append(record.thread).append("] ")
+                    .append(record.logger).append(" - ").append(record.message).append('\n');
+        }
+        // Written whole, so that a batch is one system call on each stream
+        print(System.out, out);
+        print(System.err, err);
+        for (LogRecord record : records) {
+            if (record.error != null) {
+                record.error.printStackTrace();
+            }
+        }
+    }
+
+    private static void print(PrintStream stream, StringBuilder text) {
+        if (text.length() > 0) {
+            stream.print(text);
+            stream.flush();
+        }
+    }
+
+    private static String setting(String name) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            value = System.getProperty(name);
+        }
+        return (value == null || value.isEmpty()) ? null : value.trim();
+    }
+
+    /**
+     * Reads a number setting. An invalid one is reported straight to the console, since
+     * records cannot be logged while the log itself is being set up.
+     */
+    private static int intSetting(String name, int defaultValue) {
+        String value = setting(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid " + name + " setting '" + value + "'. Using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+
+    private static Level parseLevel(String value) {
+        if (value == null) {
+            return Level.INFO;
+        }
+        try {
+            return Level.valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid LOG_LEVEL setting '" + value + "'. Using default: INFO");
+            return Level.INFO;
+        }
+    }
+
+    private static final class LogRecord {
+        private final long time;
+        private final Level level;
+        private final String logger;
+        private final String thread;
+        private final String message;
+        private final Throwable error;
+
+        LogRecord(long time, Level level, String logger, String thread, String message, Throwable error) {
+            this.time = time;
+            this.level = level;
+            this.logger = logger;
+            this.thread = thread;
+            this.message = message;
+            this.error = error;
+        }
+    }
+}
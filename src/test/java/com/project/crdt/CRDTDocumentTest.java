@@ -0,0 +1,64 @@
+package com.project.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CRDTDocumentTest {
+
+    @Test
+    void everyInsertAtTheStartAddsACharacter() {
+        CRDTDocument document = new CRDTDocument("site-a");
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            char c = (char) ('a' + i % 26);
+            document.localInsert(0, c);
+            expected.insert(0, c);
+            assertEquals(i + 1, document.length());
+        }
+        assertEquals(expected.toString(), document.getText());
+    }
+
+    @Test
+    void insertsAtTheStartReachReplicasInOrder() {
+        CRDTDocument author = new CRDTDocument("site-a");
+        List<CRDTCharacter> inserted = new ArrayList<>();
+        inserted.add(author.localInsert(0, 'x'));
+        for (int i = 0; i < 100; i++) {
+            inserted.add(author.localInsert(0, (char) ('a' + i % 26)));
+        }
+
+        CRDTDocument replica = new CRDTDocument("site-b");
+        for (int i = inserted.size() - 1; i >= 0; i--) {
+            replica.remoteInsert(inserted.get(i));
+        }
+        assertEquals(author.getText(), replica.getText());
+
+        // The replica's own inserts at the start go before the author's
+        replica.localInsert(0, '!');
+        assertEquals("!" + author.getText(), replica.getText());
+    }
+
+    @Test
+    void contentHashFollowsEditsAnywhere() {
+        CRDTDocument document = new CRDTDocument("site-a");
+        Random random = new Random(9);
+        for (int i = 0; i < 400; i++) {
+            if (document.length() > 0 && random.nextInt(3) == 0) {
+                document.localDelete(random.nextInt(document.length()));
+            } else {
+                document.localInsert(random.nextInt(document.length() + 1), (char) ('a' + random.nextInt(4)));
+            }
+            String text = document.getText();
+            assertEquals(ContentHash.of(text), document.getContentHash(), "edit " + i);
+            assertTrue(document.hasContent(text.length(), ContentHash.of(text)));
+        }
+        assertTrue(document.undo());
+        assertEquals(ContentHash.of(document.getText()), document.getContentHash());
+    }
+}
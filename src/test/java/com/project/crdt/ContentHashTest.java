@@ -0,0 +1,83 @@
+package com.project.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class ContentHashTest {
+
+    @Test
+    void emptyTextHashesToEmpty() {
+        assertEquals(ContentHash.EMPTY, ContentHash.of(""));
+    }
+
+    @Test
+    void appendingMatchesHashingTheWholeText() {
+        String text = "Collaborative editing\n\u00e9\u4e2d, long enough to fill more than one window";
+        long hash = ContentHash.EMPTY;
+        for (int i = 0; i < text.length(); i++) {
+            hash = ContentHash.replace(hash, text.substring(0, i), text.substring(0, i + 1), i, 0);
+            assertEquals(ContentHash.of(text.substring(0, i + 1)), hash);
+        }
+    }
+
+    @Test
+    void replacingMatchesHashingTheWholeText() {
+        Random random = new Random(8);
+        String text = randomText(random, 2000);
+        long hash = ContentHash.of(text);
+        for (int round = 0; round < 300; round++) {
+            int from = random.nextInt(text.length() + 1);
+            int to = Math.min(text.length(), from + random.nextInt(80));
+            String edited = text.substring(0, from) + randomText(random, random.nextInt(80)) + text.substring(to);
+
+            // Ends shorter than the real ones only cost more hashing
+            int prefix = Math.max(0, from - random.nextInt(50));
+            int suffix = Math.max(0, Math.min(text.length() - to, edited.length() - prefix) - random.nextInt(50));
+            hash = ContentHash.replace(hash, text, edited, prefix, suffix);
+            text = edited;
+            assertEquals(ContentHash.of(text), hash, "round " + round);
+        }
+    }
+
+    @Test
+    void removingEverythingGivesTheEmptyHash() {
+        String text = "abcdef".repeat(20);
+        long hash = ContentHash.of(text);
+        for (int i = text.length() - 1; i >= 0; i--) {
+            hash = ContentHash.replace(hash, text.substring(0, i + 1), text.substring(0, i), i, 0);
+            assertEquals(ContentHash.of(text.substring(0, i)), hash);
+        }
+        assertEquals(ContentHash.EMPTY, hash);
+    }
+
+    @Test
+    void orderAndLengthChangeTheHash() {
+        assertNotEquals(ContentHash.of("ab"), ContentHash.of("ba"));
+        assertNotEquals(ContentHash.of("a"), ContentHash.of("a\u0000"));
+        assertNotEquals(ContentHash.of("\u0000"), ContentHash.of(""));
+    }
+
+    @Test
+    void movingTextWithinAWindowChangesTheHash() {
+        String line = "    call();\n";
+        assertNotEquals(ContentHash.of(line.replace("call", "first") + line.replace("call", "second")),
+                        ContentHash.of(line.replace("call", "second") + line.replace("call", "first")));
+    }
+
+    @Test
+    void acceptsAnyCharSequence() {
+        assertEquals(ContentHash.of("text"), ContentHash.of(new StringBuilder("text")));
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(4)));
+        }
+        return text.toString();
+    }
+}
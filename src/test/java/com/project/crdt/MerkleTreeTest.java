@@ -0,0 +1,145 @@
+package com.project.crdt;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MerkleTreeTest {
+
+    private static MerkleTree treeOf(String text) {
+        MerkleTree tree = new MerkleTree();
+        tree.update(text);
+        return tree;
+    }
+
+    @Test
+    void emptyTextHasAnEmptyRoot() {
+        MerkleTree tree = new MerkleTree();
+        assertEquals(0, tree.getRootHash());
+        assertEquals(0, tree.getBlockCount());
+
+        tree.update("some text");
+        tree.update("");
+        assertEquals(0, tree.getRootHash());
+        assertEquals(0, tree.getLength());
+    }
+
+    @Test
+    void identicalTextsHaveTheSameRoot() {
+        String text = randomText(new Random(1), 20_000);
+        assertEquals(treeOf(text).getRootHash(), treeOf(new String(text.toCharArray())).getRootHash());
+    }
+
+    @Test
+    void differentTextsHaveDifferentRoots() {
+        String text = randomText(new Random(2), 20_000);
+        String edited = text.substring(0, 10_000) + "!" + text.substring(10_001);
+        assertNotEquals(treeOf(text).getRootHash(), treeOf(edited).getRootHash());
+    }
+
+    @Test
+    void incrementalUpdatesMatchAFreshTree() {
+        Random random = new Random(3);
+        MerkleTree tree = new MerkleTree();
+        StringBuilder text = new StringBuilder(randomText(random, 30_000));
+        tree.update(text.toString());
+        for (int round = 0; round < 100; round++) {
+            int pos = random.nextInt(text.length() + 1);
+            if (random.nextBoolean() && pos < text.length()) {
+                text.delete(pos, Math.min(text.length(), pos + 1 + random.nextInt(300)));
+            } else {
+                text.insert(pos, randomText(random, 1 + random.nextInt(300)));
+            }
+            tree.update(text.toString());
+
+            MerkleTree fresh = treeOf(text.toString());
+            assertEquals(fresh.getRootHash(), tree.getRootHash(), "round " + round);
+            assertEquals(fresh.getBlockCount(), tree.getBlockCount(), "round " + round);
+        }
+    }
+
+    @Test
+    void updatesFromKnownEndsMatchAFreshTree() {
+        Random random = new Random(6);
+        MerkleTree tree = new MerkleTree();
+        String text = randomText(random, 30_000);
+        tree.update(text);
+        for (int round = 0; round < 100; round++) {
+            int from = random.nextInt(text.length() + 1);
+            int to = Math.min(text.length(), from + random.nextInt(200));
+            String edited = text.substring(0, from) + randomText(random, random.nextInt(200)) + text.substring(to);
+
+            // Ends shorter than the real ones only cost more hashing
+            int prefix = Math.max(0, from - random.nextInt(500));
+            int suffix = Math.max(0, Math.min(text.length() - to, edited.length() - prefix) - random.nextInt(500));
+            tree.update(edited, prefix, suffix);
+            text = edited;
+
+            MerkleTree fresh = treeOf(text);
+            assertEquals(fresh.getRootHash(), tree.getRootHash(), "round " + round);
+            assertEquals(fresh.getBlockCount(), tree.getBlockCount(), "round " + round);
+        }
+    }
+
+    @Test
+    void anEditLeavesMostBlocksFindable() {
+        String text = randomText(new Random(4), 50_000);
+        MerkleTree before = treeOf(text);
+        MerkleTree after = treeOf(text.substring(0, 25_000) + "inserted" + text.substring(25_000));
+
+        int found = 0;
+        int blocks = 0;
+        for (MerkleTree.Node node : leaves(before.getRoot())) {
+            blocks++;
+            MerkleTree.Node match = after.getNode(node.getHash());
+            if (match != null) {
+                found++;
+                assertEquals(before.getText(node), after.getText(match));
+            }
+        }
+        assertTrue(blocks > 10, "blocks: " + blocks);
+        assertTrue(found >= blocks - 2, found + " of " + blocks + " blocks kept");
+    }
+
+    @Test
+    void nodesCoverTheWholeText() {
+        String text = randomText(new Random(5), 40_000);
+        MerkleTree tree = treeOf(text);
+        StringBuilder joined = new StringBuilder();
+        for (MerkleTree.Node node : leaves(tree.getRoot())) {
+            assertNotNull(tree.getNode(node.getHash()));
+            joined.append(tree.getText(node));
+        }
+        assertEquals(text, joined.toString());
+        assertEquals(text.length(), tree.getRoot().getLength());
+    }
+
+    private static List<MerkleTree.Node> leaves(MerkleTree.Node node) {
+        List<MerkleTree.Node> leaves = new ArrayList<>();
+        if (node.isBlock()) {
+            if (node.getLength() > 0) {
+                leaves.add(node);
+            }
+            return leaves;
+        }
+        for (MerkleTree.Node child : node.getChildren()) {
+            leaves.addAll(leaves(child));
+        }
+        return leaves;
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) (random.nextInt(10) == 0 ? ' ' : 'a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,156 @@
+package com.project.network;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OperationLogTest {
+
+    private static JsonObject insert(char c) {
+        JsonObject operation = new JsonObject();
+        operation.addProperty("type", "insert");
+        operation.addProperty("char", String.valueOf(c));
+        return operation;
+    }
+
+    private static long seqOf(String operationJson) {
+        return JsonParser.parseString(operationJson).getAsJsonObject().get("seq").getAsLong();
+    }
+
+    @Test
+    void emptyLogCoversOnlyTheStart() {
+        OperationLog log = new OperationLog(4);
+        assertEquals(0, log.getLatestSeq());
+        assertEquals(1, log.getOldestSeq());
+        assertTrue(log.covers(0));
+        assertFalse(log.covers(1));
+        assertTrue(log.getSince(0).isEmpty());
+    }
+
+    private static JsonObject edit(String userId, long clientSeq, char c) {
+        JsonObject operation = insert(c);
+        operation.addProperty("userId", userId);
+        operation.addProperty("clientSeq", clientSeq);
+        return operation;
+    }
+
+    private static String charOf(String operationJson) {
+        return JsonParser.parseString(operationJson).getAsJsonObject().get("char").getAsString();
+    }
+
+    @Test
+    void snapshotTailLeavesOutTheSendersEditsItAlreadyHolds() {
+        OperationLog log = new OperationLog(16);
+        log.append(edit("alice", 1, 'a'));
+        // Alice sends a snapshot having seen seq 1 and made edits 2 and 3, which are still on
+        // their way; Bob's edit and Alice's edit 4, made after the snapshot, are not in it
+        log.append(edit("bob", 1, 'x'));
+        log.append(edit("alice", 2, 'b'));
+        log.append(edit("alice", 3, 'c'));
+        log.append(edit("alice", 4, 'd'));
+
+        List<String> tail = log.getSince(1, "alice", 3);
+        assertEquals(2, tail.size());
+        assertEquals("x", charOf(tail.get(0)));
+        assertEquals("d", charOf(tail.get(1)));
+
+        // Without a sender to leave out, the whole tail is replayed
+        assertEquals(4, log.getSince(1).size());
+    }
+
+    @Test
+    void restartTakesOverAnotherNumbering() {
+        OperationLog log = new OperationLog(4);
+        for (char c = 'a'; c <= 'e'; c++) {
+            log.append(insert(c));
+        }
+        log.restartAt(3);
+        assertEquals(0, log.size());
+        assertEquals(3, log.getLatestSeq());
+        assertEquals(4, seqOf(log.append(insert('x'))));
+        assertEquals(1, log.getSince(0).size());
+    }
+
+    @Test
+    void containsFindsRetainedOperationsByClientSequenceNumber() {
+        OperationLog log = new OperationLog(3);
+        for (int i = 1; i <= 5; i++) {
+            log.append(edit("alice", i, 'a'));
+        }
+        assertTrue(log.contains("alice", 4));
+        assertFalse(log.contains("bob", 4));
+        // Evicted, and not logged yet
+        assertFalse(log.contains("alice", 2));
+        assertFalse(log.contains("alice", 6));
+    }
+
+    @Test
+    void appendStampsConsecutiveSequenceNumbers() {
+        OperationLog log = new OperationLog(4);
+        JsonObject operation = insert('a');
+        String json = log.append(operation);
+        assertEquals(1, operation.get("seq").getAsLong());
+        assertEquals(1, seqOf(json));
+        assertEquals(2, seqOf(log.append(insert('b'))));
+        assertEquals(2, log.getLatestSeq());
+        assertEquals(2, log.size());
+    }
+
+    @Test
+    void ringWrapsAroundKeepingTheNewest() {
+        OperationLog log = new OperationLog(3);
+        for (char c = 'a'; c <= 'g'; c++) {
+            log.append(insert(c));
+        }
+        assertEquals(3, log.size());
+        assertEquals(7, log.getLatestSeq());
+        assertEquals(5, log.getOldestSeq());
+
+        List<String> tail = log.getSince(0);
+        assertEquals(3, tail.size());
+        for (int i = 0; i < tail.size(); i++) {
+            assertEquals(5 + i, seqOf(tail.get(i)));
+        }
+        assertEquals(1, log.getSince(6).size());
+        assertTrue(log.getSince(7).isEmpty());
+    }
+
+    @Test
+    void evictedSequenceIsNotCovered() {
+        OperationLog log = new OperationLog(3);
+        for (char c = 'a'; c <= 'g'; c++) {
+            log.append(insert(c));
+        }
+        // Seq 4 is the newest one evicted: a client that saw it needs 5 onwards, all retained
+        assertTrue(log.covers(4));
+        // A client that last saw 3 missed 4, which is gone
+        assertFalse(log.covers(3));
+        assertFalse(log.covers(0));
+        // Nor can a client claim to be ahead of the log
+        assertFalse(log.covers(8));
+        assertTrue(log.covers(7));
+    }
+
+    @Test
+    void skipToContinuesTheNumbering() {
+        OperationLog log = new OperationLog(4);
+        log.skipTo(41);
+        assertEquals(41, log.getLatestSeq());
+        assertEquals(42, seqOf(log.append(insert('x'))));
+        assertTrue(log.covers(41));
+        assertFalse(log.covers(40));
+        assertThrows(IllegalStateException.class, () -> log.skipTo(100));
+    }
+
+    @Test
+    void capacityMustBePositive() {
+        assertThrows(IllegalArgumentException.class, () -> new OperationLog(0));
+    }
+}
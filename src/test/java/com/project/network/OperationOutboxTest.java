@@ -0,0 +1,170 @@
+package com.project.network;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OperationOutboxTest {
+
+    @TempDir
+    Path dir;
+
+    private static JsonObject insert(char c) {
+        JsonObject operation = new JsonObject();
+        operation.addProperty("type", "insert");
+        operation.addProperty("char", String.valueOf(c));
+        return operation;
+    }
+
+    private static long clientSeqOf(String operationJson) {
+        return JsonParser.parseString(operationJson).getAsJsonObject().get("clientSeq").getAsLong();
+    }
+
+    @Test
+    void acknowledgedOperationsAreDropped() {
+        OperationOutbox outbox = new OperationOutbox();
+        outbox.add(insert('a'));
+        outbox.add(insert('b'));
+        outbox.add(insert('c'));
+        outbox.acknowledge(2);
+
+        List<String[]> waiting = outbox.getUnacknowledged();
+        assertEquals(1, waiting.size());
+        assertEquals("insert", waiting.get(0)[0]);
+        assertEquals(3, clientSeqOf(waiting.get(0)[1]));
+    }
+
+    @Test
+    void journalKeepsWhatIsWaitingAcrossClients() {
+        Path journal = dir.resolve("user.journal");
+        OperationOutbox outbox = new OperationOutbox(journal);
+        outbox.setSession("abc123", "token-1");
+        outbox.add(insert('a'));
+        outbox.add(insert('b'));
+        outbox.add(insert('c'));
+        outbox.acknowledge(1);
+
+        OperationOutbox reopened = new OperationOutbox(journal);
+        assertEquals("abc123", reopened.getSessionCode());
+        assertEquals("token-1", reopened.getResumeToken());
+        List<String[]> waiting = reopened.getUnacknowledged();
+        assertEquals(2, waiting.size());
+        assertEquals(2, clientSeqOf(waiting.get(0)[1]));
+        assertEquals(3, clientSeqOf(waiting.get(1)[1]));
+
+        // Numbering carries on where the earlier client stopped
+        assertEquals(4, clientSeqOf(reopened.add(insert('d'))));
+    }
+
+    @Test
+    void journalIsWrittenInBatchesByItsExecutor() throws IOException {
+        Path journal = dir.resolve("user.journal");
+        OperationOutbox outbox = new OperationOutbox(journal);
+        List<Runnable> tasks = new ArrayList<>();
+        outbox.setJournalExecutor(tasks::add);
+        outbox.setSession("abc123", null);
+        outbox.add(insert('a'));
+        outbox.add(insert('b'));
+
+        // Nothing is written on the thread making the edits, and one write covers all three records
+        assertEquals(1, Files.readAllLines(journal).size());
+        assertEquals(1, tasks.size());
+        tasks.remove(0).run();
+        assertEquals(4, Files.readAllLines(journal).size());
+
+        outbox.add(insert('c'));
+        outbox.close();
+        assertEquals(3, new OperationOutbox(journal).size());
+    }
+
+    @Test
+    void clientsOfTheSameUserKeepSeparateJournals() {
+        OperationOutbox first = OperationOutbox.open(dir, "user");
+        first.setSession("abc123", null);
+        first.add(insert('a'));
+        OperationOutbox second = OperationOutbox.open(dir, "user");
+        second.setSession("def456", null);
+        second.add(insert('b'));
+        second.add(insert('c'));
+        assertEquals(1, first.size());
+        first.close();
+
+        // The journal the first client released is the one the next client picks up
+        OperationOutbox next = OperationOutbox.open(dir, "user");
+        assertEquals("abc123", next.getSessionCode());
+        assertEquals(1, next.size());
+        assertEquals(2, second.size());
+        next.close();
+        second.close();
+    }
+
+    @Test
+    void journalShrinksOnceEverythingIsAcknowledged() throws IOException {
+        Path journal = dir.resolve("user.journal");
+        OperationOutbox outbox = new OperationOutbox(journal);
+        outbox.setSession("abc123", null);
+        for (char c = 'a'; c <= 'z'; c++) {
+            outbox.add(insert(c));
+        }
+        outbox.acknowledge(26);
+
+        assertEquals(1, Files.readAllLines(journal).size());
+        OperationOutbox reopened = new OperationOutbox(journal);
+        assertEquals(0, reopened.size());
+        assertEquals(27, clientSeqOf(reopened.add(insert('a'))));
+    }
+
+    @Test
+    void resetForgetsTheSession() {
+        Path journal = dir.resolve("user.journal");
+        OperationOutbox outbox = new OperationOutbox(journal);
+        outbox.setSession("abc123", "token-1");
+        outbox.add(insert('a'));
+        outbox.reset();
+
+        OperationOutbox reopened = new OperationOutbox(journal);
+        assertEquals(0, reopened.size());
+        assertNull(reopened.getSessionCode());
+        assertEquals(1, clientSeqOf(reopened.add(insert('a'))));
+    }
+
+    @Test
+    void damagedLastRecordIsIgnored() throws IOException {
+        Path journal = dir.resolve("user.journal");
+        OperationOutbox outbox = new OperationOutbox(journal);
+        outbox.setSession("abc123", null);
+        outbox.add(insert('a'));
+        outbox.add(insert('b'));
+        // A record cut short by the process going down
+        Files.writeString(journal, "A\t{\"type\":\"ins", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        OperationOutbox reopened = new OperationOutbox(journal);
+        assertEquals(2, reopened.size());
+        assertEquals("abc123", reopened.getSessionCode());
+    }
+
+    @Test
+    void unwritableJournalFallsBackToMemory() throws IOException {
+        Path blocker = dir.resolve("not-a-directory");
+        Files.writeString(blocker, "");
+        OperationOutbox outbox = new OperationOutbox(blocker.resolve("user.journal"));
+        outbox.add(insert('a'));
+        assertEquals(1, outbox.size());
+        assertFalse(outbox.takeOverflow());
+        assertTrue(Files.isRegularFile(blocker));
+    }
+}
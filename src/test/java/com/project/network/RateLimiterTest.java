@@ -0,0 +1,86 @@
+package com.project.network;
+
+import com.project.network.RateLimiter.MessageClass;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RateLimiterTest {
+
+    // Default user limit for document updates: 5 a second, with a 2 second burst
+    private static final int DOCUMENT_BURST = 10;
+
+    // Clock the limiters under test are refilled by, in nanoseconds
+    private final AtomicLong now = new AtomicLong();
+
+    private RateLimiter newLimiter() {
+        return RateLimiter.forUser(now::get);
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    void messageTypesMapToClasses() {
+        assertEquals(MessageClass.EDIT, MessageClass.of("insert"));
+        assertEquals(MessageClass.DOCUMENT, MessageClass.of("document_patch"));
+        assertEquals(MessageClass.CURSOR, MessageClass.of("cursor_move"));
+        assertEquals(MessageClass.CONTROL, MessageClass.of("request_resync"));
+        assertNull(MessageClass.of("join_session"));
+    }
+
+    @Test
+    void burstIsAcceptedThenLimited() {
+        RateLimiter limiter = newLimiter();
+        for (int i = 0; i < DOCUMENT_BURST; i++) {
+            assertTrue(limiter.tryAcquire(MessageClass.DOCUMENT), "message " + i);
+        }
+        assertFalse(limiter.tryAcquire(MessageClass.DOCUMENT));
+
+        assertEquals(200, limiter.getRetryAfterMs(MessageClass.DOCUMENT));
+    }
+
+    @Test
+    void classesHaveSeparateBuckets() {
+        RateLimiter limiter = newLimiter();
+        while (limiter.tryAcquire(MessageClass.DOCUMENT)) {
+            // Drain the document bucket
+        }
+        assertTrue(limiter.tryAcquire(MessageClass.EDIT));
+        assertEquals(0, limiter.getRetryAfterMs(MessageClass.CURSOR));
+    }
+
+    @Test
+    void bucketRefillsOverTime() {
+        RateLimiter limiter = newLimiter();
+        while (limiter.tryAcquire(MessageClass.DOCUMENT)) {
+            // Drain the document bucket
+        }
+        advance(150);
+        assertEquals(50, limiter.getRetryAfterMs(MessageClass.DOCUMENT));
+        assertFalse(limiter.tryAcquire(MessageClass.DOCUMENT));
+        advance(50);
+        assertEquals(0, limiter.getRetryAfterMs(MessageClass.DOCUMENT));
+        assertTrue(limiter.tryAcquire(MessageClass.DOCUMENT));
+        assertFalse(limiter.tryAcquire(MessageClass.DOCUMENT));
+    }
+
+    @Test
+    void refillStopsAtTheBurst() {
+        RateLimiter limiter = newLimiter();
+        // A full bucket left alone gains nothing
+        advance(60_000);
+        int accepted = 0;
+        while (limiter.tryAcquire(MessageClass.DOCUMENT) && accepted <= DOCUMENT_BURST) {
+            accepted++;
+        }
+        assertEquals(DOCUMENT_BURST, accepted);
+    }
+}
@@ -0,0 +1,117 @@
+package com.project.network;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TextPatchTest {
+
+    private static void assertRoundTrip(String from, String to) {
+        JsonArray patch = TextPatch.diff(from, to);
+        assertEquals(to, TextPatch.apply(from, patch), () -> "patch " + patch + " from \"" + from + "\"");
+    }
+
+    @Test
+    void emptyTexts() {
+        assertEquals(0, TextPatch.diff("", "").size());
+        assertEquals("", TextPatch.apply("", new JsonArray()));
+        assertRoundTrip("", "hello");
+        assertRoundTrip("hello", "");
+    }
+
+    @Test
+    void identicalTextsNeedNoEdits() {
+        // The trailing keep is implied, so nothing is left to say
+        assertEquals(0, TextPatch.diff("the same text", "the same text").size());
+    }
+
+    @Test
+    void singleEditIsCompact() {
+        assertEquals(JsonParser.parseString("[4,\"X\"]"), TextPatch.diff("abcdefgh", "abcdXefgh"));
+        assertEquals(JsonParser.parseString("[2,-3]"), TextPatch.diff("abcdefgh", "abfgh"));
+        assertEquals(JsonParser.parseString("[-1,\"z\"]"), TextPatch.diff("abc", "zbc"));
+    }
+
+    @Test
+    void scatteredEditsRoundTrip() {
+        assertRoundTrip("the quick brown fox", "a quick brown dog jumps");
+        assertRoundTrip("abcabba", "cbabac");
+        assertRoundTrip("xyz", "abc");
+        assertRoundTrip("aaaa", "aaaaaaaa");
+    }
+
+    @Test
+    void randomEditsRoundTrip() {
+        Random random = new Random(42);
+        for (int round = 0; round < 200; round++) {
+            String from = randomText(random, random.nextInt(60));
+            StringBuilder to = new StringBuilder(from);
+            int edits = random.nextInt(6);
+            for (int i = 0; i < edits; i++) {
+                int pos = to.length() == 0 ? 0 : random.nextInt(to.length());
+                if (random.nextBoolean() && to.length() > 0) {
+                    to.deleteCharAt(pos);
+                } else {
+                    to.insert(pos, randomText(random, 1 + random.nextInt(3)));
+                }
+            }
+            assertRoundTrip(from, to.toString());
+        }
+    }
+
+    @Test
+    void editsBeyondTheLimitStillRoundTrip() {
+        // Past the edit distance limit the rest of a region is replaced wholesale
+        Random random = new Random(7);
+        String from = randomText(random, 5000);
+        String to = randomText(random, 5000);
+        assertRoundTrip(from, to);
+    }
+
+    @Test
+    void unchangedEndsMatchTheTexts() {
+        assertArrayEquals(new int[] {4, 4}, TextPatch.unchangedEnds(TextPatch.diff("abcdefgh", "abcdXefgh"), 8));
+        assertArrayEquals(new int[] {0, 2}, TextPatch.unchangedEnds(TextPatch.diff("abc", "zbc"), 3));
+        assertArrayEquals(new int[] {2, 0}, TextPatch.unchangedEnds(TextPatch.diff("aa", "aaa"), 2));
+
+        Random random = new Random(11);
+        for (int round = 0; round < 200; round++) {
+            String from = randomText(random, random.nextInt(60));
+            String to = randomText(random, random.nextInt(60));
+            int[] ends = TextPatch.unchangedEnds(TextPatch.diff(from, to), from.length());
+            assertTrue(ends[0] + ends[1] <= Math.min(from.length(), to.length()));
+            assertEquals(from.substring(0, ends[0]), to.substring(0, ends[0]));
+            assertEquals(from.substring(from.length() - ends[1]), to.substring(to.length() - ends[1]));
+        }
+    }
+
+    @Test
+    void patchRunningPastTheTextIsRejected() {
+        JsonArray patch = JsonParser.parseString("[3,-5]").getAsJsonArray();
+        assertThrows(IllegalArgumentException.class, () -> TextPatch.apply("abcd", patch));
+    }
+
+    @Test
+    void patchIsSmallerThanTheTextForSmallEdits() {
+        String from = "x".repeat(2000) + "middle" + "y".repeat(2000);
+        String to = "x".repeat(2000) + "MIDDLE" + "y".repeat(2000);
+        JsonArray patch = TextPatch.diff(from, to);
+        assertTrue(patch.toString().length() < 32, patch::toString);
+        assertEquals(to, TextPatch.apply(from, patch));
+    }
+
+    private static String randomText(Random random, int length) {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append((char) ('a' + random.nextInt(4)));
+        }
+        return text.toString();
+    }
+}